@@ -0,0 +1,163 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.benchmarks.handlemap;
+
+import ibis.io.HandleHash;
+import ibis.io.IdentityHandleMap;
+
+/**
+ * Compares the handle tables used by Ibis serialization. Each round mimics
+ * writing an object graph followed by a reset: every object is looked up and
+ * added when new (each object is seen <code>--repeat</code> times), after
+ * which the table is cleared.
+ */
+public final class HandleMapBenchmark {
+
+    private static final int FIRST_HANDLE = 2;
+
+    interface Table {
+        int lazyPut(Object ref, int handle);
+
+        void clear();
+    }
+
+    static final class HandleHashTable implements Table {
+        private final HandleHash hash;
+
+        HandleHashTable(int size) {
+            hash = new HandleHash(size);
+        }
+
+        public int lazyPut(Object ref, int handle) {
+            return hash.lazyPut(ref, handle);
+        }
+
+        public void clear() {
+            hash.clear();
+        }
+    }
+
+    static final class IdentityHandleMapTable implements Table {
+        private final IdentityHandleMap map;
+
+        IdentityHandleMapTable(int size) {
+            map = new IdentityHandleMap(size);
+        }
+
+        public int lazyPut(Object ref, int handle) {
+            return map.lazyPut(ref, handle);
+        }
+
+        public void clear() {
+            map.clear();
+        }
+    }
+
+    private final Object[] objects;
+
+    private final int repeat;
+
+    HandleMapBenchmark(int count, int repeat) {
+        this.repeat = repeat;
+        objects = new Object[count];
+        for (int i = 0; i < count; i++) {
+            objects[i] = new Object();
+        }
+    }
+
+    /**
+     * Runs the given number of rounds, and returns the time taken in
+     * milliseconds.
+     */
+    long run(Table table, int rounds) {
+        long check = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            int next = FIRST_HANDLE;
+            for (int n = 0; n < repeat; n++) {
+                for (int i = 0; i < objects.length; i++) {
+                    int handle = table.lazyPut(objects[i], next);
+                    if (handle == next) {
+                        next++;
+                    }
+                    check += handle;
+                }
+            }
+            table.clear();
+        }
+        long time = (System.nanoTime() - start) / 1000000;
+
+        long expected = 0;
+        for (int i = 0; i < objects.length; i++) {
+            expected += FIRST_HANDLE + i;
+        }
+        if (check != expected * repeat * rounds) {
+            throw new Error("wrong handles returned");
+        }
+        return time;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: HandleMapBenchmark [--objects <count>]"
+                + " [--repeat <count>] [--rounds <count>]"
+                + " [--iterations <count>] [--initial <size>]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        int count = 100000;
+        int repeat = 2;
+        int rounds = 100;
+        int iterations = 10;
+        int initial = 2048;
+
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 == args.length) {
+                usage();
+            }
+            if (args[i].equalsIgnoreCase("--objects")) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equalsIgnoreCase("--repeat")) {
+                repeat = Integer.parseInt(args[++i]);
+            } else if (args[i].equalsIgnoreCase("--rounds")) {
+                rounds = Integer.parseInt(args[++i]);
+            } else if (args[i].equalsIgnoreCase("--iterations")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equalsIgnoreCase("--initial")) {
+                initial = Integer.parseInt(args[++i]);
+            } else {
+                usage();
+            }
+        }
+
+        HandleMapBenchmark benchmark = new HandleMapBenchmark(count, repeat);
+        Table handleHash = new HandleHashTable(initial);
+        Table identityMap = new IdentityHandleMapTable(initial);
+
+        System.out.println("objects = " + count + ", repeat = " + repeat
+                + ", rounds = " + rounds);
+
+        // first iteration is warmup
+        for (int i = 0; i <= iterations; i++) {
+            long t1 = benchmark.run(handleHash, rounds);
+            long t2 = benchmark.run(identityMap, rounds);
+            if (i > 0) {
+                System.out.println("iteration " + i + ": HandleHash " + t1
+                        + " ms, IdentityHandleMap " + t2 + " ms");
+            }
+        }
+    }
+}
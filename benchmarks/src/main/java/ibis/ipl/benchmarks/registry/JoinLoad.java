@@ -0,0 +1,219 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.benchmarks.registry;
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisCapabilities;
+import ibis.ipl.IbisFactory;
+import ibis.ipl.PortType;
+import ibis.util.ThreadPool;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Load benchmark for the registry server: lets a number of ibisses join at
+ * the same time, and reports the number of joins per second and the join
+ * latencies. Failed joins are reported separately. Start several of these against the same server and pool to
+ * simulate a join storm.
+ */
+public final class JoinLoad implements Runnable {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(JoinLoad.class);
+
+    private final int joins;
+
+    private final boolean stay;
+
+    private final IbisCapabilities capabilities;
+
+    private final PortType portType;
+
+    // latencies of the successful joins in milliseconds, the first
+    // succeeded entries are used
+    private final long[] latencies;
+
+    private final Ibis[] ibisses;
+
+    private int next = 0;
+
+    private int done = 0;
+
+    private int succeeded = 0;
+
+    private int failed = 0;
+
+    // total time spent in failed joins, in milliseconds
+    private long failedTime = 0;
+
+    JoinLoad(int joins, boolean stay) {
+        this.joins = joins;
+        this.stay = stay;
+
+        capabilities = new IbisCapabilities(
+                IbisCapabilities.MEMBERSHIP_UNRELIABLE);
+        portType = new PortType(PortType.CONNECTION_ONE_TO_ONE,
+                PortType.SERIALIZATION_OBJECT);
+
+        latencies = new long[joins];
+        ibisses = new Ibis[joins];
+    }
+
+    private synchronized int nextJoin() {
+        if (next >= joins) {
+            return -1;
+        }
+        return next++;
+    }
+
+    private synchronized void joinDone(int index, long latency, Ibis ibis) {
+        ibisses[index] = ibis;
+        if (ibis == null) {
+            // a failed join says nothing about the join latency
+            failed++;
+            failedTime += latency;
+        } else {
+            latencies[succeeded++] = latency;
+        }
+        done++;
+        notifyAll();
+    }
+
+    private synchronized void waitUntilDone() {
+        while (done < joins) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // IGNORE
+            }
+        }
+    }
+
+    public void run() {
+        while (true) {
+            int index = nextJoin();
+            if (index == -1) {
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            Ibis ibis = null;
+            try {
+                ibis = IbisFactory.createIbis(capabilities, null, portType);
+            } catch (Exception e) {
+                logger.error("join failed", e);
+            }
+            joinDone(index, System.currentTimeMillis() - start, ibis);
+        }
+    }
+
+    private void end() {
+        for (Ibis ibis : ibisses) {
+            if (ibis != null) {
+                try {
+                    ibis.end();
+                } catch (Exception e) {
+                    logger.error("cannot end ibis", e);
+                }
+            }
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentage) {
+        int index = (int) Math.ceil(percentage / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private void printStats(long time) {
+        double perSecond = (double) succeeded / ((double) time / 1000.0);
+
+        System.out.printf("%d joins succeeded in %.2f seconds = "
+                + "%.2f joins/second\n", succeeded, time / 1000.0, perSecond);
+
+        if (succeeded > 0) {
+            long[] sorted = Arrays.copyOf(latencies, succeeded);
+            Arrays.sort(sorted);
+
+            System.out.printf("join latency (ms): min %d, p50 %d, p90 %d, "
+                    + "p99 %d, max %d\n", sorted[0], percentile(sorted, 50),
+                    percentile(sorted, 90), percentile(sorted, 99),
+                    sorted[sorted.length - 1]);
+        }
+
+        if (failed > 0) {
+            System.out.printf("%d joins failed, after %d ms on average\n",
+                    failed, failedTime / failed);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int joins = 100;
+        int concurrency = 100;
+        boolean stay = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("--joins")) {
+                i++;
+                joins = Integer.valueOf(args[i]);
+            } else if (args[i].equalsIgnoreCase("--concurrency")) {
+                i++;
+                concurrency = Integer.valueOf(args[i]);
+            } else if (args[i].equalsIgnoreCase("--stay")) {
+                stay = true;
+            } else {
+                System.err.println("unknown option: " + args[i]);
+                System.err.println("usage: JoinLoad [--joins N] "
+                        + "[--concurrency N] [--stay]");
+                System.exit(1);
+            }
+        }
+
+        if (joins <= 0 || concurrency <= 0) {
+            System.err.println("number of joins and concurrency must be "
+                    + "positive");
+            System.exit(1);
+        }
+
+        JoinLoad load = new JoinLoad(joins, stay);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < Math.min(joins, concurrency); i++) {
+            ThreadPool.createNew(load, "joiner");
+        }
+        load.waitUntilDone();
+        long time = System.currentTimeMillis() - start;
+
+        load.printStats(time);
+
+        if (load.stay) {
+            // keep the members in the pool, so heartbeats and event pushes
+            // can be measured at the server
+            System.err.println("members stay in the pool, press ctrl-c "
+                    + "to stop");
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    load.end();
+                }
+            });
+            Thread.sleep(Long.MAX_VALUE);
+        }
+
+        load.end();
+    }
+}
@@ -23,4 +23,10 @@ public interface MultiIbisProperties {
     public static final String IMPLEMENTATION_JARS = PREFIX + "jars.";
     public static final String PROPERTIES = PREFIX + "properties.";
     public static final String PROPERTIES_FILE = PREFIX + "propertiesfile.";
+    /**
+     * Boolean: when set, ports with a single sender per receiver send their
+     * messages round-robin over all underlying implementations. Must be set
+     * on both sides.
+     */
+    public static final String STRIPE = PREFIX + "stripe";
 }
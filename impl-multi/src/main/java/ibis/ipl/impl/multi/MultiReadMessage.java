@@ -30,9 +30,40 @@ public class MultiReadMessage implements ReadMessage {
     final ReadMessage base;
     final MultiReceivePort port;
 
+    /** Message stream of a striped message, see {@link MultiReceivePort}. */
+    private final long stripeStream;
+    private final long stripeSequenceNumber;
+    private boolean turnPending;
+
     public MultiReadMessage(ReadMessage base, MultiReceivePort port) {
         this.base = base;
         this.port = port;
+        this.stripeStream = 0;
+        this.stripeSequenceNumber = 0;
+        this.turnPending = false;
+    }
+
+    /**
+     * Constructor for a striped message, which lets the next message of its
+     * stream be delivered when it is finished.
+     */
+    MultiReadMessage(ReadMessage base, MultiReceivePort port, long stripeStream,
+            long stripeSequenceNumber) {
+        this.base = base;
+        this.port = port;
+        this.stripeStream = stripeStream;
+        this.stripeSequenceNumber = stripeSequenceNumber;
+        this.turnPending = true;
+    }
+
+    void turnDone() {
+        synchronized (this) {
+            if (!turnPending) {
+                return;
+            }
+            turnPending = false;
+        }
+        port.turnDone(stripeStream, stripeSequenceNumber);
     }
 
     public long bytesRead() throws IOException {
@@ -40,11 +71,16 @@ public class MultiReadMessage implements ReadMessage {
     }
 
     public long finish() throws IOException {
-        return base.finish();
+        try {
+            return base.finish();
+        } finally {
+            turnDone();
+        }
     }
 
     public void finish(IOException e) {
         base.finish(e);
+        turnDone();
     }
 
     public ReceivePort localPort() {
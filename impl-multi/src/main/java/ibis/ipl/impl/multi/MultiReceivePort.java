@@ -18,6 +18,7 @@
 package ibis.ipl.impl.multi;
 
 import ibis.ipl.Ibis;
+import ibis.ipl.IbisIdentifier;
 import ibis.ipl.MessageUpcall;
 import ibis.ipl.NoSuchPropertyException;
 import ibis.ipl.PortType;
@@ -34,6 +35,8 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
 
@@ -61,6 +64,62 @@ public class MultiReceivePort implements ReceivePort {
 
     private boolean handlersStarted;
 
+    /**
+     * When set, messages of a sender arrive round-robin over the sub ports,
+     * see {@link MultiSendPort}, and are delivered in the order of their
+     * sequence numbers.
+     */
+    final boolean stripe;
+
+    /** Next sequence number to deliver, per message stream. */
+    private final HashMap<Long, Long> stripeNext = new HashMap<Long, Long>();
+
+    /**
+     * Sender of each message stream. A stream is forgotten when none of the
+     * connections of its sender is left.
+     */
+    private final HashMap<Long, StreamOwner> stripeOwners = new HashMap<Long, StreamOwner>();
+
+    /** Message streams whose current message is being delivered. */
+    private final HashSet<Long> stripeBusy = new HashSet<Long>();
+
+    /**
+     * How long a message waits for its turn without any progress of its
+     * stream before checking whether the sender left.
+     */
+    private static final long TURN_CHECK_INTERVAL = 1000;
+
+    /** Serializes registering and forgetting message streams. */
+    private final Object stripeOwnersLock = new Object();
+
+    /**
+     * Identifies the send port of a message stream, whatever rail its
+     * messages arrive on.
+     */
+    private static final class StreamOwner {
+        final IbisIdentifier ibis;
+        final String name;
+
+        StreamOwner(IbisIdentifier ibis, String name) {
+            this.ibis = ibis;
+            this.name = name;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof StreamOwner)) {
+                return false;
+            }
+            StreamOwner other = (StreamOwner) o;
+            return ibis.equals(other.ibis) && name.equals(other.name);
+        }
+
+        public int hashCode() {
+            return ibis.hashCode() ^ name.hashCode();
+        }
+    }
+
+    private boolean stripeClosed = false;
+
     private final class DowncallHandler implements Runnable {
 
         private final ReceivePort subPort;
@@ -85,6 +144,31 @@ public class MultiReceivePort implements ReceivePort {
                 } catch (IOException e) {
                     exception = e;
                 }
+
+                long stream = 0;
+                long sequenceNumber = 0;
+                boolean skipped = false;
+                if (message != null && stripe) {
+                    try {
+                        stream = message.readLong();
+                        sequenceNumber = message.readLong();
+                        skipped = !waitForTurn(message.origin(), ibisName,
+                                stream, sequenceNumber);
+                    } catch (IOException e) {
+                        message.finish(e);
+                        message = null;
+                        exception = e;
+                    }
+                }
+                if (skipped) {
+                    // a skip marker, or a message its sender gave up on
+                    try {
+                        message.finish();
+                    } catch (IOException e) {
+                        // Ignored
+                    }
+                    continue;
+                }
 //                logger.debug("Run Locking Message Queue");
                 synchronized (messageQueue) {
 //                    logger.debug("Run setting result: " + message + " : " + exception);
@@ -102,6 +186,10 @@ public class MultiReceivePort implements ReceivePort {
                         messageQueue.notifyAll();
                     }
                 }
+                if (message != null && stripe) {
+                    // queued in order, the next one may be queued now
+                    turnDone(stream, sequenceNumber);
+                }
             }
 //            logger.debug("Handler exiting");
         }
@@ -130,6 +218,9 @@ public class MultiReceivePort implements ReceivePort {
 
         public void lostConnection(ReceivePort me,
                 SendPortIdentifier johnDoe, Throwable reason) {
+            if (port.stripe) {
+                port.forgetStreams();
+            }
             try {
                 upcaller.lostConnection(port, ibis.mapSendPortIdentifier(johnDoe, ibisName), reason);
             } catch (IOException e) {
@@ -151,7 +242,25 @@ public class MultiReceivePort implements ReceivePort {
         }
 
         public void upcall(ReadMessage m) throws IOException, ClassNotFoundException {
-            upcaller.upcall(new MultiReadMessage(m, port));
+            if (!port.stripe) {
+                upcaller.upcall(new MultiReadMessage(m, port));
+                return;
+            }
+            long stream = m.readLong();
+            long sequenceNumber = m.readLong();
+            if (!port.waitForTurn(m.origin(), port.ibisNameOf(m.localPort()),
+                    stream, sequenceNumber)) {
+                // a skip marker, or a message its sender gave up on
+                return;
+            }
+            MultiReadMessage message = new MultiReadMessage(m, port, stream,
+                    sequenceNumber);
+            try {
+                upcaller.upcall(message);
+            } finally {
+                // unless the upcall already finished the message
+                message.turnDone();
+            }
         }
     }
 
@@ -162,6 +271,7 @@ public class MultiReceivePort implements ReceivePort {
             throws IOException {
 
         this.id = new MultiReceivePortIdentifier(ibis.identifier(), name);
+        this.stripe = MultiSendPort.stripe(type, ibis, properties);
 
         // Wrap the upcaller if there is one
         if (upcall != null) {
@@ -192,7 +302,175 @@ public class MultiReceivePort implements ReceivePort {
         this.ibis = ibis;
     }
 
+    private StreamOwner ownerOf(SendPortIdentifier origin, String ibisName)
+            throws IOException {
+        return new StreamOwner(ibis.mapIdentifier(origin.ibisIdentifier(),
+                ibisName), origin.name());
+    }
+
+    /**
+     * Returns the name of the sub ibis of the given sub port.
+     */
+    String ibisNameOf(ReceivePort subPort) {
+        synchronized (subPortMap) {
+            for (Map.Entry<String, ReceivePort> e : subPortMap.entrySet()) {
+                if (e.getValue() == subPort) {
+                    return e.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forgets the message streams of senders that have no connection left,
+     * unless a message of the stream is being delivered. All messages of
+     * such a stream have arrived, as a connection is only closed after its
+     * messages are read, so whatever still waits for its turn waits for a
+     * message that was lost with the sender.
+     */
+    void forgetStreams() {
+        synchronized (stripeOwnersLock) {
+            // Connections are made before their messages arrive, so any
+            // stream registered before this point is in here, unless its
+            // sender left.
+            HashSet<StreamOwner> connected = new HashSet<StreamOwner>();
+            synchronized (subPortMap) {
+                for (Map.Entry<String, ReceivePort> e : subPortMap.entrySet()) {
+                    for (SendPortIdentifier origin : e.getValue().connectedTo()) {
+                        try {
+                            connected.add(ownerOf(origin, e.getKey()));
+                        } catch (IOException x) {
+                            // keep the streams of this sender
+                            return;
+                        }
+                    }
+                }
+            }
+            synchronized (stripeNext) {
+                Iterator<Map.Entry<Long, StreamOwner>> i = stripeOwners
+                        .entrySet().iterator();
+                while (i.hasNext()) {
+                    Map.Entry<Long, StreamOwner> e = i.next();
+                    if (!connected.contains(e.getValue())
+                            && !stripeBusy.contains(e.getKey())) {
+                        i.remove();
+                    }
+                }
+                stripeNext.keySet().retainAll(stripeOwners.keySet());
+                // wake the messages of forgotten streams
+                stripeNext.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the message with the given sequence number is the next one
+     * of the given message stream. A negative sequence number
+     * <code>-1 - n</code> is a skip marker, which the sender sends when
+     * message <code>n</code> failed, see {@link MultiSendPort}.
+     *
+     * @param origin
+     *            the sub port connection the message arrived on.
+     * @param ibisName
+     *            the sub ibis of that connection.
+     * @return whether the message is to be delivered. If not, it is a skip
+     *         marker or a message that was skipped, and is finished without
+     *         delivering it.
+     * @exception IOException
+     *             the port was closed, or the sender left without sending
+     *             the message this one waits for.
+     */
+    boolean waitForTurn(SendPortIdentifier origin, String ibisName,
+            long stream, long sequenceNumber) throws IOException {
+        boolean known;
+        synchronized (stripeNext) {
+            known = stripeOwners.containsKey(stream);
+        }
+        if (!known) {
+            // A new sender, which is rare. Forget the streams of senders
+            // that have left, unless the sub ports tell us about lost
+            // connections.
+            StreamOwner owner = ownerOf(origin, ibisName);
+            forgetStreams();
+            synchronized (stripeOwnersLock) {
+                synchronized (stripeNext) {
+                    stripeOwners.put(stream, owner);
+                }
+            }
+        }
+        boolean marker = sequenceNumber < 0;
+        long turn = marker ? -1 - sequenceNumber : sequenceNumber;
+        while (true) {
+            synchronized (stripeNext) {
+                long waitedFor = -1;
+                long deadline = 0;
+                while (!stripeClosed) {
+                    if (!stripeOwners.containsKey(stream)) {
+                        throw new IOException("Sender of message stream "
+                                + stream + " left");
+                    }
+                    Long n = stripeNext.get(stream);
+                    long next = n == null ? 0 : n;
+                    boolean busy = stripeBusy.contains(stream);
+                    if (next > turn) {
+                        return false;
+                    }
+                    if (next == turn && !busy) {
+                        if (marker) {
+                            stripeNext.put(stream, turn + 1);
+                            stripeNext.notifyAll();
+                            return false;
+                        }
+                        stripeBusy.add(stream);
+                        return true;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (busy || next != waitedFor) {
+                        waitedFor = next;
+                        deadline = now + TURN_CHECK_INTERVAL;
+                    } else if (now >= deadline) {
+                        break;
+                    }
+                    try {
+                        stripeNext.wait(deadline - now);
+                    } catch (InterruptedException e) {
+                        // Ignored
+                    }
+                }
+                if (stripeClosed) {
+                    throw new IOException("Port closed");
+                }
+            }
+            // No progress for a while, the sender may have left without
+            // the sub ports telling us.
+            forgetStreams();
+        }
+    }
+
+    /**
+     * Called when the message with the given sequence number has been
+     * delivered, so the next one may be delivered.
+     */
+    void turnDone(long stream, long sequenceNumber) {
+        synchronized (stripeNext) {
+            stripeBusy.remove(stream);
+            Long next = stripeNext.get(stream);
+            if (next == null || next <= sequenceNumber) {
+                stripeNext.put(stream, sequenceNumber + 1);
+            }
+            stripeNext.notifyAll();
+        }
+    }
+
     public synchronized void close() throws IOException {
+        synchronized (stripeNext) {
+            stripeClosed = true;
+            stripeNext.clear();
+            stripeOwners.clear();
+            stripeBusy.clear();
+            stripeNext.notifyAll();
+        }
         for(DowncallHandler handler:handlers) {
             handler.running = false;
             // TODO connect to wake? Or will close wake?
@@ -306,10 +584,25 @@ public class MultiReceivePort implements ReceivePort {
         return connectedTo.keySet().toArray(new SendPortIdentifier[connectedTo.size()]);
     }
 
+    private void startHandlers() {
+        // TODO: What is the cost of this lazy init?
+        if (!handlersStarted) {
+//            logger.debug("Starting handlers.");
+            for (DowncallHandler handler:handlers) {
+                    ThreadPool.createNew(handler, "Handler Thread: "+handler.ibisName);
+            }
+            handlersStarted = true;
+        }
+    }
+
     public synchronized ReadMessage poll() throws IOException {
         ReadMessage result = null;
+        if (stripe) {
+            // sub ports are read by the handlers, which restore the order
+            startHandlers();
+        }
         synchronized (messageQueue) {
-            if (messageQueue.size() == 0) {
+            if (messageQueue.size() == 0 && !stripe) {
                 // Poll all subports for fairness
                 for (ReceivePort port:subPortMap.values()) {
                     ReadMessage message = port.poll();
@@ -334,14 +627,7 @@ public class MultiReceivePort implements ReceivePort {
             throw new IOException("Downcalls Not Configured!");
         }
 //        logger.debug("> receive");
-        // TODO: What is the cost of this lazy init?
-        if (!handlersStarted) {
-//            logger.debug("Starting handlers.");
-            for (DowncallHandler handler:handlers) {
-                    ThreadPool.createNew(handler, "Handler Thread: "+handler.ibisName);
-            }
-            handlersStarted = true;
-        }
+        startHandlers();
         ReadMessage ret = null;
         synchronized (messageQueue) {
 //            logger.debug(">> messageQueue locked");
@@ -29,6 +29,7 @@ import ibis.ipl.SendPortDisconnectUpcall;
 import ibis.ipl.SendPortIdentifier;
 import ibis.ipl.WriteMessage;
 import ibis.util.ThreadPool;
+import ibis.util.TypedProperties;
 
 import java.io.IOException;
 import java.io.PrintStream;
@@ -36,6 +37,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -67,6 +69,25 @@ public class MultiSendPort implements SendPort {
 
     private int handlerCount;
 
+    /**
+     * When set, messages are sent round-robin over all sub ports that are
+     * connected (the rails), instead of over the active send port only.
+     */
+    private final boolean stripe;
+
+    /** Names of the sub ibises of the rails, in round-robin order. */
+    private final ArrayList<String> rails = new ArrayList<String>();
+
+    private int nextRail = 0;
+
+    /** Identifies the message stream of this port at the receivers. */
+    private final long stripeStream;
+
+    private long nextSequenceNumber = 0;
+
+    /** Serializes the set-up of striped messages. */
+    private final Object newMessageLock = new Object();
+
     private final class DowncallHandler implements Runnable {
 
         private static final int OPP_NOOP = -1;
@@ -259,6 +280,15 @@ public class MultiSendPort implements SendPort {
             logger.debug("Constructing MultiSendPort");
         }
 
+        stripe = stripe(type, ibis, props);
+        stripeStream = new Random().nextLong();
+        if (stripe && name == null) {
+            // All rails must have the same name, so that the receiver can
+            // tell which connections belong to this port.
+            name = "anonymous striped send port "
+                    + Long.toHexString(stripeStream);
+        }
+
         for (String ibisName:ibis.subIbisMap.keySet()) {
             Ibis subIbis = ibis.subIbisMap.get(ibisName);
             DisconnectUpcaller upcaller = null;
@@ -266,11 +296,13 @@ public class MultiSendPort implements SendPort {
                 upcaller = new DisconnectUpcaller(ibisName, this, connectUpcall);
             }
             SendPort subPort = subIbis.createSendPort(type, name, upcaller, props);
-            DowncallHandler handler = new DowncallHandler(subPort, ibisName);
-            handlers .add(handler);
             subPortMap.put(ibisName, subPort);
             ibis.sendPortMap.put(subPort, this);
-            ThreadPool.createNew(handler, "Connect Handler: " + ibisName);
+            if (!stripe) {
+                DowncallHandler handler = new DowncallHandler(subPort, ibisName);
+                handlers .add(handler);
+                ThreadPool.createNew(handler, "Connect Handler: " + ibisName);
+            }
         }
         ManageableMapper = new ManageableMapper((Map)subPortMap);
         this.portType = type;
@@ -280,6 +312,112 @@ public class MultiSendPort implements SendPort {
     }
 
 
+    /**
+     * Determines whether messages of a port are striped over the sub ibises.
+     * Only ports with a single sender per receiver are striped, as the
+     * receiver could otherwise deadlock while waiting for the next message
+     * of one sender behind a message of another sender.
+     */
+    static boolean stripe(PortType type, MultiIbis ibis, Properties props) {
+        TypedProperties properties = new TypedProperties(ibis.properties());
+        if (props != null) {
+            properties.addProperties(props);
+        }
+        return properties.getBooleanProperty(MultiIbisProperties.STRIPE, false)
+                && ibis.subIbisMap.size() > 1
+                && !type.hasCapability(PortType.CONNECTION_MANY_TO_ONE)
+                && !type.hasCapability(PortType.CONNECTION_MANY_TO_MANY);
+    }
+
+    /**
+     * Adds the sub port of the given ibis to the rails, or removes it when
+     * its connection failed. A rail that fails once is not used again, as
+     * it may not be connected to all receivers.
+     */
+    private void railConnected(String ibisName, boolean success) {
+        if (success) {
+            if (!rails.contains(ibisName)) {
+                rails.add(ibisName);
+            }
+        } else if (rails.remove(ibisName)) {
+            try {
+                subPortMap.get(ibisName).close();
+            } catch (IOException e) {
+                // Ignored
+            }
+        }
+    }
+
+    private void stripeConnect(ReceivePortIdentifier receiver,
+            long timeoutMillis, boolean fillTimeout)
+            throws ConnectionFailedException {
+        ConnectionFailedException failure = null;
+        boolean first = rails.isEmpty() && nextSequenceNumber == 0;
+        for (String ibisName : subPortMap.keySet()) {
+            if (!first && !rails.contains(ibisName)) {
+                continue;
+            }
+            try {
+                subPortMap.get(ibisName).connect(
+                        ((MultiReceivePortIdentifier) receiver)
+                                .getSubId(ibisName), timeoutMillis,
+                        fillTimeout);
+                railConnected(ibisName, true);
+            } catch (ConnectionFailedException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Rail " + ibisName + " failed to connect", e);
+                }
+                failure = e;
+                railConnected(ibisName, false);
+            }
+        }
+        if (rails.isEmpty()) {
+            throw new ConnectionFailedException("Unable to open connection.",
+                    receiver, failure);
+        }
+    }
+
+    private ReceivePortIdentifier stripeConnect(IbisIdentifier id,
+            String name, long timeoutMillis, boolean fillTimeout)
+            throws ConnectionFailedException {
+        ConnectionFailedException failure = null;
+        ReceivePortIdentifier result = null;
+        boolean first = rails.isEmpty() && nextSequenceNumber == 0;
+        for (String ibisName : subPortMap.keySet()) {
+            if (!first && !rails.contains(ibisName)) {
+                continue;
+            }
+            try {
+                ReceivePortIdentifier portId = subPortMap.get(ibisName)
+                        .connect(((MultiIbisIdentifier) id)
+                                .subIdForIbis(ibisName), name,
+                                timeoutMillis, fillTimeout);
+                if (result == null) {
+                    result = ibis.mapReceivePortIdentifier(portId, ibisName);
+                }
+                railConnected(ibisName, true);
+            } catch (ConnectionFailedException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Rail " + ibisName + " failed to connect", e);
+                }
+                failure = e;
+                railConnected(ibisName, false);
+            } catch (IOException e) {
+                // could not map identifier, but the rail is connected
+                railConnected(ibisName, true);
+            }
+        }
+        if (rails.isEmpty()) {
+            throw new ConnectionFailedException("Unable to open connection.",
+                    id, name, failure);
+        }
+        if (result == null) {
+            throw new ConnectionFailedException("Unable to map identifier.",
+                    id, name);
+        }
+        return result;
+    }
+
     public void close() throws IOException {
         if (logger.isDebugEnabled()) {
             logger.debug("Closing port: " + this);
@@ -300,6 +438,10 @@ public class MultiSendPort implements SendPort {
     }
 
     public synchronized void connect(ReceivePortIdentifier receiver, long timeoutMillis, boolean fillTimeout) throws ConnectionFailedException {
+        if (stripe) {
+            stripeConnect(receiver, timeoutMillis, fillTimeout);
+            return;
+        }
         synchronized (idQueue) {
             logger.debug("Attempting to connect.");
             errorQueue.clear();
@@ -355,6 +497,12 @@ public class MultiSendPort implements SendPort {
     }
 
     public synchronized ReceivePortIdentifier connect(IbisIdentifier id, String name, long timeoutMillis, boolean fillTimeout) throws ConnectionFailedException {
+        if (stripe) {
+            if (id == null) {
+                throw new IllegalArgumentException("Null ibis identifier!");
+            }
+            return stripeConnect(id, name, timeoutMillis, fillTimeout);
+        }
         synchronized (idQueue) {
             if (id == null) {
                 throw new IllegalArgumentException("Null ibis identifier!");
@@ -423,6 +571,23 @@ public class MultiSendPort implements SendPort {
     }
 
     public void connect(ReceivePortIdentifier[] ports, long timeoutMillis, boolean fillTimeout) throws ConnectionsFailedException {
+        if (stripe) {
+            ConnectionsFailedException failures = null;
+            for (ReceivePortIdentifier port : ports) {
+                try {
+                    connect(port, timeoutMillis, fillTimeout);
+                } catch (ConnectionFailedException e) {
+                    if (failures == null) {
+                        failures = new ConnectionsFailedException();
+                    }
+                    failures.add(e);
+                }
+            }
+            if (failures != null) {
+                throw failures;
+            }
+            return;
+        }
         synchronized (idQueue) {
             logger.debug("Connecting...");
             errorQueue.clear();
@@ -465,6 +630,27 @@ public class MultiSendPort implements SendPort {
     }
 
     public ReceivePortIdentifier[] connect(Map<IbisIdentifier, String> ports, long timeoutMillis, boolean fillTimeout) throws ConnectionsFailedException {
+        if (stripe) {
+            ArrayList<ReceivePortIdentifier> result = new ArrayList<ReceivePortIdentifier>();
+            ConnectionsFailedException failures = null;
+            for (Map.Entry<IbisIdentifier, String> port : ports.entrySet()) {
+                try {
+                    result.add(connect(port.getKey(), port.getValue(),
+                            timeoutMillis, fillTimeout));
+                } catch (ConnectionFailedException e) {
+                    if (failures == null) {
+                        failures = new ConnectionsFailedException();
+                    }
+                    failures.add(e);
+                }
+            }
+            if (failures != null) {
+                failures.setObtainedConnections(result
+                        .toArray(new ReceivePortIdentifier[result.size()]));
+                throw failures;
+            }
+            return result.toArray(new ReceivePortIdentifier[result.size()]);
+        }
         synchronized (idQueue) {
             logger.debug("Connecting...");
             errorQueue.clear();
@@ -593,10 +779,93 @@ public class MultiSendPort implements SendPort {
     }
 
     public WriteMessage newMessage() throws IOException {
+        if (stripe) {
+            // The receiver delivers the messages in the order of their
+            // sequence numbers, whatever rail they arrive on, so a number
+            // may only be used up once its message is set up. Otherwise the
+            // receiver would wait for it forever.
+            synchronized (newMessageLock) {
+                String rail;
+                synchronized (this) {
+                    if (rails.isEmpty()) {
+                        throw new IOException("Port is not connected");
+                    }
+                    rail = rails.get(nextRail++ % rails.size());
+                }
+                WriteMessage message;
+                try {
+                    message = subPortMap.get(rail).newMessage();
+                } catch (IOException e) {
+                    synchronized (this) {
+                        railConnected(rail, false);
+                    }
+                    throw e;
+                }
+                long sequenceNumber = nextSequenceNumber;
+                try {
+                    message.writeLong(stripeStream);
+                    message.writeLong(sequenceNumber);
+                } catch (IOException e) {
+                    message.finish(e);
+                    throw e;
+                }
+                synchronized (this) {
+                    nextSequenceNumber++;
+                }
+                return new MultiWriteMessage(message, this, rail,
+                        sequenceNumber);
+            }
+        }
         // TODO: Throw error if activeSendPort is null?
         return new MultiWriteMessage(activeSendPort.newMessage(), this);
     }
 
+    /**
+     * Tells the receivers that the striped message with the given sequence
+     * number will never arrive, so that they do not wait for it. The marker
+     * is a message of this stream with sequence number <code>-1 - n</code>,
+     * sent on another rail when there is one. When the message failed
+     * because its rail did, that rail is dropped first.
+     */
+    void skip(String failedRail, long sequenceNumber, boolean railFailed) {
+        synchronized (newMessageLock) {
+            ArrayList<String> candidates;
+            synchronized (this) {
+                if (railFailed) {
+                    railConnected(failedRail, false);
+                }
+                candidates = new ArrayList<String>(rails);
+            }
+            // Prefer the other rails, the failed message may have left its
+            // own rail in a bad state.
+            if (candidates.remove(failedRail)) {
+                candidates.add(failedRail);
+            }
+            for (String rail : candidates) {
+                WriteMessage marker = null;
+                try {
+                    marker = subPortMap.get(rail).newMessage();
+                    marker.writeLong(stripeStream);
+                    marker.writeLong(-1 - sequenceNumber);
+                    marker.finish();
+                    return;
+                } catch (IOException e) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Rail " + rail
+                                + " failed to send skip marker", e);
+                    }
+                    if (marker != null) {
+                        marker.finish(e);
+                    }
+                    synchronized (this) {
+                        railConnected(rail, false);
+                    }
+                }
+            }
+            // No rail left: the receivers lose their connections anyway.
+        }
+    }
+
     public String getManagementProperty(String key)
     throws NoSuchPropertyException {
         return ManageableMapper.getManagementProperty(key);
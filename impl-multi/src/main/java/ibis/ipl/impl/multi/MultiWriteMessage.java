@@ -28,9 +28,21 @@ public class MultiWriteMessage implements WriteMessage {
     final WriteMessage base;
     final MultiSendPort port;
 
+    /** Rail of a striped message, or <code>null</code>. */
+    private final String rail;
+
+    private final long sequenceNumber;
+
     public MultiWriteMessage(WriteMessage base, MultiSendPort port) {
+        this(base, port, null, -1);
+    }
+
+    MultiWriteMessage(WriteMessage base, MultiSendPort port, String rail,
+            long sequenceNumber) {
         this.base = base;
         this.port = port;
+        this.rail = rail;
+        this.sequenceNumber = sequenceNumber;
     }
 
     public long bytesWritten() throws IOException {
@@ -38,11 +50,22 @@ public class MultiWriteMessage implements WriteMessage {
     }
 
     public long finish() throws IOException {
-        return base.finish();
+        try {
+            return base.finish();
+        } catch (IOException e) {
+            if (rail != null) {
+                // The receivers may never see this sequence number.
+                port.skip(rail, sequenceNumber, true);
+            }
+            throw e;
+        }
     }
 
     public void finish(IOException e) {
         base.finish(e);
+        if (rail != null) {
+            port.skip(rail, sequenceNumber, false);
+        }
     }
 
     public SendPort localPort() {
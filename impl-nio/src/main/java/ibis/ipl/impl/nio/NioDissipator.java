@@ -34,6 +34,7 @@ import java.nio.channels.ReadableByteChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ibis.io.BufferPool;
 import ibis.io.Conversion;
 import ibis.io.DataInputStream;
 import ibis.ipl.impl.ReceivePortIdentifier;
@@ -90,6 +91,9 @@ public abstract class NioDissipator extends DataInputStream
      */
     protected ByteBuffer buffer;
 
+    /** Buffer obtained from the pool, <code>null</code> once released. */
+    private ByteBuffer pooledBuffer;
+
     /**
      * Buffer with the same backing-store as the buffer, used for copying data
      * from one place to another in the buffer
@@ -137,7 +141,9 @@ public abstract class NioDissipator extends DataInputStream
 
         order = ByteOrder.BIG_ENDIAN;
 
-        buffer = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+        pooledBuffer = BufferPool.allocateDirect(BYTE_BUFFER_SIZE);
+        // the pooled buffer may be larger than asked for
+        buffer = pooledBuffer.slice();
         copyFromBuffer = buffer.duplicate();
         copyToBuffer = buffer.duplicate();
         buffer.limit(BUFFER_LIMIT);
@@ -832,6 +838,15 @@ public abstract class NioDissipator extends DataInputStream
      */
     @Override
     public void close() throws IOException {
-        channel.close();
+        try {
+            channel.close();
+        } finally {
+            synchronized (this) {
+                if (pooledBuffer != null) {
+                    BufferPool.release(pooledBuffer);
+                    pooledBuffer = null;
+                }
+            }
+        }
     }
 }
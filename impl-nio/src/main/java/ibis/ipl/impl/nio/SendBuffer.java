@@ -17,6 +17,8 @@
 
 package ibis.ipl.impl.nio;
 
+import ibis.io.BufferPool;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
@@ -75,34 +77,22 @@ final class SendBuffer implements Config {
 
     public static final int SIZEOF_DOUBLE = 8;
 
-    static final int BUFFER_CACHE_SIZE = 128;
-
-    static SendBuffer[] cache = new SendBuffer[BUFFER_CACHE_SIZE];
-
-    static int cacheSize = 0;
-
     private static Logger logger = LoggerFactory.getLogger(SendBuffer.class);
 
     /**
-     * Static method to get a sendbuffer out of the cache
+     * Static method to get a new sendbuffer. Its memory comes from the
+     * {@link BufferPool}.
      */
-    synchronized static SendBuffer get() {
-        if (cacheSize > 0) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("SendBuffer: got empty buffer from cache");
-            }
-            cacheSize--;
-            cache[cacheSize].clear();
-            return cache[cacheSize];
-        }
+    static SendBuffer get() {
         if (logger.isDebugEnabled()) {
-        	logger.debug("SendBuffer: got new empty buffer");
+            logger.debug("SendBuffer: got new empty buffer");
         }
         return new SendBuffer();
     }
 
     /**
-     * static method to put a buffer in the cache
+     * static method to return the memory of a buffer to the pool, once the
+     * buffer and all its copies are done with
      */
     synchronized static void recycle(SendBuffer buffer) {
         if (buffer.parent == null) {
@@ -110,15 +100,7 @@ final class SendBuffer implements Config {
                 // throw new Error("tried to recycle buffer with children!");
                 return;
             }
-            if (cacheSize >= BUFFER_CACHE_SIZE) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("SendBuffer: cache full"
-                            + " apon recycling buffer, throwing away");
-                }
-                return;
-            }
-            cache[cacheSize] = buffer;
-            cacheSize++;
+            buffer.release();
             if (logger.isDebugEnabled()) {
                 logger.debug("SendBuffer: recycled buffer");
             }
@@ -128,16 +110,7 @@ final class SendBuffer implements Config {
             }
             buffer.parent.copies--;
             if (buffer.parent.copies == 0) {
-                if (cacheSize >= BUFFER_CACHE_SIZE) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("SendBuffer: cache full"
-                                + " apon recycling parent of child buffer,"
-                                + " throwing away");
-                    }
-                    return;
-                }
-                cache[cacheSize] = buffer.parent;
-                cacheSize++;
+                buffer.parent.release();
                 if (logger.isDebugEnabled()) {
                     logger.debug("SendBuffer: recycled parent buffer");
                 }
@@ -165,6 +138,9 @@ final class SendBuffer implements Config {
     // original buffer this buffer is a copy of (if applicable)
     SendBuffer parent = null;
 
+    // whether the byte buffers still have to be returned to the pool
+    private boolean pooled = false;
+
     private static long nextSequenceNr = 0;
 
     ShortBuffer header;
@@ -195,9 +171,9 @@ final class SendBuffer implements Config {
         ByteOrder order = ByteOrder.nativeOrder();
 
         byteBuffers = new ByteBuffer[NR_OF_BUFFERS];
-        byteBuffers[HEADER] = ByteBuffer.allocateDirect(SIZEOF_HEADER).order(
+        byteBuffers[HEADER] = BufferPool.allocateDirect(SIZEOF_HEADER).order(
                 order);
-        byteBuffers[PADDING] = ByteBuffer.allocateDirect(SIZEOF_PADDING).order(
+        byteBuffers[PADDING] = BufferPool.allocateDirect(SIZEOF_PADDING).order(
                 order);
 
         // put the byte order in the first byte of the header
@@ -208,7 +184,7 @@ final class SendBuffer implements Config {
         }
 
         for (int i = 1; i < (NR_OF_BUFFERS - 1); i++) {
-            byteBuffers[i] = ByteBuffer.allocateDirect(PRIMITIVE_BUFFER_SIZE)
+            byteBuffers[i] = BufferPool.allocateDirect(PRIMITIVE_BUFFER_SIZE)
                     .order(order);
         }
 
@@ -219,7 +195,9 @@ final class SendBuffer implements Config {
         floats = byteBuffers[FLOATS].asFloatBuffer();
         shorts = byteBuffers[SHORTS].asShortBuffer();
         chars = byteBuffers[CHARS].asCharBuffer();
-        bytes = byteBuffers[BYTES].duplicate();
+        // pooled buffers may be larger than asked for
+        bytes = byteBuffers[BYTES].slice().order(order);
+        pooled = true;
 
         clear();
     }
@@ -236,6 +214,19 @@ final class SendBuffer implements Config {
         }
     }
 
+    /**
+     * Returns the byte buffers to the pool. The buffer cannot be used
+     * anymore.
+     */
+    private void release() {
+        if (pooled) {
+            pooled = false;
+            for (int i = 0; i < NR_OF_BUFFERS; i++) {
+                BufferPool.release(byteBuffers[i]);
+            }
+        }
+    }
+
     /**
      * 
      * 
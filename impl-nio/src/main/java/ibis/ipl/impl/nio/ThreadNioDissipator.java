@@ -144,7 +144,9 @@ final class ThreadNioDissipator extends NioDissipator {
         }
     }
 
-    public void close() throws IOException {
+    synchronized public void close() throws IOException {
+        // synchronized, so that the send/receive thread is not reading into
+        // the buffer while it is returned to the pool
         reading = false;
         super.close();
     }
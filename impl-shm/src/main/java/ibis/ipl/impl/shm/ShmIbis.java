@@ -0,0 +1,535 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.ipl.impl.shm;
+
+import ibis.io.BufferedArrayInputStream;
+import ibis.io.BufferedArrayOutputStream;
+import ibis.io.IOProperties;
+import ibis.ipl.AlreadyConnectedException;
+import ibis.ipl.CapabilitySet;
+import ibis.ipl.ConnectionRefusedException;
+import ibis.ipl.ConnectionTimedOutException;
+import ibis.ipl.Credentials;
+import ibis.ipl.IbisCapabilities;
+import ibis.ipl.IbisCreationFailedException;
+import ibis.ipl.IbisStarter;
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.PortMismatchException;
+import ibis.ipl.PortType;
+import ibis.ipl.ReceivePortConnectUpcall;
+import ibis.ipl.RegistryEventHandler;
+import ibis.ipl.SendPortDisconnectUpcall;
+import ibis.ipl.impl.IbisIdentifier;
+import ibis.ipl.impl.ReadAheadInputStream;
+import ibis.ipl.impl.ReceivePort;
+import ibis.ipl.impl.SendPort;
+import ibis.ipl.impl.SendPortIdentifier;
+import ibis.util.IPUtils;
+import ibis.util.ThreadPool;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ibis implementation that sends the data of a connection through a
+ * shared-memory ring (see {@link ShmRing}) when sender and receiver run on the
+ * same host, and through a TCP socket otherwise. Connections are always set up
+ * through a TCP socket, which also serves to wake up a peer that blocks on an
+ * empty or full ring.
+ * <p>
+ * Shared memory can be switched off with the
+ * <code>ibis.ipl.impl.shm.enabled</code> property, for the whole ibis or for
+ * a single port, by passing the property when the port is created.
+ */
+public final class ShmIbis extends ibis.ipl.impl.Ibis implements Runnable,
+        ShmProtocol {
+
+    static final String PREFIX = "ibis.ipl.impl.shm.";
+
+    /** Use shared memory for connections within the host. */
+    static final String ENABLED = PREFIX + "enabled";
+
+    /** Directory in which the rings are created. */
+    static final String DIR = PREFIX + "dir";
+
+    /** Size of the ring of a connection. */
+    static final String SIZE = PREFIX + "size";
+
+    /** Number of times to look at the ring before blocking. */
+    static final String SPIN = PREFIX + "spin";
+
+    /** Spinning only takes time away from the peer on a single processor. */
+    static final int DEFAULT_SPIN = Runtime.getRuntime()
+            .availableProcessors() > 1 ? 1000 : 0;
+
+    static final Logger logger = LoggerFactory
+            .getLogger("ibis.ipl.impl.shm.ShmIbis");
+
+    private static class Address {
+        final String hostId;
+
+        final InetSocketAddress address;
+
+        Address(byte[] buf) throws IOException {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(buf));
+            hostId = in.readUTF();
+            String host = in.readUTF();
+            int port = in.readInt();
+            address = new InetSocketAddress(InetAddress.getByName(host), port);
+        }
+
+        public String toString() {
+            return address.toString();
+        }
+    }
+
+    private ServerSocket systemServer;
+
+    private InetSocketAddress myAddress;
+
+    /** Identifies this host, to find out if a peer is on it as well. */
+    private String hostId;
+
+    private File dir;
+
+    private boolean quiting = false;
+
+    private HashMap<ibis.ipl.IbisIdentifier, Address> addresses = new HashMap<ibis.ipl.IbisIdentifier, Address>();
+
+    public ShmIbis(RegistryEventHandler registryEventHandler,
+            IbisCapabilities capabilities, Credentials credentials,
+            byte[] applicationTag, PortType[] types, Properties userProperties,
+            IbisStarter starter) throws IbisCreationFailedException {
+        super(registryEventHandler, capabilities, credentials, applicationTag,
+                types, userProperties, starter);
+
+        this.properties.checkProperties(PREFIX, new String[] { ENABLED, DIR,
+                SIZE, SPIN }, null, true);
+
+        // Create a new accept thread
+        ThreadPool.createNew(this, "ShmIbis Accept Thread");
+    }
+
+    @Override
+    protected byte[] getData() throws IOException {
+
+        String d = properties.getProperty(DIR);
+        if (d == null) {
+            d = "/dev/shm";
+            if (!new File(d).isDirectory()) {
+                d = System.getProperty("java.io.tmpdir");
+            }
+        }
+        dir = new File(d);
+        hostId = getHostId();
+
+        InetAddress host = IPUtils.getLocalHostAddress();
+        systemServer = new ServerSocket();
+        systemServer.bind(new InetSocketAddress(host, 0), 50);
+        myAddress = new InetSocketAddress(host, systemServer.getLocalPort());
+
+        if (logger.isInfoEnabled()) {
+            logger.info("--> ShmIbis: address = " + myAddress + ", host = "
+                    + hostId + ", rings in " + dir);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeUTF(hostId);
+        out.writeUTF(host.getHostAddress());
+        out.writeInt(myAddress.getPort());
+        out.close();
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Returns a string that identifies this host (or container). The ring
+     * key, checked when the receiver maps a ring, makes sure a wrong guess
+     * only leads to a TCP connection.
+     */
+    private static String getHostId() {
+        String result;
+        try {
+            result = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            result = "unknown";
+        }
+        try {
+            BufferedReader r = new BufferedReader(new FileReader(
+                    "/proc/sys/kernel/random/boot_id"));
+            try {
+                result = result + "/" + r.readLine();
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            // not on Linux
+        }
+        return result;
+    }
+
+    ShmSocket connect(ShmSendPort sp, ibis.ipl.impl.ReceivePortIdentifier rip,
+            int timeout, boolean fillTimeout) throws IOException {
+
+        IbisIdentifier id = (IbisIdentifier) rip.ibisIdentifier();
+        String name = rip.name();
+        Address idAddr;
+
+        synchronized (addresses) {
+            idAddr = addresses.get(id);
+            if (idAddr == null) {
+                idAddr = new Address(id.getImplementationData());
+                addresses.put(id, idAddr);
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        boolean sameHost = sp.sharedMemory() && idAddr.hostId.equals(hostId);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("--> Creating socket for connection to " + name
+                    + " at " + idAddr + (sameHost ? " (same host)" : ""));
+        }
+
+        PortType sendPortType = sp.getPortType();
+
+        do {
+            DataOutputStream out = null;
+            Socket s = null;
+            ShmRing ring = null;
+            int result = -1;
+
+            try {
+                s = new Socket();
+                s.connect(idAddr.address, timeout);
+                s.setTcpNoDelay(true);
+
+                if (sameHost) {
+                    try {
+                        ring = ShmRing.create(dir, sp.ringSize());
+                    } catch (IOException e) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Could not create ring in " + dir
+                                    + ", using TCP", e);
+                        }
+                    }
+                }
+
+                out = new DataOutputStream(new BufferedArrayOutputStream(
+                        s.getOutputStream()));
+
+                out.writeUTF(name);
+                sp.getIdent().writeTo(out);
+                sendPortType.writeTo(out);
+                if (ring != null) {
+                    out.writeUTF(ring.name());
+                    out.writeLong(ring.key());
+                } else {
+                    out.writeUTF("");
+                }
+                out.flush();
+
+                result = s.getInputStream().read();
+
+                switch (result) {
+                case ReceivePort.ACCEPTED:
+                    int reply = s.getInputStream().read();
+                    if (reply == -1) {
+                        result = -1;
+                        throw new IOException(
+                                "Encountered EOF in ShmIbis.connect");
+                    }
+                    if (reply != RING_MAPPED) {
+                        ring = null;
+                    }
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("--> Connected to " + name + " through "
+                                + (ring != null ? "shared memory" : "TCP"));
+                    }
+                    return ShmSocket.sender(s, ring, sp.spin());
+                case ReceivePort.ALREADY_CONNECTED:
+                    throw new AlreadyConnectedException("Already connected",
+                            rip);
+                case ReceivePort.TYPE_MISMATCH:
+                    // Read receiveport type from input, to produce a
+                    // better error message.
+                    DataInputStream in = new DataInputStream(s.getInputStream());
+                    PortType rtp = new PortType(in);
+                    CapabilitySet s1 = rtp.unmatchedCapabilities(sendPortType);
+                    CapabilitySet s2 = sendPortType.unmatchedCapabilities(rtp);
+                    String message = "";
+                    if (s1.size() != 0) {
+                        message = message
+                                + "\nUnmatched receiveport capabilities: "
+                                + s1.toString() + ".";
+                    }
+                    if (s2.size() != 0) {
+                        message = message
+                                + "\nUnmatched sendport capabilities: "
+                                + s2.toString() + ".";
+                    }
+                    throw new PortMismatchException(
+                            "Cannot connect ports of different port types."
+                                    + message, rip);
+                case ReceivePort.DENIED:
+                    throw new ConnectionRefusedException(
+                            "Receiver denied connection", rip);
+                case ReceivePort.NO_MANY_TO_X:
+                    throw new ConnectionRefusedException(
+                            "Receiver already has a connection and neither ManyToOne not ManyToMany "
+                                    + "is set", rip);
+                case ReceivePort.NOT_PRESENT:
+                case ReceivePort.DISABLED:
+                    // and try again if we did not reach the timeout...
+                    if (timeout > 0
+                            && System.currentTimeMillis() > startTime + timeout) {
+                        throw new ConnectionTimedOutException(
+                                "Could not connect", rip);
+                    }
+                    break;
+                case -1:
+                    throw new IOException("Encountered EOF in ShmIbis.connect");
+                default:
+                    throw new IOException("Illegal opcode in ShmIbis.connect");
+                }
+            } catch (SocketTimeoutException e) {
+                throw new ConnectionTimedOutException("Could not connect", rip);
+            } finally {
+                // The receiver has mapped the ring by now, or it never will.
+                if (ring != null) {
+                    ring.unlink();
+                }
+                if (result != ReceivePort.ACCEPTED) {
+                    try {
+                        if (out != null) {
+                            out.close();
+                        }
+                    } catch (Throwable e) {
+                        // ignored
+                    }
+                    try {
+                        s.close();
+                    } catch (Throwable e) {
+                        // ignored
+                    }
+                }
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        } while (true);
+    }
+
+    @Override
+    protected void quit() {
+        try {
+            quiting = true;
+            // Connect so that the ShmIbis thread wakes up.
+            new Socket(myAddress.getAddress(), myAddress.getPort()).close();
+        } catch (Throwable e) {
+            // Ignore
+        }
+    }
+
+    private void handleConnectionRequest(Socket s) throws IOException {
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("--> ShmIbis got connection request from " + s);
+        }
+
+        // Not buffered: when the data goes through a ring, whatever follows
+        // the request on the socket are doorbells.
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        OutputStream out = s.getOutputStream();
+
+        String name = in.readUTF();
+        SendPortIdentifier send = new SendPortIdentifier(in);
+        PortType sp = new PortType(in);
+        String ringName = in.readUTF();
+        long ringKey = ringName.length() == 0 ? 0 : in.readLong();
+
+        // First, lookup receiveport.
+        ShmReceivePort rp = (ShmReceivePort) findReceivePort(name);
+
+        int result;
+        if (rp == null) {
+            result = ReceivePort.NOT_PRESENT;
+        } else {
+            synchronized (rp) {
+                result = rp.connectionAllowed(send, sp);
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("--> S RP = " + name + ": "
+                    + ReceivePort.getString(result));
+        }
+
+        out.write(result);
+        if (result == ReceivePort.TYPE_MISMATCH) {
+            DataOutputStream dout = new DataOutputStream(out);
+            rp.getPortType().writeTo(dout);
+            dout.flush();
+        }
+        if (result != ReceivePort.ACCEPTED) {
+            out.flush();
+            out.close();
+            in.close();
+            s.close();
+            return;
+        }
+
+        ShmRing ring = null;
+        if (ringName.length() != 0 && rp.sharedMemory()) {
+            try {
+                ring = ShmRing.open(dir, ringName, ringKey);
+            } catch (IOException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Could not map ring " + ringName
+                            + ", using TCP", e);
+                }
+            }
+        }
+        out.write(ring != null ? RING_MAPPED : RING_REFUSED);
+        out.flush();
+
+        ShmSocket ss = ShmSocket.receiver(s, ring, rp.spin());
+
+        // Only reads ahead if the receive port has a receive queue.
+        ReadAheadInputStream readAhead = new ReadAheadInputStream(
+                ss.getInputStream(), IOProperties.BUFFER_SIZE);
+        BufferedArrayInputStream bais = new BufferedArrayInputStream(
+                readAhead);
+
+        // add the connection to the receiveport.
+        readAhead.startReadAhead(rp);
+        rp.connect(send, ss, bais);
+        if (logger.isDebugEnabled()) {
+            logger.debug("--> S connect done ");
+        }
+    }
+
+    public void run() {
+        // This thread handles incoming connection request from the
+        // connect(ShmSendPort) call.
+
+        boolean stop = false;
+
+        while (!stop) {
+            Socket s = null;
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("--> ShmIbis doing new accept()");
+            }
+
+            try {
+                s = systemServer.accept();
+                s.setTcpNoDelay(true);
+            } catch (Throwable e) {
+                /* if the accept itself fails, we have a fatal problem. */
+                logger.error("ShmIbis:run: got fatal exception in accept! ", e);
+                cleanup();
+                throw new Error("Fatal: ShmIbis could not do an accept", e);
+                // This error is thrown in the ShmIbis thread, not in a user
+                // thread. It kills the thread.
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("--> ShmIbis through new accept()");
+            }
+
+            try {
+                if (quiting) {
+                    s.close();
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("--> it is a quit: RETURN");
+                    }
+                    cleanup();
+                    return;
+                }
+
+                // This thread will now live on as a connection handler. Start
+                // a new accept thread here, and make sure that this thread does
+                // not do an accept again, if it ever returns to this loop.
+                stop = true;
+
+                try {
+                    Thread.currentThread().setName("Connection Handler");
+                } catch (Exception e) {
+                    // ignore
+                }
+
+                ThreadPool.createNew(this, "ShmIbis Accept Thread");
+
+                handleConnectionRequest(s);
+            } catch (Throwable e) {
+                try {
+                    s.close();
+                } catch (Throwable e2) {
+                    // ignored
+                }
+                logger.error("EEK: ShmIbis:run: got exception "
+                        + "(closing this socket only: ", e);
+            }
+        }
+    }
+
+    private void cleanup() {
+        try {
+            systemServer.close();
+        } catch (Throwable e) {
+            // Ignore
+        }
+    }
+
+    @Override
+    protected SendPort doCreateSendPort(PortType tp, String nm,
+            SendPortDisconnectUpcall cU, Properties props) throws IOException {
+        return new ShmSendPort(this, tp, nm, cU, props);
+    }
+
+    @Override
+    protected ReceivePort doCreateReceivePort(PortType tp, String nm,
+            MessageUpcall u, ReceivePortConnectUpcall cU, Properties props)
+            throws IOException {
+        return new ShmReceivePort(this, tp, nm, u, cU, props);
+    }
+
+}
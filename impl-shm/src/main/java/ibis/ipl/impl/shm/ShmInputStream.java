@@ -0,0 +1,124 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.ipl.impl.shm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads from the ring of a connection. When the ring is empty, we first spin
+ * for a while, and then block on the socket of the connection until the
+ * sender rings the doorbell. When the sender closes the socket, the data that
+ * is still in the ring is delivered before end-of-file.
+ */
+final class ShmInputStream extends InputStream implements ShmProtocol {
+
+    private final ShmRing ring;
+
+    /** Doorbells from the sender. */
+    private final InputStream doorbellIn;
+
+    /** Doorbells to the sender. */
+    private final OutputStream doorbellOut;
+
+    private final int spin;
+
+    private final byte[] one = new byte[1];
+
+    /** Set when the sender closed the socket. */
+    private boolean eof = false;
+
+    private boolean closed = false;
+
+    ShmInputStream(ShmRing ring, InputStream doorbellIn,
+            OutputStream doorbellOut, int spin) {
+        this.ring = ring;
+        this.doorbellIn = doorbellIn;
+        this.doorbellOut = doorbellOut;
+        this.spin = spin;
+    }
+
+    public int read() throws IOException {
+        if (read(one, 0, 1) < 0) {
+            return -1;
+        }
+        return one[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        for (;;) {
+            int n = ring.read(b, off, len);
+            if (n > 0) {
+                if (ring.wakeProducer()) {
+                    doorbellOut.write(DOORBELL);
+                    doorbellOut.flush();
+                }
+                return n;
+            }
+            if (!waitForData()) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Waits until the ring is not empty.
+     *
+     * @return false at end-of-file.
+     */
+    private boolean waitForData() throws IOException {
+        if (eof) {
+            return ring.available() > 0;
+        }
+
+        for (int i = 0; i < spin; i++) {
+            if (ring.available() > 0) {
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+
+        ring.consumerWaiting();
+        if (ring.available() > 0 && ring.consumerAwake()) {
+            return true;
+        }
+        // Either the ring is still empty, or the sender is ringing the
+        // doorbell already.
+        if (doorbellIn.read() < 0) {
+            eof = true;
+            return ring.available() > 0;
+        }
+        return true;
+    }
+
+    public int available() {
+        return closed ? 0 : ring.available();
+    }
+
+    public void close() {
+        closed = true;
+    }
+}
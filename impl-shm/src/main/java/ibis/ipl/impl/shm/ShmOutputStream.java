@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.ipl.impl.shm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes into the ring of a connection. When the ring is full, we first spin
+ * for a while, and then block on the socket of the connection until the
+ * receiver rings the doorbell.
+ */
+final class ShmOutputStream extends OutputStream implements ShmProtocol {
+
+    private final ShmRing ring;
+
+    /** Doorbells from the receiver. */
+    private final InputStream doorbellIn;
+
+    /** Doorbells to the receiver. */
+    private final OutputStream doorbellOut;
+
+    private final int spin;
+
+    private final byte[] one = new byte[1];
+
+    private boolean closed = false;
+
+    ShmOutputStream(ShmRing ring, InputStream doorbellIn,
+            OutputStream doorbellOut, int spin) {
+        this.ring = ring;
+        this.doorbellIn = doorbellIn;
+        this.doorbellOut = doorbellOut;
+        this.spin = spin;
+    }
+
+    public void write(int b) throws IOException {
+        one[0] = (byte) b;
+        write(one, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        while (len > 0) {
+            int n = ring.write(b, off, len);
+            if (n == 0) {
+                waitForRoom();
+                continue;
+            }
+            off += n;
+            len -= n;
+            if (ring.wakeConsumer()) {
+                doorbellOut.write(DOORBELL);
+                doorbellOut.flush();
+            }
+        }
+    }
+
+    private void waitForRoom() throws IOException {
+        for (int i = 0; i < spin; i++) {
+            if (ring.free() > 0) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+
+        ring.producerWaiting();
+        if (ring.free() > 0 && ring.producerAwake()) {
+            return;
+        }
+        // Either the ring is still full, or the receiver is ringing the
+        // doorbell already.
+        if (doorbellIn.read() < 0) {
+            throw new EOFException("Receiver closed the connection");
+        }
+    }
+
+    public void close() {
+        closed = true;
+    }
+}
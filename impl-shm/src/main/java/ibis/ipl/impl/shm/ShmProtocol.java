@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.ipl.impl.shm;
+
+interface ShmProtocol {
+    static final byte NEW_RECEIVER = 1;
+
+    static final byte NEW_MESSAGE = 2;
+
+    static final byte CLOSE_ALL_CONNECTIONS = 3;
+
+    static final byte CLOSE_ONE_CONNECTION = 4;
+
+    static final byte NEW_CONNECTION = 12;
+
+    static final byte EXISTING_CONNECTION = 13;
+
+    static final byte QUIT_IBIS = 14;
+
+    static final byte REPLY = 127;
+
+    // Bytes sent on the socket of a connection that uses shared memory.
+
+    /** Wakes up the peer, which is waiting for data or room in the ring. */
+    static final byte DOORBELL = 1;
+
+    /** Acknowledges a CLOSE_ONE_CONNECTION. */
+    static final byte DISCONNECT_ACK = 0;
+
+    // Reply of the receiver on the ring offered in a connection request.
+
+    static final byte RING_REFUSED = 0;
+
+    static final byte RING_MAPPED = 1;
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.ipl.impl.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * A single-producer single-consumer ring buffer in a memory-mapped file. The
+ * sender of a connection creates the file and writes into the ring, the
+ * receiver maps the same file and reads from it. Both sides may be in
+ * different processes on the same host.
+ * <p>
+ * The header holds the read position (head) and the write position (tail),
+ * which only grow, and two flags through which a side that is about to block
+ * asks the other side for a wakeup. Each of these lives in a cache line of its
+ * own. The header also holds a random key, which the receiver checks to make
+ * sure it mapped the file the sender created.
+ */
+final class ShmRing {
+
+    private static final int HEAD = 0;
+
+    private static final int TAIL = 64;
+
+    private static final int CONSUMER_WAITING = 128;
+
+    private static final int PRODUCER_WAITING = 192;
+
+    private static final int KEY = 256;
+
+    private static final int HEADER_SIZE = 320;
+
+    private static final int MIN_CAPACITY = 4096;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private static final String PREFIX = "ibis-";
+
+    private static final String SUFFIX = ".ring";
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(
+            long[].class, ByteOrder.nativeOrder());
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(
+            int[].class, ByteOrder.nativeOrder());
+
+    private static final Random random = new Random();
+
+    private final File file;
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final long key;
+
+    /**
+     * Our own copy of the position we advance: the tail at the producer, the
+     * head at the consumer.
+     */
+    private long position;
+
+    private ShmRing(File file, MappedByteBuffer buffer, long key) {
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = buffer.capacity() - HEADER_SIZE;
+        this.mask = capacity - 1;
+        this.key = key;
+    }
+
+    /**
+     * Creates a new ring in the given directory, for the producer side.
+     *
+     * @param dir
+     *            the directory, usually a memory file system.
+     * @param size
+     *            the requested capacity, rounded up to a power of two.
+     * @return the ring.
+     * @exception IOException
+     *                is thrown when the file could not be created or mapped.
+     */
+    static ShmRing create(File dir, int size) throws IOException {
+        int capacity = Math.min(MAX_CAPACITY, Math.max(MIN_CAPACITY, size));
+        if (Integer.bitCount(capacity) != 1) {
+            capacity = Integer.highestOneBit(capacity) << 1;
+        }
+
+        // The sender unlinks the file as soon as the receiver has seen it.
+        File file = File.createTempFile(PREFIX, SUFFIX, dir);
+
+        MappedByteBuffer buffer;
+        try {
+            buffer = map(file, HEADER_SIZE + capacity);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+
+        long key;
+        synchronized (random) {
+            key = random.nextLong();
+        }
+        LONG.setVolatile(buffer, KEY, key);
+
+        return new ShmRing(file, buffer, key);
+    }
+
+    /**
+     * Maps an existing ring, for the consumer side.
+     *
+     * @param dir
+     *            the directory the ring should be in.
+     * @param name
+     *            the name of the file of the ring.
+     * @param key
+     *            the key the producer put in the ring.
+     * @return the ring.
+     * @exception IOException
+     *                is thrown when the file could not be mapped, or it is not
+     *                the ring we expected.
+     */
+    static ShmRing open(File dir, String name, long key) throws IOException {
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)
+                || name.indexOf(File.separatorChar) >= 0) {
+            throw new IOException("Not a ring: " + name);
+        }
+
+        File file = new File(dir, name);
+        long length = file.length();
+
+        if (length < HEADER_SIZE + MIN_CAPACITY
+                || length > HEADER_SIZE + MAX_CAPACITY
+                || Long.bitCount(length - HEADER_SIZE) != 1) {
+            throw new IOException("Not a ring: " + file);
+        }
+
+        MappedByteBuffer buffer = map(file, (int) length);
+
+        if ((long) LONG.getVolatile(buffer, KEY) != key) {
+            throw new IOException("Ring " + file + " has a different key");
+        }
+
+        return new ShmRing(file, buffer, key);
+    }
+
+    private static MappedByteBuffer map(File file, int length)
+            throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.setLength(length);
+            // The mapping stays valid after the channel is closed.
+            return f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    length);
+        } finally {
+            f.close();
+        }
+    }
+
+    String name() {
+        return file.getName();
+    }
+
+    long key() {
+        return key;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Removes the file of the ring. Both sides keep their mapping, so this is
+     * done as soon as the receiver has mapped it (or refused to).
+     */
+    void unlink() {
+        file.delete();
+    }
+
+    /**
+     * Returns the number of bytes the consumer can read.
+     */
+    int available() {
+        return (int) ((long) LONG.getVolatile(buffer, TAIL) - position);
+    }
+
+    /**
+     * Returns the number of bytes the producer can write.
+     */
+    int free() {
+        return capacity - (int) (position - (long) LONG.getVolatile(buffer, HEAD));
+    }
+
+    /**
+     * Copies as much as fits of the given bytes into the ring. Producer only.
+     *
+     * @return the number of bytes written, 0 if the ring is full.
+     */
+    int write(byte[] b, int off, int len) {
+        int n = Math.min(len, free());
+        if (n <= 0) {
+            return 0;
+        }
+
+        int index = (int) position & mask;
+        int first = Math.min(n, capacity - index);
+        buffer.position(HEADER_SIZE + index);
+        buffer.put(b, off, first);
+        if (first < n) {
+            buffer.position(HEADER_SIZE);
+            buffer.put(b, off + first, n - first);
+        }
+
+        position += n;
+        LONG.setVolatile(buffer, TAIL, position);
+        return n;
+    }
+
+    /**
+     * Copies at most <code>len</code> bytes out of the ring. Consumer only.
+     *
+     * @return the number of bytes read, 0 if the ring is empty.
+     */
+    int read(byte[] b, int off, int len) {
+        int n = Math.min(len, available());
+        if (n <= 0) {
+            return 0;
+        }
+
+        int index = (int) position & mask;
+        int first = Math.min(n, capacity - index);
+        buffer.position(HEADER_SIZE + index);
+        buffer.get(b, off, first);
+        if (first < n) {
+            buffer.position(HEADER_SIZE);
+            buffer.get(b, off + first, n - first);
+        }
+
+        position += n;
+        LONG.setVolatile(buffer, HEAD, position);
+        return n;
+    }
+
+    /**
+     * Asks the producer for a wakeup when it writes. After this, the consumer
+     * must check the ring once more before it blocks.
+     */
+    void consumerWaiting() {
+        INT.setVolatile(buffer, CONSUMER_WAITING, 1);
+    }
+
+    /**
+     * Takes back the request of {@link #consumerWaiting()}.
+     *
+     * @return false if the producer already took it, and sends a wakeup.
+     */
+    boolean consumerAwake() {
+        return (int) INT.getAndSet(buffer, CONSUMER_WAITING, 0) != 0;
+    }
+
+    /**
+     * Called by the producer after a write.
+     *
+     * @return if the consumer asked for a wakeup, which the producer must now
+     *         send.
+     */
+    boolean wakeConsumer() {
+        return (int) INT.getVolatile(buffer, CONSUMER_WAITING) != 0
+                && (int) INT.getAndSet(buffer, CONSUMER_WAITING, 0) != 0;
+    }
+
+    /**
+     * Asks the consumer for a wakeup when it reads. After this, the producer
+     * must check the ring once more before it blocks.
+     */
+    void producerWaiting() {
+        INT.setVolatile(buffer, PRODUCER_WAITING, 1);
+    }
+
+    /**
+     * Takes back the request of {@link #producerWaiting()}.
+     *
+     * @return false if the consumer already took it, and sends a wakeup.
+     */
+    boolean producerAwake() {
+        return (int) INT.getAndSet(buffer, PRODUCER_WAITING, 0) != 0;
+    }
+
+    /**
+     * Called by the consumer after a read.
+     *
+     * @return if the producer asked for a wakeup, which the consumer must now
+     *         send.
+     */
+    boolean wakeProducer() {
+        return (int) INT.getVolatile(buffer, PRODUCER_WAITING) != 0
+                && (int) INT.getAndSet(buffer, PRODUCER_WAITING, 0) != 0;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.ipl.impl.shm;
+
+import ibis.io.AsyncOutputStream;
+import ibis.io.BufferedArrayOutputStream;
+import ibis.io.Conversion;
+import ibis.io.OutputStreamSplitter;
+import ibis.io.SplitterException;
+import ibis.ipl.PortType;
+import ibis.ipl.SendPortDisconnectUpcall;
+import ibis.ipl.impl.Ibis;
+import ibis.ipl.impl.ReceivePortIdentifier;
+import ibis.ipl.impl.SendPort;
+import ibis.ipl.impl.SendPortConnectionInfo;
+import ibis.ipl.impl.SendPortIdentifier;
+import ibis.ipl.impl.WriteMessage;
+import ibis.util.TypedProperties;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+final class ShmSendPort extends SendPort implements ShmProtocol {
+
+    private class Conn extends SendPortConnectionInfo {
+        ShmSocket s;
+
+        OutputStream out;
+
+        Conn(ShmSocket s, ShmSendPort port, ReceivePortIdentifier target)
+                throws IOException {
+            super(port, target);
+            this.s = s;
+            out = s.getOutputStream();
+            if (s.isShared()) {
+                nSharedConnections++;
+            }
+            // write to far away receivers first, as far as we know them
+            splitter.add(out, ibis.getVivaldiDistance(target.ibisIdentifier()));
+        }
+
+        public void closeConnection() {
+            try {
+                s.close();
+            } catch (Throwable e) {
+                // ignored
+            } finally {
+                try {
+                    splitter.remove(out);
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /** Use shared memory for connections within the host. */
+    private final boolean sharedMemory;
+
+    /** Size of the ring of a connection. */
+    private final int ringSize;
+
+    /** Number of times to look at the ring before blocking. */
+    private final int spin;
+
+    /** Number of connections that were set up through shared memory. */
+    private int nSharedConnections = 0;
+
+    final OutputStreamSplitter splitter;
+
+    final BufferedArrayOutputStream bufferedStream;
+
+    /** Transmission thread, or <code>null</code> if sends are synchronous. */
+    final AsyncOutputStream asyncStream;
+
+    ShmSendPort(Ibis ibis, PortType type, String name,
+            SendPortDisconnectUpcall cU, Properties props) throws IOException {
+        super(ibis, type, name, cU, props);
+        addValidKey("nParallelStreams");
+        addValidKey("ReceiverLag");
+        addValidKey("MaxReceiverLag");
+        addValidKey("FanoutStalls");
+        addValidKey("SharedConnections");
+
+        TypedProperties tp = new TypedProperties(properties);
+        sharedMemory = tp.getBooleanProperty(ShmIbis.ENABLED, true);
+        ringSize = (int) Math.min(Integer.MAX_VALUE,
+                tp.getSizeProperty(ShmIbis.SIZE, 1024 * 1024));
+        spin = tp.getIntProperty(ShmIbis.SPIN, ShmIbis.DEFAULT_SPIN);
+
+        boolean removeOnException =
+                !type.hasCapability(PortType.CONNECTION_ONE_TO_ONE)
+                        && !type.hasCapability(PortType.CONNECTION_MANY_TO_ONE);
+        boolean oneToMany =
+                type.hasCapability(PortType.CONNECTION_ONE_TO_MANY)
+                        || type.hasCapability(PortType.CONNECTION_MANY_TO_MANY);
+
+        if (parallelFanout && oneToMany) {
+            splitter = new OutputStreamSplitter(removeOnException, true,
+                    fanoutLimit);
+        } else {
+            splitter = new OutputStreamSplitter(removeOnException, oneToMany);
+        }
+
+        if (asyncSend) {
+            asyncStream = new AsyncOutputStream(splitter, asyncSendBlocks);
+            bufferedStream = new BufferedArrayOutputStream(asyncStream);
+        } else {
+            asyncStream = null;
+            bufferedStream = new BufferedArrayOutputStream(splitter);
+        }
+        initStream(bufferedStream);
+    }
+
+    protected long totalWritten() {
+        return splitter.bytesWritten();
+    }
+
+    protected void resetWritten() {
+        splitter.resetBytesWritten();
+    }
+
+    protected synchronized void updateProperties() {
+        super.updateProperties();
+
+        // lag of the receivers, only known in parallel fan-out mode
+        StringBuilder lag = new StringBuilder();
+        long maxLag = 0;
+        long stalls = 0;
+        for (ReceivePortIdentifier receiver : receivers.keySet()) {
+            Conn c = (Conn) getInfo(receiver);
+            long outstanding = splitter.outstandingBytes(c.out);
+            if (lag.length() > 0) {
+                lag.append(", ");
+            }
+            lag.append(receiver);
+            lag.append("=");
+            lag.append(outstanding);
+            maxLag = Math.max(maxLag, splitter.maxOutstandingBytes(c.out));
+            stalls += splitter.stalls(c.out);
+        }
+        setProperty("ReceiverLag", lag.toString());
+        setProperty("MaxReceiverLag", "" + maxLag);
+        setProperty("FanoutStalls", "" + stalls);
+        setProperty("SharedConnections", "" + nSharedConnections);
+    }
+
+    SendPortIdentifier getIdent() {
+        return ident;
+    }
+
+    boolean sharedMemory() {
+        return sharedMemory;
+    }
+
+    int ringSize() {
+        return ringSize;
+    }
+
+    int spin() {
+        return spin;
+    }
+
+    protected SendPortConnectionInfo doConnect(ReceivePortIdentifier receiver,
+            long timeoutMillis, boolean fillTimeout) throws IOException {
+
+        ShmSocket s =
+                ((ShmIbis) ibis).connect(this, receiver, (int) timeoutMillis,
+                        fillTimeout);
+        Conn c = new Conn(s, this, receiver);
+        if (out != null) {
+            out.writeByte(NEW_RECEIVER);
+        }
+        initStream(bufferedStream);
+        return c;
+    }
+
+    protected void sendDisconnectMessage(ReceivePortIdentifier receiver,
+            SendPortConnectionInfo conn) throws IOException {
+
+        out.writeByte(CLOSE_ONE_CONNECTION);
+
+        byte[] receiverBytes = receiver.toBytes();
+        byte[] receiverLength = new byte[Conversion.INT_SIZE];
+        Conversion.defaultConversion.int2byte(receiverBytes.length,
+                receiverLength, 0);
+        out.writeArray(receiverLength);
+        out.writeArray(receiverBytes);
+        out.flush();
+        if (asyncStream != null) {
+            // The ack can only be read once the transmission thread is done
+            // with the socket.
+            asyncStream.syncAll();
+        }
+        // FIXME!
+        //
+        // This is here to make sure the close is processed before a new 
+        // connections can be made (by this sendport). Without this ack, 
+        // an application that uses a single sendport that connects/disconnects
+        // for each message may get an 'AlreadyConnectedException', because the 
+        // connect overtakes the disconnect...
+        //
+        // Unfortunately, it also causes a deadlock in 1-to-1 explict receive 
+        // applications -- J
+        Conn c = (Conn) conn;
+        c.s.readAck();
+    }
+
+    protected void announceNewMessage() throws IOException {
+        out.writeByte(NEW_MESSAGE);
+        if (type.hasCapability(PortType.COMMUNICATION_NUMBERED)) {
+            out.writeLong(ibis.registry().getSequenceNumber(name));
+        }
+    }
+
+    protected int sendMessageData() throws IOException {
+        if (asyncStream == null) {
+            return super.sendMessageData();
+        }
+        // Only hands the buffers to the transmission thread.
+        out.flush();
+        return asyncStream.ticket();
+    }
+
+    protected void syncMessageData(int ticket) throws IOException {
+        if (asyncStream == null) {
+            super.syncMessageData(ticket);
+            return;
+        }
+        asyncStream.sync(ticket);
+    }
+
+    protected void finishMessage(WriteMessage w, long cnt)
+            throws IOException {
+        IOException asyncException = null;
+        if (asyncStream != null) {
+            // finish() must block until the message is sent.
+            try {
+                asyncStream.syncAll();
+            } catch (IOException e) {
+                try {
+                    gotSendException(w, e);
+                } catch (IOException e2) {
+                    // rethrown after the message is finished.
+                    asyncException = e2;
+                }
+            }
+        }
+        if (type.hasCapability(PortType.CONNECTION_ONE_TO_MANY)
+                || type.hasCapability(PortType.CONNECTION_MANY_TO_MANY)) {
+            // exception may have been saved by the splitter. Get them
+            // now.
+            SplitterException e = splitter.getExceptions();
+            if (e != null) {
+                gotSendException(w, e);
+            }
+        }
+        super.finishMessage(w, cnt);
+        if (asyncException != null) {
+            throw asyncException;
+        }
+    }
+
+    protected void handleSendException(WriteMessage w, IOException x) {
+        ReceivePortIdentifier[] ports = null;
+        synchronized (this) {
+            ports = receivers.keySet()
+                            .toArray(new ReceivePortIdentifier[0]);
+        }
+
+        if (x instanceof SplitterException) {
+            SplitterException e = (SplitterException) x;
+
+            Exception[] exceptions = e.getExceptions();
+            OutputStream[] streams = e.getStreams();
+
+            for (int i = 0; i < ports.length; i++) {
+                Conn c = (Conn) getInfo(ports[i]);
+                for (int j = 0; j < streams.length; j++) {
+                    if (c.out == streams[j]) {
+                        lostConnection(ports[i], exceptions[j]);
+                        break;
+                    }
+                }
+            }
+        } else {
+            // Just close all connections. ???
+            for (int i = 0; i < ports.length; i++) {
+                lostConnection(ports[i], x);
+            }
+        }
+    }
+
+    protected void closePort() {
+
+        try {
+            out.writeByte(CLOSE_ALL_CONNECTIONS);
+            out.close();
+            bufferedStream.close();
+        } catch (Throwable e) {
+            // ignored
+        }
+
+        out = null;
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* $Id$ */
+
+package ibis.ipl.impl.shm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * One side of a connection. The message data goes through a shared-memory
+ * ring if the peer is on the same host, and through the socket otherwise. In
+ * the first case the socket only carries doorbells and the disconnect ack,
+ * and tells us when the peer goes away.
+ */
+final class ShmSocket implements ShmProtocol {
+
+    private final Socket s;
+
+    private final ShmRing ring;
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    /**
+     * Creates the sending side of a connection.
+     *
+     * @param s
+     *            the socket.
+     * @param ring
+     *            the ring, or <code>null</code> to send through the socket.
+     * @param spin
+     *            the number of times to look at the ring before blocking.
+     * @exception IOException
+     *                is thrown in case of trouble.
+     */
+    static ShmSocket sender(Socket s, ShmRing ring, int spin)
+            throws IOException {
+        OutputStream out = ring == null ? s.getOutputStream()
+                : new ShmOutputStream(ring, s.getInputStream(),
+                        s.getOutputStream(), spin);
+        return new ShmSocket(s, ring, null, out);
+    }
+
+    /**
+     * Creates the receiving side of a connection.
+     *
+     * @param s
+     *            the socket.
+     * @param ring
+     *            the ring, or <code>null</code> to receive through the socket.
+     * @param spin
+     *            the number of times to look at the ring before blocking.
+     * @exception IOException
+     *                is thrown in case of trouble.
+     */
+    static ShmSocket receiver(Socket s, ShmRing ring, int spin)
+            throws IOException {
+        InputStream in = ring == null ? s.getInputStream()
+                : new ShmInputStream(ring, s.getInputStream(),
+                        s.getOutputStream(), spin);
+        return new ShmSocket(s, ring, in, null);
+    }
+
+    private ShmSocket(Socket s, ShmRing ring, InputStream in,
+            OutputStream out) {
+        this.s = s;
+        this.ring = ring;
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Returns if the data of this connection goes through shared memory.
+     */
+    boolean isShared() {
+        return ring != null;
+    }
+
+    /**
+     * Returns the stream for the message data, at the receiving side.
+     */
+    InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Returns the stream for the message data, at the sending side.
+     */
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Acknowledges a CLOSE_ONE_CONNECTION, at the receiving side.
+     */
+    void writeAck() throws IOException {
+        s.getOutputStream().write(DISCONNECT_ACK);
+        s.getOutputStream().flush();
+    }
+
+    /**
+     * Waits for the acknowledgement of a CLOSE_ONE_CONNECTION, at the sending
+     * side. Doorbells that are still underway are skipped.
+     */
+    void readAck() throws IOException {
+        int b;
+        do {
+            b = s.getInputStream().read();
+        } while (ring != null && b == DOORBELL);
+    }
+
+    void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+        if (out != null) {
+            out.close();
+        }
+        s.close();
+    }
+
+    public String toString() {
+        return (ring != null ? "shm:" + ring.name() + " " : "") + s;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.impl.shm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShmRingTest {
+
+    private File dir;
+
+    private ShmRing producer;
+
+    private ShmRing consumer;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("shm-ring-test").toFile();
+        producer = ShmRing.create(dir, 4096);
+        consumer = ShmRing.open(dir, producer.name(), producer.key());
+        producer.unlink();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] pattern(int len, int seed) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = (byte) (seed + i * 7);
+        }
+        return b;
+    }
+
+    @Test
+    public void unlinkRemovesFile() {
+        assertEquals(0, dir.list().length);
+        // both sides keep their mapping
+        assertEquals(5, producer.write(pattern(5, 1), 0, 5));
+        assertEquals(5, consumer.available());
+    }
+
+    @Test
+    public void openChecksKey() throws IOException {
+        ShmRing other = ShmRing.create(dir, 4096);
+        try {
+            ShmRing.open(dir, other.name(), other.key() + 1);
+            fail("opened a ring with the wrong key");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            other.unlink();
+        }
+        assertFalse(new File(dir, other.name()).exists());
+    }
+
+    @Test
+    public void ringWrapsAround() {
+        assertEquals(4096, producer.capacity());
+
+        byte[] in = new byte[3001];
+        for (int round = 0; round < 20; round++) {
+            byte[] out = pattern(3001, round);
+            assertEquals(3001, producer.write(out, 0, out.length));
+            assertEquals(3001, consumer.available());
+            // read in two pieces, so that both sides wrap at different points
+            int n = consumer.read(in, 0, 1000);
+            n += consumer.read(in, n, in.length - n);
+            assertEquals(3001, n);
+            assertArrayEquals(out, in);
+            assertEquals(4096, producer.free());
+        }
+    }
+
+    @Test
+    public void fullAndEmptyRing() {
+        byte[] b = pattern(5000, 3);
+        assertEquals(4096, producer.write(b, 0, b.length));
+        assertEquals(0, producer.free());
+        assertEquals(0, producer.write(b, 0, b.length));
+
+        // a producer blocked on a full ring gets one wakeup
+        producer.producerWaiting();
+        byte[] in = new byte[4096];
+        assertEquals(10, consumer.read(in, 0, 10));
+        assertTrue(consumer.wakeProducer());
+        assertFalse(consumer.wakeProducer());
+        assertFalse(producer.producerAwake());
+
+        assertEquals(4086, consumer.read(in, 10, 5000));
+        assertEquals(0, consumer.available());
+        assertEquals(0, consumer.read(in, 0, in.length));
+
+        // a consumer that changes its mind takes the request back
+        consumer.consumerWaiting();
+        assertTrue(consumer.consumerAwake());
+        assertEquals(1, producer.write(b, 0, 1));
+        assertFalse(producer.wakeConsumer());
+
+        // a consumer blocked on an empty ring gets one wakeup
+        assertEquals(1, consumer.read(in, 0, 1));
+        consumer.consumerWaiting();
+        assertEquals(1, producer.write(b, 0, 1));
+        assertTrue(producer.wakeConsumer());
+        assertFalse(producer.wakeConsumer());
+        assertFalse(consumer.consumerAwake());
+    }
+
+    /**
+     * Two connected sockets, for the doorbells.
+     */
+    private static Socket[] socketPair() throws IOException {
+        ServerSocket server = new ServerSocket(0, 1,
+                InetAddress.getLoopbackAddress());
+        try {
+            Socket a = new Socket(InetAddress.getLoopbackAddress(),
+                    server.getLocalPort());
+            Socket b = server.accept();
+            return new Socket[] { a, b };
+        } finally {
+            server.close();
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] b) throws IOException {
+        int done = 0;
+        while (done < b.length) {
+            int n = in.read(b, done, Math.min(777, b.length - done));
+            if (n < 0) {
+                break;
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    @Test(timeout = 30000)
+    public void streamsBlockOnFullAndEmptyRing() throws Exception {
+        Socket[] s = socketPair();
+        final OutputStream out = new ShmOutputStream(producer,
+                s[0].getInputStream(), s[0].getOutputStream(), 0);
+        InputStream in = new ShmInputStream(consumer, s[1].getInputStream(),
+                s[1].getOutputStream(), 0);
+
+        final byte[] data = pattern(1 << 20, 5);
+        final IOException[] failure = new IOException[1];
+        Thread writer = new Thread("ShmRingTest writer") {
+            public void run() {
+                try {
+                    for (int off = 0; off < data.length; off += 1500) {
+                        out.write(data, off, Math.min(1500, data.length - off));
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        writer.start();
+
+        byte[] received = new byte[data.length];
+        assertEquals(data.length, readFully(in, received));
+        writer.join();
+        assertNull(failure[0]);
+        assertArrayEquals(data, received);
+
+        s[0].close();
+        s[1].close();
+    }
+
+    @Test(timeout = 30000)
+    public void receiverDrainsRingBeforeEof() throws Exception {
+        Socket[] s = socketPair();
+        OutputStream out = new ShmOutputStream(producer, s[0].getInputStream(),
+                s[0].getOutputStream(), 0);
+        InputStream in = new ShmInputStream(consumer, s[1].getInputStream(),
+                s[1].getOutputStream(), 0);
+
+        byte[] data = pattern(3000, 9);
+        out.write(data, 0, data.length);
+        out.close();
+        s[0].close();
+
+        byte[] received = new byte[data.length];
+        assertEquals(data.length, readFully(in, received));
+        assertArrayEquals(data, received);
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read());
+
+        s[1].close();
+    }
+}
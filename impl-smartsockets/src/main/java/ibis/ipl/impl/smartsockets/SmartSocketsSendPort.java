@@ -47,7 +47,8 @@ final class SmartSocketsSendPort extends SendPort implements SmartSocketsProtoco
             super(port, target);
             this.s = s;
             out = s.getOutputStream();
-            splitter.add(out);
+            // write to far away receivers first, as far as we know them
+            splitter.add(out, ibis.getVivaldiDistance(target.ibisIdentifier()));
         }
                 
         public String connectionType() {
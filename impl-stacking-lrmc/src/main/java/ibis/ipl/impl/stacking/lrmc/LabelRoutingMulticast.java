@@ -22,12 +22,14 @@ import ibis.ipl.ReadMessage;
 import ibis.ipl.ReceivePort;
 import ibis.ipl.SendPort;
 import ibis.ipl.WriteMessage;
+import ibis.ipl.impl.Ibis;
 import ibis.ipl.impl.stacking.lrmc.io.MessageReceiver;
 import ibis.ipl.impl.stacking.lrmc.util.DynamicObjectArray;
 import ibis.ipl.impl.stacking.lrmc.util.IbisSorter;
 import ibis.ipl.impl.stacking.lrmc.util.Message;
 import ibis.ipl.impl.stacking.lrmc.util.MessageCache;
 import ibis.ipl.impl.stacking.lrmc.util.MessageQueue;
+import ibis.ipl.support.vivaldi.TopologyOrder;
 import ibis.util.TypedProperties;
 
 import java.io.IOException;
@@ -63,15 +65,23 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
 
     private MessageQueue sendQueue;
 
+    // Number of subtrees a message is forwarded to by every node: 1 is the
+    // original chain, 0 is a binomial tree, anything else a k-ary tree.
+    private final int fanout;
+
     public LabelRoutingMulticast(LrmcIbis ibis, MessageReceiver m,
             MessageCache c, String name) throws IOException {
         this.ibis = ibis;
         this.receiver = m;
         this.name = name;
         this.cache = c;
-        this.sendQueue = new MessageQueue(
-                new TypedProperties(ibis.properties()).getIntProperty(
-                        "lrmc.queueSize", 256));
+        TypedProperties tp = new TypedProperties(ibis.properties());
+        this.sendQueue = new MessageQueue(tp.getIntProperty("lrmc.queueSize",
+                256));
+        this.fanout = tp.getIntProperty("lrmc.fanout", 1);
+        if (fanout < 0) {
+            throw new IOException("invalid lrmc.fanout: " + fanout);
+        }
         receive = ibis.base.createReceivePort(LrmcIbis.additionalPortType, "LRMCRing-"
                 + name, this);
         receive.enableConnections();
@@ -167,10 +177,11 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
     }
 
     private void internalSend(Message m) {
-        SendPort sp = null;
         if (m.destinationsUsed == 0) {
-            if (m.last) {
-                sp = getSendPort(m.sender);
+            // In a tree, every leaf would send a DONE message to the sender,
+            // so only the end of a chain does so.
+            if (m.last && fanout == 1) {
+                SendPort sp = getSendPort(m.sender);
                 if (sp != null) {
                     if (logger.isDebugEnabled()) {
                         logger.debug("Writing DONE message " + m.id
@@ -192,45 +203,79 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
             return;
         }
 
-        // Get the next target from the destination array. If this fails, get
-        // the next one, etc. If no working destination is found we give up.
-        int index = 0;
+        // Split the destinations into subtrees, and forward the message to
+        // the root of each subtree, together with the rest of that subtree.
+        // With a fanout of 1 this is a single chain.
+        int start = 0;
+
+        while (start < m.destinationsUsed) {
+            int end = start + subtreeSize(m.destinationsUsed - start);
+
+            if (!sendToSubtree(m, start, end)) {
+                return;
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Returns the number of destinations in the next subtree, when
+     * <code>remaining</code> destinations are left to divide.
+     */
+    private int subtreeSize(int remaining) {
+        if (fanout == 0) {
+            // binomial tree: largest subtree first
+            return (remaining + 1) / 2;
+        }
+        return (remaining + fanout - 1) / fanout;
+    }
+
+    /**
+     * Sends the message to the first working destination in the range
+     * [start, end), passing the rest of the range along. Returns false if
+     * we are done and should not send anything anymore.
+     */
+    private boolean sendToSubtree(Message m, int start, int end) {
+        SendPort sp = null;
+        int index = start;
         int id = -1;
 
+        // Get the next target from the destination array. If this fails, get
+        // the next one, etc. If no working destination is found we give up.
         do {
             id = m.destinations[index++];
             sp = getSendPort(id);
             if (sp == null) {
                 synchronized (this) {
                     if (finish) {
-                        return;
+                        return false;
                     }
                 }
             }
-        } while (sp == null && index < m.destinationsUsed);
+        } while (sp == null && index < end);
 
         try {
             if (sp == null) {
                 // No working destinations where found, so give up!
                 logger.info("No working destinations found, giving up!");
-                return;
+                return true;
             }
 
             if (logger.isDebugEnabled()) {
                 logger.debug("Writing message " + m.id + "/" + m.num + " to "
                         + id + ", sender " + m.sender
-                        + ", destinations left = "
-                        + (m.destinationsUsed - index));
+                        + ", destinations left = " + (end - index));
             }
 
             // send the message to the target
             WriteMessage wm = sp.newMessage();
-            m.write(wm, index);
+            m.write(wm, index, end);
             bytes += wm.finish();
         } catch (IOException e) {
             logger.info("Write to " + id + " failed! ", e);
             sendports.remove(id);
         }
+        return true;
     }
 
     public void setDestination(IbisIdentifier[] destinations) {
@@ -239,8 +284,13 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
                 + destinations.length, new Throwable());
 
         // We are allowed to change the order of machines in the destination
-        // array. This can be used to make the mcast 'cluster aware'.
-        IbisSorter.sort(ibis.identifier(), destinations);
+        // array. This can be used to make the mcast 'cluster aware'. If the
+        // underlying ibis runs Vivaldi, use the measured distances as well,
+        // so every cluster is entered only once.
+        if (!(ibis.base instanceof Ibis)
+                || !TopologyOrder.sort((Ibis) ibis.base, destinations)) {
+            IbisSorter.sort(ibis.identifier(), destinations);
+        }
 
         this.destinations = new int[destinations.length];
 
@@ -250,6 +300,16 @@ public class LabelRoutingMulticast extends Thread implements MessageUpcall {
                     + destinations[i].location().getParent() + ") -> "
                     + this.destinations[i]);
         }
+
+        if (fanout != 1) {
+            // connect to our children in the tree right away, instead of
+            // when the first message is sent
+            int start = 0;
+            while (start < this.destinations.length) {
+                getSendPort(this.destinations[start]);
+                start += subtreeSize(this.destinations.length - start);
+            }
+        }
     }
 
     public long getBytes(boolean reset) {
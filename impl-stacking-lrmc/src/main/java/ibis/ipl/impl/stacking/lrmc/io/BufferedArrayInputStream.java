@@ -647,7 +647,11 @@ public final class BufferedArrayInputStream extends DataInputStream {
     }
 
     public void close() throws IOException {
-        in.close();
+        try {
+            in.close();
+        } finally {
+            conversion.close();
+        }
     }
 
     @Override
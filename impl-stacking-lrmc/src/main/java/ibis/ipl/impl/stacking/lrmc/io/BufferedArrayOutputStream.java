@@ -379,8 +379,12 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     }
 
     public void close() throws IOException {
-        flush();
-        out.close();
+        try {
+            flush();
+            out.close();
+        } finally {
+            conversion.close();
+        }
     }
 
     public void writeByteBuffer(ByteBuffer value) throws IOException {
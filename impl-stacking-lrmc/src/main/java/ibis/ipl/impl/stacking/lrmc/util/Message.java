@@ -82,8 +82,17 @@ public class Message {
     }
 
     public void write(WriteMessage wm, int fromDest) throws IOException {
+        write(wm, fromDest, destinationsUsed);
+    }
+
+    /**
+     * Writes this message, with only the destinations in the range
+     * [fromDest, toDest).
+     */
+    public void write(WriteMessage wm, int fromDest, int toDest)
+            throws IOException {
 
-        int destinationLength = destinationsUsed - fromDest;
+        int destinationLength = toDest - fromDest;
 
         // First write the two variable lengths present in the message.
         wm.writeInt(len);
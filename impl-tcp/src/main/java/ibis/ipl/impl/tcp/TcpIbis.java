@@ -19,6 +19,7 @@ package ibis.ipl.impl.tcp;
 
 import ibis.io.BufferedArrayInputStream;
 import ibis.io.BufferedArrayOutputStream;
+import ibis.io.IOProperties;
 import ibis.ipl.AlreadyConnectedException;
 import ibis.ipl.CapabilitySet;
 import ibis.ipl.ConnectionRefusedException;
@@ -34,6 +35,7 @@ import ibis.ipl.ReceivePortConnectUpcall;
 import ibis.ipl.RegistryEventHandler;
 import ibis.ipl.SendPortDisconnectUpcall;
 import ibis.ipl.impl.IbisIdentifier;
+import ibis.ipl.impl.ReadAheadInputStream;
 import ibis.ipl.impl.ReceivePort;
 import ibis.ipl.impl.SendPort;
 import ibis.ipl.impl.SendPortIdentifier;
@@ -245,8 +247,11 @@ public final class TcpIbis extends ibis.ipl.impl.Ibis implements Runnable,
             logger.debug("--> TcpIbis got connection request from " + s);
         }
 
+        // Only reads ahead if the receive port has a receive queue.
+        ReadAheadInputStream readAhead = new ReadAheadInputStream(
+                s.getInputStream(), IOProperties.BUFFER_SIZE);
         BufferedArrayInputStream bais = new BufferedArrayInputStream(
-                s.getInputStream());
+                readAhead);
 
         DataInputStream in = new DataInputStream(bais);
         OutputStream out = s.getOutputStream();
@@ -281,6 +286,7 @@ public final class TcpIbis extends ibis.ipl.impl.Ibis implements Runnable,
         out.flush();
         if (result == ReceivePort.ACCEPTED) {
             // add the connection to the receiveport.
+            readAhead.startReadAhead(rp);
             rp.connect(send, s, bais);
             if (logger.isDebugEnabled()) {
                 logger.debug("--> S connect done ");
@@ -17,6 +17,7 @@
 
 package ibis.ipl.impl.tcp;
 
+import ibis.io.AsyncOutputStream;
 import ibis.io.BufferedArrayOutputStream;
 import ibis.io.Conversion;
 import ibis.io.OutputStreamSplitter;
@@ -46,7 +47,8 @@ final class TcpSendPort extends SendPort implements TcpProtocol {
             super(port, target);
             this.s = s;
             out = s.getOutputStream();
-            splitter.add(out);
+            // write to far away receivers first, as far as we know them
+            splitter.add(out, ibis.getVivaldiDistance(target.ibisIdentifier()));
         }
 
         public void closeConnection() {
@@ -68,22 +70,38 @@ final class TcpSendPort extends SendPort implements TcpProtocol {
 
     final BufferedArrayOutputStream bufferedStream;
 
+    /** Transmission thread, or <code>null</code> if sends are synchronous. */
+    final AsyncOutputStream asyncStream;
+
     TcpSendPort(Ibis ibis, PortType type, String name,
             SendPortDisconnectUpcall cU, Properties props) throws IOException {
         super(ibis, type, name, cU, props);
         addValidKey("nParallelStreams");
+        addValidKey("ReceiverLag");
+        addValidKey("MaxReceiverLag");
+        addValidKey("FanoutStalls");
+
+        boolean removeOnException =
+                !type.hasCapability(PortType.CONNECTION_ONE_TO_ONE)
+                        && !type.hasCapability(PortType.CONNECTION_MANY_TO_ONE);
+        boolean oneToMany =
+                type.hasCapability(PortType.CONNECTION_ONE_TO_MANY)
+                        || type.hasCapability(PortType.CONNECTION_MANY_TO_MANY);
 
-        splitter =
-                new OutputStreamSplitter(
-                        !type.hasCapability(PortType.CONNECTION_ONE_TO_ONE)
-                                && !type.hasCapability(
-                                    PortType.CONNECTION_MANY_TO_ONE),
-                        type.hasCapability(PortType.CONNECTION_ONE_TO_MANY) 
-                                || type.hasCapability(
-                                    PortType.CONNECTION_MANY_TO_MANY));
-            
-
-        bufferedStream = new BufferedArrayOutputStream(splitter);
+        if (parallelFanout && oneToMany) {
+            splitter = new OutputStreamSplitter(removeOnException, true,
+                    fanoutLimit);
+        } else {
+            splitter = new OutputStreamSplitter(removeOnException, oneToMany);
+        }
+
+        if (asyncSend) {
+            asyncStream = new AsyncOutputStream(splitter, asyncSendBlocks);
+            bufferedStream = new BufferedArrayOutputStream(asyncStream);
+        } else {
+            asyncStream = null;
+            bufferedStream = new BufferedArrayOutputStream(splitter);
+        }
         initStream(bufferedStream);
     }
 
@@ -95,6 +113,30 @@ final class TcpSendPort extends SendPort implements TcpProtocol {
         splitter.resetBytesWritten();
     }
 
+    protected synchronized void updateProperties() {
+        super.updateProperties();
+
+        // lag of the receivers, only known in parallel fan-out mode
+        StringBuilder lag = new StringBuilder();
+        long maxLag = 0;
+        long stalls = 0;
+        for (ReceivePortIdentifier receiver : receivers.keySet()) {
+            Conn c = (Conn) getInfo(receiver);
+            long outstanding = splitter.outstandingBytes(c.out);
+            if (lag.length() > 0) {
+                lag.append(", ");
+            }
+            lag.append(receiver);
+            lag.append("=");
+            lag.append(outstanding);
+            maxLag = Math.max(maxLag, splitter.maxOutstandingBytes(c.out));
+            stalls += splitter.stalls(c.out);
+        }
+        setProperty("ReceiverLag", lag.toString());
+        setProperty("MaxReceiverLag", "" + maxLag);
+        setProperty("FanoutStalls", "" + stalls);
+    }
+
     SendPortIdentifier getIdent() {
         return ident;
     }
@@ -146,8 +188,39 @@ final class TcpSendPort extends SendPort implements TcpProtocol {
         }
     }
 
+    protected int sendMessageData() throws IOException {
+        if (asyncStream == null) {
+            return super.sendMessageData();
+        }
+        // Only hands the buffers to the transmission thread.
+        out.flush();
+        return asyncStream.ticket();
+    }
+
+    protected void syncMessageData(int ticket) throws IOException {
+        if (asyncStream == null) {
+            super.syncMessageData(ticket);
+            return;
+        }
+        asyncStream.sync(ticket);
+    }
+
     protected void finishMessage(WriteMessage w, long cnt)
             throws IOException {
+        IOException asyncException = null;
+        if (asyncStream != null) {
+            // finish() must block until the message is sent.
+            try {
+                asyncStream.syncAll();
+            } catch (IOException e) {
+                try {
+                    gotSendException(w, e);
+                } catch (IOException e2) {
+                    // rethrown after the message is finished.
+                    asyncException = e2;
+                }
+            }
+        }
         if (type.hasCapability(PortType.CONNECTION_ONE_TO_MANY)
                 || type.hasCapability(PortType.CONNECTION_MANY_TO_MANY)) {
             // exception may have been saved by the splitter. Get them
@@ -158,6 +231,9 @@ final class TcpSendPort extends SendPort implements TcpProtocol {
             }
         }
         super.finishMessage(w, cnt);
+        if (asyncException != null) {
+            throw asyncException;
+        }
     }
 
     protected void handleSendException(WriteMessage w, IOException x) {
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamField;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -48,6 +49,9 @@ final class AlternativeTypeInfo {
     private static Logger logger = LoggerFactory
             .getLogger(AlternativeTypeInfo.class);
 
+    private static final boolean GENERATE = IOProperties.properties
+            .getBooleanProperty(IOProperties.s_generate, true);
+
     /**
      * Maintains all <code>AlternativeTypeInfo</code> structures in a hashmap,
      * to be accessed through their classname.
@@ -367,6 +371,21 @@ final class AlternativeTypeInfo {
     /** Helper class for this class, generated by IOGenerator. */
     Generator gen;
 
+    /**
+     * Serializer for the fields of this class, generated at runtime, or
+     * <code>null</code>.
+     */
+    FieldSerializer fieldSerializer;
+
+    /** The serializable fields, by name. */
+    private HashMap<String, FieldSlot> fieldSlots;
+
+    /**
+     * The slots of the fields in <code>serializable_fields</code>, in the
+     * same order.
+     */
+    FieldSlot[] slots;
+
     /**
      * A <code>Comparator</code> implementation for sorting the fields array.
      */
@@ -397,9 +416,6 @@ final class AlternativeTypeInfo {
     /** This is needed for the private field access hack. */
     Field temporary_field;
 
-    /** This is needed for the private method access hack. */
-    Method temporary_method;
-
     /**
      * Return the name of the class.
      *
@@ -480,7 +496,7 @@ final class AlternativeTypeInfo {
     private Method getMethod(String name, Class<?>[] paramTypes,
             Class<?> returnType) {
         try {
-            Method method = clazz.getDeclaredMethod(name, paramTypes);
+            final Method method = clazz.getDeclaredMethod(name, paramTypes);
 
             /* Check return type. */
             if (method.getReturnType() != returnType) {
@@ -492,15 +508,19 @@ final class AlternativeTypeInfo {
                 return null;
             }
 
-            /* Make method accessible, so that it may be called. */
-            if (!method.canAccess(method.getDeclaringClass())) {
-                temporary_method = method;
-                AccessController.doPrivileged(new PrivilegedAction<Object>() {
-                    public Object run() {
-                        temporary_method.setAccessible(true);
-                        return null;
-                    }
-                });
+            /*
+             * Make method accessible, so that it may be called. If the module
+             * of the class does not allow that, invoking it throws an
+             * IllegalAccessException later on.
+             */
+            boolean accessible = AccessController.doPrivileged(
+                    new PrivilegedAction<Boolean>() {
+                        public Boolean run() {
+                            return method.trySetAccessible();
+                        }
+                    });
+            if (!accessible && logger.isDebugEnabled()) {
+                logger.debug("Cannot make " + method + " accessible");
             }
             return method;
         } catch (NoSuchMethodException ex) {
@@ -555,6 +575,15 @@ final class AlternativeTypeInfo {
         return readResolveMethod.invoke(o, new Object[0]);
     }
 
+    /**
+     * Returns whether the class has a <code>readResolve</code> method.
+     *
+     * @return <code>true</code> if it has one.
+     */
+    boolean hasReadResolve() {
+        return readResolveMethod != null;
+    }
+
     /**
      * Invokes the <code>writeReplace</code> method on object <code>o</code>.
      *
@@ -575,18 +604,31 @@ final class AlternativeTypeInfo {
     private AlternativeTypeInfo(Class<?> clazz) {
 
         this.clazz = clazz;
-        if (SunJavaStuff.available) {
-            javaDependantStuff = new SunJavaStuff(clazz);
-        } else if (HarmonyJavaStuff.available) {
-            javaDependantStuff = new HarmonyJavaStuff(clazz);
-        } else if (DalvikJavaStuff.available) {
-            javaDependantStuff = new DalvikJavaStuff(clazz);
-        } else if (DalvikJavaStuffV2.available) {
-            javaDependantStuff = new DalvikJavaStuffV2(clazz);
-        } else if (DalvikJavaStuffV3.available) {
-            javaDependantStuff = new DalvikJavaStuffV3(clazz);
-        } else if (ClasspathJavaStuff.available) {
-            javaDependantStuff = new ClasspathJavaStuff(clazz);
+        if (MethodHandleJavaStuff.available) {
+            try {
+                javaDependantStuff = new MethodHandleJavaStuff(clazz);
+            } catch (Throwable e) {
+                // not accessible, try the others
+                if (logger.isDebugEnabled()) {
+                    logger.debug("MethodHandleJavaStuff not usable for "
+                            + clazz.getName(), e);
+                }
+            }
+        }
+        if (javaDependantStuff == null) {
+            if (SunJavaStuff.available) {
+                javaDependantStuff = new SunJavaStuff(clazz);
+            } else if (HarmonyJavaStuff.available) {
+                javaDependantStuff = new HarmonyJavaStuff(clazz);
+            } else if (DalvikJavaStuff.available) {
+                javaDependantStuff = new DalvikJavaStuff(clazz);
+            } else if (DalvikJavaStuffV2.available) {
+                javaDependantStuff = new DalvikJavaStuffV2(clazz);
+            } else if (DalvikJavaStuffV3.available) {
+                javaDependantStuff = new DalvikJavaStuffV3(clazz);
+            } else if (ClasspathJavaStuff.available) {
+                javaDependantStuff = new ClasspathJavaStuff(clazz);
+            }
         }
 
         try {
@@ -874,6 +916,21 @@ final class AlternativeTypeInfo {
                     + "info for " + clazz.getName(), e);
         }
 
+        initFieldSlots();
+
+        if (GENERATE && isSerializable && !isIbisSerializable && gen == null
+                && !isExternalizable && !isArray && !isString && !isClass
+                && !isEnum()) {
+            try {
+                fieldSerializer = FieldSerializerGenerator.generate(this);
+            } catch (LinkageError e) {
+                // ASM not available, use reflection
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Cannot generate field serializer", e);
+                }
+            }
+        }
+
         writer = createWriter();
         reader = createReader();
     }
@@ -991,53 +1048,74 @@ final class AlternativeTypeInfo {
      *                when no such field is found.
      */
     int getOffset(String name, Class<?> tp) throws IllegalArgumentException {
-        int offset = 0;
+        FieldSlot slot = fieldSlots.get(name);
+        if (slot != null && slot.hasType(tp)) {
+            return slot.offset;
+        }
+        throw new IllegalArgumentException(
+                "no field named " + name + " with type " + tp);
+    }
+
+    /**
+     * Creates the field slots, and computes the offsets used by
+     * {@link #getOffset(String, Class)}.
+     */
+    private void initFieldSlots() {
+        fieldSlots = new HashMap<String, FieldSlot>();
+
+        MethodHandleJavaStuff handles = null;
+        if (javaDependantStuff instanceof MethodHandleJavaStuff) {
+            handles = (MethodHandleJavaStuff) javaDependantStuff;
+        }
+
+        int count = 0;
+        if (serial_persistent_fields != null) {
+            count = serial_persistent_fields.length;
+        } else if (serializable_fields != null) {
+            count = serializable_fields.length;
+        }
 
-        if (tp.isPrimitive()) {
+        // offsets are counted per primitive type, and for all references
+        HashMap<Class<?>, Integer> offsets = new HashMap<Class<?>, Integer>();
+
+        for (int i = 0; i < count; i++) {
+            String name;
+            Class<?> type;
+            Field field;
             if (serial_persistent_fields != null) {
-                for (int i = 0; i < serial_persistent_fields.length; i++) {
-                    if (serial_persistent_fields[i].getType() == tp) {
-                        if (name.equals(
-                                serial_persistent_fields[i].getName())) {
-                            return offset;
-                        }
-                        offset++;
-                    }
-                }
-            } else if (serializable_fields != null) {
-                for (int i = 0; i < serializable_fields.length; i++) {
-                    if (serializable_fields[i].getType() == tp) {
-                        if (name.equals(serializable_fields[i].getName())) {
-                            return offset;
-                        }
-                        offset++;
-                    }
-                }
+                name = serial_persistent_fields[i].getName();
+                type = serial_persistent_fields[i].getType();
+                field = findField(serial_persistent_fields[i]);
+            } else {
+                field = serializable_fields[i];
+                name = field.getName();
+                type = field.getType();
             }
-        } else {
-            if (serial_persistent_fields != null) {
-                for (int i = 0; i < serial_persistent_fields.length; i++) {
-                    if (!serial_persistent_fields[i].getType().isPrimitive()) {
-                        if (name.equals(
-                                serial_persistent_fields[i].getName())) {
-                            return offset;
-                        }
-                        offset++;
-                    }
-                }
-            } else if (serializable_fields != null) {
-                for (int i = 0; i < serializable_fields.length; i++) {
-                    if (!serializable_fields[i].getType().isPrimitive()) {
-                        if (name.equals(serializable_fields[i].getName())) {
-                            return offset;
-                        }
-                        offset++;
-                    }
+
+            Class<?> key = type.isPrimitive() ? type : Object.class;
+            Integer offset = offsets.get(key);
+            if (offset == null) {
+                offset = 0;
+            }
+            offsets.put(key, offset + 1);
+
+            MethodHandle setter = null;
+            if (handles != null && field != null && field.getType() == type) {
+                setter = handles.findSetter(name);
+            }
+
+            fieldSlots.put(name, new FieldSlot(this, name, type, offset,
+                    setter));
+        }
+
+        if (serializable_fields != null) {
+            slots = new FieldSlot[serializable_fields.length];
+            for (int i = 0; i < slots.length; i++) {
+                if (serializable_fields[i] != null) {
+                    slots[i] = fieldSlots.get(serializable_fields[i].getName());
                 }
             }
         }
-        throw new IllegalArgumentException(
-                "no field named " + name + " with type " + tp);
     }
 
     static Class<?> getClass(String n) {
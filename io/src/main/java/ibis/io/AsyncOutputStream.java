@@ -0,0 +1,364 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.io;
+
+import ibis.util.ThreadPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+
+/**
+ * Output stream that writes to the underlying stream in a separate thread.
+ * Data written is copied into a bounded queue of blocks, so the writer can
+ * continue (for instance with serializing the next message) while the data
+ * is being transmitted. Each block gets a ticket, {@link #sync(int)} waits
+ * until the block with the given ticket, and all blocks before it, have been
+ * written. {@link #flush()} does not wait, it only asks for the underlying
+ * stream to be flushed once the queue is written.
+ * <p>
+ * Exceptions of the underlying stream are thrown by the next write, flush or
+ * sync. The data queued at that moment is discarded.
+ * <p>
+ * Besides the number of blocks, the number of bytes queued can be bounded.
+ * The number of bytes queued, its maximum so far, and the number of writes
+ * that had to wait for the queue are kept, so that a slow stream can be
+ * recognized.
+ */
+public final class AsyncOutputStream extends OutputStream implements Runnable {
+
+    private static final class Block {
+        final byte[] data;
+
+        final int length;
+
+        final boolean flush;
+
+        final int ticket;
+
+        /** Set when the data is shared with other streams. */
+        final boolean shared;
+
+        Block(byte[] data, int length, boolean flush, int ticket,
+                boolean shared) {
+            this.data = data;
+            this.length = length;
+            this.flush = flush;
+            this.ticket = ticket;
+            this.shared = shared;
+        }
+    }
+
+    /** The underlying <code>OutputStream</code>. */
+    private final OutputStream out;
+
+    /** Size of pooled blocks. Larger writes get a block of their own. */
+    private final int blockSize;
+
+    /** Maximum number of blocks queued. */
+    private final int maxBlocks;
+
+    /** Maximum number of bytes queued. */
+    private final long maxBytes;
+
+    private final LinkedList<Block> queue = new LinkedList<Block>();
+
+    private final LinkedList<byte[]> freeBlocks = new LinkedList<byte[]>();
+
+    /** Ticket of the last block queued. */
+    private int queued = 0;
+
+    /** Ticket of the last block written. */
+    private int written = 0;
+
+    /** Number of bytes queued but not yet written. */
+    private long queuedBytes = 0;
+
+    /** Maximum of <code>queuedBytes</code> so far. */
+    private long maxQueuedBytes = 0;
+
+    /** Number of writes that had to wait for room in the queue. */
+    private long stalls = 0;
+
+    private boolean writerActive = false;
+
+    private IOException exception = null;
+
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     * @param out       the underlying <code>OutputStream</code>
+     * @param blockSize size of the blocks in which data is queued
+     * @param maxBlocks maximum number of blocks queued before a write blocks
+     * @param maxBytes  maximum number of bytes queued before a write blocks.
+     *                  A single write larger than this is still accepted when
+     *                  the queue is empty.
+     */
+    public AsyncOutputStream(OutputStream out, int blockSize, int maxBlocks,
+            long maxBytes) {
+        this.out = out;
+        this.blockSize = blockSize;
+        this.maxBlocks = maxBlocks;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Constructor.
+     * @param out       the underlying <code>OutputStream</code>
+     * @param blockSize size of the blocks in which data is queued
+     * @param maxBlocks maximum number of blocks queued before a write blocks
+     */
+    public AsyncOutputStream(OutputStream out, int blockSize, int maxBlocks) {
+        this(out, blockSize, maxBlocks, Long.MAX_VALUE);
+    }
+
+    /**
+     * Constructor.
+     * @param out       the underlying <code>OutputStream</code>
+     * @param maxBlocks maximum number of blocks queued before a write blocks
+     */
+    public AsyncOutputStream(OutputStream out, int maxBlocks) {
+        this(out, IOProperties.BUFFER_SIZE, maxBlocks);
+    }
+
+    /**
+     * Returns the ticket of the last block queued. Passing it to
+     * {@link #sync(int)} waits until all data written so far has been written
+     * to the underlying stream.
+     * @return the ticket.
+     */
+    public synchronized int ticket() {
+        return queued;
+    }
+
+    private void checkException() throws IOException {
+        if (exception != null) {
+            IOException e = exception;
+            exception = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of bytes queued but not yet written.
+     * @return the number of bytes queued.
+     */
+    public synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Returns the maximum number of bytes queued so far.
+     * @return the maximum number of bytes queued.
+     */
+    public synchronized long maxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * Returns the number of writes that had to wait because the queue was
+     * full.
+     * @return the number of stalled writes.
+     */
+    public synchronized long stalls() {
+        return stalls;
+    }
+
+    private boolean isFull(int length) {
+        return queue.size() >= maxBlocks
+                || (queuedBytes > 0 && queuedBytes + length > maxBytes);
+    }
+
+    private synchronized void enqueue(byte[] data, int length, boolean flush,
+            boolean shared) throws IOException {
+        if (closed) {
+            throw new IOException("write on closed stream");
+        }
+        checkException();
+
+        if (isFull(length)) {
+            stalls++;
+            while (isFull(length) && exception == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+        }
+        checkException();
+
+        queued++;
+        queue.addLast(new Block(data, length, flush, queued, shared));
+        queuedBytes += length;
+        if (queuedBytes > maxQueuedBytes) {
+            maxQueuedBytes = queuedBytes;
+        }
+
+        if (!writerActive) {
+            writerActive = true;
+            ThreadPool.createNew(this, "AsyncOutputStream writer");
+        }
+    }
+
+    private synchronized byte[] getBlock(int size) {
+        if (size <= blockSize) {
+            if (!freeBlocks.isEmpty()) {
+                return freeBlocks.removeFirst();
+            }
+            return new byte[blockSize];
+        }
+        return new byte[size];
+    }
+
+    private synchronized void recycle(Block block) {
+        if (block.data != null && !block.shared
+                && block.data.length == blockSize
+                && freeBlocks.size() < maxBlocks) {
+            freeBlocks.addLast(block.data);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        byte[] data = getBlock(1);
+        data[0] = (byte) b;
+        enqueue(data, 1, false, false);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        byte[] data = getBlock(len);
+        System.arraycopy(b, off, data, 0, len);
+        enqueue(data, len, false, false);
+    }
+
+    /**
+     * Queues the given data without copying it. The data is shared with
+     * other streams, so it must not be modified afterwards.
+     * @param data the data.
+     * @param len  the number of bytes of <code>data</code> to write.
+     * @exception IOException the underlying stream threw an exception.
+     */
+    void writeShared(byte[] data, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        enqueue(data, len, false, true);
+    }
+
+    /**
+     * Requests a flush of the underlying stream, after all data queued so far
+     * has been written. Does not wait for this to happen.
+     */
+    @Override
+    public void flush() throws IOException {
+        enqueue(null, 0, true, false);
+    }
+
+    /**
+     * Waits until the block with the given ticket, and all blocks queued
+     * before it, have been written to the underlying stream. If the ticket
+     * does not correspond to a queued block, waits until the queue is empty.
+     * @param ticket the ticket.
+     * @exception IOException the underlying stream threw an exception.
+     */
+    public synchronized void sync(int ticket) throws IOException {
+        if (ticket - queued > 0) {
+            ticket = queued;
+        }
+        while (written - ticket < 0 && exception == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignored
+            }
+        }
+        checkException();
+    }
+
+    /**
+     * Waits until all data queued so far has been written to the underlying
+     * stream, and flushes it.
+     * @exception IOException the underlying stream threw an exception.
+     */
+    public void syncAll() throws IOException {
+        flush();
+        sync(ticket());
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        try {
+            syncAll();
+        } finally {
+            synchronized (this) {
+                closed = true;
+            }
+            out.close();
+        }
+    }
+
+    public void run() {
+        while (true) {
+            Block block;
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    writerActive = false;
+                    return;
+                }
+                block = queue.getFirst();
+            }
+
+            IOException failure = null;
+            try {
+                if (block.data != null) {
+                    out.write(block.data, 0, block.length);
+                }
+                if (block.flush) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            synchronized (this) {
+                if (failure != null) {
+                    // discard the rest of the queue, the stream is broken
+                    exception = failure;
+                    queue.clear();
+                    queuedBytes = 0;
+                    written = queued;
+                } else {
+                    queue.removeFirst();
+                    queuedBytes -= block.length;
+                    written = block.ticket;
+                }
+                notifyAll();
+            }
+            recycle(block);
+        }
+    }
+}
@@ -0,0 +1,669 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.io;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide pool of I/O buffers, shared by the Ibis streams and
+ * implementations. Buffers come in size classes of powers of two, from 64
+ * bytes up to 1 megabyte. Direct buffers are carved out of slabs of
+ * off-heap memory of up to 1 megabyte, heap buffers are plain byte arrays.
+ * <p>
+ * Each thread keeps a few released buffers of each size class for itself,
+ * so that a thread that allocates and releases buffers in turn does not
+ * have to synchronize. Other buffers go to a free list per size class.
+ * The caches of threads that have died are returned to the free lists the
+ * next time the pool runs out.
+ * <p>
+ * At most <code>ibis.io.buffer.pool.limit</code> bytes of slabs are
+ * allocated, and at most as many bytes of each kind are kept idle. Requests
+ * that cannot be served within the limit, or that are larger than the
+ * largest size class, get a buffer that is not pooled. The pool knows which
+ * direct buffers it carved out of its slabs, and only takes those back.
+ * When it discards one because enough buffers are idle, or one is garbage
+ * collected without a release, its part of the slab limit becomes
+ * available again.
+ * <p>
+ * With <code>ibis.io.buffer.pool.leakdetection</code> set, the pool
+ * remembers where each direct buffer was allocated, and logs a warning
+ * when a buffer is garbage collected without having been released. Buffers
+ * released twice, or not allocated by the pool, are then ignored.
+ * <p>
+ * A buffer must not be used after it has been released.
+ */
+public final class BufferPool {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(BufferPool.class);
+
+    /** Log2 of the smallest size class. */
+    private static final int MIN_SHIFT = 6;
+
+    /** Log2 of the largest size class, and of the largest slab size. */
+    private static final int MAX_SHIFT = 20;
+
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    private static final int SLAB_SIZE = 1 << MAX_SHIFT;
+
+    private static final int MIN_SLAB_SIZE = 64 * 1024;
+
+    /** Number of buffers of each size class a thread keeps for itself. */
+    private static final int THREAD_CACHE_SIZE = 4;
+
+    /** Maximum number of bytes of slabs, and of idle buffers of each kind. */
+    static final long LIMIT = IOProperties.properties.getSizeProperty(
+            IOProperties.s_pool_limit, 64 * 1024 * 1024);
+
+    static final boolean LEAK_DETECTION = IOProperties.properties
+            .getBooleanProperty(IOProperties.s_pool_leak_detection, false);
+
+    private static final SizeClass[] directClasses = new SizeClass[CLASSES];
+
+    private static final SizeClass[] heapClasses = new SizeClass[CLASSES];
+
+    private static final ArrayList<ThreadCache> threadCaches = new ArrayList<ThreadCache>();
+
+    /** Number of thread caches at which dead ones are reclaimed. */
+    private static int reclaimThreshold = 64;
+
+    private static final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        protected ThreadCache initialValue() {
+            ThreadCache cache = new ThreadCache(Thread.currentThread());
+            synchronized (threadCaches) {
+                // don't let the caches of dead threads pile up
+                if (threadCaches.size() >= reclaimThreshold) {
+                    reclaim();
+                    reclaimThreshold = Math.max(64, 2 * threadCaches.size());
+                }
+                threadCaches.add(cache);
+            }
+            return cache;
+        }
+    };
+
+    /** Bytes of slabs allocated. */
+    private static final AtomicLong slabBytes = new AtomicLong();
+
+    private static final LongAdder directIdle = new LongAdder();
+
+    private static final LongAdder directInUse = new LongAdder();
+
+    private static final LongAdder heapIdle = new LongAdder();
+
+    private static final LongAdder overflows = new LongAdder();
+
+    private static final LongAdder leaks = new LongAdder();
+
+    /** Leases of direct buffers, by identity hash code of the buffer. */
+    private static final HashMap<Integer, Lease> leases = new HashMap<Integer, Lease>();
+
+    private static final ReferenceQueue<ByteBuffer> leaked = new ReferenceQueue<ByteBuffer>();
+
+    /**
+     * Direct buffers carved out of the slabs, by identity hash code of the
+     * buffer. Only these are pooled when released, and when one is discarded
+     * or garbage collected, its part of the slab reservation is returned.
+     */
+    private static final HashMap<Integer, Slice> slices = new HashMap<Integer, Slice>();
+
+    private static final ReferenceQueue<ByteBuffer> lostSlices = new ReferenceQueue<ByteBuffer>();
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            directClasses[i] = new SizeClass(i, true);
+            heapClasses[i] = new SizeClass(i, false);
+        }
+    }
+
+    /**
+     * A size class. The free list is protected by the size class itself.
+     */
+    private static final class SizeClass {
+        final int index;
+
+        final int size;
+
+        final boolean direct;
+
+        /** Size of the slabs buffers of this class are carved from. */
+        final int slabSize;
+
+        private final ArrayDeque<Object> free = new ArrayDeque<Object>();
+
+        /** Slab from which new direct buffers are carved, or null. */
+        private ByteBuffer slab;
+
+        SizeClass(int index, boolean direct) {
+            this.index = index;
+            this.size = 1 << (index + MIN_SHIFT);
+            this.direct = direct;
+            // small classes use smaller slabs, to limit the memory
+            // reserved by slabs that are only partly used
+            this.slabSize = Math.min(SLAB_SIZE, Math.max(MIN_SLAB_SIZE,
+                    size * 16));
+        }
+
+        synchronized Object poll() {
+            return free.pollFirst();
+        }
+
+        synchronized void add(Object buffer) {
+            free.addFirst(buffer);
+        }
+
+        /**
+         * Carves a new buffer out of the slab, or returns null when the
+         * limit has been reached.
+         */
+        synchronized ByteBuffer carve() {
+            if (slab == null || slab.remaining() < size) {
+                if (!reserve(slabSize)
+                        && !(pollLostSlices() && reserve(slabSize))) {
+                    return null;
+                }
+                slab = ByteBuffer.allocateDirect(slabSize);
+            }
+            slab.limit(slab.position() + size);
+            ByteBuffer result = slab.slice();
+            slab.position(slab.limit());
+            slab.limit(slab.capacity());
+            addSlice(result, this);
+            return result;
+        }
+    }
+
+    /**
+     * Released buffers kept by a thread, only accessed by that thread while
+     * it is alive.
+     */
+    private static final class ThreadCache {
+        final WeakReference<Thread> owner;
+
+        final Object[][] direct = new Object[CLASSES][THREAD_CACHE_SIZE];
+
+        final int[] directCount = new int[CLASSES];
+
+        final Object[][] heap = new Object[CLASSES][THREAD_CACHE_SIZE];
+
+        final int[] heapCount = new int[CLASSES];
+
+        ThreadCache(Thread owner) {
+            this.owner = new WeakReference<Thread>(owner);
+        }
+
+        boolean dead() {
+            Thread t = owner.get();
+            return t == null || !t.isAlive();
+        }
+
+        Object poll(SizeClass c) {
+            Object[] stack = c.direct ? direct[c.index] : heap[c.index];
+            int[] count = c.direct ? directCount : heapCount;
+            if (count[c.index] == 0) {
+                return null;
+            }
+            Object result = stack[--count[c.index]];
+            stack[count[c.index]] = null;
+            return result;
+        }
+
+        boolean add(SizeClass c, Object buffer) {
+            Object[] stack = c.direct ? direct[c.index] : heap[c.index];
+            int[] count = c.direct ? directCount : heapCount;
+            if (count[c.index] == THREAD_CACHE_SIZE) {
+                return false;
+            }
+            stack[count[c.index]++] = buffer;
+            return true;
+        }
+
+        /** Moves all buffers to the free lists. */
+        void drain() {
+            for (int i = 0; i < CLASSES; i++) {
+                while (directCount[i] > 0) {
+                    directClasses[i].add(poll(directClasses[i]));
+                }
+                while (heapCount[i] > 0) {
+                    heapClasses[i].add(poll(heapClasses[i]));
+                }
+            }
+        }
+    }
+
+    /** Records the allocation of a direct buffer, for leak detection. */
+    private static final class Lease extends WeakReference<ByteBuffer> {
+        final int hash;
+
+        final int size;
+
+        final Throwable allocation;
+
+        Lease next;
+
+        Lease(ByteBuffer buffer, int hash) {
+            super(buffer, leaked);
+            this.hash = hash;
+            this.size = buffer.capacity();
+            this.allocation = new Throwable("allocated here");
+        }
+    }
+
+    /** A direct buffer carved out of a slab. */
+    private static final class Slice extends WeakReference<ByteBuffer> {
+        final int hash;
+
+        final SizeClass sizeClass;
+
+        Slice next;
+
+        Slice(ByteBuffer buffer, int hash, SizeClass sizeClass) {
+            super(buffer, lostSlices);
+            this.hash = hash;
+            this.sizeClass = sizeClass;
+        }
+    }
+
+    private BufferPool() {
+        // no instances
+    }
+
+    private static boolean reserve(long bytes) {
+        for (;;) {
+            long current = slabBytes.get();
+            if (current + bytes > LIMIT) {
+                return false;
+            }
+            if (slabBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private static void unreserve(long bytes) {
+        slabBytes.addAndGet(-bytes);
+    }
+
+    private static void addSlice(ByteBuffer buffer, SizeClass c) {
+        int hash = System.identityHashCode(buffer);
+        Slice slice = new Slice(buffer, hash, c);
+        synchronized (slices) {
+            slice.next = slices.put(hash, slice);
+        }
+    }
+
+    /**
+     * Returns the size class of the given buffer if it was carved out of a
+     * slab, or null if it was not allocated by the pool.
+     */
+    private static SizeClass sliceClass(ByteBuffer buffer) {
+        int hash = System.identityHashCode(buffer);
+        synchronized (slices) {
+            for (Slice s = slices.get(hash); s != null; s = s.next) {
+                if (s.get() == buffer) {
+                    return s.sizeClass;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes a slice, given by its buffer or by its reference, and returns
+     * its part of the slab reservation.
+     */
+    private static void removeSlice(int hash, Object sliceOrBuffer) {
+        Slice removed = null;
+        synchronized (slices) {
+            Slice prev = null;
+            for (Slice s = slices.get(hash); s != null; s = s.next) {
+                if (s == sliceOrBuffer || s.get() == sliceOrBuffer) {
+                    if (prev != null) {
+                        prev.next = s.next;
+                    } else if (s.next != null) {
+                        slices.put(hash, s.next);
+                    } else {
+                        slices.remove(hash);
+                    }
+                    removed = s;
+                    break;
+                }
+                prev = s;
+            }
+        }
+        if (removed != null) {
+            unreserve(removed.sizeClass.size);
+        }
+    }
+
+    /**
+     * Returns the reservation of slices that were garbage collected without
+     * being released. Returns whether there were any.
+     */
+    private static boolean pollLostSlices() {
+        boolean result = false;
+        for (Reference<? extends ByteBuffer> r = lostSlices.poll(); r != null; r = lostSlices
+                .poll()) {
+            Slice slice = (Slice) r;
+            removeSlice(slice.hash, slice);
+            result = true;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the buffers cached by threads that have died to the free
+     * lists. Returns whether there were any such threads.
+     */
+    private static boolean reclaim() {
+        boolean result = false;
+        synchronized (threadCaches) {
+            for (int i = threadCaches.size() - 1; i >= 0; i--) {
+                ThreadCache cache = threadCaches.get(i);
+                if (cache.dead()) {
+                    cache.drain();
+                    threadCaches.remove(i);
+                    result = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size class for the given size, or null if it is too large
+     * to be pooled.
+     */
+    private static SizeClass sizeClass(SizeClass[] classes, int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return classes[0];
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (shift > MAX_SHIFT) {
+            return null;
+        }
+        return classes[shift - MIN_SHIFT];
+    }
+
+    /**
+     * Returns the size class of which the given capacity is the size, or
+     * null if there is none.
+     */
+    private static SizeClass exactSizeClass(SizeClass[] classes, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            return null;
+        }
+        int shift = Integer.numberOfTrailingZeros(capacity);
+        if (shift < MIN_SHIFT || shift > MAX_SHIFT) {
+            return null;
+        }
+        return classes[shift - MIN_SHIFT];
+    }
+
+    private static Object get(SizeClass c) {
+        Object result = threadCache.get().poll(c);
+        if (result == null) {
+            result = c.poll();
+        }
+        if (result != null) {
+            (c.direct ? directIdle : heapIdle).add(-c.size);
+        }
+        return result;
+    }
+
+    /**
+     * Keeps a released buffer, unless the pool already keeps enough idle
+     * buffers.
+     *
+     * @return false if the buffer was not kept.
+     */
+    private static boolean put(SizeClass c, Object buffer) {
+        LongAdder idle = c.direct ? directIdle : heapIdle;
+        if (idle.sum() + c.size > LIMIT) {
+            return false;
+        }
+        idle.add(c.size);
+        if (!threadCache.get().add(c, buffer)) {
+            c.add(buffer);
+        }
+        return true;
+    }
+
+    /**
+     * Allocates a direct buffer with a capacity of at least the given size.
+     * The buffer has position 0, its limit set to the given size, and
+     * big-endian byte order.
+     *
+     * @param size
+     *            the number of bytes needed
+     * @return the buffer.
+     */
+    public static ByteBuffer allocateDirect(int size) {
+        if (LEAK_DETECTION) {
+            pollLeaks();
+        }
+
+        SizeClass c = sizeClass(directClasses, size);
+        ByteBuffer result = null;
+
+        if (c != null) {
+            result = (ByteBuffer) get(c);
+            if (result == null) {
+                result = c.carve();
+                if (result == null && reclaim()) {
+                    result = (ByteBuffer) get(c);
+                }
+            }
+        }
+
+        if (result == null) {
+            overflows.increment();
+            if (logger.isDebugEnabled()) {
+                logger.debug("allocating unpooled direct buffer of " + size
+                        + " bytes");
+            }
+            result = ByteBuffer.allocateDirect(c == null ? size : c.size);
+        }
+
+        directInUse.add(result.capacity());
+
+        if (LEAK_DETECTION) {
+            lease(result);
+        }
+
+        result.clear();
+        result.limit(size);
+        result.order(ByteOrder.BIG_ENDIAN);
+        return result;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #allocateDirect(int)} to the
+     * pool.
+     *
+     * @param buffer
+     *            the buffer
+     */
+    public static void release(ByteBuffer buffer) {
+        if (LEAK_DETECTION && !unlease(buffer)) {
+            logger.warn("release of direct buffer that was not allocated "
+                    + "from the pool, or was released already", new Throwable(
+                    "released here"));
+            return;
+        }
+        directInUse.add(-buffer.capacity());
+        // unpooled buffers, such as those handed out when the pool ran out,
+        // are left to the garbage collector
+        SizeClass c = sliceClass(buffer);
+        if (c != null && !put(c, buffer)) {
+            removeSlice(System.identityHashCode(buffer), buffer);
+        }
+    }
+
+    /**
+     * Allocates a byte array of at least the given size. Its contents are
+     * undefined.
+     *
+     * @param size
+     *            the number of bytes needed
+     * @return the array.
+     */
+    public static byte[] allocate(int size) {
+        SizeClass c = sizeClass(heapClasses, size);
+        if (c == null) {
+            overflows.increment();
+            return new byte[size];
+        }
+        byte[] result = (byte[]) get(c);
+        if (result == null) {
+            result = new byte[c.size];
+        }
+        return result;
+    }
+
+    /**
+     * Returns an array obtained from {@link #allocate(int)} to the pool.
+     *
+     * @param buffer
+     *            the array
+     */
+    public static void release(byte[] buffer) {
+        SizeClass c = exactSizeClass(heapClasses, buffer.length);
+        if (c != null) {
+            put(c, buffer);
+        }
+    }
+
+    private static void lease(ByteBuffer buffer) {
+        int hash = System.identityHashCode(buffer);
+        Lease lease = new Lease(buffer, hash);
+        synchronized (leases) {
+            lease.next = leases.put(hash, lease);
+        }
+    }
+
+    private static boolean unlease(ByteBuffer buffer) {
+        int hash = System.identityHashCode(buffer);
+        synchronized (leases) {
+            Lease prev = null;
+            for (Lease l = leases.get(hash); l != null; l = l.next) {
+                if (l.get() == buffer) {
+                    remove(prev, l);
+                    l.clear();
+                    return true;
+                }
+                prev = l;
+            }
+        }
+        return false;
+    }
+
+    /** Removes a lease from its chain. Call with the leases lock held. */
+    private static void remove(Lease prev, Lease lease) {
+        if (prev != null) {
+            prev.next = lease.next;
+        } else if (lease.next != null) {
+            leases.put(lease.hash, lease.next);
+        } else {
+            leases.remove(lease.hash);
+        }
+    }
+
+    /** Reports buffers that were garbage collected without a release. */
+    private static void pollLeaks() {
+        for (Reference<? extends ByteBuffer> r = leaked.poll(); r != null; r = leaked
+                .poll()) {
+            Lease lease = (Lease) r;
+            synchronized (leases) {
+                Lease prev = null;
+                Lease l = leases.get(lease.hash);
+                while (l != null && l != lease) {
+                    prev = l;
+                    l = l.next;
+                }
+                if (l == null) {
+                    // released in the mean time
+                    continue;
+                }
+                remove(prev, l);
+            }
+            leaks.increment();
+            directInUse.add(-lease.size);
+            logger.warn("direct buffer of " + lease.size
+                    + " bytes was not released", lease.allocation);
+        }
+    }
+
+    /** Returns the limit of the pool, in bytes. */
+    public static long getLimit() {
+        return LIMIT;
+    }
+
+    /** Returns the number of bytes of off-heap slabs allocated. */
+    public static long getSlabBytes() {
+        return slabBytes.get();
+    }
+
+    /** Returns the number of bytes of direct buffers handed out. */
+    public static long getDirectBytesInUse() {
+        if (LEAK_DETECTION) {
+            pollLeaks();
+        }
+        return directInUse.sum();
+    }
+
+    /** Returns the number of bytes of direct buffers kept by the pool. */
+    public static long getDirectBytesIdle() {
+        return directIdle.sum();
+    }
+
+    /** Returns the number of bytes of heap buffers kept by the pool. */
+    public static long getHeapBytesIdle() {
+        return heapIdle.sum();
+    }
+
+    /**
+     * Returns the number of allocations that could not be served by the
+     * pool.
+     */
+    public static long getOverflows() {
+        return overflows.sum();
+    }
+
+    /**
+     * Returns the number of direct buffers that were not released. Only
+     * counted with leak detection enabled.
+     */
+    public static long getLeaks() {
+        if (LEAK_DETECTION) {
+            pollLeaks();
+        }
+        return leaks.sum();
+    }
+}
@@ -21,6 +21,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.ReadOnlyBufferException;
 
 import org.slf4j.Logger;
@@ -35,6 +36,8 @@ import org.slf4j.LoggerFactory;
 public final class BufferedArrayInputStream extends DataInputStream {
     
     private static final boolean DEBUG = IOProperties.DEBUG;
+
+    private static final int BULK_THRESHOLD = BufferedArrayOutputStream.BULK_THRESHOLD;
     
     private static final Logger logger = LoggerFactory.getLogger(BufferedArrayInputStream.class);
 
@@ -55,6 +58,13 @@ public final class BufferedArrayInputStream extends DataInputStream {
     /** Object used to convert primitive types to bytes. */
     private Conversion conversion;
 
+    /**
+     * The buffer, wrapped so that large primitive arrays can be copied out
+     * of it with a single bulk get on a typed view, instead of element by
+     * element.
+     */
+    private final ByteBuffer view;
+
     /**
      * Constructor.
      * @param in        the underlying <code>InStream</code>
@@ -65,6 +75,9 @@ public final class BufferedArrayInputStream extends DataInputStream {
         BUF_SIZE = bufSize;
         buffer = new byte[BUF_SIZE];
         conversion = Conversion.loadConversion(false);
+        view = ByteBuffer.wrap(buffer).order(
+                conversion.bigEndian() ? ByteOrder.BIG_ENDIAN
+                        : ByteOrder.LITTLE_ENDIAN);
     }
 
     /**
@@ -123,6 +136,63 @@ public final class BufferedArrayInputStream extends DataInputStream {
         }
     }
 
+    /**
+     * Returns the view on the buffer, positioned at the current index.
+     */
+    private ByteBuffer view() {
+        view.limit(BUF_SIZE);
+        view.position(index);
+        return view;
+    }
+
+    private void byte2char(char[] a, int off, int len) {
+        if (len * Constants.SIZEOF_CHAR >= BULK_THRESHOLD) {
+            view().asCharBuffer().get(a, off, len);
+        } else {
+            conversion.byte2char(buffer, index, a, off, len);
+        }
+    }
+
+    private void byte2short(short[] a, int off, int len) {
+        if (len * Constants.SIZEOF_SHORT >= BULK_THRESHOLD) {
+            view().asShortBuffer().get(a, off, len);
+        } else {
+            conversion.byte2short(buffer, index, a, off, len);
+        }
+    }
+
+    private void byte2int(int[] a, int off, int len) {
+        if (len * Constants.SIZEOF_INT >= BULK_THRESHOLD) {
+            view().asIntBuffer().get(a, off, len);
+        } else {
+            conversion.byte2int(buffer, index, a, off, len);
+        }
+    }
+
+    private void byte2long(long[] a, int off, int len) {
+        if (len * Constants.SIZEOF_LONG >= BULK_THRESHOLD) {
+            view().asLongBuffer().get(a, off, len);
+        } else {
+            conversion.byte2long(buffer, index, a, off, len);
+        }
+    }
+
+    private void byte2float(float[] a, int off, int len) {
+        if (len * Constants.SIZEOF_FLOAT >= BULK_THRESHOLD) {
+            view().asFloatBuffer().get(a, off, len);
+        } else {
+            conversion.byte2float(buffer, index, a, off, len);
+        }
+    }
+
+    private void byte2double(double[] a, int off, int len) {
+        if (len * Constants.SIZEOF_DOUBLE >= BULK_THRESHOLD) {
+            view().asDoubleBuffer().get(a, off, len);
+        } else {
+            conversion.byte2double(buffer, index, a, off, len);
+        }
+    }
+
     public final int available() throws IOException {
         return (buffered_bytes + in.available());
     }
@@ -227,7 +297,7 @@ public final class BufferedArrayInputStream extends DataInputStream {
             } else {
                 // first, copy the data we do have to 'a' .
                 useable = buffered_bytes / Constants.SIZEOF_SHORT;
-                conversion.byte2short(buffer, index, a, off, useable);
+                byte2short(a, off, useable);
 
                 len -= useable;
                 off += useable;
@@ -249,7 +319,7 @@ public final class BufferedArrayInputStream extends DataInputStream {
         }
 
         // enough data in the buffer
-        conversion.byte2short(buffer, index, a, off, len);
+        byte2short(a, off, len);
         buffered_bytes -= to_convert;
         index += to_convert;
     }
@@ -273,7 +343,7 @@ public final class BufferedArrayInputStream extends DataInputStream {
             } else {
                 // first, copy the data we do have to 'a' .
                 useable = buffered_bytes / Constants.SIZEOF_CHAR;
-                conversion.byte2char(buffer, index, a, off, useable);
+                byte2char(a, off, useable);
 
                 len -= useable;
                 off += useable;
@@ -295,7 +365,7 @@ public final class BufferedArrayInputStream extends DataInputStream {
         }
 
         // enough data in the buffer
-        conversion.byte2char(buffer, index, a, off, len);
+        byte2char(a, off, len);
         buffered_bytes -= to_convert;
         index += to_convert;
     }
@@ -320,7 +390,7 @@ public final class BufferedArrayInputStream extends DataInputStream {
                 // first, copy the data we do have to 'a' .
                 useable = buffered_bytes / Constants.SIZEOF_INT;
 
-                conversion.byte2int(buffer, index, a, off, useable);
+                byte2int(a, off, useable);
 
                 len -= useable;
                 off += useable;
@@ -343,7 +413,7 @@ public final class BufferedArrayInputStream extends DataInputStream {
 
         // enough data in the buffer
 
-        conversion.byte2int(buffer, index, a, off, len);
+        byte2int(a, off, len);
         buffered_bytes -= to_convert;
         index += to_convert;
     }
@@ -367,7 +437,7 @@ public final class BufferedArrayInputStream extends DataInputStream {
             } else {
                 // first, copy the data we do have to 'a' .
                 useable = buffered_bytes / Constants.SIZEOF_LONG;
-                conversion.byte2long(buffer, index, a, off, useable);
+                byte2long(a, off, useable);
 
                 len -= useable;
                 off += useable;
@@ -389,7 +459,7 @@ public final class BufferedArrayInputStream extends DataInputStream {
         }
 
         // enough data in the buffer
-        conversion.byte2long(buffer, index, a, off, len);
+        byte2long(a, off, len);
         buffered_bytes -= to_convert;
         index += to_convert;
     }
@@ -413,7 +483,7 @@ public final class BufferedArrayInputStream extends DataInputStream {
             } else {
                 // first, copy the data we do have to 'a' .
                 useable = buffered_bytes / Constants.SIZEOF_FLOAT;
-                conversion.byte2float(buffer, index, a, off, useable);
+                byte2float(a, off, useable);
 
                 len -= useable;
                 off += useable;
@@ -435,7 +505,7 @@ public final class BufferedArrayInputStream extends DataInputStream {
         }
 
         // enough data in the buffer
-        conversion.byte2float(buffer, index, a, off, len);
+        byte2float(a, off, len);
         buffered_bytes -= to_convert;
         index += to_convert;
     }
@@ -459,7 +529,7 @@ public final class BufferedArrayInputStream extends DataInputStream {
             } else {
                 // first, copy the data we do have to 'a' .
                 useable = buffered_bytes / Constants.SIZEOF_DOUBLE;
-                conversion.byte2double(buffer, index, a, off, useable);
+                byte2double(a, off, useable);
 
                 len -= useable;
                 off += useable;
@@ -481,7 +551,7 @@ public final class BufferedArrayInputStream extends DataInputStream {
         }
 
         // enough data in the buffer
-        conversion.byte2double(buffer, index, a, off, len);
+        byte2double(a, off, len);
         buffered_bytes -= to_convert;
         index += to_convert;
     }
@@ -593,7 +663,11 @@ public final class BufferedArrayInputStream extends DataInputStream {
     }
 
     public void close() throws IOException {
-        in.close();
+        try {
+            in.close();
+        } finally {
+            conversion.close();
+        }
     }
     
     public int bufferSize() {
@@ -20,6 +20,7 @@ package ibis.io;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +37,12 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
 
     private static final boolean DEBUG = IOProperties.DEBUG;
 
+    /**
+     * Arrays chunks of at least this many bytes are converted with a bulk
+     * copy on a view of the buffer.
+     */
+    static final int BULK_THRESHOLD = 512;
+
     /** Size of the buffer in which output data is collected. */
     private final int BUF_SIZE;
 
@@ -54,6 +61,16 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     /** Object used for conversion of primitive types to bytes. */
     private Conversion conversion;
 
+    /**
+     * The buffer, wrapped so that large primitive arrays can be copied into
+     * it with a single bulk put on a typed view, instead of element by
+     * element.
+     */
+    private final ByteBuffer view;
+
+    /** Set when this stream is closed. */
+    private boolean closed = false;
+
     /**
      * Constructor.
      * @param out	the underlying <code>OutputStream</code>
@@ -64,6 +81,9 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         BUF_SIZE = bufSize;
         buffer = new byte[BUF_SIZE];
         conversion = Conversion.loadConversion(false);
+        view = ByteBuffer.wrap(buffer).order(
+                conversion.bigEndian() ? ByteOrder.BIG_ENDIAN
+                        : ByteOrder.LITTLE_ENDIAN);
     }
 
     /**
@@ -91,6 +111,10 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
      */
     private void flush(int incr) throws IOException {
 
+        if (closed) {
+            throw new IOException("closed");
+        }
+
         if (DEBUG && logger.isDebugEnabled()) {
             logger.debug("flush(" + incr + ") : " + " "
                     + (index + incr >= BUF_SIZE) + " " + (index) + ")");
@@ -104,6 +128,15 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         }
     }
 
+    /**
+     * Returns the view on the buffer, positioned at the current index.
+     */
+    private ByteBuffer view() {
+        view.limit(BUF_SIZE);
+        view.position(index);
+        return view;
+    }
+
     public void write(int b) throws IOException {
         writeByte((byte) b);
     }
@@ -191,6 +224,10 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
                     + "])");
         }
 
+        if (closed) {
+            throw new IOException("closed");
+        }
+
         if (len > (BUF_SIZE - index)) {
 
             if (index > 0) {
@@ -223,7 +260,11 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
 
             int size = Math.min((BUF_SIZE - index) / Constants.SIZEOF_CHAR, len);
 
-            conversion.char2byte(ref, off, size, buffer, index);
+            if (size * Constants.SIZEOF_CHAR >= BULK_THRESHOLD) {
+                view().asCharBuffer().put(ref, off, size);
+            } else {
+                conversion.char2byte(ref, off, size, buffer, index);
+            }
 
             off += size;
             len -= size;
@@ -244,7 +285,11 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
 
             int size = Math.min((BUF_SIZE - index) / Constants.SIZEOF_SHORT, len);
 
-            conversion.short2byte(ref, off, size, buffer, index);
+            if (size * Constants.SIZEOF_SHORT >= BULK_THRESHOLD) {
+                view().asShortBuffer().put(ref, off, size);
+            } else {
+                conversion.short2byte(ref, off, size, buffer, index);
+            }
 
             off += size;
             len -= size;
@@ -265,7 +310,11 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
 
             int size = Math.min((BUF_SIZE - index) / Constants.SIZEOF_INT, len);
 
-            conversion.int2byte(ref, off, size, buffer, index);
+            if (size * Constants.SIZEOF_INT >= BULK_THRESHOLD) {
+                view().asIntBuffer().put(ref, off, size);
+            } else {
+                conversion.int2byte(ref, off, size, buffer, index);
+            }
 
             off += size;
             len -= size;
@@ -286,7 +335,11 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
 
             int size = Math.min((BUF_SIZE - index) / Constants.SIZEOF_LONG, len);
 
-            conversion.long2byte(ref, off, size, buffer, index);
+            if (size * Constants.SIZEOF_LONG >= BULK_THRESHOLD) {
+                view().asLongBuffer().put(ref, off, size);
+            } else {
+                conversion.long2byte(ref, off, size, buffer, index);
+            }
 
             off += size;
             len -= size;
@@ -306,7 +359,11 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
 
             int size = Math.min((BUF_SIZE - index) / Constants.SIZEOF_FLOAT, len);
 
-            conversion.float2byte(ref, off, size, buffer, index);
+            if (size * Constants.SIZEOF_FLOAT >= BULK_THRESHOLD) {
+                view().asFloatBuffer().put(ref, off, size);
+            } else {
+                conversion.float2byte(ref, off, size, buffer, index);
+            }
 
             off += size;
             len -= size;
@@ -327,7 +384,11 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
 
             int size = Math.min((BUF_SIZE - index) / Constants.SIZEOF_DOUBLE, len);
 
-            conversion.double2byte(ref, off, size, buffer, index);
+            if (size * Constants.SIZEOF_DOUBLE >= BULK_THRESHOLD) {
+                view().asDoubleBuffer().put(ref, off, size);
+            } else {
+                conversion.double2byte(ref, off, size, buffer, index);
+            }
 
             off += size;
             len -= size;
@@ -350,8 +411,16 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
     }
 
     public void close() throws IOException {
-        flush();
-        out.close();
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+            out.close();
+        } finally {
+            closed = true;
+            conversion.close();
+        }
     }
     
     public int bufferSize() {
@@ -365,7 +434,11 @@ public final class BufferedArrayOutputStream extends DataOutputStream {
         if (DEBUG && logger.isDebugEnabled()) {
             logger.debug("BufferedArrayOutputStream: writing ByteBuffer of size " + len);
         }
-	
+
+        if (closed) {
+            throw new IOException("closed");
+        }
+
         if (len > (BUF_SIZE - index)) {
 
             if (index > 0) {
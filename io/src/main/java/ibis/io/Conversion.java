@@ -185,6 +185,14 @@ public abstract class Conversion {
      */
     public abstract boolean bigEndian();
 
+    /**
+     * Releases the buffers held by this conversion, if any. Called by a
+     * stream when it is closed. The conversion may still be used afterwards.
+     */
+    public void close() {
+        // nothing to release
+    }
+
     public abstract byte boolean2byte(boolean src);
 
     public abstract boolean byte2boolean(byte src);
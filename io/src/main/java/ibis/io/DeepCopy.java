@@ -21,15 +21,23 @@ import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.Hashtable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * Exports a single static method that creates a deep copy of any
  * serializable object.
  */
 public class DeepCopy {
 
+    private static final Logger logger = LoggerFactory.getLogger(DeepCopy.class);
+
     private static final String serialization
             = IOProperties.properties.getProperty(IOProperties.s_deepcopy_ser, "ibis");
 
+    private static final boolean direct
+            = IOProperties.properties.getBooleanProperty(IOProperties.s_deepcopy_direct, true);
+
     /** Prevent creation of a DeepCopy object. */
     private DeepCopy() {
         // Nothing. Not to be called.
@@ -1453,6 +1461,24 @@ public class DeepCopy {
      * @return the copy.
      */
     public static Serializable deepCopy(Serializable o) {
+        if (direct) {
+            try {
+                return (Serializable) new GraphCopier().copy(o);
+            } catch (GraphCopier.Unsupported e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("cannot copy directly, using serialization: "
+                            + e.getMessage());
+                }
+            }
+        }
+        return serializationCopy(o);
+    }
+
+    /**
+     * Creates a deep copy by writing the object to a serialization stream in
+     * a separate thread, and reading it back.
+     */
+    private static Serializable serializationCopy(Serializable o) {
         Store store = new Store();
         StoreArrayInputStream input = new StoreArrayInputStream(store);
         StoreArrayOutputStream output = new StoreArrayOutputStream(store);
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.io;
+
+import java.io.IOException;
+
+/**
+ * Writes and reads the serializable fields of one class of a class that was
+ * not rewritten by IOGenerator. Subclasses are generated at runtime by
+ * {@link FieldSerializerGenerator}, and access the fields directly instead
+ * of through reflection. The data written is the same as written by the
+ * reflection-based code in {@link IbisSerializationOutputStream}, so the
+ * other side does not need to have a generated serializer.
+ * <p>
+ * This class is public only because the generated subclasses live in the
+ * package of the class they serialize. It is not meant to be used by
+ * applications.
+ */
+public abstract class FieldSerializer {
+
+    /** Type information of the class serialized. */
+    AlternativeTypeInfo type;
+
+    protected FieldSerializer() {
+        // nothing
+    }
+
+    /**
+     * Writes the serializable fields declared by the class.
+     *
+     * @param out
+     *            the stream to write to
+     * @param ref
+     *            the object of which the fields are to be written
+     * @exception IOException
+     *                when an IO error occurs
+     */
+    public abstract void writeFields(IbisSerializationOutputStream out,
+            Object ref) throws IOException;
+
+    /**
+     * Reads the serializable fields declared by the class.
+     *
+     * @param in
+     *            the stream to read from
+     * @param ref
+     *            the object of which the fields are to be read
+     * @exception IOException
+     *                when an IO error occurs
+     * @exception ClassNotFoundException
+     *                when readObject throws it.
+     */
+    public abstract void readFields(IbisSerializationInputStream in,
+            Object ref) throws IOException, ClassNotFoundException;
+
+    protected final void writeObject(IbisSerializationOutputStream out,
+            Object o) throws IOException {
+        out.doWriteObject(o);
+    }
+
+    protected final Object readObject(IbisSerializationInputStream in)
+            throws IOException, ClassNotFoundException {
+        return in.doReadObject(false);
+    }
+
+    // Final fields cannot be assigned by the generated code, the bytecode
+    // verifier only allows that in a constructor. They are passed by their
+    // index in the serializable fields.
+
+    protected final void readFinalDouble(IbisSerializationInputStream in,
+            Object ref, int index) throws IOException {
+        double d = in.readDouble();
+        type.slots[index].setDouble(ref, d);
+    }
+
+    protected final void readFinalLong(IbisSerializationInputStream in,
+            Object ref, int index) throws IOException {
+        long d = in.readLong();
+        type.slots[index].setLong(ref, d);
+    }
+
+    protected final void readFinalFloat(IbisSerializationInputStream in,
+            Object ref, int index) throws IOException {
+        float d = in.readFloat();
+        type.slots[index].setFloat(ref, d);
+    }
+
+    protected final void readFinalInt(IbisSerializationInputStream in,
+            Object ref, int index) throws IOException {
+        int d = in.readInt();
+        type.slots[index].setInt(ref, d);
+    }
+
+    protected final void readFinalShort(IbisSerializationInputStream in,
+            Object ref, int index) throws IOException {
+        short d = in.readShort();
+        type.slots[index].setShort(ref, d);
+    }
+
+    protected final void readFinalChar(IbisSerializationInputStream in,
+            Object ref, int index) throws IOException {
+        char d = in.readChar();
+        type.slots[index].setChar(ref, d);
+    }
+
+    protected final void readFinalByte(IbisSerializationInputStream in,
+            Object ref, int index) throws IOException {
+        byte d = in.readByte();
+        type.slots[index].setByte(ref, d);
+    }
+
+    protected final void readFinalBoolean(IbisSerializationInputStream in,
+            Object ref, int index) throws IOException {
+        boolean d = in.readBoolean();
+        type.slots[index].setBoolean(ref, d);
+    }
+
+    protected final void readFinalObject(IbisSerializationInputStream in,
+            Object ref, int index) throws IOException,
+            ClassNotFoundException {
+        Object d = in.doReadObject(false);
+        type.slots[index].setObject(ref, d);
+    }
+}
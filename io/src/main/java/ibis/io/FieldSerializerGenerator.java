@@ -0,0 +1,216 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.io;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates a {@link FieldSerializer} for a class that was not rewritten, at
+ * the moment its {@link AlternativeTypeInfo} is created. The serializer is
+ * defined as a hidden nestmate of the class, so it can access private fields
+ * directly. Only the fields of the class itself are handled, superclasses
+ * and <code>writeObject</code>/<code>readObject</code> methods are dealt
+ * with as before.
+ */
+final class FieldSerializerGenerator implements Opcodes {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(FieldSerializerGenerator.class);
+
+    private static final String SERIALIZER = Type
+            .getInternalName(FieldSerializer.class);
+
+    private static final String OUTPUT = Type
+            .getInternalName(IbisSerializationOutputStream.class);
+
+    private static final String INPUT = Type
+            .getInternalName(IbisSerializationInputStream.class);
+
+    private static final String OUTPUT_DESC = "L" + OUTPUT + ";";
+
+    private static final String INPUT_DESC = "L" + INPUT + ";";
+
+    private FieldSerializerGenerator() {
+        // not instantiated
+    }
+
+    /**
+     * Generates a serializer for the given type, or returns <code>null</code>
+     * when that is not possible.
+     */
+    static FieldSerializer generate(AlternativeTypeInfo t) {
+        Class<?> clazz = t.clazz;
+
+        if (t.serializable_fields == null
+                || t.serial_persistent_fields != null) {
+            return null;
+        }
+        for (Field f : t.serializable_fields) {
+            if (f == null) {
+                return null;
+            }
+        }
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(clazz,
+                    MethodHandles.lookup());
+            byte[] code = generateClass(t);
+            MethodHandles.Lookup hidden = lookup.defineHiddenClass(code, true,
+                    MethodHandles.Lookup.ClassOption.NESTMATE);
+            FieldSerializer result = (FieldSerializer) hidden.findConstructor(
+                    hidden.lookupClass(), MethodType.methodType(Void.TYPE))
+                    .invoke();
+            result.type = t;
+            if (logger.isDebugEnabled()) {
+                logger.debug("generated field serializer for "
+                        + clazz.getName());
+            }
+            return result;
+        } catch (Throwable e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("could not generate field serializer for "
+                        + clazz.getName(), e);
+            }
+            return null;
+        }
+    }
+
+    private static byte[] generateClass(AlternativeTypeInfo t) {
+        String owner = Type.getInternalName(t.clazz);
+        String name = owner + "$IbisFieldSerializer";
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V11, ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, name, null,
+                SERIALIZER, null);
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null,
+                null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, SERIALIZER, "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        generateWriteFields(cw, t, owner);
+        generateReadFields(cw, t, owner);
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * Returns the name of the read or write method for the given type, minus
+     * the "read" or "write" prefix.
+     */
+    private static String typeName(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return "Object";
+        }
+        String s = type.getName();
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
+    private static void generateWriteFields(ClassWriter cw,
+            AlternativeTypeInfo t, String owner) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "writeFields", "("
+                + OUTPUT_DESC + "Ljava/lang/Object;)V", null,
+                new String[] { "java/io/IOException" });
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitTypeInsn(CHECKCAST, owner);
+        mv.visitVarInsn(ASTORE, 3);
+
+        for (Field f : t.serializable_fields) {
+            Class<?> type = f.getType();
+            String desc = Type.getDescriptor(type);
+            if (type.isPrimitive()) {
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitVarInsn(ALOAD, 3);
+                mv.visitFieldInsn(GETFIELD, owner, f.getName(), desc);
+                mv.visitMethodInsn(INVOKEVIRTUAL, OUTPUT, "write"
+                        + typeName(type), "(" + desc + ")V", false);
+            } else {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitVarInsn(ALOAD, 3);
+                mv.visitFieldInsn(GETFIELD, owner, f.getName(), desc);
+                mv.visitMethodInsn(INVOKEVIRTUAL, SERIALIZER, "writeObject",
+                        "(" + OUTPUT_DESC + "Ljava/lang/Object;)V", false);
+            }
+        }
+
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void generateReadFields(ClassWriter cw,
+            AlternativeTypeInfo t, String owner) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "readFields", "("
+                + INPUT_DESC + "Ljava/lang/Object;)V", null, new String[] {
+                "java/io/IOException", "java/lang/ClassNotFoundException" });
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitTypeInsn(CHECKCAST, owner);
+        mv.visitVarInsn(ASTORE, 3);
+
+        for (int i = 0; i < t.serializable_fields.length; i++) {
+            Field f = t.serializable_fields[i];
+            Class<?> type = f.getType();
+            String desc = Type.getDescriptor(type);
+
+            if (t.fields_final[i]) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitVarInsn(ALOAD, 2);
+                mv.visitLdcInsn(Integer.valueOf(i));
+                mv.visitMethodInsn(INVOKEVIRTUAL, SERIALIZER, "readFinal"
+                        + typeName(type), "(" + INPUT_DESC
+                        + "Ljava/lang/Object;I)V", false);
+            } else if (type.isPrimitive()) {
+                mv.visitVarInsn(ALOAD, 3);
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitMethodInsn(INVOKEVIRTUAL, INPUT, "read"
+                        + typeName(type), "()" + desc, false);
+                mv.visitFieldInsn(PUTFIELD, owner, f.getName(), desc);
+            } else {
+                mv.visitVarInsn(ALOAD, 3);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitMethodInsn(INVOKEVIRTUAL, SERIALIZER, "readObject",
+                        "(" + INPUT_DESC + ")Ljava/lang/Object;", false);
+                if (type != Object.class) {
+                    mv.visitTypeInsn(CHECKCAST, Type.getInternalName(type));
+                }
+                mv.visitFieldInsn(PUTFIELD, owner, f.getName(), desc);
+            }
+        }
+
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+}
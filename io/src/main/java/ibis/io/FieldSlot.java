@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.io;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+
+/**
+ * A serializable field of a class, resolved once. It holds the offset of the
+ * field among the serializable fields of the same type, as used by the
+ * <code>GetField</code> and <code>PutField</code> implementations, and
+ * assigns the field, also when it is final.
+ */
+final class FieldSlot {
+
+    /** Type info of the class declaring the field. */
+    final AlternativeTypeInfo type;
+
+    /** Name of the field. */
+    final String name;
+
+    /** Type of the field. */
+    final Class<?> fieldType;
+
+    /** Signature of the field, for reference fields. */
+    final String fieldsig;
+
+    /** Offset among the serializable fields of the same type. */
+    final int offset;
+
+    /** Setter of the field, or <code>null</code>. */
+    private final MethodHandle setter;
+
+    FieldSlot(AlternativeTypeInfo type, String name, Class<?> fieldType,
+            int offset, MethodHandle setter) {
+        this.type = type;
+        this.name = name;
+        this.fieldType = fieldType;
+        this.offset = offset;
+        this.setter = setter;
+
+        if (fieldType.isPrimitive()) {
+            fieldsig = null;
+        } else if (fieldType.isArray()) {
+            fieldsig = fieldType.getName().replace('.', '/');
+        } else {
+            fieldsig = "L" + fieldType.getName().replace('.', '/') + ";";
+        }
+    }
+
+    /**
+     * Returns whether this field matches the given type, where all reference
+     * types match each other.
+     */
+    boolean hasType(Class<?> tp) {
+        if (tp.isPrimitive()) {
+            return fieldType == tp;
+        }
+        return !fieldType.isPrimitive();
+    }
+
+    private IOException fail(Throwable e) {
+        return new IbisIOException("got exception", e);
+    }
+
+    void setDouble(Object ref, double d) throws IOException {
+        if (setter == null) {
+            type.getJavaDependantStuff().setFieldDouble(ref, name, d);
+            return;
+        }
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable e) {
+            throw fail(e);
+        }
+    }
+
+    void setLong(Object ref, long d) throws IOException {
+        if (setter == null) {
+            type.getJavaDependantStuff().setFieldLong(ref, name, d);
+            return;
+        }
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable e) {
+            throw fail(e);
+        }
+    }
+
+    void setFloat(Object ref, float d) throws IOException {
+        if (setter == null) {
+            type.getJavaDependantStuff().setFieldFloat(ref, name, d);
+            return;
+        }
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable e) {
+            throw fail(e);
+        }
+    }
+
+    void setInt(Object ref, int d) throws IOException {
+        if (setter == null) {
+            type.getJavaDependantStuff().setFieldInt(ref, name, d);
+            return;
+        }
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable e) {
+            throw fail(e);
+        }
+    }
+
+    void setShort(Object ref, short d) throws IOException {
+        if (setter == null) {
+            type.getJavaDependantStuff().setFieldShort(ref, name, d);
+            return;
+        }
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable e) {
+            throw fail(e);
+        }
+    }
+
+    void setChar(Object ref, char d) throws IOException {
+        if (setter == null) {
+            type.getJavaDependantStuff().setFieldChar(ref, name, d);
+            return;
+        }
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable e) {
+            throw fail(e);
+        }
+    }
+
+    void setByte(Object ref, byte d) throws IOException {
+        if (setter == null) {
+            type.getJavaDependantStuff().setFieldByte(ref, name, d);
+            return;
+        }
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable e) {
+            throw fail(e);
+        }
+    }
+
+    void setBoolean(Object ref, boolean d) throws IOException {
+        if (setter == null) {
+            type.getJavaDependantStuff().setFieldBoolean(ref, name, d);
+            return;
+        }
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable e) {
+            throw fail(e);
+        }
+    }
+
+    void setObject(Object ref, Object d) throws IOException {
+        if (setter == null) {
+            type.getJavaDependantStuff().setFieldObject(ref, name, d,
+                    fieldsig);
+            return;
+        }
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable e) {
+            throw fail(e);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.io;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Copies an object graph directly, in the calling thread, without going
+ * through a serialization stream. The graph is walked once, and an identity
+ * map keeps track of the objects that were already copied, so sharing and
+ * cycles are preserved. Field metadata comes from {@link AlternativeTypeInfo},
+ * so exactly the fields that serialization would write are copied. Transient
+ * fields get their default value.
+ * <p>
+ * Objects of which the serialized form is not just their fields (classes with
+ * <code>writeObject</code>, <code>readObject</code>, <code>writeReplace</code>
+ * or <code>readResolve</code> methods, <code>serialPersistentFields</code>,
+ * externalizable classes) and objects that are not serializable are not
+ * copied; {@link #copy(Object)} throws {@link Unsupported} for these, and the
+ * caller should fall back to serialization.
+ */
+final class GraphCopier {
+
+    /**
+     * Thrown when the graph contains an object that cannot be copied
+     * directly.
+     */
+    static final class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /** Maps originals to their copies. */
+    private final IdentityHashMap<Object, Object> copies =
+            new IdentityHashMap<Object, Object>();
+
+    /** Originals of which the contents still have to be copied. */
+    private final ArrayList<Object> todo = new ArrayList<Object>();
+
+    /** Type info per class, <code>null</code> for unsupported classes. */
+    private final HashMap<Class<?>, AlternativeTypeInfo> types =
+            new HashMap<Class<?>, AlternativeTypeInfo>();
+
+    /**
+     * Returns a deep copy of the given object.
+     */
+    Object copy(Object o) throws Unsupported {
+        Object result = lookup(o);
+
+        while (!todo.isEmpty()) {
+            Object original = todo.remove(todo.size() - 1);
+            Object copy = copies.get(original);
+
+            if (original instanceof Object[]) {
+                Object[] src = (Object[]) original;
+                Object[] dst = (Object[]) copy;
+                for (int i = 0; i < src.length; i++) {
+                    dst[i] = lookup(src[i]);
+                }
+            } else {
+                copyFields(types.get(original.getClass()), original, copy);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the copy of the given object, creating it if needed. The
+     * contents of a new copy are filled in later.
+     */
+    private Object lookup(Object o) throws Unsupported {
+        if (o == null || isImmutable(o)) {
+            return o;
+        }
+
+        Object result = copies.get(o);
+        if (result != null) {
+            return result;
+        }
+
+        Class<?> clazz = o.getClass();
+
+        if (clazz.isArray()) {
+            if (clazz.getComponentType().isPrimitive()) {
+                result = clonePrimitiveArray(o);
+            } else {
+                result = Array.newInstance(clazz.getComponentType(),
+                        Array.getLength(o));
+                todo.add(o);
+            }
+        } else {
+            AlternativeTypeInfo t = getType(clazz);
+            result = t.newInstance();
+            if (result == null) {
+                throw new Unsupported("cannot create instance of "
+                        + clazz.getName());
+            }
+            todo.add(o);
+        }
+
+        copies.put(o, result);
+        return result;
+    }
+
+    /**
+     * Objects that serialization would create anew, but which cannot be told
+     * apart from their copy, are shared.
+     */
+    private static boolean isImmutable(Object o) {
+        return o instanceof String || o instanceof Integer
+                || o instanceof Long || o instanceof Double
+                || o instanceof Float || o instanceof Short
+                || o instanceof Character || o instanceof Byte
+                || o instanceof Boolean || o instanceof Class
+                || o instanceof Enum;
+    }
+
+    private static Object clonePrimitiveArray(Object o) {
+        if (o instanceof byte[]) {
+            return ((byte[]) o).clone();
+        } else if (o instanceof int[]) {
+            return ((int[]) o).clone();
+        } else if (o instanceof double[]) {
+            return ((double[]) o).clone();
+        } else if (o instanceof long[]) {
+            return ((long[]) o).clone();
+        } else if (o instanceof char[]) {
+            return ((char[]) o).clone();
+        } else if (o instanceof float[]) {
+            return ((float[]) o).clone();
+        } else if (o instanceof short[]) {
+            return ((short[]) o).clone();
+        }
+        return ((boolean[]) o).clone();
+    }
+
+    private AlternativeTypeInfo getType(Class<?> clazz) throws Unsupported {
+        AlternativeTypeInfo result = types.get(clazz);
+
+        if (result == null) {
+            if (types.containsKey(clazz)) {
+                throw new Unsupported("cannot copy " + clazz.getName());
+            }
+            result = AlternativeTypeInfo.getAlternativeTypeInfo(clazz);
+            if (!isSupported(result)) {
+                types.put(clazz, null);
+                throw new Unsupported("cannot copy " + clazz.getName());
+            }
+            types.put(clazz, result);
+        }
+        return result;
+    }
+
+    private static boolean isSupported(AlternativeTypeInfo t) {
+        if (!t.isSerializable || t.isExternalizable) {
+            return false;
+        }
+        while (t != null) {
+            if (t.hasWriteObject || t.hasReadObject || t.hasReplace
+                    || t.hasReadResolve() || t.serial_persistent_fields != null) {
+                return false;
+            }
+            t = t.superSerializable ? t.alternativeSuperInfo : null;
+        }
+        return true;
+    }
+
+    private void copyFields(AlternativeTypeInfo t, Object src, Object dst)
+            throws Unsupported {
+        if (t.superSerializable) {
+            copyFields(t.alternativeSuperInfo, src, dst);
+        }
+
+        if (t.serializable_fields == null) {
+            return;
+        }
+
+        try {
+            for (int i = 0; i < t.serializable_fields.length; i++) {
+                copyField(t, i, src, dst);
+            }
+        } catch (IllegalAccessException e) {
+            throw new Unsupported("cannot copy fields of "
+                    + t.clazz.getName() + ": " + e);
+        } catch (IOException e) {
+            throw new Unsupported("cannot copy fields of "
+                    + t.clazz.getName() + ": " + e);
+        }
+    }
+
+    private void copyField(AlternativeTypeInfo t, int i, Object src,
+            Object dst) throws Unsupported, IllegalAccessException,
+            IOException {
+        Field f = t.serializable_fields[i];
+        Class<?> type = f.getType();
+        boolean isFinal = t.fields_final[i];
+        FieldSlot slot = t.slots[i];
+
+        if (type == Double.TYPE) {
+            if (isFinal) {
+                slot.setDouble(dst, f.getDouble(src));
+            } else {
+                f.setDouble(dst, f.getDouble(src));
+            }
+        } else if (type == Long.TYPE) {
+            if (isFinal) {
+                slot.setLong(dst, f.getLong(src));
+            } else {
+                f.setLong(dst, f.getLong(src));
+            }
+        } else if (type == Float.TYPE) {
+            if (isFinal) {
+                slot.setFloat(dst, f.getFloat(src));
+            } else {
+                f.setFloat(dst, f.getFloat(src));
+            }
+        } else if (type == Integer.TYPE) {
+            if (isFinal) {
+                slot.setInt(dst, f.getInt(src));
+            } else {
+                f.setInt(dst, f.getInt(src));
+            }
+        } else if (type == Short.TYPE) {
+            if (isFinal) {
+                slot.setShort(dst, f.getShort(src));
+            } else {
+                f.setShort(dst, f.getShort(src));
+            }
+        } else if (type == Character.TYPE) {
+            if (isFinal) {
+                slot.setChar(dst, f.getChar(src));
+            } else {
+                f.setChar(dst, f.getChar(src));
+            }
+        } else if (type == Byte.TYPE) {
+            if (isFinal) {
+                slot.setByte(dst, f.getByte(src));
+            } else {
+                f.setByte(dst, f.getByte(src));
+            }
+        } else if (type == Boolean.TYPE) {
+            if (isFinal) {
+                slot.setBoolean(dst, f.getBoolean(src));
+            } else {
+                f.setBoolean(dst, f.getBoolean(src));
+            }
+        } else {
+            Object copy = lookup(f.get(src));
+            if (isFinal) {
+                slot.setObject(dst, copy);
+            } else {
+                f.set(dst, copy);
+            }
+        }
+    }
+}
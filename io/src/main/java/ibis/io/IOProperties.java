@@ -85,6 +85,15 @@ public final class IOProperties {
 
     static final String s_deepcopy_ser = PREFIX + "deepcopy.serialization";
 
+    static final String s_deepcopy_direct = PREFIX + "deepcopy.direct";
+
+    static final String s_generate = PREFIX + "serialization.generate";
+
+    static final String s_pool_limit = PREFIX + "buffer.pool.limit";
+
+    static final String s_pool_leak_detection = PREFIX
+            + "buffer.pool.leakdetection";
+
     private static final String[][] propertiesList = new String[][] {
             { PROPERTIES_FILE, PROPERTIES_FILENAME,
                     "String: determines the file name of the Ibis IO properties "
@@ -135,7 +144,20 @@ public final class IOProperties {
             { s_serialization_default, "ibis",
                     "String: either \"ibis\" or \"sun\", determines the default object serialization" },
             { s_deepcopy_ser, "ibis",
-                    "String: determines the serialization used for DeepCopy" } };
+                    "String: determines the serialization used for DeepCopy" },
+            { s_deepcopy_direct, "true",
+                    "Boolean: if true, DeepCopy copies object graphs directly, "
+                            + "and only uses serialization for objects with "
+                            + "custom serialization" },
+            { s_generate, "true",
+                    "Boolean: if true, field serializers are generated at "
+                            + "runtime for classes that were not rewritten" },
+            { s_pool_limit, "64M",
+                    "Size: maximum amount of off-heap memory allocated by the "
+                            + "buffer pool, and of idle buffers it keeps" },
+            { s_pool_leak_detection, "false",
+                    "Boolean: if true, the buffer pool reports direct buffers "
+                            + "that are not released" } };
 
     static {
         properties = new TypedProperties(getDefaultProperties());
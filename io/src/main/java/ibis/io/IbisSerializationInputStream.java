@@ -1236,10 +1236,14 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
             logger.debug("alternativeDefaultReadObject, class = "
                     + t.clazz.getName());
         }
+        if (t.fieldSerializer != null) {
+            t.fieldSerializer.readFields(this, ref);
+            return;
+        }
         for (int i = 0; i < t.double_count; i++) {
             Field f = t.serializable_fields[temp];
             if (t.fields_final[temp]) {
-                readFieldDouble(ref, f.getName(), t.clazz.getName());
+                t.slots[temp].setDouble(ref, readDouble());
             } else {
                 double d = readDouble();
                 if (f != null) {
@@ -1251,7 +1255,7 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
         for (int i = 0; i < t.long_count; i++) {
             Field f = t.serializable_fields[temp];
             if (t.fields_final[temp]) {
-                readFieldLong(ref, f.getName(), t.clazz.getName());
+                t.slots[temp].setLong(ref, readLong());
             } else {
                 long d = readLong();
                 if (f != null) {
@@ -1263,7 +1267,7 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
         for (int i = 0; i < t.float_count; i++) {
             Field f = t.serializable_fields[temp];
             if (t.fields_final[temp]) {
-                readFieldFloat(ref, f.getName(), t.clazz.getName());
+                t.slots[temp].setFloat(ref, readFloat());
             } else {
                 float d = readFloat();
                 if (f != null) {
@@ -1275,7 +1279,7 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
         for (int i = 0; i < t.int_count; i++) {
             Field f = t.serializable_fields[temp];
             if (t.fields_final[temp]) {
-                readFieldInt(ref, f.getName(), t.clazz.getName());
+                t.slots[temp].setInt(ref, readInt());
             } else {
                 int d = readInt();
                 if (f != null) {
@@ -1287,7 +1291,7 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
         for (int i = 0; i < t.short_count; i++) {
             Field f = t.serializable_fields[temp];
             if (t.fields_final[temp]) {
-                readFieldShort(ref, f.getName(), t.clazz.getName());
+                t.slots[temp].setShort(ref, readShort());
             } else {
                 short s = readShort();
                 if (f != null) {
@@ -1299,7 +1303,7 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
         for (int i = 0; i < t.char_count; i++) {
             Field f = t.serializable_fields[temp];
             if (t.fields_final[temp]) {
-                readFieldChar(ref, f.getName(), t.clazz.getName());
+                t.slots[temp].setChar(ref, readChar());
             } else {
                 char c = readChar();
                 if (f != null) {
@@ -1311,7 +1315,7 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
         for (int i = 0; i < t.byte_count; i++) {
             Field f = t.serializable_fields[temp];
             if (t.fields_final[temp]) {
-                readFieldByte(ref, f.getName(), t.clazz.getName());
+                t.slots[temp].setByte(ref, readByte());
             } else {
                 byte b = readByte();
                 if (f != null) {
@@ -1323,7 +1327,7 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
         for (int i = 0; i < t.boolean_count; i++) {
             Field f = t.serializable_fields[temp];
             if (t.fields_final[temp]) {
-                readFieldBoolean(ref, f.getName(), t.clazz.getName());
+                t.slots[temp].setBoolean(ref, readBoolean());
             } else {
                 boolean b = readBoolean();
                 if (f != null) {
@@ -1335,19 +1339,7 @@ public class IbisSerializationInputStream extends DataSerializationInputStream {
         for (int i = 0; i < t.reference_count; i++) {
             Field f = t.serializable_fields[temp];
             if (t.fields_final[temp]) {
-                String fieldname = f.getName();
-                String fieldtype = f.getType().getName();
-
-                if (fieldtype.startsWith("[")) {
-                    // do nothing
-                } else {
-                    fieldtype = "L" + fieldtype.replace('.', '/') + ";";
-                }
-
-                // logger.debug("fieldname = " + fieldname);
-                // logger.debug("signature = " + fieldtype);
-
-                readFieldObject(ref, fieldname, t.clazz.getName(), fieldtype);
+                t.slots[temp].setObject(ref, doReadObject(false));
             } else {
                 Object o = doReadObject(false);
                 if (f != null) {
@@ -103,7 +103,7 @@ public class IbisSerializationOutputStream
     int next_handle;
 
     /** Hash table for keeping references to objects already written. */
-    private HandleHash references = new HandleHash(2048);
+    private IdentityHandleMap references = new IdentityHandleMap(2048);
 
     // private IbisHash references = new IbisHash(2048);
 
@@ -117,7 +117,7 @@ public class IbisSerializationOutputStream
     private int next_type;
 
     /** Hashtable for types already put on the stream. */
-    private IbisHash types = new IbisHash();
+    private IdentityHandleMap types = new IdentityHandleMap();
 
     /**
      * There is a notion of a "current" object. This is needed when a
@@ -882,6 +882,10 @@ public class IbisSerializationOutputStream
             logger.debug("alternativeDefaultWriteObject, class = "
                     + t.clazz.getName());
         }
+        if (t.fieldSerializer != null) {
+            t.fieldSerializer.writeFields(this, ref);
+            return;
+        }
         for (i = 0; i < t.double_count; i++) {
             writeDouble(t.serializable_fields[temp++].getDouble(ref));
         }
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.io;
+
+import ibis.util.Timer;
+
+import java.util.Arrays;
+
+/**
+ * A hash table for (object, handle) pairs, with the same interface as
+ * {@link HandleHash}. Objects are compared by identity. It uses open
+ * addressing with linear probing in parallel arrays, so inserting does not
+ * allocate, unless the table has to grow.
+ * <p>
+ * Each slot is stamped with the generation in which it was filled, and only
+ * slots stamped with the current generation are in use. {@link #clear()}
+ * starts a new generation, so it does not have to sweep the stamps, and it
+ * releases the objects of the old generation through the list of slots that
+ * were filled. It takes time proportional to the number of entries, not to
+ * the size of the table, which keeps its size over a clear.
+ */
+public final class IdentityHandleMap {
+
+    private static final boolean STATS = IOProperties.properties.getBooleanProperty(
+            IOProperties.s_hash_stats);
+
+    private static final boolean TIMINGS = IOProperties.properties.getBooleanProperty(
+            IOProperties.s_hash_timings);
+
+    private static final int MIN_SLOTS = 32;
+
+    /** Keys, indexed by slot. */
+    private Object[] keys;
+
+    /** Handles, indexed by slot. */
+    private int[] handles;
+
+    /** Generation in which each slot was filled. */
+    private int[] stamps;
+
+    /** Slots filled in the current generation, <code>present</code> of them. */
+    private int[] used;
+
+    /** The current generation. Never 0, which is the stamp of a new slot. */
+    private int generation = 1;
+
+    /** Number of entries in the current generation. */
+    private int present = 0;
+
+    /** Grow when <code>present</code> reaches this. */
+    private int sizeThreshold;
+
+    // if (STATS)
+    private long finds;
+
+    private long probes;
+
+    private long rebuilds;
+
+    private long clears;
+
+    private int maxsize;
+
+    // if (TIMINGS)
+    private Timer t_insert;
+
+    private Timer t_find;
+
+    private Timer t_rebuild;
+
+    public IdentityHandleMap() {
+        this(MIN_SLOTS);
+    }
+
+    /**
+     * Creates a table with room for about <code>sz</code> entries before it
+     * has to grow.
+     *
+     * @param sz
+     *            the expected number of entries.
+     */
+    public IdentityHandleMap(int sz) {
+        int x = MIN_SLOTS;
+        while (x < 2 * sz) {
+            x <<= 1;
+        }
+
+        init(x);
+        maxsize = x;
+
+        if (TIMINGS) {
+            t_insert = Timer.createTimer();
+            t_find = Timer.createTimer();
+            t_rebuild = Timer.createTimer();
+        }
+        if (STATS || TIMINGS) {
+            Runtime.getRuntime().addShutdownHook(
+                    new Thread("IdentityHandleMap ShutdownHook") {
+                        public void run() {
+                            statistics();
+                        }
+                    });
+        }
+    }
+
+    private void init(int sz) {
+        keys = new Object[sz];
+        handles = new int[sz];
+        stamps = new int[sz];
+        // keep the fill factor at most one half, so probe sequences are short
+        sizeThreshold = sz >>> 1;
+        used = new int[sizeThreshold];
+    }
+
+    public final int find(Object ref) {
+        return find(ref, HandleHash.getHashCode(ref));
+    }
+
+    /**
+     * Returns the handle of the given object.
+     *
+     * @param ref
+     *            the object
+     * @param hashcode
+     *            its hashcode, as computed by
+     *            {@link HandleHash#getHashCode(Object)}.
+     * @return the handle, or 0 if the object is not present.
+     */
+    public final int find(Object ref, int hashcode) {
+        if (TIMINGS) {
+            t_find.start();
+        }
+        if (STATS) {
+            finds++;
+        }
+
+        int mask = keys.length - 1;
+        int result = 0;
+        for (int i = hashcode & mask; stamps[i] == generation; i = (i + 1)
+                & mask) {
+            if (STATS) {
+                probes++;
+            }
+            if (keys[i] == ref) {
+                result = handles[i];
+                break;
+            }
+        }
+
+        if (TIMINGS) {
+            t_find.stop();
+        }
+        return result;
+    }
+
+    /**
+     * Doubles the table, and re-inserts the entries of the current generation.
+     */
+    private void grow() {
+        if (TIMINGS) {
+            t_rebuild.start();
+        }
+
+        Object[] oldKeys = keys;
+        int[] oldHandles = handles;
+        int[] oldUsed = used;
+
+        init(oldKeys.length << 1);
+        generation = 1;
+        int mask = keys.length - 1;
+
+        for (int k = 0; k < present; k++) {
+            int j = oldUsed[k];
+            int i = HandleHash.getHashCode(oldKeys[j]) & mask;
+            while (stamps[i] == generation) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            handles[i] = oldHandles[j];
+            stamps[i] = generation;
+            used[k] = i;
+        }
+
+        if (STATS) {
+            rebuilds++;
+            if (keys.length > maxsize) {
+                maxsize = keys.length;
+            }
+        }
+        if (TIMINGS) {
+            t_rebuild.stop();
+        }
+    }
+
+    /**
+     * Insert (ref, handle) into the hash table. The object must not be
+     * present yet.
+     *
+     * @param ref
+     *            the object that is inserted
+     * @param handle
+     *            the (int valued) key, must not be 0.
+     * @param hashcode
+     *            the hashcode of ref, as computed by
+     *            {@link HandleHash#getHashCode(Object)}.
+     * @return the handle.
+     */
+    public int put(Object ref, int handle, int hashcode) {
+        if (present >= sizeThreshold) {
+            grow();
+        }
+
+        if (TIMINGS) {
+            t_insert.start();
+        }
+
+        int mask = keys.length - 1;
+        int i = hashcode & mask;
+        while (stamps[i] == generation) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = ref;
+        handles[i] = handle;
+        stamps[i] = generation;
+        used[present++] = i;
+
+        if (TIMINGS) {
+            t_insert.stop();
+        }
+        return handle;
+    }
+
+    /**
+     * Insert (ref, handle) into the hash table lazily. If already present, the
+     * present handle is returned instead.
+     *
+     * @param ref
+     *            the object that is inserted
+     * @param handle
+     *            the (int valued) key, must not be 0.
+     * @param hashcode
+     *            the hashcode of ref, as computed by
+     *            {@link HandleHash#getHashCode(Object)}.
+     * @return the handle found.
+     */
+    public final int lazyPut(Object ref, int handle, int hashcode) {
+        if (present >= sizeThreshold) {
+            grow();
+        }
+
+        if (TIMINGS) {
+            t_insert.start();
+        }
+
+        // single probe sequence for both the lookup and the insert
+        int mask = keys.length - 1;
+        int i = hashcode & mask;
+        while (stamps[i] == generation) {
+            if (keys[i] == ref) {
+                if (TIMINGS) {
+                    t_insert.stop();
+                }
+                return handles[i];
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = ref;
+        handles[i] = handle;
+        stamps[i] = generation;
+        used[present++] = i;
+
+        if (TIMINGS) {
+            t_insert.stop();
+        }
+        return handle;
+    }
+
+    public final int put(Object ref, int handle) {
+        return put(ref, handle, HandleHash.getHashCode(ref));
+    }
+
+    public final int lazyPut(Object ref, int handle) {
+        return lazyPut(ref, handle, HandleHash.getHashCode(ref));
+    }
+
+    /**
+     * Removes all entries, by starting a new generation. The objects are
+     * released, so that the table does not keep object graphs that were
+     * written before a reset reachable. Only when the generation counter
+     * wraps are the stamps actually cleared.
+     */
+    public final void clear() {
+        if (present == 0) {
+            return;
+        }
+        if (STATS) {
+            clears++;
+        }
+        for (int k = 0; k < present; k++) {
+            keys[used[k]] = null;
+        }
+        present = 0;
+        generation++;
+        if (generation == 0) {
+            // wrapped: old stamps could match again
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries.
+     */
+    public final int size() {
+        return present;
+    }
+
+    final void statistics() {
+        if (STATS) {
+            System.err.println(this + ": " + " size " + keys.length
+                    + " maxsize " + maxsize + " finds " + finds + " probes "
+                    + probes + " rebuilds " + rebuilds + " clears " + clears);
+        }
+        if (TIMINGS) {
+            System.err.println(this + " insert(" + t_insert.nrTimes() + ") "
+                    + Timer.format(t_insert.totalTimeVal()) + " find("
+                    + t_find.nrTimes() + ") "
+                    + Timer.format(t_find.totalTimeVal()) + " rebuild("
+                    + t_rebuild.nrTimes() + ") "
+                    + Timer.format(t_rebuild.totalTimeVal()));
+        }
+    }
+}
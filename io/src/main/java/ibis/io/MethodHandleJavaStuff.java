@@ -0,0 +1,335 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.io;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+
+/**
+ * Implementation based on method handles. The setters of all fields of the
+ * class are resolved once, when the class is first seen, and each of them is
+ * adapted to take an <code>Object</code> and the value type, so that
+ * assigning a field is a single invokeExact, without the boxing and the
+ * field lookup of the Unsafe-through-reflection implementation. Objects are
+ * created with a serialization constructor from
+ * <code>sun.reflect.ReflectionFactory</code>, which, unlike
+ * <code>ObjectStreamClass.newInstance</code>, is accessible on modern JVMs
+ * without opening <code>java.io</code>.
+ * <p>
+ * Creating an instance fails for classes that cannot be accessed through a
+ * private lookup, for instance classes in a module that is not open. The
+ * caller then falls back to one of the other implementations.
+ */
+class MethodHandleJavaStuff extends JavaDependantStuff {
+
+    /** ReflectionFactory instance, if available. */
+    private static Object reflectionFactory = null;
+
+    private static Method newConstructorForSerialization = null;
+
+    static boolean available = false;
+
+    static {
+        try {
+            // Use introspection, so that it at least compiles on systems
+            // that don't have the ReflectionFactory.
+            Class<?> cl = Class.forName("sun.reflect.ReflectionFactory");
+            reflectionFactory = cl.getMethod("getReflectionFactory")
+                    .invoke(null);
+            newConstructorForSerialization = cl.getMethod(
+                    "newConstructorForSerialization", Class.class,
+                    Constructor.class);
+            // Only exists as of Java 9.
+            MethodHandles.class.getMethod("privateLookupIn", Class.class,
+                    MethodHandles.Lookup.class);
+            available = true;
+        } catch (Throwable e) {
+            logger.info("MethodHandle Java Stuff not available", e);
+        }
+    }
+
+    /** Setters of the fields of this class, by field name. */
+    private final HashMap<String, MethodHandle> setters = new HashMap<String, MethodHandle>();
+
+    /** Serialization constructor, or <code>null</code>. */
+    private final Constructor<?> constructor;
+
+    MethodHandleJavaStuff(Class<?> clazz) {
+        super(clazz);
+        if (!available) {
+            throw new Error("MethodHandleJavaStuff not available");
+        }
+
+        MethodHandles.Lookup lookup;
+        try {
+            lookup = MethodHandles.privateLookupIn(clazz,
+                    MethodHandles.lookup());
+        } catch (IllegalAccessException e) {
+            throw new Error("no access to " + clazz.getName(), e);
+        }
+
+        for (Field f : clazz.getDeclaredFields()) {
+            if (Modifier.isStatic(f.getModifiers())) {
+                continue;
+            }
+            Class<?> type = f.getType();
+            if (!type.isPrimitive()) {
+                type = Object.class;
+            }
+            try {
+                // needed for final fields
+                f.setAccessible(true);
+                MethodHandle setter = lookup.unreflectSetter(f);
+                setters.put(f.getName(), setter.asType(MethodType.methodType(
+                        Void.TYPE, Object.class, type)));
+            } catch (Throwable e) {
+                throw new Error("could not get setter for field "
+                        + f.getName() + " of " + clazz.getName(), e);
+            }
+        }
+
+        constructor = getSerializationConstructor(clazz);
+    }
+
+    /**
+     * Returns a constructor that creates an instance of the class and runs
+     * the constructor that Java serialization would run: the public no-arg
+     * constructor for an <code>Externalizable</code>, otherwise the no-arg
+     * constructor of the first superclass that is not serializable. Returns
+     * <code>null</code> if there is none.
+     */
+    private static Constructor<?> getSerializationConstructor(Class<?> clazz) {
+        if (clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers())
+                || clazz.isArray()) {
+            return null;
+        }
+        try {
+            Constructor<?> cons;
+            if (Externalizable.class.isAssignableFrom(clazz)) {
+                cons = clazz.getDeclaredConstructor();
+                if (!Modifier.isPublic(cons.getModifiers())) {
+                    return null;
+                }
+            } else {
+                Class<?> cl = clazz;
+                while (Serializable.class.isAssignableFrom(cl)) {
+                    cl = cl.getSuperclass();
+                    if (cl == null) {
+                        return null;
+                    }
+                }
+                cons = cl.getDeclaredConstructor();
+                if (Modifier.isPrivate(cons.getModifiers())) {
+                    return null;
+                }
+            }
+            Constructor<?> result = (Constructor<?>) newConstructorForSerialization
+                    .invoke(reflectionFactory, clazz, cons);
+            result.setAccessible(true);
+            return result;
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the setter of the given field, adapted to (Object, value type)
+     * for primitive fields and to (Object, Object) for reference fields, or
+     * <code>null</code> if there is no such field.
+     */
+    MethodHandle findSetter(String fieldname) {
+        return setters.get(fieldname);
+    }
+
+    private MethodHandle getSetter(String fieldname) throws IOException {
+        MethodHandle setter = setters.get(fieldname);
+        if (setter == null) {
+            throw new IbisIOException("no field " + fieldname + " in "
+                    + clazz.getName());
+        }
+        return setter;
+    }
+
+    /**
+     * This method assigns the specified value to a final field.
+     *
+     * @param ref
+     *                object with a final field
+     * @param fieldname
+     *                name of the field
+     * @param d
+     *                value to be assigned
+     * @exception IOException
+     *                    is thrown when an IO error occurs.
+     */
+    public void setFieldDouble(Object ref, String fieldname, double d)
+            throws IOException {
+        MethodHandle setter = getSetter(fieldname);
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable ex) {
+            throw new IbisIOException("got exception", ex);
+        }
+    }
+
+    /**
+     * See {@link #setFieldDouble(Object, String, double)} for a description.
+     */
+    public void setFieldLong(Object ref, String fieldname, long d)
+            throws IOException {
+        MethodHandle setter = getSetter(fieldname);
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable ex) {
+            throw new IbisIOException("got exception", ex);
+        }
+    }
+
+    /**
+     * See {@link #setFieldDouble(Object, String, double)} for a description.
+     */
+    public void setFieldFloat(Object ref, String fieldname, float d)
+            throws IOException {
+        MethodHandle setter = getSetter(fieldname);
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable ex) {
+            throw new IbisIOException("got exception", ex);
+        }
+    }
+
+    /**
+     * See {@link #setFieldDouble(Object, String, double)} for a description.
+     */
+    public void setFieldInt(Object ref, String fieldname, int d)
+            throws IOException {
+        MethodHandle setter = getSetter(fieldname);
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable ex) {
+            throw new IbisIOException("got exception", ex);
+        }
+    }
+
+    /**
+     * See {@link #setFieldDouble(Object, String, double)} for a description.
+     */
+    public void setFieldShort(Object ref, String fieldname, short d)
+            throws IOException {
+        MethodHandle setter = getSetter(fieldname);
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable ex) {
+            throw new IbisIOException("got exception", ex);
+        }
+    }
+
+    /**
+     * See {@link #setFieldDouble(Object, String, double)} for a description.
+     */
+    public void setFieldChar(Object ref, String fieldname, char d)
+            throws IOException {
+        MethodHandle setter = getSetter(fieldname);
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable ex) {
+            throw new IbisIOException("got exception", ex);
+        }
+    }
+
+    /**
+     * See {@link #setFieldDouble(Object, String, double)} for a description.
+     */
+    public void setFieldByte(Object ref, String fieldname, byte d)
+            throws IOException {
+        MethodHandle setter = getSetter(fieldname);
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable ex) {
+            throw new IbisIOException("got exception", ex);
+        }
+    }
+
+    /**
+     * See {@link #setFieldDouble(Object, String, double)} for a description.
+     */
+    public void setFieldBoolean(Object ref, String fieldname, boolean d)
+            throws IOException {
+        MethodHandle setter = getSetter(fieldname);
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable ex) {
+            throw new IbisIOException("got exception", ex);
+        }
+    }
+
+    /**
+     * See {@link #setFieldDouble(Object, String, double)} for a description.
+     */
+    public void setFieldString(Object ref, String fieldname, String d)
+            throws IOException {
+        setFieldObject(ref, fieldname, d, "Ljava/lang/String;");
+    }
+
+    /**
+     * See {@link #setFieldDouble(Object, String, double)} for a description.
+     */
+    public void setFieldClass(Object ref, String fieldname, Class<?> d)
+            throws IOException {
+        setFieldObject(ref, fieldname, d, "Ljava/lang/Class;");
+    }
+
+    /**
+     * See {@link #setFieldDouble(Object, String, double)} for a description.
+     * The setter checks the type of the value.
+     *
+     * @param fieldsig
+     *                signature of the field
+     */
+    public void setFieldObject(Object ref, String fieldname, Object d,
+            String fieldsig) throws IOException {
+        MethodHandle setter = getSetter(fieldname);
+        try {
+            setter.invokeExact(ref, d);
+        } catch (Throwable ex) {
+            throw new IbisIOException("got exception", ex);
+        }
+    }
+
+    /**
+     * Creates an object through the serialization constructor. Returns null
+     * if it fails for some reason.
+     */
+    Object newInstance() {
+        if (constructor == null) {
+            return null;
+        }
+        try {
+            return constructor.newInstance();
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+}
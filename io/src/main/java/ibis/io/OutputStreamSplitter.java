@@ -29,6 +29,12 @@ import java.util.ArrayList;
  * when the data is written to all streams, throw one large exception
  * that contains all previous exceptions.
  * This way, even when one of the streams dies, the rest will receive the data.
+ * <p>
+ * In parallel mode, every stream gets its own transmission thread, see
+ * {@link AsyncOutputStream}. A write copies the data once and queues it
+ * for all streams, so a slow stream does not hold up the others until it
+ * lags more than the outstanding-byte limit behind. A flush waits until all
+ * streams have written the data.
  **/
 public final class OutputStreamSplitter extends OutputStream {
 
@@ -41,6 +47,18 @@ public final class OutputStreamSplitter extends OutputStream {
 
     ArrayList<OutputStream> out = new ArrayList<OutputStream>();
 
+    /** Distances of the streams in <code>out</code>, see {@link #add(OutputStream, double)}. */
+    private ArrayList<Double> distances = new ArrayList<Double>();
+
+    /**
+     * Transmission threads of the streams in <code>out</code>, in parallel
+     * mode. <code>null</code> otherwise.
+     */
+    ArrayList<AsyncOutputStream> async = null;
+
+    /** Maximum number of bytes outstanding per stream, in parallel mode. */
+    private long outstandingLimit = 0;
+
     private int numSenders = 0;
 
     private class Sender implements Runnable {
@@ -88,9 +106,20 @@ public final class OutputStreamSplitter extends OutputStream {
         }
     }
 
+    /**
+     * Returns the stream to write to for the given index, which is the
+     * transmission thread of the stream in parallel mode.
+     */
+    private OutputStream stream(int index) {
+        if (async != null) {
+            return async.get(index);
+        }
+        return out.get(index);
+    }
+
     void doWrite(byte[] buf, int offset, int len, int index) {
         try {
-            OutputStream o = out.get(index);
+            OutputStream o = stream(index);
             if (o != null) {
         	o.write(buf, offset, len);
             }
@@ -99,9 +128,31 @@ public final class OutputStreamSplitter extends OutputStream {
         }
     }
 
+    void doShared(byte[] buf, int len, int index) {
+        try {
+            AsyncOutputStream o = async.get(index);
+            if (o != null) {
+                o.writeShared(buf, len);
+            }
+        } catch(IOException e) {
+            addException(e, index);
+        }
+    }
+
+    void doSync(int index) {
+        try {
+            AsyncOutputStream o = async.get(index);
+            if (o != null) {
+                o.sync(o.ticket());
+            }
+        } catch(IOException e) {
+            addException(e, index);
+        }
+    }
+
     void doFlush(int index) {
         try {
-            OutputStream o = out.get(index);
+            OutputStream o = stream(index);
             if (o != null) {
         	o.flush();
             }
@@ -112,7 +163,7 @@ public final class OutputStreamSplitter extends OutputStream {
 
     void doClose(int index) {
         try {
-            OutputStream o = out.get(index);
+            OutputStream o = stream(index);
             if (o != null) {
         	o.close();
             }
@@ -133,6 +184,17 @@ public final class OutputStreamSplitter extends OutputStream {
         savedException.add(out.get(index), e);
         if (removeOnException) {
             out.set(index, null);
+            if (async != null) {
+                async.set(index, null);
+            }
+        }
+    }
+
+    private synchronized void removeIndex(int index) {
+        out.remove(index);
+        distances.remove(index);
+        if (async != null) {
+            async.remove(index);
         }
     }
 
@@ -146,8 +208,55 @@ public final class OutputStreamSplitter extends OutputStream {
         this.saveException = saveException;
     }
 
+    /**
+     * Creates a splitter in parallel mode.
+     * @param removeOnException remove a stream when it throws an exception
+     * @param saveException save exceptions until
+     *        {@link #getExceptions()} is called, instead of throwing them
+     * @param outstandingLimit maximum number of bytes written to the splitter
+     *        but not yet to a stream, before a write blocks
+     */
+    public OutputStreamSplitter(boolean removeOnException,
+            boolean saveException, long outstandingLimit) {
+        this(removeOnException, saveException);
+        this.outstandingLimit = outstandingLimit;
+        async = new ArrayList<AsyncOutputStream>();
+    }
+
     public synchronized void add(OutputStream s) {
-        out.add(s);
+        add(s, 0.0);
+    }
+
+    /**
+     * Adds a stream to a destination at the given distance, for instance
+     * the round-trip time in milliseconds. Streams are written to in order of
+     * decreasing distance, so the data is already on its way over the slow
+     * links while the nearby streams are written.
+     * @param s the stream.
+     * @param distance the distance of the destination, 0 if unknown.
+     */
+    public synchronized void add(OutputStream s, double distance) {
+	while (numSenders != 0) {
+	    try {
+		wait();
+	    } catch(Exception e) {
+		// Ignored
+	    }
+	}
+
+        int index = 0;
+        while (index < distances.size() && distances.get(index) >= distance) {
+            index++;
+        }
+
+        out.add(index, s);
+        distances.add(index, distance);
+        if (async != null) {
+            int blocks = (int) Math.max(1,
+                    outstandingLimit / IOProperties.BUFFER_SIZE);
+            async.add(index, new AsyncOutputStream(s, IOProperties.BUFFER_SIZE,
+                    blocks, outstandingLimit));
+        }
     }
 
     public synchronized void remove(OutputStream s) throws IOException {
@@ -166,7 +275,53 @@ public final class OutputStreamSplitter extends OutputStream {
             throw new IOException("Removing unknown stream from splitter.");
         }
 
-        out.remove(i);
+        // The transmission thread of a parallel stream is not closed here,
+        // the stream itself is closed by the owner, which ends it.
+        removeIndex(i);
+    }
+
+    /**
+     * Returns the number of bytes written to the splitter but not yet to the
+     * given stream, or 0 when not in parallel mode.
+     * @param s the stream.
+     * @return the number of bytes outstanding.
+     */
+    public synchronized long outstandingBytes(OutputStream s) {
+        AsyncOutputStream o = getAsync(s);
+        return o == null ? 0 : o.queuedBytes();
+    }
+
+    /**
+     * Returns the maximum number of bytes outstanding for the given stream
+     * so far, or 0 when not in parallel mode.
+     * @param s the stream.
+     * @return the maximum number of bytes outstanding.
+     */
+    public synchronized long maxOutstandingBytes(OutputStream s) {
+        AsyncOutputStream o = getAsync(s);
+        return o == null ? 0 : o.maxQueuedBytes();
+    }
+
+    /**
+     * Returns how many writes had to wait because the given stream reached
+     * the outstanding-byte limit, or 0 when not in parallel mode.
+     * @param s the stream.
+     * @return the number of stalled writes.
+     */
+    public synchronized long stalls(OutputStream s) {
+        AsyncOutputStream o = getAsync(s);
+        return o == null ? 0 : o.stalls();
+    }
+
+    private AsyncOutputStream getAsync(OutputStream s) {
+        if (async == null) {
+            return null;
+        }
+        int i = out.indexOf(s);
+        if (i == -1) {
+            return null;
+        }
+        return async.get(i);
     }
 
     public void write(int b) throws IOException {
@@ -186,7 +341,7 @@ public final class OutputStreamSplitter extends OutputStream {
 
         for (int i = 0; i < out.size(); i++) {
             try {
-        	OutputStream o = out.get(i);
+        	OutputStream o = stream(i);
         	if (o != null) {
         	    o.write(b);
         	}
@@ -196,7 +351,7 @@ public final class OutputStreamSplitter extends OutputStream {
                 }
                 savedException.add(out.get(i), e2);
                 if (removeOnException) {
-                    out.remove(i);
+                    removeIndex(i);
                     --i;
                 }
             }
@@ -234,6 +389,16 @@ public final class OutputStreamSplitter extends OutputStream {
                 }
                 numSenders++;
             }
+            if (async != null) {
+                // one copy, shared by the transmission threads
+                byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                for (int i = 0; i < out.size(); i++) {
+                    doShared(copy, len, i);
+                }
+                done();
+                return;
+            }
             for (int i = 1; i < out.size(); i++) {
                 Sender s = new Sender(b, i, off, len);
                 runThread(s, "Splitter sender");
@@ -255,6 +420,17 @@ public final class OutputStreamSplitter extends OutputStream {
                 }
                 numSenders++;
             }
+            if (async != null) {
+                // first ask all transmission threads to flush, then wait
+                for (int i = 0; i < out.size(); i++) {
+                    doFlush(i);
+                }
+                for (int i = 0; i < out.size(); i++) {
+                    doSync(i);
+                }
+                done();
+                return;
+            }
             for (int i = 1; i < out.size(); i++) {
                 Flusher f = new Flusher(i);
                 runThread(f, "Splitter flusher");
@@ -278,6 +454,15 @@ public final class OutputStreamSplitter extends OutputStream {
                 numSenders++;
             }
 
+            if (async != null) {
+                // closing a transmission thread waits for its queue
+                for (int i = 0; i < out.size(); i++) {
+                    doClose(i);
+                }
+                done();
+                return;
+            }
+
             for (int i = 1; i < out.size(); i++) {
                 Closer f = new Closer(i);
                 runThread(f, "Splitter closer");
@@ -331,7 +516,7 @@ public final class OutputStreamSplitter extends OutputStream {
                 if (removeOnException) {
                     for (int i = 0; i < out.size(); i++) {
                         if (out.get(i) == null) {
-                            out.remove(i);
+                            removeIndex(i);
                             i--;
                         }
                     }
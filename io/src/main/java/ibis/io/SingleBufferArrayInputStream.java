@@ -284,7 +284,7 @@ public class SingleBufferArrayInputStream extends DataInputStream {
     }
 
     public void close() throws IOException {
-        // empty
+        conversion.close();
     }
 
     public int bufferSize() {
@@ -264,7 +264,7 @@ public class SingleBufferArrayOutputStream extends DataOutputStream {
     }
 
     public void close() throws IOException {
-        // empty
+        conversion.close();
     }
 
     public int bufferSize() {
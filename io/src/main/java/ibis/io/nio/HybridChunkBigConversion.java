@@ -17,6 +17,7 @@
 
 package ibis.io.nio;
 
+import ibis.io.BufferPool;
 import ibis.io.IOProperties;
 import ibis.io.SimpleBigConversion;
 
@@ -39,34 +40,59 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
 
     private ByteOrder order;
 
-    private ByteBuffer byteBuffer;
+    // borrowed from the pool on first use, see acquire()
+    private ByteBuffer pooled = null;
 
-    private CharBuffer charBuffer;
+    // set while a conversion uses the pooled buffer
+    private boolean busy = false;
 
-    private ShortBuffer shortBuffer;
-
-    private IntBuffer intBuffer;
-
-    private LongBuffer longBuffer;
-
-    private FloatBuffer floatBuffer;
-
-    private DoubleBuffer doubleBuffer;
+    private boolean closed = false;
 
     public HybridChunkBigConversion() {
 
         // big/little endian difference one liner
         order = ByteOrder.BIG_ENDIAN;
+    }
 
-        byteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(order);
+    /**
+     * Returns the buffer to convert through, in the byte order of this
+     * conversion. It is taken from the pool on first use, and kept until
+     * this conversion is closed. Every call must be followed by a call of
+     * {@link #done()}.
+     */
+    private synchronized ByteBuffer acquire() {
+        if (pooled == null) {
+            pooled = BufferPool.allocateDirect(BUFFER_SIZE).order(order);
+        }
+        busy = true;
+        pooled.clear();
+        return pooled;
+    }
 
-        // views on the bytebuffer to fill/drain it efficiently
-        charBuffer = byteBuffer.asCharBuffer();
-        shortBuffer = byteBuffer.asShortBuffer();
-        intBuffer = byteBuffer.asIntBuffer();
-        longBuffer = byteBuffer.asLongBuffer();
-        floatBuffer = byteBuffer.asFloatBuffer();
-        doubleBuffer = byteBuffer.asDoubleBuffer();
+    private synchronized void done() {
+        busy = false;
+        if (closed) {
+            free();
+        }
+    }
+
+    /**
+     * Returns the buffer to the pool. A stream may be closed by another
+     * thread than the one using it, so if a conversion is still busy, the
+     * buffer is returned when it is done.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (!busy) {
+            free();
+        }
+    }
+
+    private void free() {
+        if (pooled != null) {
+            BufferPool.release(pooled);
+            pooled = null;
+        }
     }
 
     public void char2byte(char[] src, int off, int len, byte[] dst, int off2) {
@@ -76,18 +102,25 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
             return;
         }
 
-        while (len > 0) {
-            int chunkSize = Math.min(BUFFER_SIZE / CHAR_SIZE, len);
+        ByteBuffer byteBuffer = acquire();
+        try {
+            CharBuffer charBuffer = byteBuffer.asCharBuffer();
+
+            while (len > 0) {
+                int chunkSize = Math.min(BUFFER_SIZE / CHAR_SIZE, len);
 
-            charBuffer.clear();
-            charBuffer.put(src, off, chunkSize);
+                charBuffer.clear();
+                charBuffer.put(src, off, chunkSize);
 
-            byteBuffer.position(0).limit(chunkSize * CHAR_SIZE);
-            byteBuffer.get(dst, off2, chunkSize * CHAR_SIZE);
+                byteBuffer.position(0).limit(chunkSize * CHAR_SIZE);
+                byteBuffer.get(dst, off2, chunkSize * CHAR_SIZE);
 
-            len -= chunkSize;
-            off += chunkSize;
-            off2 += chunkSize * CHAR_SIZE;
+                len -= chunkSize;
+                off += chunkSize;
+                off2 += chunkSize * CHAR_SIZE;
+            }
+        } finally {
+            done();
         }
     }
 
@@ -99,18 +132,25 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
             return;
         }
 
-        while (len > 0) {
-            int chunkSize = Math.min(BUFFER_SIZE / CHAR_SIZE, len);
+        ByteBuffer byteBuffer = acquire();
+        try {
+            CharBuffer charBuffer = byteBuffer.asCharBuffer();
 
-            byteBuffer.clear();
-            byteBuffer.put(src, index_src, chunkSize * CHAR_SIZE);
+            while (len > 0) {
+                int chunkSize = Math.min(BUFFER_SIZE / CHAR_SIZE, len);
 
-            charBuffer.position(0).limit(chunkSize);
-            charBuffer.get(dst, index_dst, chunkSize);
+                byteBuffer.clear();
+                byteBuffer.put(src, index_src, chunkSize * CHAR_SIZE);
 
-            len -= chunkSize;
-            index_src += chunkSize * CHAR_SIZE;
-            index_dst += chunkSize;
+                charBuffer.position(0).limit(chunkSize);
+                charBuffer.get(dst, index_dst, chunkSize);
+
+                len -= chunkSize;
+                index_src += chunkSize * CHAR_SIZE;
+                index_dst += chunkSize;
+            }
+        } finally {
+            done();
         }
     }
 
@@ -122,18 +162,25 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
             return;
         }
 
-        while (len > 0) {
-            int chunkSize = Math.min(BUFFER_SIZE / SHORT_SIZE, len);
+        ByteBuffer byteBuffer = acquire();
+        try {
+            ShortBuffer shortBuffer = byteBuffer.asShortBuffer();
+
+            while (len > 0) {
+                int chunkSize = Math.min(BUFFER_SIZE / SHORT_SIZE, len);
 
-            shortBuffer.clear();
-            shortBuffer.put(src, off, chunkSize);
+                shortBuffer.clear();
+                shortBuffer.put(src, off, chunkSize);
 
-            byteBuffer.position(0).limit(chunkSize * SHORT_SIZE);
-            byteBuffer.get(dst, off2, chunkSize * SHORT_SIZE);
+                byteBuffer.position(0).limit(chunkSize * SHORT_SIZE);
+                byteBuffer.get(dst, off2, chunkSize * SHORT_SIZE);
 
-            len -= chunkSize;
-            off += chunkSize;
-            off2 += chunkSize * SHORT_SIZE;
+                len -= chunkSize;
+                off += chunkSize;
+                off2 += chunkSize * SHORT_SIZE;
+            }
+        } finally {
+            done();
         }
     }
 
@@ -145,18 +192,25 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
             return;
         }
 
-        while (len > 0) {
-            int chunkSize = Math.min(BUFFER_SIZE / SHORT_SIZE, len);
+        ByteBuffer byteBuffer = acquire();
+        try {
+            ShortBuffer shortBuffer = byteBuffer.asShortBuffer();
 
-            byteBuffer.clear();
-            byteBuffer.put(src, index_src, chunkSize * SHORT_SIZE);
+            while (len > 0) {
+                int chunkSize = Math.min(BUFFER_SIZE / SHORT_SIZE, len);
 
-            shortBuffer.position(0).limit(chunkSize);
-            shortBuffer.get(dst, index_dst, chunkSize);
+                byteBuffer.clear();
+                byteBuffer.put(src, index_src, chunkSize * SHORT_SIZE);
 
-            len -= chunkSize;
-            index_src += chunkSize * SHORT_SIZE;
-            index_dst += chunkSize;
+                shortBuffer.position(0).limit(chunkSize);
+                shortBuffer.get(dst, index_dst, chunkSize);
+
+                len -= chunkSize;
+                index_src += chunkSize * SHORT_SIZE;
+                index_dst += chunkSize;
+            }
+        } finally {
+            done();
         }
     }
 
@@ -167,18 +221,25 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
             return;
         }
 
-        while (len > 0) {
-            int chunkSize = Math.min(BUFFER_SIZE / INT_SIZE, len);
+        ByteBuffer byteBuffer = acquire();
+        try {
+            IntBuffer intBuffer = byteBuffer.asIntBuffer();
+
+            while (len > 0) {
+                int chunkSize = Math.min(BUFFER_SIZE / INT_SIZE, len);
 
-            intBuffer.clear();
-            intBuffer.put(src, off, chunkSize);
+                intBuffer.clear();
+                intBuffer.put(src, off, chunkSize);
 
-            byteBuffer.position(0).limit(chunkSize * INT_SIZE);
-            byteBuffer.get(dst, off2, chunkSize * INT_SIZE);
+                byteBuffer.position(0).limit(chunkSize * INT_SIZE);
+                byteBuffer.get(dst, off2, chunkSize * INT_SIZE);
 
-            len -= chunkSize;
-            off += chunkSize;
-            off2 += chunkSize * INT_SIZE;
+                len -= chunkSize;
+                off += chunkSize;
+                off2 += chunkSize * INT_SIZE;
+            }
+        } finally {
+            done();
         }
     }
 
@@ -190,20 +251,26 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
             return;
         }
 
-        while (len > 0) {
-            int chunkSize = Math.min(BUFFER_SIZE / INT_SIZE, len);
+        ByteBuffer byteBuffer = acquire();
+        try {
+            IntBuffer intBuffer = byteBuffer.asIntBuffer();
 
-            byteBuffer.clear();
-            byteBuffer.put(src, index_src, chunkSize * INT_SIZE);
+            while (len > 0) {
+                int chunkSize = Math.min(BUFFER_SIZE / INT_SIZE, len);
 
-            intBuffer.position(0).limit(chunkSize);
-            intBuffer.get(dst, index_dst, chunkSize);
+                byteBuffer.clear();
+                byteBuffer.put(src, index_src, chunkSize * INT_SIZE);
 
-            len -= chunkSize;
-            index_src += chunkSize * INT_SIZE;
-            index_dst += chunkSize;
-        }
+                intBuffer.position(0).limit(chunkSize);
+                intBuffer.get(dst, index_dst, chunkSize);
 
+                len -= chunkSize;
+                index_src += chunkSize * INT_SIZE;
+                index_dst += chunkSize;
+            }
+        } finally {
+            done();
+        }
     }
 
     public void long2byte(long[] src, int off, int len, byte[] dst, int off2) {
@@ -213,20 +280,26 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
             return;
         }
 
-        while (len > 0) {
-            int chunkSize = Math.min(BUFFER_SIZE / LONG_SIZE, len);
+        ByteBuffer byteBuffer = acquire();
+        try {
+            LongBuffer longBuffer = byteBuffer.asLongBuffer();
 
-            longBuffer.clear();
-            longBuffer.put(src, off, chunkSize);
+            while (len > 0) {
+                int chunkSize = Math.min(BUFFER_SIZE / LONG_SIZE, len);
 
-            byteBuffer.position(0).limit(chunkSize * LONG_SIZE);
-            byteBuffer.get(dst, off2, chunkSize * LONG_SIZE);
+                longBuffer.clear();
+                longBuffer.put(src, off, chunkSize);
 
-            len -= chunkSize;
-            off += chunkSize;
-            off2 += chunkSize * LONG_SIZE;
-        }
+                byteBuffer.position(0).limit(chunkSize * LONG_SIZE);
+                byteBuffer.get(dst, off2, chunkSize * LONG_SIZE);
 
+                len -= chunkSize;
+                off += chunkSize;
+                off2 += chunkSize * LONG_SIZE;
+            }
+        } finally {
+            done();
+        }
     }
 
     public void byte2long(byte[] src, int index_src, long[] dst, int index_dst,
@@ -237,18 +310,25 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
             return;
         }
 
-        while (len > 0) {
-            int chunkSize = Math.min(BUFFER_SIZE / LONG_SIZE, len);
+        ByteBuffer byteBuffer = acquire();
+        try {
+            LongBuffer longBuffer = byteBuffer.asLongBuffer();
+
+            while (len > 0) {
+                int chunkSize = Math.min(BUFFER_SIZE / LONG_SIZE, len);
 
-            byteBuffer.clear();
-            byteBuffer.put(src, index_src, chunkSize * LONG_SIZE);
+                byteBuffer.clear();
+                byteBuffer.put(src, index_src, chunkSize * LONG_SIZE);
 
-            longBuffer.position(0).limit(chunkSize);
-            longBuffer.get(dst, index_dst, chunkSize);
+                longBuffer.position(0).limit(chunkSize);
+                longBuffer.get(dst, index_dst, chunkSize);
 
-            len -= chunkSize;
-            index_src += chunkSize * LONG_SIZE;
-            index_dst += chunkSize;
+                len -= chunkSize;
+                index_src += chunkSize * LONG_SIZE;
+                index_dst += chunkSize;
+            }
+        } finally {
+            done();
         }
     }
 
@@ -260,20 +340,26 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
             return;
         }
 
-        while (len > 0) {
-            int chunkSize = Math.min(BUFFER_SIZE / FLOAT_SIZE, len);
+        ByteBuffer byteBuffer = acquire();
+        try {
+            FloatBuffer floatBuffer = byteBuffer.asFloatBuffer();
 
-            floatBuffer.clear();
-            floatBuffer.put(src, off, chunkSize);
+            while (len > 0) {
+                int chunkSize = Math.min(BUFFER_SIZE / FLOAT_SIZE, len);
 
-            byteBuffer.position(0).limit(chunkSize * FLOAT_SIZE);
-            byteBuffer.get(dst, off2, chunkSize * FLOAT_SIZE);
+                floatBuffer.clear();
+                floatBuffer.put(src, off, chunkSize);
 
-            len -= chunkSize;
-            off += chunkSize;
-            off2 += chunkSize * FLOAT_SIZE;
-        }
+                byteBuffer.position(0).limit(chunkSize * FLOAT_SIZE);
+                byteBuffer.get(dst, off2, chunkSize * FLOAT_SIZE);
 
+                len -= chunkSize;
+                off += chunkSize;
+                off2 += chunkSize * FLOAT_SIZE;
+            }
+        } finally {
+            done();
+        }
     }
 
     public void byte2float(byte[] src, int index_src, float[] dst,
@@ -284,18 +370,25 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
             return;
         }
 
-        while (len > 0) {
-            int chunkSize = Math.min(BUFFER_SIZE / FLOAT_SIZE, len);
+        ByteBuffer byteBuffer = acquire();
+        try {
+            FloatBuffer floatBuffer = byteBuffer.asFloatBuffer();
 
-            byteBuffer.clear();
-            byteBuffer.put(src, index_src, chunkSize * FLOAT_SIZE);
+            while (len > 0) {
+                int chunkSize = Math.min(BUFFER_SIZE / FLOAT_SIZE, len);
 
-            floatBuffer.position(0).limit(chunkSize);
-            floatBuffer.get(dst, index_dst, chunkSize);
+                byteBuffer.clear();
+                byteBuffer.put(src, index_src, chunkSize * FLOAT_SIZE);
 
-            len -= chunkSize;
-            index_src += chunkSize * FLOAT_SIZE;
-            index_dst += chunkSize;
+                floatBuffer.position(0).limit(chunkSize);
+                floatBuffer.get(dst, index_dst, chunkSize);
+
+                len -= chunkSize;
+                index_src += chunkSize * FLOAT_SIZE;
+                index_dst += chunkSize;
+            }
+        } finally {
+            done();
         }
     }
 
@@ -307,18 +400,25 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
             return;
         }
 
-        while (len > 0) {
-            int chunkSize = Math.min(BUFFER_SIZE / DOUBLE_SIZE, len);
+        ByteBuffer byteBuffer = acquire();
+        try {
+            DoubleBuffer doubleBuffer = byteBuffer.asDoubleBuffer();
+
+            while (len > 0) {
+                int chunkSize = Math.min(BUFFER_SIZE / DOUBLE_SIZE, len);
 
-            doubleBuffer.clear();
-            doubleBuffer.put(src, off, chunkSize);
+                doubleBuffer.clear();
+                doubleBuffer.put(src, off, chunkSize);
 
-            byteBuffer.position(0).limit(chunkSize * DOUBLE_SIZE);
-            byteBuffer.get(dst, off2, chunkSize * DOUBLE_SIZE);
+                byteBuffer.position(0).limit(chunkSize * DOUBLE_SIZE);
+                byteBuffer.get(dst, off2, chunkSize * DOUBLE_SIZE);
 
-            len -= chunkSize;
-            off += chunkSize;
-            off2 += chunkSize * DOUBLE_SIZE;
+                len -= chunkSize;
+                off += chunkSize;
+                off2 += chunkSize * DOUBLE_SIZE;
+            }
+        } finally {
+            done();
         }
     }
 
@@ -330,18 +430,25 @@ public final class HybridChunkBigConversion extends SimpleBigConversion {
             return;
         }
 
-        while (len > 0) {
-            int chunkSize = Math.min(BUFFER_SIZE / DOUBLE_SIZE, len);
+        ByteBuffer byteBuffer = acquire();
+        try {
+            DoubleBuffer doubleBuffer = byteBuffer.asDoubleBuffer();
+
+            while (len > 0) {
+                int chunkSize = Math.min(BUFFER_SIZE / DOUBLE_SIZE, len);
 
-            byteBuffer.clear();
-            byteBuffer.put(src, index_src, chunkSize * DOUBLE_SIZE);
+                byteBuffer.clear();
+                byteBuffer.put(src, index_src, chunkSize * DOUBLE_SIZE);
 
-            doubleBuffer.position(0).limit(chunkSize);
-            doubleBuffer.get(dst, index_dst, chunkSize);
+                doubleBuffer.position(0).limit(chunkSize);
+                doubleBuffer.get(dst, index_dst, chunkSize);
 
-            len -= chunkSize;
-            index_src += chunkSize * DOUBLE_SIZE;
-            index_dst += chunkSize;
+                len -= chunkSize;
+                index_src += chunkSize * DOUBLE_SIZE;
+                index_dst += chunkSize;
+            }
+        } finally {
+            done();
         }
     }
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import ibis.io.nio.HybridChunkLittleConversion;
+
+public class BufferPoolTest {
+
+    @Test
+    public void releasedArrayIsReused() {
+        byte[] b = BufferPool.allocate(1000);
+        assertEquals(1024, b.length);
+        BufferPool.release(b);
+        assertSame(b, BufferPool.allocate(600));
+        BufferPool.release(b);
+    }
+
+    @Test
+    public void releasedDirectBufferIsReused() {
+        long inUse = BufferPool.getDirectBytesInUse();
+
+        ByteBuffer b = BufferPool.allocateDirect(3000);
+        assertEquals(4096, b.capacity());
+        assertEquals(3000, b.limit());
+        assertEquals(0, b.position());
+        assertEquals(inUse + 4096, BufferPool.getDirectBytesInUse());
+
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        b.position(100);
+        BufferPool.release(b);
+        assertEquals(inUse, BufferPool.getDirectBytesInUse());
+
+        ByteBuffer again = BufferPool.allocateDirect(2100);
+        assertSame(b, again);
+        assertEquals(2100, again.limit());
+        assertEquals(0, again.position());
+        assertEquals(ByteOrder.BIG_ENDIAN, again.order());
+        BufferPool.release(again);
+    }
+
+    @Test
+    public void foreignDirectBufferIsNotPooled() {
+        long idle = BufferPool.getDirectBytesIdle();
+        long slabs = BufferPool.getSlabBytes();
+
+        ByteBuffer foreign = ByteBuffer.allocateDirect(8192);
+        BufferPool.release(foreign);
+        assertEquals(idle, BufferPool.getDirectBytesIdle());
+        assertEquals(slabs, BufferPool.getSlabBytes());
+
+        ByteBuffer b = BufferPool.allocateDirect(8192);
+        assertNotSame(foreign, b);
+        BufferPool.release(b);
+    }
+
+    @Test
+    public void oversizedArrayIsNotPooled() {
+        long overflows = BufferPool.getOverflows();
+        long idle = BufferPool.getHeapBytesIdle();
+
+        byte[] b = BufferPool.allocate(3 << 20);
+        assertEquals(3 << 20, b.length);
+        assertEquals(overflows + 1, BufferPool.getOverflows());
+
+        BufferPool.release(b);
+        assertEquals(idle, BufferPool.getHeapBytesIdle());
+    }
+
+    @Test
+    public void writeAfterCloseFails() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        BufferedArrayOutputStream out = new BufferedArrayOutputStream(sink);
+        out.writeInt(42);
+
+        out.close();
+        assertEquals(4, sink.size());
+
+        // a second close is harmless
+        out.close();
+
+        try {
+            out.writeInt(43);
+            fail("write after close succeeded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void conversionHoldsOneBufferUntilClosed() {
+        long inUse = BufferPool.getDirectBytesInUse();
+        HybridChunkLittleConversion conversion = new HybridChunkLittleConversion();
+
+        int[] src = new int[4096];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = i * 31;
+        }
+        byte[] bytes = new byte[src.length * 4];
+        int[] dst = new int[src.length];
+
+        conversion.int2byte(src, 0, src.length, bytes, 0);
+        long held = BufferPool.getDirectBytesInUse() - inUse;
+        assertTrue(held > 0);
+
+        conversion.byte2int(bytes, 0, dst, 0, dst.length);
+        assertArrayEquals(src, dst);
+        assertEquals(held, BufferPool.getDirectBytesInUse() - inUse);
+
+        conversion.close();
+        assertEquals(inUse, BufferPool.getDirectBytesInUse());
+    }
+
+    @Test
+    public void closedConversionStillConverts() {
+        long inUse = BufferPool.getDirectBytesInUse();
+        HybridChunkLittleConversion conversion = new HybridChunkLittleConversion();
+        conversion.close();
+
+        int[] src = new int[4096];
+        byte[] bytes = new byte[src.length * 4];
+        conversion.int2byte(src, 0, src.length, bytes, 0);
+        assertEquals(inUse, BufferPool.getDirectBytesInUse());
+    }
+
+    @Test(timeout = 30000)
+    public void closeWhileConvertingReleasesWhenDone() throws Exception {
+        final long inUse = BufferPool.getDirectBytesInUse();
+        final HybridChunkLittleConversion conversion = new HybridChunkLittleConversion();
+        final int[] src = new int[64 * 1024];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = i;
+        }
+        final boolean[] ok = new boolean[] { true };
+
+        Thread converter = new Thread("BufferPoolTest converter") {
+            public void run() {
+                byte[] bytes = new byte[src.length * 4];
+                int[] dst = new int[src.length];
+                for (int round = 0; round < 50; round++) {
+                    conversion.int2byte(src, 0, src.length, bytes, 0);
+                    conversion.byte2int(bytes, 0, dst, 0, dst.length);
+                    if (!Arrays.equals(src, dst)) {
+                        ok[0] = false;
+                    }
+                }
+            }
+        };
+        converter.start();
+        Thread.sleep(5);
+        // as a receive port does when it closes a connection
+        conversion.close();
+        converter.join();
+
+        assertTrue(ok[0]);
+        assertEquals(inUse, BufferPool.getDirectBytesInUse());
+    }
+}
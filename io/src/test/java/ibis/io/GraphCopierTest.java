@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import org.junit.Test;
+
+public class GraphCopierTest {
+
+    static class Base implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long created;
+
+        Base(long created) {
+            this.created = created;
+        }
+    }
+
+    static class Node extends Base {
+        private static final long serialVersionUID = 1L;
+
+        final int id;
+
+        final String name;
+
+        transient int cachedHash = 17;
+
+        transient Object scratch = new Object();
+
+        double weight;
+
+        int[] data;
+
+        Node next;
+
+        Node[] children;
+
+        Node(int id, String name) {
+            super(1000L + id);
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    static class Custom implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        int value;
+
+        transient int written;
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            out.writeInt(value * 2);
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException,
+                ClassNotFoundException {
+            in.defaultReadObject();
+            written = in.readInt();
+        }
+    }
+
+    /**
+     * Builds a ring of nodes in which every node also points to the shared
+     * array and to the first node.
+     */
+    private static Node graph() {
+        int[] shared = { 1, 2, 3 };
+        Node first = new Node(0, "node 0");
+        Node last = first;
+        for (int i = 1; i < 5; i++) {
+            Node n = new Node(i, "node " + i);
+            n.weight = i / 2.0;
+            n.data = shared;
+            n.children = new Node[] { first, n, null };
+            last.next = n;
+            last = n;
+        }
+        last.next = first;
+        first.data = new int[] { 4, 5 };
+        first.children = new Node[0];
+        return first;
+    }
+
+    private static Object serialize(Object o) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray()));
+        return in.readObject();
+    }
+
+    /**
+     * Checks that both graphs have the same shape and contents.
+     */
+    private static void assertSameGraph(Node expected, Node actual) {
+        Node e = expected;
+        Node a = actual;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(e.created, a.created);
+            assertEquals(e.id, a.id);
+            assertEquals(e.name, a.name);
+            assertEquals(e.cachedHash, a.cachedHash);
+            assertEquals(e.scratch == null, a.scratch == null);
+            assertEquals(e.weight, a.weight, 0.0);
+            assertArrayEquals(e.data, a.data);
+            assertEquals(e.children.length, a.children.length);
+            for (int j = 0; j < e.children.length; j++) {
+                if (e.children[j] == null) {
+                    assertNull(a.children[j]);
+                } else {
+                    assertEquals(e.children[j].id, a.children[j].id);
+                }
+            }
+            e = e.next;
+            a = a.next;
+        }
+        assertSame(expected, e);
+        assertSame(actual, a);
+    }
+
+    @Test
+    public void copyMatchesSerialization() throws Exception {
+        Node original = graph();
+        Node copy = (Node) new GraphCopier().copy(original);
+        Node serialized = (Node) serialize(original);
+
+        assertSameGraph(serialized, copy);
+    }
+
+    @Test
+    public void copyKeepsSharingAndCycles() throws Exception {
+        Node original = graph();
+        Node copy = (Node) new GraphCopier().copy(original);
+
+        assertNotSame(original, copy);
+        assertSame(copy, copy.next.next.next.next.next);
+        assertSame(copy, copy.next.children[0]);
+        assertSame(copy.next, copy.next.children[1]);
+        assertNotSame(original.next.data, copy.next.data);
+        assertSame(copy.next.data, copy.next.next.data);
+        assertSame(original.name, copy.name);
+    }
+
+    @Test
+    public void copySetsFinalsAndDefaultsTransients() throws Exception {
+        Node original = graph();
+        Node copy = (Node) new GraphCopier().copy(original);
+
+        assertEquals(1000L, copy.created);
+        assertEquals(0, copy.id);
+        assertEquals("node 0", copy.name);
+        assertEquals(0, copy.cachedHash);
+        assertNull(copy.scratch);
+    }
+
+    @Test
+    public void copyRefusesWriteObject() {
+        Custom c = new Custom();
+        c.value = 21;
+        try {
+            new GraphCopier().copy(new Object[] { c });
+            fail("copied an object with writeObject");
+        } catch (GraphCopier.Unsupported e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void deepCopyFallsBackToSerialization() {
+        Custom c = new Custom();
+        c.value = 21;
+        Object[] original = new Object[] { c, c };
+
+        Object[] copy = (Object[]) DeepCopy.deepCopy(original);
+
+        assertNotSame(original, copy);
+        assertSame(copy[0], copy[1]);
+        Custom cc = (Custom) copy[0];
+        assertNotSame(c, cc);
+        assertEquals(21, cc.value);
+        assertEquals(42, cc.written);
+    }
+}
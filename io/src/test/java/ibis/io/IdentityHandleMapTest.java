@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+public class IdentityHandleMapTest {
+
+    /** Objects that are equal, but not identical. */
+    private static Object[] objects(int n) {
+        Object[] result = new Object[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = new String("object");
+        }
+        return result;
+    }
+
+    @Test
+    public void findsByIdentity() {
+        IdentityHandleMap map = new IdentityHandleMap();
+        Object[] o = objects(10);
+
+        for (int i = 0; i < o.length; i++) {
+            assertEquals(i + 1, map.put(o[i], i + 1));
+        }
+        assertEquals(o.length, map.size());
+        for (int i = 0; i < o.length; i++) {
+            assertEquals(i + 1, map.find(o[i]));
+        }
+        assertEquals(0, map.find(new String("object")));
+    }
+
+    @Test
+    public void lazyPutReturnsPresentHandle() {
+        IdentityHandleMap map = new IdentityHandleMap();
+        Object o = new Object();
+
+        assertEquals(5, map.lazyPut(o, 5));
+        assertEquals(5, map.lazyPut(o, 6));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void growKeepsEntries() {
+        IdentityHandleMap map = new IdentityHandleMap(1);
+        Object[] o = objects(10000);
+
+        for (int i = 0; i < o.length; i++) {
+            map.put(o[i], i + 1);
+        }
+        assertEquals(o.length, map.size());
+        for (int i = 0; i < o.length; i++) {
+            assertEquals(i + 1, map.find(o[i]));
+        }
+    }
+
+    @Test
+    public void clearRemovesEntries() {
+        IdentityHandleMap map = new IdentityHandleMap();
+        Object[] o = objects(1000);
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < o.length; i++) {
+                assertEquals(0, map.find(o[i]));
+                map.put(o[i], round * o.length + i + 1);
+            }
+            map.clear();
+            assertEquals(0, map.size());
+        }
+
+        // Entries of the new generation only.
+        map.put(o[0], 42);
+        assertEquals(42, map.find(o[0]));
+        assertEquals(0, map.find(o[1]));
+    }
+
+    @Test
+    public void clearReleasesObjects() throws InterruptedException {
+        IdentityHandleMap map = new IdentityHandleMap();
+        Object o = new Object();
+        WeakReference<Object> ref = new WeakReference<Object>(o);
+
+        map.put(o, 1);
+        o = null;
+        map.clear();
+
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("cleared object still reachable", ref.get());
+    }
+}
@@ -31,6 +31,7 @@ import java.util.UUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ibis.io.BufferPool;
 import ibis.io.IbisIOException;
 import ibis.ipl.Credentials;
 import ibis.ipl.IbisCapabilities;
@@ -778,6 +779,38 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
         return vivaldiClient.getCoordinates();
     }
 
+    /**
+     * Returns the Vivaldi coordinates of the given ibis, or null when these
+     * are not known (yet). Never blocks.
+     */
+    public Coordinates getVivaldiCoordinates(ibis.ipl.IbisIdentifier ibis) {
+        if (vivaldiClient == null) {
+            return null;
+        }
+
+        return vivaldiClient.getCoordinates((IbisIdentifier) ibis);
+    }
+
+    /**
+     * Returns the estimated round-trip time to the given ibis in
+     * milliseconds, based on the Vivaldi coordinates. Returns 0 when this is
+     * not known (yet). Never blocks, so this can be used when setting up a
+     * connection.
+     */
+    public double getVivaldiDistance(ibis.ipl.IbisIdentifier ibis) {
+        Coordinates local = getVivaldiCoordinates();
+        if (local == null) {
+            return 0.0;
+        }
+
+        Coordinates remote = getVivaldiCoordinates(ibis);
+        if (remote == null) {
+            return 0.0;
+        }
+
+        return local.distance(remote);
+    }
+
     /*
      * @ibis.experimental
      */
@@ -854,6 +887,18 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
         result.put("bytesReceived", "" + getBytesReceived());
         result.put("bytesRead", "" + getBytesRead());
 
+        // the buffer pool is shared by all Ibis instances in this process
+        result.put("bufferPoolLimit", "" + BufferPool.getLimit());
+        result.put("bufferPoolSlabBytes", "" + BufferPool.getSlabBytes());
+        result.put("bufferPoolDirectBytesInUse", ""
+                + BufferPool.getDirectBytesInUse());
+        result.put("bufferPoolDirectBytesIdle", ""
+                + BufferPool.getDirectBytesIdle());
+        result.put("bufferPoolHeapBytesIdle", ""
+                + BufferPool.getHeapBytesIdle());
+        result.put("bufferPoolOverflows", "" + BufferPool.getOverflows());
+        result.put("bufferPoolLeaks", "" + BufferPool.getLeaks());
+
         return result;
     }
 
@@ -874,6 +919,11 @@ public abstract class Ibis implements ibis.ipl.Ibis // , IbisMBean
         double mbRead = getBytesRead() / 1024.0 / 1024.0;
         stream.format("Data read from messages: %.2f Mb\n", mbRead);
 
+        double mbInUse = BufferPool.getDirectBytesInUse() / 1024.0 / 1024.0;
+        double mbIdle = BufferPool.getDirectBytesIdle() / 1024.0 / 1024.0;
+        stream.format("Direct buffer memory: %.2f Mb in use, %.2f Mb idle\n",
+                mbInUse, mbIdle);
+
         stream.flush();
     }
 
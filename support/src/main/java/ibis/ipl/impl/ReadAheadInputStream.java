@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.impl;
+
+import ibis.util.ThreadPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Input stream for a connection of a receive port with a receive queue. Until
+ * {@link #startReadAhead(ReceivePort)} is called, it just passes reads on to
+ * the underlying stream. After that, a separate thread keeps draining the
+ * underlying stream into a bounded list of blocks, so the sender can continue
+ * while the application is still busy with an earlier message. The number of
+ * blocks is bounded per connection, the number of bytes per receive port.
+ */
+public final class ReadAheadInputStream extends InputStream implements
+        Runnable {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger("ibis.ipl.impl.ReadAheadInputStream");
+
+    /** Time to wait before retrying when the port memory limit is reached. */
+    private static final int MEMORY_RETRY_INTERVAL = 10;
+
+    private static final class Block {
+        final byte[] data;
+
+        final int length;
+
+        int index = 0;
+
+        Block(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private final InputStream in;
+
+    private final int blockSize;
+
+    private final LinkedList<Block> blocks = new LinkedList<Block>();
+
+    private ReceivePort port = null;
+
+    private int depth;
+
+    private boolean consumerWaiting = false;
+
+    private boolean eof = false;
+
+    private IOException exception = null;
+
+    private boolean closed = false;
+
+    /**
+     * Creates a read-ahead stream on top of the given stream.
+     *
+     * @param in
+     *            the underlying stream.
+     * @param blockSize
+     *            maximum size of a single block read ahead.
+     */
+    public ReadAheadInputStream(InputStream in, int blockSize) {
+        this.in = in;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Starts reading ahead, if the given receive port has a receive queue.
+     * Must be called before the stream is used for messages.
+     *
+     * @param port
+     *            the receive port this connection belongs to.
+     */
+    public void startReadAhead(ReceivePort port) {
+        if (port.queueDepth <= 0) {
+            return;
+        }
+        synchronized (this) {
+            if (this.port != null) {
+                return;
+            }
+            this.port = port;
+            this.depth = port.queueDepth;
+        }
+        ThreadPool.createNew(this, "ReadAhead of " + port.name);
+    }
+
+    private synchronized boolean isStarted() {
+        return port != null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        if (n < 0) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (!isStarted()) {
+            return in.read(b, off, len);
+        }
+
+        if (len == 0) {
+            return 0;
+        }
+
+        Block block;
+        int n;
+        synchronized (this) {
+            while (blocks.isEmpty()) {
+                if (exception != null) {
+                    throw exception;
+                }
+                if (eof || closed) {
+                    return -1;
+                }
+                consumerWaiting = true;
+                notifyAll();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+            consumerWaiting = false;
+
+            block = blocks.getFirst();
+            n = Math.min(len, block.length - block.index);
+            System.arraycopy(block.data, block.index, b, off, n);
+            block.index += n;
+            if (block.index == block.length) {
+                blocks.removeFirst();
+                // wake up reader, there is room for another block
+                notifyAll();
+            } else {
+                block = null;
+            }
+        }
+
+        if (block != null) {
+            port.releaseQueueMemory(block.data.length);
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        if (port == null) {
+            return in.available();
+        }
+        int result = 0;
+        for (Block block : blocks) {
+            result += block.length - block.index;
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        long buffered = 0;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Block block : blocks) {
+                buffered += block.data.length;
+            }
+            blocks.clear();
+            notifyAll();
+        }
+        if (buffered > 0) {
+            port.releaseQueueMemory(buffered);
+        }
+        in.close();
+    }
+
+    /**
+     * Waits until there is room for another block, both in this connection
+     * and in the receive port. If the application is waiting for data on
+     * this connection, the port memory limit is ignored, as it would
+     * otherwise deadlock on blocks buffered for other connections.
+     *
+     * @return false if the stream was closed.
+     */
+    private synchronized boolean waitForRoom() {
+        while (!closed) {
+            if (blocks.size() < depth) {
+                if (port.acquireQueueMemory(blockSize, consumerWaiting)) {
+                    return true;
+                }
+                try {
+                    wait(MEMORY_RETRY_INTERVAL);
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            } else {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+        }
+        return false;
+    }
+
+    public void run() {
+        while (true) {
+            if (!waitForRoom()) {
+                return;
+            }
+
+            byte[] data = new byte[blockSize];
+            int n;
+            try {
+                n = in.read(data, 0, blockSize);
+            } catch (IOException e) {
+                port.releaseQueueMemory(blockSize);
+                synchronized (this) {
+                    if (!closed && logger.isDebugEnabled()) {
+                        logger.debug("read-ahead got exception", e);
+                    }
+                    exception = e;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                if (n < 0 || closed) {
+                    port.releaseQueueMemory(blockSize);
+                    eof = true;
+                    notifyAll();
+                    return;
+                }
+                blocks.addLast(new Block(data, n));
+                notifyAll();
+            }
+        }
+    }
+}
@@ -37,6 +37,7 @@ import ibis.ipl.MessageUpcall;
 import ibis.ipl.PortType;
 import ibis.ipl.ReceivePortConnectUpcall;
 import ibis.ipl.ReceiveTimedOutException;
+import ibis.util.TypedProperties;
 
 /**
  * Implementation of the {@link ibis.ipl.ReceivePort} interface, to be extended
@@ -72,6 +73,18 @@ public abstract class ReceivePort extends Manageable
     /** Receiveport already has a connection, and ManyToOne is not specified. */
     public static final byte NO_MANY_TO_X = 6;
 
+    /**
+     * Number of blocks each connection of an explicit receive port reads ahead
+     * from the network, 0 (the default) disables the receive queue.
+     */
+    private static final String QUEUE_DEPTH = "ibis.receiveport.queue.depth";
+
+    /**
+     * Maximum number of bytes buffered by the receive queue of a single
+     * receive port, 16M by default.
+     */
+    private static final String QUEUE_MEMORY = "ibis.receiveport.queue.memory";
+
     final static Set<Thread> threadsInUpcallSet = Collections
             .synchronizedSet(new HashSet<Thread>());
 
@@ -143,6 +156,21 @@ public abstract class ReceivePort extends Manageable
     private long nLostConnections = 0;
     private long nClosedConnections = 0;
 
+    /**
+     * Number of blocks each connection reads ahead, 0 if this port has no
+     * receive queue.
+     */
+    protected final int queueDepth;
+
+    /** Maximum number of bytes buffered by the receive queue of this port. */
+    private final long queueMemoryLimit;
+
+    /** Number of bytes currently buffered by the receive queue. */
+    private long queueMemory = 0;
+
+    /** Lock for the receive queue memory administration. */
+    private final Object queueLock = new Object();
+
     private int outstanding; // For connections that have been allowed but are
                              // not
                              // actually present yet.
@@ -200,6 +228,14 @@ public abstract class ReceivePort extends Manageable
         } else {
             serialization = "byte";
         }
+        TypedProperties tp = new TypedProperties(this.properties);
+        if (upcall == null) {
+            queueDepth = tp.getIntProperty(QUEUE_DEPTH, 0);
+        } else {
+            // upcalls are done by the reader threads themselves
+            queueDepth = 0;
+        }
+        queueMemoryLimit = tp.getSizeProperty(QUEUE_MEMORY, 16 * 1024 * 1024);
         ibis.register(this);
         if (logger.isDebugEnabled()) {
             logger.debug(ibis.ident + ": ReceivePort '" + name + "' created");
@@ -210,6 +246,7 @@ public abstract class ReceivePort extends Manageable
         addValidKey("Connections");
         addValidKey("LostConnections");
         addValidKey("ClosedConnections");
+        addValidKey("QueueBytes");
     }
 
     protected ReadMessage createReadMessage(SerializationInput in,
@@ -758,6 +795,9 @@ public abstract class ReceivePort extends Manageable
         setProperty("Messages", "" + nMessages);
         setProperty("MessageBytes", "" + messageBytes);
         setProperty("LostConnections", "" + nLostConnections);
+        synchronized (queueLock) {
+            setProperty("QueueBytes", "" + queueMemory);
+        }
     }
 
     @Override
@@ -784,6 +824,32 @@ public abstract class ReceivePort extends Manageable
         }
     }
 
+    /**
+     * Reserves memory for a block in the receive queue of this port.
+     *
+     * @param size
+     *            the size of the block.
+     * @param force
+     *            when set, the memory limit is ignored.
+     * @return false if the memory limit would be exceeded.
+     */
+    boolean acquireQueueMemory(long size, boolean force) {
+        synchronized (queueLock) {
+            if (!force && queueMemory > 0
+                    && queueMemory + size > queueMemoryLimit) {
+                return false;
+            }
+            queueMemory += size;
+            return true;
+        }
+    }
+
+    void releaseQueueMemory(long size) {
+        synchronized (queueLock) {
+            queueMemory -= size;
+        }
+    }
+
     void addDataIn(long cnt) {
         bytes += cnt;
     }
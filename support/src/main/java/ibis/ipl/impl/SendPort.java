@@ -60,13 +60,35 @@ public abstract class SendPort extends Manageable implements ibis.ipl.SendPort {
 
     private static final String ALLOW_CONN_IN_UPCALL = "ibis.upcall.connections";
 
+    private static final String ASYNC_SEND = "ibis.sendport.async";
+
+    private static final String ASYNC_SEND_BLOCKS = "ibis.sendport.async.blocks";
+
+    private static final String PARALLEL_FANOUT = "ibis.sendport.fanout.parallel";
+
+    private static final String FANOUT_LIMIT = "ibis.sendport.fanout.limit";
+
     private static final String[][] propertiesList = new String[][] {
             { ALLOW_COMM_IN_UPCALL, "false",
                     "Boolean: when set, communication is allowed from inside upcalls,"
                             + " without first calling finish()." },
             { ALLOW_CONN_IN_UPCALL, "false",
                     "Boolean: when set, connection setup is allowed from inside upcalls,"
-                            + " without first calling finish()." }, };
+                            + " without first calling finish()." },
+            { ASYNC_SEND, "false",
+                    "Boolean: when set, message data is transmitted by a separate thread,"
+                            + " so send() returns before the data is written, if the"
+                            + " implementation supports this." },
+            { ASYNC_SEND_BLOCKS, "8",
+                    "Integer: maximum number of buffers queued for transmission"
+                            + " when " + ASYNC_SEND + " is set." },
+            { PARALLEL_FANOUT, "false",
+                    "Boolean: when set, one-to-many ports write to all their"
+                            + " connections concurrently, if the implementation"
+                            + " supports this." },
+            { FANOUT_LIMIT, "1M",
+                    "Size: maximum number of bytes a connection may lag behind"
+                            + " when " + PARALLEL_FANOUT + " is set." }, };
 
     /** The type of this port. */
     public final PortType type;
@@ -174,6 +196,30 @@ public abstract class SendPort extends Manageable implements ibis.ipl.SendPort {
      */
     private final boolean allowConnectionsInUpcall;
 
+    /**
+     * When set, the implementation should transmit message data in a
+     * separate thread, see {@link #sendMessageData()}.
+     */
+    protected final boolean asyncSend;
+
+    /**
+     * Maximum number of buffers queued for transmission, when
+     * {@link #asyncSend} is set.
+     */
+    protected final int asyncSendBlocks;
+
+    /**
+     * When set, the implementation should write to all connections of a
+     * one-to-many port concurrently.
+     */
+    protected final boolean parallelFanout;
+
+    /**
+     * Maximum number of bytes a connection may lag behind the others, when
+     * {@link #parallelFanout} is set.
+     */
+    protected final long fanoutLimit;
+
     /**
      * Constructs a <code>SendPort</code> with the specified parameters. Note
      * that all property checks are already performed in the
@@ -233,6 +279,10 @@ public abstract class SendPort extends Manageable implements ibis.ipl.SendPort {
                 false);
         allowConnectionsInUpcall = tp.getBooleanProperty(ALLOW_CONN_IN_UPCALL,
                 false);
+        asyncSend = tp.getBooleanProperty(ASYNC_SEND, false);
+        asyncSendBlocks = tp.getIntProperty(ASYNC_SEND_BLOCKS, 8);
+        parallelFanout = tp.getBooleanProperty(PARALLEL_FANOUT, false);
+        fanoutLimit = tp.getSizeProperty(FANOUT_LIMIT, 1024 * 1024);
         ibis.register(this);
         if (logger.isDebugEnabled()) {
             logger.debug(
@@ -868,6 +918,36 @@ public abstract class SendPort extends Manageable implements ibis.ipl.SendPort {
         }
     }
 
+    /**
+     * Starts transmission of the data written to the current message so far.
+     * This method is called by the {@link WriteMessage#send()}
+     * implementation. The default implementation does nothing, the data is
+     * transmitted when the buffers fill up or the message is flushed.
+     * Implementations that transmit in a separate thread may redefine it.
+     *
+     * @return a ticket for {@link #syncMessageData(int)}.
+     * @throws IOException
+     *             when an IO error occurs.
+     */
+    protected int sendMessageData() throws IOException {
+        return 0;
+    }
+
+    /**
+     * Waits until the data of the {@link #sendMessageData()} call that
+     * returned the specified ticket has been transmitted. This method is
+     * called by the {@link WriteMessage#sync(int)} implementation. The
+     * default implementation flushes the message.
+     *
+     * @param ticket
+     *            the ticket.
+     * @throws IOException
+     *             when an IO error occurs.
+     */
+    protected void syncMessageData(int ticket) throws IOException {
+        out.flush();
+    }
+
     /**
      * Implements the SendPort side of a message finish with exception. This
      * method is called by the {@link WriteMessage#finish(java.io.IOException)}
@@ -61,6 +61,11 @@ public class WriteMessage implements ibis.ipl.WriteMessage {
 
     public int send() throws IOException {
         checkNotFinished();
+        try {
+            return port.sendMessageData();
+        } catch (Throwable e) {
+            throwException(e);
+        }
         return 0;
     }
 
@@ -85,7 +90,7 @@ public class WriteMessage implements ibis.ipl.WriteMessage {
     public void sync(int ticket) throws IOException {
         checkNotFinished();
         try {
-            out.flush();
+            port.syncMessageData(ticket);
         } catch (Throwable e) {
             throwException(e);
         }
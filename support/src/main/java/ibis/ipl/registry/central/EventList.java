@@ -16,25 +16,106 @@
 package ibis.ipl.registry.central;
 
 import java.util.ArrayList;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Event history, indexed by event time. Events are kept in a ring buffer in
+ * which the slot of an event follows from its time, so getting an event is
+ * a single array access, and reading a range of events only touches that
+ * range. There may be holes in the history (on a client events can arrive
+ * out of order), which are empty slots.
+ * <p>
+ * The history keeps track of an estimate of the memory used by the events,
+ * and may be given a retention window: the maximum number of event times
+ * kept. When a new event falls outside the window, the oldest events are
+ * dropped, as if {@link #setMinimum(int)} was called.
+ */
 public class EventList {
-    
+
     private static final Logger logger = LoggerFactory.getLogger(EventList.class);
-    
-    private final SortedSet<Event> events;
-    
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // estimates used for memory accounting, in bytes
+    private static final long EVENT_SIZE = 64;
+
+    private static final long IDENTIFIER_SIZE = 256;
+
+    // slot of event with time t is t & (events.length - 1)
+    private Event[] events;
+
+    // times of events in the buffer are in [start, end)
+    private int start;
+
+    private int end;
+
+    // number of events in the buffer
+    private int size;
+
+    private long memoryUsage;
+
+    // maximum number of event times kept, or 0 for no limit
+    private final int retention;
+
     private int minimum;
-    
+
     public EventList() {
-        events = new TreeSet<Event>();
+        this(0);
+    }
+
+    /**
+     * Creates an event history which keeps at most the given number of
+     * event times.
+     *
+     * @param retention
+     *            maximum number of event times kept, or 0 for no limit
+     */
+    public EventList(int retention) {
+        this.retention = retention;
+        events = new Event[INITIAL_CAPACITY];
+        start = 0;
+        end = 0;
+        size = 0;
+        memoryUsage = 0;
         minimum = 0;
     }
 
+    private static long sizeOf(Event event) {
+        long result = EVENT_SIZE + 2 * event.getDescription().length();
+        if (event.getIbis() != null) {
+            result += IDENTIFIER_SIZE;
+        }
+        if (event.getType() == Event.SIGNAL) {
+            result += IDENTIFIER_SIZE * event.getDestinations().length;
+        }
+        return result;
+    }
+
+    private Event slot(int time) {
+        return events[time & (events.length - 1)];
+    }
+
+    /**
+     * Makes room for events with times in [from, to).
+     */
+    private void ensureCapacity(int from, int to) {
+        int needed = to - from;
+        if (needed <= events.length) {
+            return;
+        }
+        int capacity = events.length;
+        while (capacity < needed) {
+            capacity *= 2;
+        }
+        Event[] newEvents = new Event[capacity];
+        for (int time = start; time < end; time++) {
+            newEvents[time & (capacity - 1)] = slot(time);
+        }
+        events = newEvents;
+    }
+
     /**
      * Returns the specified event.
      * 
@@ -43,128 +124,174 @@ public class EventList {
      *  @return the specified event, or null if it is not found.
      */
     public Event get(int time) {
-	if (logger.isDebugEnabled()) {
-	    logger.debug("getting event " + time);
-	}
-        for(Event event: events) {
-            if (event.getTime() == time) {
-        	if (logger.isDebugEnabled()) {
-        	    logger.debug("getting event " + time + ", returning " + event);
-        	}
-                return event;
-            }
-            if (event.getTime() > time) {
-        	if (logger.isDebugEnabled()) {
-        	    logger.debug("getting event " + time + ", returning <null>");
-        	}
-                return null;
-            }
+        Event result = null;
+        if (time >= start && time < end) {
+            result = slot(time);
         }
         if (logger.isDebugEnabled()) {
-            logger.debug("getting event " + time + ", returning <null>");
+            logger.debug("getting event " + time + ", returning " + result);
         }
-        return null;
+        return result;
     }
-    
+
+    /**
+     * Returns the first event at or after the given time, and all events
+     * directly following it, up to the first missing event.
+     */
     public Event[] getList(int start) {
-	if (logger.isDebugEnabled()) {
-	    logger.debug("getting events from " + start);
-	}
-        ArrayList<Event> result = new ArrayList<Event>();
-        
-        for(Event event: events) {
-            if (logger.isDebugEnabled()) {
-        	logger.debug("considering " + event);
-            }
-            int time = event.getTime();
-            if (time >= start) {
-                if (result.isEmpty()) {
-                    if (logger.isDebugEnabled()) {
-                	logger.debug("adding " + event);
-                    }
-                    result.add(event);
-                } else {
-                    Event previous = result.get(result.size() - 1);
-                    if (time != (previous.getTime() + 1)) {
-                	if (logger.isDebugEnabled()) {
-                	    logger.debug("NOT adding " + event + " time should be " + (previous.getTime() + 1));
-                	}
-                        return result.toArray(new Event[0]);
-                    }
-                    if (logger.isDebugEnabled()) {
-                	logger.debug("adding " + event);
-                    }
-                    result.add(event);
-                }
-            }
+        if (logger.isDebugEnabled()) {
+            logger.debug("getting events from " + start);
         }
-        return result.toArray(new Event[0]);
+        int first = Math.max(start, this.start);
+        while (first < end && slot(first) == null) {
+            first++;
+        }
+        int last = first;
+        while (last < end && slot(last) != null) {
+            last++;
+        }
+
+        Event[] result = new Event[last - first];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = slot(first + i);
+        }
+        return result;
     }
 
+    /**
+     * Returns all signal events with a time in [from, to].
+     */
     public Event[] getSignalEvents(int from, int to) {
         ArrayList<Event> result = new ArrayList<Event>();
-        
-        for (Event event: events) {
-            if (event.getTime() > to) {
-                //no more events will have a time >= from and <= to
-                return result.toArray(new Event[0]);
-            }
 
-            if (event.getType() == Event.SIGNAL && event.getTime() >= from) {
+        int last = Math.min(to, end - 1);
+        for (int time = Math.max(from, start); time <= last; time++) {
+            Event event = slot(time);
+            if (event != null && event.getType() == Event.SIGNAL) {
                 result.add(event);
             }
         }
-        
+
         return result.toArray(new Event[0]);
     }
 
     public void add(Event... newEvents) {
-        for(Event event: newEvents) {
-            events.add(event);
+        for (Event event : newEvents) {
+            int time = event.getTime();
+
+            if (time < minimum) {
+                // purged already, not needed anymore
+                if (logger.isDebugEnabled()) {
+                    logger.debug("ignoring purged event: " + event);
+                }
+                continue;
+            }
+
+            if (size == 0) {
+                start = time;
+                end = time;
+            }
+
+            if (retention > 0 && time - retention + 1 > minimum) {
+                setMinimum(time - retention + 1);
+                if (size == 0) {
+                    start = time;
+                    end = time;
+                }
+            }
+
+            int from = Math.min(start, time);
+            int to = Math.max(end, time + 1);
+            ensureCapacity(from, to);
+            start = from;
+            end = to;
+
+            int index = time & (events.length - 1);
+            if (events[index] == null) {
+                events[index] = event;
+                size++;
+                memoryUsage += sizeOf(event);
+            }
+
             if (logger.isDebugEnabled()) {
                 logger.debug("adding event to list: " + event + ", list now " + toString());
             }
         }
     }
-    
+
     public void setMinimum(int time) {
         minimum = time;
         if (logger.isDebugEnabled()) {
             logger.debug("purging upto " + time);
         }
-        while(!events.isEmpty() && events.first().getTime() < time) {
-            Event first = events.first();
-            if (logger.isDebugEnabled()) {
-        	logger.debug("removing " + first);
+
+        int last = Math.min(time, end);
+        for (int i = start; i < last; i++) {
+            int index = i & (events.length - 1);
+            Event event = events[index];
+            if (event != null) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("removing " + event);
+                }
+                events[index] = null;
+                size--;
+                memoryUsage -= sizeOf(event);
+            }
+        }
+        if (time > start) {
+            start = time;
+            if (end < start) {
+                end = start;
             }
-            events.remove(first);
         }
     }
-    
+
     public int getNextRequiredEvent() {
         int result = minimum;
-        
-        for (Event event: events) {
-            if (event.getTime() == result + 1) {
-                result = result + 1;
-            }
+
+        while (get(result + 1) != null) {
+            result++;
         }
-  
+
         if (logger.isDebugEnabled()) {
             logger.debug("next required event: " + result);
         }
-        
+
         return result;
     }
 
-    
+    /**
+     * Returns the time of the oldest event that may be in the history.
+     */
+    public int getMinimum() {
+        return minimum;
+    }
+
+    /**
+     * Returns the number of events in the history.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns an estimate of the memory used by the events in the history,
+     * in bytes.
+     */
+    public long getMemoryUsage() {
+        return memoryUsage;
+    }
+
     public String toString() {
-        String message = "eventList: ";
-        for(Event event: events) {
-            message += event + " ";
+        StringBuilder message = new StringBuilder("eventList: ");
+        for (int time = start; time < end; time++) {
+            Event event = slot(time);
+            if (event != null) {
+                message.append(event).append(' ');
+            }
         }
-        
-        return message;
+
+        return message.toString();
     }
-    
+
 }
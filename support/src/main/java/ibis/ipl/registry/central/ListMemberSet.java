@@ -202,6 +202,10 @@ public final class ListMemberSet implements MemberSet {
     public Member[] getRootChildren() {
         return asArray();
     }
+
+    public Member getParent(IbisIdentifier ibis) {
+        return null;
+    }
     
     
 
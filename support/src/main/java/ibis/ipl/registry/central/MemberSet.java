@@ -60,4 +60,8 @@ public interface MemberSet {
     public Member[] getChildren(IbisIdentifier ibis);
 
     public Member[] getRootChildren();
+
+    // returns the member of which the given ibis is a child, or null if it
+    // is a child of the root
+    public Member getParent(IbisIdentifier ibis);
 }
@@ -57,10 +57,21 @@ public final class Protocol {
 
     public static final byte OPCODE_GET_TOKEN = 16;
 
-    public static final int NR_OF_OPCODES = 17;
+    // long-lived connection carrying multiple requests, see
+    // ibis.ipl.support.ConnectionMultiplexer
+    public static final byte OPCODE_SESSION = 17;
+
+    public static final byte OPCODE_SEQUENCE_BLOCK = 18;
+
+    // heartbeat of a member and of the members below it in the broadcast
+    // tree, sent to its parent in the tree, or to the server
+    public static final byte OPCODE_TREE_HEARTBEAT = 19;
+
+    public static final int NR_OF_OPCODES = 20;
 
     public static final String[] OPCODE_NAMES = { "JOIN", "LEAVE", "GOSSIP",
             "ELECT", "SEQUENCE_NR", "DEAD", "MAYBE_DEAD", "SIGNAL", "PING",
             "PUSH", "BROADCAST", "FORWARD", "GET_STATE", "HEARTBEAT",
-            "TERMINATE", "ADD_TOKENS", "GET_TOKEN" };
+            "TERMINATE", "ADD_TOKENS", "GET_TOKEN", "SESSION",
+            "SEQUENCE_BLOCK", "TREE_HEARTBEAT" };
 }
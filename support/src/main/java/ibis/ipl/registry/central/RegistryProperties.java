@@ -52,6 +52,21 @@ public class RegistryProperties {
     public static final String SERVER_CONNECT_TIMEOUT = PREFIX
             + "server.connect.timeout";
 
+    public static final String SERVER_THREADS = PREFIX + "server.threads";
+
+    public static final String SERVER_BACKLOG = PREFIX + "server.backlog";
+
+    public static final String SERVER_EVENT_RETENTION = PREFIX
+            + "server.event.retention";
+
+    public static final String PERSISTENT_CONNECTION = PREFIX
+            + "persistent.connection";
+
+    public static final String SEQUENCE_BLOCK_SIZE = PREFIX
+            + "sequence.block.size";
+
+    public static final String SEQUENCE_STRICT = PREFIX + "sequence.strict";
+
     public static final String STATISTICS = PREFIX + "statistics";
 
     public static final String STATISTICS_INTERVAL = PREFIX
@@ -110,6 +125,30 @@ public class RegistryProperties {
                     "10",
                     "Int(seconds): how long does the server attempt to connect to a client before giving up" },
 
+            { SERVER_THREADS, "1000",
+                    "Int: maximum number of requests the server handles at the same time" },
+
+            { SERVER_BACKLOG, "1024",
+                    "Int: number of connections waiting to be accepted by the server before new ones are refused" },
+
+            { SERVER_EVENT_RETENTION, "0",
+                    "Int: maximum number of events kept by the server for members that are catching up, 0 for no limit. Members that fall further behind miss events" },
+
+            {
+                    PERSISTENT_CONNECTION,
+                    "true",
+                    "Boolean: if true, clients send all requests after the join over a single long-lived connection to the server, reconnecting when needed" },
+
+            {
+                    SEQUENCE_BLOCK_SIZE,
+                    "1",
+                    "Int: number of sequence numbers a client leases from the server at a time. Numbers remain unique, but are no longer handed out in global order if this is larger than 1" },
+
+            {
+                    SEQUENCE_STRICT,
+                    null,
+                    "Comma separated list of names of sequencers which are never leased, so their numbers are handed out in global order" },
+
             { STATISTICS, "false",
                     "Boolean: gather per-pool statistics at the server and save them to a file" },
 
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.registry.central;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Members and elections of a pool at some event time, deflated. This is the
+ * bulk of the bootstrap data sent to a joining ibis. Since it does not depend
+ * on who asks for it, a snapshot can be created once and sent to many
+ * joiners. Any events after the time of the snapshot are sent to the joiner
+ * as normal events.
+ */
+public final class StateSnapshot {
+
+    private final int time;
+
+    // length of the state before compression
+    private final int length;
+
+    private final byte[] data;
+
+    private final long created;
+
+    /**
+     * Creates a snapshot of the given state.
+     *
+     * @param time
+     *            event time of the state
+     * @param state
+     *            members and elections, as written by
+     *            {@link MemberSet#writeTo} and {@link ElectionSet#writeTo}
+     */
+    public StateSnapshot(int time, byte[] state) {
+        this.time = time;
+        this.length = state.length;
+        this.created = System.currentTimeMillis();
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(state);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                state.length / 4 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        deflater.end();
+
+        data = out.toByteArray();
+    }
+
+    /**
+     * Reads a snapshot written with {@link #writeTo(DataOutputStream)}.
+     */
+    public StateSnapshot(DataInputStream in) throws IOException {
+        time = in.readInt();
+        length = in.readInt();
+        int dataLength = in.readInt();
+        if (length < 0 || dataLength < 0) {
+            throw new IOException("negative state length");
+        }
+        data = new byte[dataLength];
+        in.readFully(data);
+        created = System.currentTimeMillis();
+    }
+
+    public int getTime() {
+        return time;
+    }
+
+    public long getCreationTime() {
+        return created;
+    }
+
+    /**
+     * Returns the size of this snapshot on the wire.
+     */
+    public int size() {
+        return data.length + 12;
+    }
+
+    /**
+     * Returns the uncompressed state.
+     */
+    public byte[] getState() throws IOException {
+        byte[] result = new byte[length];
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        try {
+            int done = 0;
+            while (done < length) {
+                int n = inflater.inflate(result, done, length - done);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("truncated pool state");
+                }
+                done += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt pool state", e);
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(time);
+        out.writeInt(length);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+}
@@ -84,6 +84,14 @@ public final class TreeMemberSet implements MemberSet, Serializable {
 
     private Node lastSearchResult;
 
+    // parent and children of the ibis last asked about, until the tree
+    // changes. Members ask about themselves on every heartbeat.
+    private transient IbisIdentifier cachedIbis;
+
+    private transient Member cachedParent;
+
+    private transient Member[] cachedChildren;
+
     public TreeMemberSet() {
         nextNodeIndex = 0;
 
@@ -118,6 +126,8 @@ public final class TreeMemberSet implements MemberSet, Serializable {
             list = (ArrayList<Node>) objectInput.readObject();
             spares = (SortedSet<Node>) objectInput.readObject();
             nextNodeIndex = objectInput.readInt();
+            lastSearchResult = null;
+            invalidateCache();
         } catch (ClassNotFoundException e) {
             throw new IOException("could not deserialize data for tree");
         }
@@ -201,6 +211,7 @@ public final class TreeMemberSet implements MemberSet, Serializable {
         node.member = member;
 
         list.add(node);
+        invalidateCache();
 
         if (logger.isDebugEnabled()) {
             logger.debug("" + this);
@@ -219,6 +230,7 @@ public final class TreeMemberSet implements MemberSet, Serializable {
                 node.member = null;
                 list.remove(i);
                 spares.add(node);
+                invalidateCache();
 
                 if (logger.isDebugEnabled()) {
                     logger.debug("removed " + result + " from tree, result "
@@ -391,7 +403,28 @@ public final class TreeMemberSet implements MemberSet, Serializable {
         }
     }
 
+    private void invalidateCache() {
+        cachedIbis = null;
+        cachedParent = null;
+        cachedChildren = null;
+    }
+
+    private void fillCache(IbisIdentifier ibis) {
+        if (ibis.equals(cachedIbis)) {
+            return;
+        }
+
+        cachedParent = findParent(ibis);
+        cachedChildren = findChildren(ibis);
+        cachedIbis = ibis;
+    }
+
     public Member[] getChildren(IbisIdentifier ibis) {
+        fillCache(ibis);
+        return cachedChildren.clone();
+    }
+
+    private Member[] findChildren(IbisIdentifier ibis) {
 	if (logger.isDebugEnabled()) {
 	    logger.debug("getting children of " + ibis);
 	}
@@ -425,6 +458,46 @@ public final class TreeMemberSet implements MemberSet, Serializable {
         return result.toArray(new Member[0]);
     }
 
+    // searches the ibis in the subtree of the given node, ancestor is the
+    // closest node above it with a member.
+    private boolean findParent(Node node, Member ancestor,
+            IbisIdentifier ibis, Member[] result) {
+        if (node == null) {
+            return false;
+        }
+
+        if (node.member != null) {
+            if (node.member.getIbis().equals(ibis)) {
+                result[0] = ancestor;
+                return true;
+            }
+            ancestor = node.member;
+        }
+
+        for (Node child : node.children) {
+            if (findParent(child, ancestor, ibis, result)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Member findParent(IbisIdentifier ibis) {
+        Member[] result = new Member[1];
+
+        for (Node node : root) {
+            if (findParent(node, null, ibis, result)) {
+                return result[0];
+            }
+        }
+        return null;
+    }
+
+    public Member getParent(IbisIdentifier ibis) {
+        fillCache(ibis);
+        return cachedParent;
+    }
+
     public Member[] getRootChildren() {
         ArrayList<Member> result = new ArrayList<Member>();
 
@@ -15,6 +15,8 @@
  */
 package ibis.ipl.registry.central.client;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -30,12 +32,14 @@ import ibis.ipl.impl.Ibis;
 import ibis.ipl.impl.IbisIdentifier;
 import ibis.ipl.impl.Location;
 import ibis.ipl.registry.central.Event;
+import ibis.ipl.registry.central.Member;
 import ibis.ipl.registry.central.Protocol;
 import ibis.ipl.registry.central.RegistryProperties;
 import ibis.ipl.registry.statistics.Statistics;
 import ibis.ipl.server.ServerProperties;
 import ibis.ipl.support.Client;
 import ibis.ipl.support.Connection;
+import ibis.ipl.support.ConnectionMultiplexer;
 import ibis.smartsockets.virtual.VirtualServerSocket;
 import ibis.smartsockets.virtual.VirtualSocketAddress;
 import ibis.smartsockets.virtual.VirtualSocketFactory;
@@ -63,6 +67,12 @@ final class CommunicationHandler implements Runnable {
 
     private final VirtualSocketAddress serverAddress;
 
+    /**
+     * Long-lived connection to the server used for all requests after the
+     * join, or <code>null</code> if a connection is set up for each request.
+     */
+    private final ConnectionMultiplexer serverConnection;
+
     private final Pool pool;
 
     private final TypedProperties properties;
@@ -79,6 +89,9 @@ final class CommunicationHandler implements Runnable {
 
     private final boolean tree;
 
+    // timeout for sending a heartbeat to our parent in the tree
+    private final int heartbeatTimeout;
+
     // bootstrap data
 
     private IbisIdentifier identifier;
@@ -143,6 +156,15 @@ final class CommunicationHandler implements Runnable {
             throw new IOException("could not get address of server");
         }
 
+        if (properties
+                .getBooleanProperty(RegistryProperties.PERSISTENT_CONNECTION)) {
+            serverConnection = new ConnectionMultiplexer(serverAddress,
+                    timeout, virtualSocketFactory, new byte[] {
+                            Protocol.MAGIC_BYTE, Protocol.OPCODE_SESSION });
+        } else {
+            serverConnection = null;
+        }
+
         if (logger.isDebugEnabled()) {
             logger.debug(
                     "local address = " + serverSocket.getLocalSocketAddress());
@@ -157,6 +179,8 @@ final class CommunicationHandler implements Runnable {
         boolean exitOnServerFailure = properties
                 .getBooleanProperty(RegistryProperties.EXIT_ON_SERVER_FAILURE);
 
+        heartbeatTimeout = (int) Math.min(timeout, heartbeatInterval / 4);
+
         heartbeat = new Heartbeat(this, pool, heartbeatInterval,
                 exitOnServerFailure);
 
@@ -339,6 +363,19 @@ final class CommunicationHandler implements Runnable {
         return client;
     }
 
+    /**
+     * Returns a connection for a single request to the server. When the
+     * persistent connection is used, the request is sent over it by
+     * {@link Connection#getAndCheckReply()}.
+     */
+    private Connection connectToServer(int timeout) throws IOException {
+        if (serverConnection != null) {
+            return serverConnection.newRequest(timeout);
+        }
+        return new Connection(serverAddress, timeout, true,
+                virtualSocketFactory);
+    }
+
     void bootstrap() throws IOException {
         if (!peerBootstrap) {
             // we will receive bootstrap data from a push/forward/broadcast
@@ -400,8 +437,7 @@ final class CommunicationHandler implements Runnable {
                     "could not bootstrap registry with any peer, trying server");
         }
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
             connection.out().writeByte(Protocol.OPCODE_GET_STATE);
@@ -430,8 +466,7 @@ final class CommunicationHandler implements Runnable {
             throws IOException {
         long start = System.currentTimeMillis();
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -467,8 +502,7 @@ final class CommunicationHandler implements Runnable {
     public void terminate() throws IOException {
         long start = System.currentTimeMillis();
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -497,6 +531,15 @@ final class CommunicationHandler implements Runnable {
     }
 
     public long getSeqno(String name) throws IOException {
+        return getSeqno(name, 1);
+    }
+
+    /**
+     * Gets a block of consecutive sequence numbers from the server.
+     *
+     * @return the first number of the block.
+     */
+    long getSeqno(String name, int count) throws IOException {
         long start = System.currentTimeMillis();
 
         if (pool.isStopped()) {
@@ -505,16 +548,20 @@ final class CommunicationHandler implements Runnable {
         }
 
         if (logger.isDebugEnabled()) {
-            logger.debug("getting sequence number");
+            logger.debug("getting " + count + " sequence number(s)");
         }
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        byte opcode = count == 1 ? Protocol.OPCODE_SEQUENCE_NR
+                : Protocol.OPCODE_SEQUENCE_BLOCK;
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
-            connection.out().writeByte(Protocol.OPCODE_SEQUENCE_NR);
+            connection.out().writeByte(opcode);
             getIdentifier().writeTo(connection.out());
             connection.out().writeUTF(name);
+            if (count != 1) {
+                connection.out().writeInt(count);
+            }
             connection.out().flush();
 
             connection.getAndCheckReply();
@@ -530,7 +577,7 @@ final class CommunicationHandler implements Runnable {
             heartbeat.resetDeadlines();
             long end = System.currentTimeMillis();
             if (statistics != null) {
-                statistics.add(Protocol.OPCODE_SEQUENCE_NR, end - start,
+                statistics.add(opcode, end - start,
                         connection.read(), connection.written(), false);
             }
 
@@ -553,8 +600,7 @@ final class CommunicationHandler implements Runnable {
             logger.debug("declaring " + ibis + " to be dead");
         }
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -595,8 +641,7 @@ final class CommunicationHandler implements Runnable {
             logger.debug("reporting " + ibis + " to possibly be dead");
         }
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -645,14 +690,17 @@ final class CommunicationHandler implements Runnable {
             return true;
         }
 
+        if (tree) {
+            return sendTreeHeartBeat(start);
+        }
+
         if (logger.isDebugEnabled()) {
             logger.debug("sending heartbeat to server");
         }
 
         Connection connection = null;
         try {
-            connection = new Connection(serverAddress, timeout, true,
-                    virtualSocketFactory);
+            connection = connectToServer(timeout);
 
             connection.out().writeByte(Protocol.MAGIC_BYTE);
             connection.out().writeByte(Protocol.OPCODE_HEARTBEAT);
@@ -684,6 +732,124 @@ final class CommunicationHandler implements Runnable {
         }
     }
 
+    private static void writeIDs(DataOutputStream out, String[] ids)
+            throws IOException {
+        out.writeInt(ids.length);
+        for (String id : ids) {
+            out.writeUTF(id);
+        }
+    }
+
+    private static String[] readIDs(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("negative number of ibisses");
+        }
+        String[] result = new String[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = in.readUTF();
+        }
+        return result;
+    }
+
+    /**
+     * Sends our heartbeat, and those of the members below us in the tree, to
+     * our parent in the tree. Sends it to the server if we are a child of the
+     * root, or if our parent cannot be reached.
+     */
+    private boolean sendTreeHeartBeat(long start) {
+        Heartbeat.Report report = heartbeat.getReport(pool.getChildren());
+        Member parent = pool.getParent();
+
+        if (parent != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("sending heartbeat to parent " + parent);
+            }
+            Connection connection = null;
+            try {
+                connection = new Connection(parent.getIbis(),
+                        heartbeatTimeout, false, virtualSocketFactory,
+                        Protocol.VIRTUAL_PORT);
+                writeTreeHeartBeat(connection, report);
+                connection.close();
+
+                long end = System.currentTimeMillis();
+                if (statistics != null) {
+                    statistics.add(Protocol.OPCODE_TREE_HEARTBEAT,
+                            end - start, connection.read(),
+                            connection.written(), false);
+                }
+                return true;
+            } catch (Exception e) {
+                if (connection != null) {
+                    connection.close();
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("could not send heartbeat to parent "
+                            + parent + ", sending it to the server", e);
+                }
+            }
+        }
+
+        Connection connection = null;
+        try {
+            connection = connectToServer(timeout);
+            writeTreeHeartBeat(connection, report);
+            connection.close();
+
+            long end = System.currentTimeMillis();
+            if (statistics != null) {
+                statistics.add(Protocol.OPCODE_TREE_HEARTBEAT, end - start,
+                        connection.read(), connection.written(), false);
+            }
+            return true;
+        } catch (Exception e) {
+            if (connection != null) {
+                connection.close();
+            }
+            if (logger.isInfoEnabled()) {
+                logger.info(identifier + ": could not send heartbeat to server",
+                        e);
+            }
+            return false;
+        }
+    }
+
+    private void writeTreeHeartBeat(Connection connection,
+            Heartbeat.Report report) throws IOException {
+        connection.out().writeByte(Protocol.MAGIC_BYTE);
+        connection.out().writeByte(Protocol.OPCODE_TREE_HEARTBEAT);
+        getIdentifier().writeTo(connection.out());
+        writeIDs(connection.out(), report.alive);
+        writeIDs(connection.out(), report.suspects);
+        connection.out().flush();
+
+        connection.getAndCheckReply();
+    }
+
+    private void handleTreeHeartbeat(Connection connection)
+            throws IOException {
+        IbisIdentifier child = new IbisIdentifier(connection.in());
+        String[] alive = readIDs(connection.in());
+        String[] suspects = readIDs(connection.in());
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("got heartbeat of " + child + " for " + alive.length
+                    + " members, " + suspects.length + " suspects");
+        }
+
+        if (!child.poolName().equals(pool.getName())) {
+            connection.closeWithError("wrong pool: " + child.poolName()
+                    + " instead of " + pool.getName());
+            return;
+        }
+
+        heartbeat.childHeartbeat(child.getID(), alive, suspects);
+
+        connection.sendOKReply();
+        connection.close();
+    }
+
     public void leave() throws IOException {
         if (logger.isDebugEnabled()) {
             logger.debug("leaving pool");
@@ -691,8 +857,7 @@ final class CommunicationHandler implements Runnable {
 
         long start = System.currentTimeMillis();
 
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -736,8 +901,7 @@ final class CommunicationHandler implements Runnable {
             timeout = this.timeout;
         }
 
-        Connection connection = new Connection(serverAddress, (int) timeout,
-                true, virtualSocketFactory);
+        Connection connection = connectToServer((int) timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -908,6 +1072,7 @@ final class CommunicationHandler implements Runnable {
             connection.sendOKReply();
 
             // send bootstrap (if needed)
+            connection.out().writeBoolean(requestBootstrap);
             if (requestBootstrap) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("sending state");
@@ -1045,12 +1210,20 @@ final class CommunicationHandler implements Runnable {
 
         long gotReply = System.currentTimeMillis();
 
-        if (requestBootstrap) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("recieving bootstrap in push");
+        // the server also sends its state when the events we still need
+        // are no longer in its history
+        if (connection.in().readBoolean()) {
+            if (requestBootstrap) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("recieving bootstrap in push");
+                }
+                pool.init(connection.in());
+            } else {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("recieving state to catch up with in push");
+                }
+                pool.resync(connection.in());
             }
-            // we should receive the bootstrap data next
-            pool.init(connection.in());
         }
 
         long readBootstrap = System.currentTimeMillis();
@@ -1245,6 +1418,9 @@ final class CommunicationHandler implements Runnable {
             case Protocol.OPCODE_GET_STATE:
                 handleGetState(connection);
                 break;
+            case Protocol.OPCODE_TREE_HEARTBEAT:
+                handleTreeHeartbeat(connection);
+                break;
             default:
                 logger.error("unknown opcode in request: " + opcode);
             }
@@ -1266,6 +1442,10 @@ final class CommunicationHandler implements Runnable {
     }
 
     void end() {
+        if (serverConnection != null) {
+            serverConnection.close();
+        }
+
         try {
             serverSocket.close();
         } catch (Exception e) {
@@ -1290,8 +1470,7 @@ final class CommunicationHandler implements Runnable {
         if (logger.isDebugEnabled()) {
             logger.debug("adding tokens");
         }
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -1327,8 +1506,7 @@ final class CommunicationHandler implements Runnable {
         if (logger.isDebugEnabled()) {
             logger.debug("getting token");
         }
-        Connection connection = new Connection(serverAddress, timeout, true,
-                virtualSocketFactory);
+        Connection connection = connectToServer(timeout);
 
         try {
             connection.out().writeByte(Protocol.MAGIC_BYTE);
@@ -15,16 +15,54 @@
  */
 package ibis.ipl.registry.central.client;
 
+import ibis.ipl.registry.central.Member;
 import ibis.util.ThreadPool;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Sends heartbeats to the server. If the broadcast tree is used, a member
+ * sends its heartbeat to its parent in the tree instead, which passes it on
+ * with its own heartbeat, so the server only hears from the children of the
+ * root. A child that misses its heartbeat is reported to the server as a
+ * suspect right away, and again every interval until it is gone, so dead
+ * leaves are found about as fast as without the tree.
+ */
 public class Heartbeat implements Runnable {
 
     private static final Logger logger = LoggerFactory
             .getLogger(Heartbeat.class);
 
+    // a member that has reports of members below it passes them on within
+    // this fraction of the heartbeat interval
+    private static final int FORWARD_FRACTION = 8;
+
+    // members send a heartbeat at most 0.8 heartbeat intervals apart, and
+    // take at most a quarter interval to reach their parent, so a child not
+    // heard from for this many intervals is a suspect
+    private static final double SUSPECT_INTERVALS = 1.1;
+
+    /**
+     * Heartbeats gathered from the members below us in the broadcast tree.
+     */
+    static final class Report {
+        final String[] alive;
+
+        final String[] suspects;
+
+        Report(String[] alive, String[] suspects) {
+            this.alive = alive;
+            this.suspects = suspects;
+        }
+    }
+
     private final Pool pool;
     private final CommunicationHandler commHandler;
 
@@ -36,12 +74,25 @@ public class Heartbeat implements Runnable {
     
     private long serverFailureDeadline;
 
+    // IDs of members below us in the tree we heard from since our last
+    // heartbeat, and members reported as suspects
+    private final Set<String> alive = new HashSet<String>();
+
+    private final Set<String> suspects = new HashSet<String>();
+
+    // last time we heard from (or reported) each of our children
+    private final Map<String, Long> childSeen = new HashMap<String, Long>();
+
+    // time after which a child not heard from is a suspect
+    private final long suspectTimeout;
+
     Heartbeat(CommunicationHandler commHandler, Pool pool,
             long heartbeatInterval, boolean exitOnServerFailure) {
         this.commHandler = commHandler;
         this.pool = pool;
         this.heartbeatInterval = heartbeatInterval;
         this.exitOnServerFailure = exitOnServerFailure;
+        this.suspectTimeout = (long) (heartbeatInterval * SUSPECT_INTERVALS);
 
         ThreadPool.createNew(this, "heartbeat thread");
     }
@@ -67,6 +118,89 @@ public class Heartbeat implements Runnable {
         // no need to wake up heartbeat thread, deadline will only be later
     }
     
+    /**
+     * Called when one of our children in the tree sends its heartbeat, with
+     * the heartbeats it gathered itself.
+     */
+    synchronized void childHeartbeat(String child, String[] alive,
+            String[] suspects) {
+        long now = System.currentTimeMillis();
+
+        childSeen.put(child, now);
+        this.alive.add(child);
+        this.alive.addAll(Arrays.asList(alive));
+        this.suspects.addAll(Arrays.asList(suspects));
+
+        // pass the reports on soon, not only with our next heartbeat
+        long deadline = now + heartbeatInterval / FORWARD_FRACTION;
+        if (deadline < heartbeatDeadline) {
+            heartbeatDeadline = deadline;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Moves the children we did not hear from in time to the suspects. A
+     * suspect is reported again if we still do not hear from it for another
+     * timeout.
+     *
+     * @return true if there are new suspects.
+     */
+    private boolean checkChildren(long now) {
+        boolean result = false;
+
+        for (Map.Entry<String, Long> entry : childSeen.entrySet()) {
+            if (entry.getValue() + suspectTimeout <= now) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("child " + entry.getKey() + " is a suspect");
+                }
+                suspects.add(entry.getKey());
+                entry.setValue(now);
+                result = true;
+            }
+        }
+        return result;
+    }
+
+    // returns the time at which the next child becomes a suspect
+    private long childDeadline() {
+        long result = Long.MAX_VALUE;
+
+        for (long seen : childSeen.values()) {
+            result = Math.min(result, seen + suspectTimeout);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the heartbeats gathered since the last call, and the children
+     * we did not hear from in time.
+     */
+    synchronized Report getReport(Member[] children) {
+        long now = System.currentTimeMillis();
+
+        Map<String, Long> seen = new HashMap<String, Long>();
+        for (Member child : children) {
+            String id = child.getIbis().getID();
+            Long time = childSeen.get(id);
+            if (time == null) {
+                // new child, give it some time to find us
+                time = now;
+            }
+            seen.put(id, time);
+        }
+        // forget about members which are no longer our children
+        childSeen.clear();
+        childSeen.putAll(seen);
+        checkChildren(now);
+
+        Report result = new Report(alive.toArray(new String[0]), suspects
+                .toArray(new String[0]));
+        alive.clear();
+        suspects.clear();
+        return result;
+    }
+
     synchronized boolean serverDeadlineExpired() {
         return System.currentTimeMillis() > serverFailureDeadline;
     }
@@ -77,7 +211,15 @@ public class Heartbeat implements Runnable {
 
     synchronized void waitForHeartbeatDeadline() {
         while (true) {
-            int timeout = (int) (heartbeatDeadline - System.currentTimeMillis());
+            long now = System.currentTimeMillis();
+
+            if (checkChildren(now)) {
+                // report the suspects now, not with our next heartbeat
+                heartbeatDeadline = now;
+            }
+
+            int timeout = (int) (Math.min(heartbeatDeadline, childDeadline())
+                    - now);
 
             if (timeout <= 0) {
                 return;
@@ -27,6 +27,7 @@ import ibis.ipl.registry.central.ListMemberSet;
 import ibis.ipl.registry.central.Member;
 import ibis.ipl.registry.central.MemberSet;
 import ibis.ipl.registry.central.RegistryProperties;
+import ibis.ipl.registry.central.StateSnapshot;
 import ibis.ipl.registry.central.TreeMemberSet;
 import ibis.ipl.registry.statistics.Statistics;
 import ibis.util.TypedProperties;
@@ -55,6 +56,8 @@ final class Pool {
 
     private final long heartbeatInterval;
 
+    private final boolean tree;
+
     private final MemberSet members;
 
     private final ElectionSet elections;
@@ -88,11 +91,8 @@ final class Pool {
             statistics.newPoolSize(0);
         }
 
-        if (properties.getBooleanProperty(RegistryProperties.TREE)) {
-            members = new TreeMemberSet();
-        } else {
-            members = new ListMemberSet();
-        }
+        tree = properties.getBooleanProperty(RegistryProperties.TREE);
+        members = newMemberSet();
 
         elections = new ElectionSet();
         eventList = new EventList();
@@ -135,6 +135,13 @@ final class Pool {
 
     }
 
+    private MemberSet newMemberSet() {
+        if (tree) {
+            return new TreeMemberSet();
+        }
+        return new ListMemberSet();
+    }
+
     synchronized Event[] getEventsFrom(int start) {
         return eventList.getList(start);
     }
@@ -218,14 +225,55 @@ final class Pool {
         eventList.setMinimum(time);
     }
 
+    /**
+     * Pool state as sent by writeState().
+     */
+    private static final class ReceivedState {
+        final StateSnapshot snapshot;
+
+        final ArrayList<Event> signals = new ArrayList<Event>();
+
+        final Event closeEvent;
+
+        final Event terminateEvent;
+
+        ReceivedState(DataInputStream stream) throws IOException {
+            snapshot = new StateSnapshot(stream);
+
+            int nrOfSignals = stream.readInt();
+            if (nrOfSignals < 0) {
+                throw new IOException("negative number of signals");
+            }
+
+            for (int i = 0; i < nrOfSignals; i++) {
+                signals.add(new Event(stream));
+            }
+
+            if (stream.readBoolean()) {
+                closeEvent = new Event(stream);
+            } else {
+                closeEvent = null;
+            }
+
+            if (stream.readBoolean()) {
+                terminateEvent = new Event(stream);
+            } else {
+                terminateEvent = null;
+            }
+        }
+    }
+
     void init(DataInputStream stream) throws IOException {
         long start = System.currentTimeMillis();
         // copy over data first so we are not blocked while reading data
-        byte[] bytes = new byte[stream.readInt()];
-        stream.readFully(bytes);
+        ReceivedState state = new ReceivedState(stream);
+        StateSnapshot snapshot = state.snapshot;
+        ArrayList<Event> signals = state.signals;
+        Event closeEvent = state.closeEvent;
+        Event terminateEvent = state.terminateEvent;
 
         DataInputStream in = new DataInputStream(
-                new ByteArrayInputStream(bytes));
+                new ByteArrayInputStream(snapshot.getState()));
 
         long read = System.currentTimeMillis();
 
@@ -242,31 +290,22 @@ final class Pool {
         	logger.debug("reading bootstrap state");
             }
 
-            time = in.readInt();
+            time = snapshot.getTime();
 
             members.init(in);
 
             long membersDone = System.currentTimeMillis();
 
             elections.init(in);
-            int nrOfSignals = in.readInt();
-            if (nrOfSignals < 0) {
-                throw new IOException("negative number of signals");
-            }
 
-            ArrayList<Event> signals = new ArrayList<Event>();
-            for (int i = 0; i < nrOfSignals; i++) {
-                signals.add(new Event(in));
-            }
-
-            closed = in.readBoolean();
+            closed = closeEvent != null;
             if (closed) {
-            	closeEvent = new Event(in);
+                this.closeEvent = closeEvent;
             }
-            
-            terminated = in.readBoolean();
+
+            terminated = terminateEvent != null;
             if (terminated) {
-                terminateEvent = new Event(in);
+                this.terminateEvent = terminateEvent;
             }
 
             // Create list of "old" events
@@ -316,43 +355,140 @@ final class Pool {
 
     }
 
+    /**
+     * Replaces our state with the state received. Used when we fell behind
+     * the history of the server, so the events we still need are gone. The
+     * differences with our current state are passed to the registry as
+     * events.
+     */
+    void resync(DataInputStream stream) throws IOException {
+        ReceivedState state = new ReceivedState(stream);
+
+        MemberSet newMembers = newMemberSet();
+        ElectionSet newElections = new ElectionSet();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                state.snapshot.getState()));
+        newMembers.init(in);
+        newElections.init(in);
+
+        synchronized (this) {
+            int newTime = state.snapshot.getTime();
+
+            if (!initialized || stopped || newTime <= time) {
+                // nothing missed
+                return;
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("resync from time " + time + " to " + newTime);
+            }
+
+            ArrayList<Event> missed = new ArrayList<Event>();
+
+            for (Member member : members.asArray()) {
+                if (!newMembers.contains(member.getIbis())) {
+                    // we cannot tell left from died, except for ourselves
+                    int type = Event.LEAVE;
+                    if (member.getIbis().equals(registry.getIbisIdentifier())) {
+                        type = Event.DIED;
+                    }
+                    missed.add(new Event(newTime - 1, type, null, member
+                            .getIbis()));
+                }
+            }
+            for (Event join : newMembers.getJoinEvents()) {
+                if (!members.contains(join.getIbis())) {
+                    missed.add(join);
+                }
+            }
+            for (Election election : elections) {
+                Election current = newElections.get(election.getName());
+                if (current == null
+                        || !current.getWinner().equals(election.getWinner())) {
+                    missed.add(new Event(newTime - 1, Event.UN_ELECT,
+                            election.getName(), election.getWinner()));
+                }
+            }
+            for (Election election : newElections) {
+                Election old = elections.get(election.getName());
+                if (old == null
+                        || !old.getWinner().equals(election.getWinner())) {
+                    missed.add(election.getEvent());
+                }
+            }
+            for (Event signal : state.signals) {
+                if (signal.getTime() >= time) {
+                    missed.add(signal);
+                }
+            }
+            if (!closed && state.closeEvent != null) {
+                missed.add(state.closeEvent);
+            }
+            if (!terminated && state.terminateEvent != null) {
+                missed.add(state.terminateEvent);
+            }
+
+            // CALLS REGISTRY WHILE POOL IS LOCKED!
+            for (Event event : missed) {
+                handleEvent(event);
+                registry.handleEvent(event);
+            }
+
+            time = newTime;
+            eventList.setMinimum(newTime);
+            notifyAll();
+        }
+
+        handleEvents();
+    }
+
     void writeState(DataOutputStream out, int joinTime) throws IOException {
         ByteArrayOutputStream arrayOut = new ByteArrayOutputStream();
         DataOutputStream dataOut = new DataOutputStream(arrayOut);
 
+        int time;
+        Event[] signals;
+        Event closeEvent;
+        Event terminateEvent;
+
         synchronized (this) {
             if (!initialized) {
                 throw new IOException("state not initialized yet");
             }
 
-            dataOut.writeInt(time);
+            time = this.time;
 
             members.writeTo(dataOut);
             elections.writeTo(dataOut);
 
-            Event[] signals = eventList.getSignalEvents(joinTime, time);
-            dataOut.writeInt(signals.length);
-            for (Event event : signals) {
-                event.writeTo(dataOut);
-            }
-
-            dataOut.writeBoolean(closed);
-            if (closed) {
-            	closeEvent.writeTo(out);
-            }
-            dataOut.writeBoolean(terminated);
-            if (terminated) {
-            	terminateEvent.writeTo(out);
-            }
+            signals = eventList.getSignalEvents(joinTime, time);
+            closeEvent = closed ? this.closeEvent : null;
+            terminateEvent = terminated ? this.terminateEvent : null;
         }
 
         dataOut.flush();
         dataOut.close();
-        byte[] bytes = arrayOut.toByteArray();
-        out.writeInt(bytes.length);
-        out.write(bytes);
+
+        StateSnapshot snapshot = new StateSnapshot(time, arrayOut
+                .toByteArray());
+        snapshot.writeTo(out);
+
+        out.writeInt(signals.length);
+        for (Event event : signals) {
+            event.writeTo(out);
+        }
+
+        out.writeBoolean(closeEvent != null);
+        if (closeEvent != null) {
+            closeEvent.writeTo(out);
+        }
+        out.writeBoolean(terminateEvent != null);
+        if (terminateEvent != null) {
+            terminateEvent.writeTo(out);
+        }
+
         if (logger.isDebugEnabled()) {
-            logger.debug("pool state size = " + bytes.length);
+            logger.debug("pool state size = " + snapshot.size());
         }
     }
     
@@ -580,6 +716,14 @@ final class Pool {
         return members.getChildren(registry.getIbisIdentifier());
     }
 
+    /**
+     * Returns our parent in the broadcast tree, or null if we are a child of
+     * the server.
+     */
+    synchronized Member getParent() {
+        return members.getParent(registry.getIbisIdentifier());
+    }
+
     synchronized boolean hasTerminated() {
         return terminated;
     }
@@ -19,7 +19,10 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.Properties;
 
 import org.slf4j.Logger;
@@ -72,6 +75,14 @@ public final class Registry extends ibis.ipl.registry.Registry {
 
     private final ArrayList<String> signals;
 
+    // number of sequence numbers leased at a time, 1 means no leasing
+    private final int sequenceBlockSize;
+
+    // sequencers never leased
+    private final Set<String> strictSequencers = new HashSet<String>();
+
+    private final Map<String, SequenceLease> sequenceLeases = new HashMap<String, SequenceLease>();
+
     /**
      * Creates a Central Registry.
      *
@@ -151,6 +162,14 @@ public final class Registry extends ibis.ipl.registry.Registry {
             }
         }
 
+        sequenceBlockSize = properties
+                .getIntProperty(RegistryProperties.SEQUENCE_BLOCK_SIZE, 1);
+        String[] strict = properties
+                .getStringList(RegistryProperties.SEQUENCE_STRICT);
+        for (String name : strict) {
+            strictSequencers.add(name);
+        }
+
         pool = new Pool(capabilities, properties, this, statistics);
 
         try {
@@ -380,7 +399,20 @@ public final class Registry extends ibis.ipl.registry.Registry {
                     "cannot send signals, registry already stopped");
         }
 
-        return communicationHandler.getSeqno(name);
+        if (sequenceBlockSize <= 1 || strictSequencers.contains(name)) {
+            return communicationHandler.getSeqno(name);
+        }
+
+        SequenceLease lease;
+        synchronized (sequenceLeases) {
+            lease = sequenceLeases.get(name);
+            if (lease == null) {
+                lease = new SequenceLease(name, sequenceBlockSize,
+                        communicationHandler);
+                sequenceLeases.put(name, lease);
+            }
+        }
+        return lease.next();
     }
 
     @Override
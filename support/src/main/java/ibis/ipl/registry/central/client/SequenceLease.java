@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.registry.central.client;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Block of sequence numbers of a single sequencer, leased from the server.
+ * Numbers are handed out from the block without locking, only getting a new
+ * block from the server is synchronized. Numbers are unique, but numbers
+ * handed out by different clients are not ordered.
+ */
+final class SequenceLease {
+
+    private static final class Block {
+        final AtomicLong next;
+
+        final long end;
+
+        Block(long first, int size) {
+            next = new AtomicLong(first);
+            end = first + size;
+        }
+    }
+
+    private final String name;
+
+    private final int blockSize;
+
+    private final CommunicationHandler communicationHandler;
+
+    private volatile Block block = null;
+
+    SequenceLease(String name, int blockSize,
+            CommunicationHandler communicationHandler) {
+        this.name = name;
+        this.blockSize = blockSize;
+        this.communicationHandler = communicationHandler;
+    }
+
+    long next() throws IOException {
+        while (true) {
+            Block current = block;
+            if (current != null) {
+                long result = current.next.getAndIncrement();
+                if (result < current.end) {
+                    return result;
+                }
+            }
+
+            synchronized (this) {
+                // some other thread may have renewed the lease already
+                if (block == current) {
+                    long first = communicationHandler.getSeqno(name,
+                            blockSize);
+                    block = new Block(first, blockSize);
+                }
+            }
+        }
+    }
+}
@@ -68,6 +68,8 @@ public final class CentralRegistryService extends Thread
 
     private final int connectTimeout;
 
+    private final int eventRetention;
+
     private ServerConnectionHandler handler;
 
     private boolean stopped = false;
@@ -105,10 +107,19 @@ public final class CentralRegistryService extends Thread
         connectTimeout = typedProperties.getIntProperty(
                 RegistryProperties.SERVER_CONNECT_TIMEOUT) * 1000;
 
+        eventRetention = typedProperties
+                .getIntProperty(RegistryProperties.SERVER_EVENT_RETENTION);
+
         pools = new TreeMap<String, Pool>();
 
         // start handling connections
-        handler = new ServerConnectionHandler(this, socketFactory, policy);
+        int maxThreads = typedProperties
+                .getIntProperty(RegistryProperties.SERVER_THREADS);
+        int backlog = typedProperties
+                .getIntProperty(RegistryProperties.SERVER_BACKLOG);
+
+        handler = new ServerConnectionHandler(this, socketFactory, policy,
+                maxThreads, backlog);
 
         ThreadPool.createNew(this, "Central Registry Service");
 
@@ -147,7 +158,7 @@ public final class CentralRegistryService extends Thread
                     gossipInterval, adaptGossipInterval, tree, closedWorld,
                     poolSize, keepStatistics, statisticsInterval,
                     connectTimeout, implementationVersion, printEvents,
-                    printErrors, purgeHistory);
+                    printErrors, purgeHistory, eventRetention);
             pools.put(poolName, result);
         }
 
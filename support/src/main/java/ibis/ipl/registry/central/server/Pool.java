@@ -23,6 +23,7 @@ import java.util.Formatter;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +38,7 @@ import ibis.ipl.registry.central.ListMemberSet;
 import ibis.ipl.registry.central.Member;
 import ibis.ipl.registry.central.MemberSet;
 import ibis.ipl.registry.central.Protocol;
+import ibis.ipl.registry.central.StateSnapshot;
 import ibis.ipl.registry.central.TreeMemberSet;
 import ibis.ipl.registry.statistics.Statistics;
 import ibis.ipl.support.Connection;
@@ -51,8 +53,36 @@ final class Pool implements Runnable {
     // called by the user
     private static final long RECENTLY_SEEN_THRESHOLD = 1000;
 
+    // with the tree, a member is a suspect after this many heartbeat
+    // intervals. Parents report children that miss a heartbeat right away,
+    // this only catches reports that got lost on the way up.
+    private static final int TREE_HEARTBEAT_SLACK = 3;
+
+    // maximum age of a state snapshot that is handed to a new joiner
+    private static final long SNAPSHOT_MAX_AGE = 1000;
+
     private static final Logger logger = LoggerFactory.getLogger(Pool.class);
 
+    /**
+     * Encoded list of events, as sent in a push.
+     */
+    private static final class EventBatch {
+        final int startTime;
+
+        final int endTime;
+
+        final int count;
+
+        final byte[] data;
+
+        EventBatch(int startTime, int endTime, int count, byte[] data) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.count = count;
+            this.data = data;
+        }
+    }
+
     private final VirtualSocketFactory socketFactory;
 
     // list of all joins, leaves, elections, etc.
@@ -66,14 +96,29 @@ final class Pool implements Runnable {
 
     private final long heartbeatInterval;
 
-    private int currentEventTime;
+    // time after which a member not heard from is a suspect
+    private final long heartbeatTimeout;
+
+    // Changes to the pool are made with the pool locked. Some parts of the
+    // state can also be read without the pool lock: the members through
+    // memberIndex and memberArray, and the event list and the elections
+    // while holding their own monitor, which is also held while they are
+    // changed. Sequencers and tokens are guarded by their own monitor only.
 
-    private int minEventTime;
+    private volatile int currentEventTime;
+
+    private volatile int minEventTime;
 
     private final ElectionSet elections;
 
     private final MemberSet members;
 
+    // members by ID, for lookups without the pool lock
+    private final ConcurrentHashMap<String, Member> memberIndex;
+
+    // copy of the members, replaced when the membership changes
+    private volatile Member[] memberArray;
+
     private final OndemandEventPusher pusher;
 
     private final String name;
@@ -101,13 +146,13 @@ final class Pool implements Runnable {
     // so the server can print them if so requested
     private final int[] eventStats;
 
-    private final Map<String, Integer> sequencers;
+    private final Map<String, Long> sequencers;
 
     private final Map<String, Integer> tokens;
 
     private int nextID;
 
-    private boolean ended = false;
+    private volatile boolean ended = false;
 
     private boolean closed = false;
 
@@ -117,19 +162,41 @@ final class Pool implements Runnable {
 
     private Event terminateEvent = null;
 
+    // bootstrap state shared by joiners, see getSnapshot()
+    private final Object snapshotLock = new Object();
+
+    private StateSnapshot snapshot = null;
+
+    // time of the last join, snapshots from before it are not reused.
+    // Guarded by this.
+    private int lastJoinTime = -1;
+
+    // last events pushed, see getEventBatch(). Guarded by events.
+    private EventBatch eventBatch = null;
+
+    // set when the retention window of the history dropped events
+    private boolean eventsDropped = false;
+
     Pool(String name, VirtualSocketFactory socketFactory, boolean peerBootstrap,
             long heartbeatInterval, long eventPushInterval, boolean gossip,
             long gossipInterval, boolean adaptGossipInterval, boolean tree,
             boolean closedWorld, int poolSize, boolean keepStatistics,
             long statisticsInterval, int connectTimeout,
             String implementationVersion, boolean printEvents,
-            boolean printErrors, boolean purgeHistory) {
+            boolean printErrors, boolean purgeHistory, int eventRetention) {
         print("creating new pool: \"" + name + "\"");
 
         this.name = name;
         this.socketFactory = socketFactory;
         this.peerBootstrap = peerBootstrap;
         this.heartbeatInterval = heartbeatInterval;
+        if (tree) {
+            // heartbeats of members deep in the tree take a while to reach
+            // us, see ibis.ipl.registry.central.client.Heartbeat
+            heartbeatTimeout = heartbeatInterval * TREE_HEARTBEAT_SLACK;
+        } else {
+            heartbeatTimeout = heartbeatInterval;
+        }
         // this.gossip = gossip;
         // this.tree = tree;
         this.closedWorld = closedWorld;
@@ -151,12 +218,14 @@ final class Pool implements Runnable {
         currentEventTime = 0;
         minEventTime = 0;
         nextID = 0;
-        sequencers = new HashMap<String, Integer>();
+        sequencers = new HashMap<String, Long>();
         tokens = new HashMap<String, Integer>();
 
-        events = new EventList();
+        events = new EventList(eventRetention);
         eventStats = new int[Event.NR_OF_TYPES];
         elections = new ElectionSet();
+        memberIndex = new ConcurrentHashMap<String, Member>();
+        memberArray = new Member[0];
 
         if (gossip) {
             members = new ListMemberSet();
@@ -209,11 +278,11 @@ final class Pool implements Runnable {
         }
     }
 
-    synchronized int getEventTime() {
+    int getEventTime() {
         return currentEventTime;
     }
 
-    synchronized int getMinEventTime() {
+    int getMinEventTime() {
         return minEventTime;
     }
 
@@ -224,10 +293,18 @@ final class Pool implements Runnable {
         if (logger.isDebugEnabled()) {
             logger.debug("adding new event: " + event);
         }
-        events.add(event);
+        synchronized (events) {
+            events.add(event);
+            currentEventTime++;
+            // the retention window may have dropped old events
+            if (events.getMinimum() > minEventTime) {
+                minEventTime = events.getMinimum();
+                eventBatch = null;
+                eventsDropped = true;
+            }
+        }
         eventStats[type]++;
 
-        currentEventTime++;
         notifyAll();
 
         return event;
@@ -259,14 +336,14 @@ final class Pool implements Runnable {
         }
     }
 
-    synchronized int getSize() {
-        return members.size();
+    int getSize() {
+        return memberArray.length;
     }
 
-    synchronized ibis.ipl.Location[] getLocations() {
+    ibis.ipl.Location[] getLocations() {
         HashSet<ibis.ipl.Location> locations = new HashSet<ibis.ipl.Location>();
 
-        for (Member member : members.asArray()) {
+        for (Member member : memberArray) {
             locations.add(member.getIbis().location());
         }
 
@@ -286,7 +363,7 @@ final class Pool implements Runnable {
      *
      * @see ibis.ipl.impl.registry.central.SuperPool#ended()
      */
-    synchronized boolean hasEnded() {
+    boolean hasEnded() {
         return ended;
     }
 
@@ -349,12 +426,15 @@ final class Pool implements Runnable {
                 clientAddress, location, name, applicationTag);
 
         Event event = addEvent(Event.JOIN, null, identifier);
+        lastJoinTime = event.getTime();
 
         Member member = new Member(identifier, event);
         member.setCurrentTime(getMinEventTime());
         member.updateTime();
 
         members.add(member);
+        memberIndex.put(id, member);
+        memberArray = members.asArray();
 
         if (logger.isDebugEnabled()) {
             logger.debug("members now: " + members);
@@ -404,44 +484,140 @@ final class Pool implements Runnable {
 
     }
 
-    public void writeState(DataOutputStream out, int joinTime)
-            throws IOException {
+    /**
+     * Returns a snapshot of the members and elections of this pool. A
+     * snapshot is shared by all joins that happen within
+     * SNAPSHOT_MAX_AGE of each other, so a join storm does not make the
+     * server serialize and compress the entire pool for every joiner. A
+     * snapshot taken before the last join is never reused, so a joiner always
+     * finds itself, and everyone who joined before it, in the members.
+     */
+    private StateSnapshot getSnapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (snapshot != null
+                        && (snapshot.getTime() == currentEventTime || now
+                                - snapshot.getCreationTime() < SNAPSHOT_MAX_AGE)
+                        && snapshot.getTime() > lastJoinTime
+                        && snapshot.getTime() >= minEventTime) {
+                    return snapshot;
+                }
+            }
 
-        ByteArrayOutputStream arrayOut = new ByteArrayOutputStream();
-        DataOutputStream dataOut = new DataOutputStream(arrayOut);
+            ByteArrayOutputStream arrayOut = new ByteArrayOutputStream();
+            DataOutputStream dataOut = new DataOutputStream(arrayOut);
+            int time;
 
-        // create byte array of data
-        synchronized (this) {
-            dataOut.writeInt(currentEventTime);
+            synchronized (this) {
+                time = currentEventTime;
+                members.writeTo(dataOut);
+                elections.writeTo(dataOut);
+            }
+            dataOut.flush();
 
-            members.writeTo(dataOut);
-            elections.writeTo(dataOut);
+            // compress outside of the pool lock
+            StateSnapshot result = new StateSnapshot(time, arrayOut
+                    .toByteArray());
 
-            Event[] signals = events.getSignalEvents(joinTime,
-                    currentEventTime);
-            dataOut.writeInt(signals.length);
-            for (Event event : signals) {
-                event.writeTo(dataOut);
+            if (logger.isDebugEnabled()) {
+                logger.debug("new pool state snapshot at time " + time
+                        + ", size = " + arrayOut.size() + ", compressed = "
+                        + result.size());
             }
 
-            dataOut.writeBoolean(closed);
-            if (closed) {
-                closeEvent.writeTo(dataOut);
+            snapshot = result;
+            return result;
+        }
+    }
+
+    /**
+     * Writes the state of this pool, as seen by a member that joined at the
+     * given time.
+     *
+     * @return the event time of the state, from which on the member needs
+     *         the events of the pool.
+     */
+    public int writeState(DataOutputStream out, int joinTime)
+            throws IOException {
+        StateSnapshot snapshot = getSnapshot();
+        writeState(out, joinTime, snapshot);
+        return snapshot.getTime();
+    }
+
+    private void writeState(DataOutputStream out, int joinTime,
+            StateSnapshot snapshot) throws IOException {
+        int time = snapshot.getTime();
+
+        Event[] signals;
+        Event closeEvent;
+        Event terminateEvent;
+
+        synchronized (this) {
+            // later events reach the joiner as normal events
+            signals = events.getSignalEvents(joinTime, time - 1);
+            if (closed && this.closeEvent.getTime() < time) {
+                closeEvent = this.closeEvent;
+            } else {
+                closeEvent = null;
             }
-            dataOut.writeBoolean(terminated);
-            if (terminated) {
-                terminateEvent.writeTo(dataOut);
+            if (terminated && this.terminateEvent.getTime() < time) {
+                terminateEvent = this.terminateEvent;
+            } else {
+                terminateEvent = null;
             }
         }
 
-        dataOut.flush();
-        byte[] bytes = arrayOut.toByteArray();
+        snapshot.writeTo(out);
+
+        out.writeInt(signals.length);
+        for (Event event : signals) {
+            event.writeTo(out);
+        }
 
-        out.writeInt(bytes.length);
-        out.write(bytes);
+        out.writeBoolean(closeEvent != null);
+        if (closeEvent != null) {
+            closeEvent.writeTo(out);
+        }
+        out.writeBoolean(terminateEvent != null);
+        if (terminateEvent != null) {
+            terminateEvent.writeTo(out);
+        }
 
         if (logger.isDebugEnabled()) {
-            logger.debug("pool state size = " + bytes.length);
+            logger.debug("pool state size = " + snapshot.size());
+        }
+    }
+
+    /**
+     * Returns the events from the given time onwards, encoded as sent in a
+     * push, or <code>null</code> if the history no longer reaches back to
+     * the given time. Most members ask for the same events, so the last
+     * encoding is kept and reused until new events arrive.
+     */
+    private EventBatch getEventBatch(int startTime) throws IOException {
+        synchronized (events) {
+            if (startTime < events.getMinimum()) {
+                return null;
+            }
+            if (eventBatch != null && eventBatch.startTime == startTime
+                    && eventBatch.endTime == currentEventTime) {
+                return eventBatch;
+            }
+
+            Event[] list = events.getList(startTime);
+
+            ByteArrayOutputStream arrayOut = new ByteArrayOutputStream();
+            DataOutputStream dataOut = new DataOutputStream(arrayOut);
+            dataOut.writeInt(list.length);
+            for (Event event : list) {
+                event.writeTo(dataOut);
+            }
+            dataOut.flush();
+
+            eventBatch = new EventBatch(startTime, currentEventTime,
+                    list.length, arrayOut.toByteArray());
+            return eventBatch;
         }
     }
 
@@ -452,7 +628,7 @@ final class Pool implements Runnable {
      * IbisIdentifier )
      */
     synchronized void leave(IbisIdentifier identifier) throws Exception {
-        if (members.remove(identifier) == null) {
+        if (removeMember(identifier) == null) {
             // May happen if it was declared dead before. So, no exception.
             // --Ceriel
             // logger.error("unknown ibis " + identifier + " tried to leave");
@@ -481,7 +657,9 @@ final class Pool implements Runnable {
                 statistics.electionEvent();
             }
 
-            elections.remove(election.getName());
+            synchronized (elections) {
+                elections.remove(election.getName());
+            }
         }
 
         if (members.size() == 0) {
@@ -499,7 +677,7 @@ final class Pool implements Runnable {
      * IbisIdentifier )
      */
     synchronized void dead(IbisIdentifier identifier, Exception exception) {
-        Member member = members.remove(identifier);
+        Member member = removeMember(identifier);
         if (member == null) {
             // member removed already
             return;
@@ -524,7 +702,9 @@ final class Pool implements Runnable {
                 statistics.electionEvent();
             }
 
-            elections.remove(election.getName());
+            synchronized (elections) {
+                elections.remove(election.getName());
+            }
         }
 
         if (members.size() == 0) {
@@ -536,8 +716,20 @@ final class Pool implements Runnable {
         pusher.enqueue(member);
     }
 
-    synchronized Event[] getEvents(int startTime) {
-        return events.getList(startTime);
+    // called with the pool locked
+    private Member removeMember(IbisIdentifier identifier) {
+        Member member = members.remove(identifier);
+        if (member != null) {
+            memberIndex.remove(identifier.getID());
+            memberArray = members.asArray();
+        }
+        return member;
+    }
+
+    Event[] getEvents(int startTime) {
+        synchronized (events) {
+            return events.getList(startTime);
+        }
     }
 
     /*
@@ -546,7 +738,18 @@ final class Pool implements Runnable {
      * @see ibis.ipl.impl.registry.central.SuperPool#elect(java.lang.String,
      * ibis.ipl.impl.IbisIdentifier)
      */
-    synchronized IbisIdentifier elect(String electionName,
+    IbisIdentifier elect(String electionName, IbisIdentifier candidate)
+            throws IOException {
+        synchronized (elections) {
+            Election election = elections.get(electionName);
+            if (election != null) {
+                return election.getWinner();
+            }
+        }
+        return newElection(electionName, candidate);
+    }
+
+    private synchronized IbisIdentifier newElection(String electionName,
             IbisIdentifier candidate) throws IOException {
         Election election = elections.get(electionName);
 
@@ -565,7 +768,9 @@ final class Pool implements Runnable {
 
             election = new Election(event);
 
-            elections.put(election);
+            synchronized (elections) {
+                elections.put(election);
+            }
 
             if (printEvents) {
                 print(candidate + " won election \"" + electionName
@@ -577,18 +782,29 @@ final class Pool implements Runnable {
         return election.getWinner();
     }
 
-    synchronized long getSequenceNumber(String name) {
-        Integer currentValue = sequencers.get(name);
+    long getSequenceNumber(String name) {
+        return getSequenceNumbers(name, 1);
+    }
 
-        if (currentValue == null) {
-            currentValue = Integer.valueOf(0);
-        }
+    /**
+     * Hands out a block of consecutive sequence numbers.
+     *
+     * @return the first number of the block.
+     */
+    long getSequenceNumbers(String name, int count) {
+        synchronized (sequencers) {
+            Long currentValue = sequencers.get(name);
+
+            if (currentValue == null) {
+                currentValue = Long.valueOf(0);
+            }
 
-        int result = currentValue;
+            long result = currentValue;
 
-        sequencers.put(name, currentValue + 1);
+            sequencers.put(name, currentValue + count);
 
-        return result;
+            return result;
+        }
     }
 
     /*
@@ -597,9 +813,17 @@ final class Pool implements Runnable {
      * @seeibis.ipl.impl.registry.central.SuperPool#maybeDead(ibis.ipl.impl.
      * IbisIdentifier)
      */
-    synchronized void maybeDead(IbisIdentifier identifier) {
+    void maybeDead(IbisIdentifier identifier) {
+        maybeDead(identifier.getID());
+    }
 
-        Member member = members.get(identifier);
+    /**
+     * Same as {@link #maybeDead(IbisIdentifier)}, for a member given by its
+     * ID.
+     */
+    void maybeDead(String identifier) {
+
+        Member member = memberIndex.get(identifier);
 
         if (member != null) {
             if (member.getTime() > (System.currentTimeMillis()
@@ -617,7 +841,9 @@ final class Pool implements Runnable {
 
                 member.clearTime();
                 // wake up checker thread, this suspect now (among) the oldest
-                notifyAll();
+                synchronized (this) {
+                    notifyAll();
+                }
             }
         } else {
             if (logger.isDebugEnabled()) {
@@ -639,7 +865,7 @@ final class Pool implements Runnable {
         ArrayList<IbisIdentifier> result = new ArrayList<IbisIdentifier>();
 
         for (IbisIdentifier target : targets) {
-            if (members.contains(target)) {
+            if (memberIndex.containsKey(target.getID())) {
                 result.add(target);
             }
         }
@@ -799,28 +1025,45 @@ final class Pool implements Runnable {
 
             long sendOk = System.currentTimeMillis();
 
-            if (requestBootstrap) {
-                // peer requests bootstrap data
-                writeState(connection.out(), joinTime);
+            // a member that fell behind the retention window of the history
+            // cannot catch up with events, it gets our state instead
+            boolean behind = requestedEventTime < getMinEventTime();
+            if (behind && !requestBootstrap && logger.isDebugEnabled()) {
+                logger.debug(member + " requested events from "
+                        + requestedEventTime + ", but history starts at "
+                        + getMinEventTime() + ", sending state");
             }
-            long writtenState = System.currentTimeMillis();
 
-            member.setCurrentTime(requestedEventTime);
-            Event[] events = getEvents(requestedEventTime);
+            // the events must continue exactly where the state ends, so
+            // take a new state if the history no longer reaches back to it
+            boolean sendState = requestBootstrap || behind;
+            StateSnapshot state = null;
+            EventBatch batch = sendState ? null
+                    : getEventBatch(requestedEventTime);
+            while (batch == null) {
+                sendState = true;
+                state = getSnapshot();
+                batch = getEventBatch(state.getTime());
+            }
 
             long gotEvents = System.currentTimeMillis();
 
-            if (logger.isDebugEnabled()) {
-                logger.debug(
-                        "sending " + events.length + " entries to " + member);
+            connection.out().writeBoolean(sendState);
+            if (sendState) {
+                writeState(connection.out(), joinTime, state);
+                requestedEventTime = state.getTime();
             }
+            long writtenState = System.currentTimeMillis();
 
-            connection.out().writeInt(events.length);
+            member.setCurrentTime(requestedEventTime);
 
-            for (int i = 0; i < events.length; i++) {
-                events[i].writeTo(connection.out());
+            if (logger.isDebugEnabled()) {
+                logger.debug(
+                        "sending " + batch.count + " entries to " + member);
             }
 
+            connection.out().write(batch.data);
+
             long writtenEvents = System.currentTimeMillis();
 
             connection.out().writeInt(getMinEventTime());
@@ -853,11 +1096,12 @@ final class Pool implements Runnable {
                         + ", writtenOpcode = " + (writtenOpcode - connected)
                         + ", readInfo = " + (readInfo - writtenOpcode)
                         + ", sendOk = " + (sendOk - readInfo)
-                        + ", writtenState (" + requestBootstrap + ") = "
-                        + (writtenState - sendOk) + "\n\t\t\t" +
+                        + ", gotEvents = " + (gotEvents - sendOk)
+                        + "\n\t\t\t" +
 
-                "gotEvents = " + (gotEvents - writtenState)
-                        + ", writtenEvents = " + (writtenEvents - gotEvents)
+                "writtenState (" + requestBootstrap + ") = "
+                        + (writtenState - gotEvents)
+                        + ", writtenEvents = " + (writtenEvents - writtenState)
                         + ", writtenAll = " + (writtenAll - writtenEvents)
                         + ", closedConnection = "
                         + (closedConnection - writtenAll) + ", done = "
@@ -893,7 +1137,7 @@ final class Pool implements Runnable {
             if (oldest == null) {
                 timeout = 1000;
             } else {
-                timeout = (oldest.getTime() + heartbeatInterval) - currentTime;
+                timeout = (oldest.getTime() + heartbeatTimeout) - currentTime;
             }
 
             if (timeout <= 0) {
@@ -917,8 +1161,16 @@ final class Pool implements Runnable {
         return null;
     }
 
-    synchronized void gotHeartbeat(IbisIdentifier identifier) {
-        Member member = members.get(identifier);
+    void gotHeartbeat(IbisIdentifier identifier) {
+        gotHeartbeat(identifier.getID());
+    }
+
+    /**
+     * Same as {@link #gotHeartbeat(IbisIdentifier)}, for a member given by
+     * its ID.
+     */
+    void gotHeartbeat(String identifier) {
+        Member member = memberIndex.get(identifier);
 
         if (logger.isDebugEnabled()) {
             logger.debug("updating last seen time for " + member);
@@ -937,12 +1189,16 @@ final class Pool implements Runnable {
         return members.getRandom();
     }
 
-    synchronized boolean isMember(Member member) {
-        return members.contains(member);
+    boolean isMember(Member member) {
+        return memberIndex.containsKey(member.getIbis().getID());
     }
 
-    synchronized Member[] getMembers() {
-        return members.asArray();
+    /**
+     * Returns the current members. The array is shared, and must not be
+     * modified.
+     */
+    Member[] getMembers() {
+        return memberArray;
     }
 
     /**
@@ -992,6 +1248,10 @@ final class Pool implements Runnable {
         result.put(name + ".dieds", "" + eventStats[Event.DIED]);
         result.put(name + ".elections", "" + eventStats[Event.ELECT]);
         result.put(name + ".signals", "" + eventStats[Event.SIGNAL]);
+        synchronized (events) {
+            result.put(name + ".history.events", "" + events.size());
+            result.put(name + ".history.bytes", "" + events.getMemoryUsage());
+        }
         result.put(name + ".fixed.size", "" + getFixedSize());
         result.put(name + ".closed", "" + "" + isClosed());
         result.put(name + ".ended", "" + "" + ended);
@@ -1018,13 +1278,21 @@ final class Pool implements Runnable {
         }
 
         if (newMinimum < minEventTime) {
+            // members behind the retention window of the history are
+            // expected, anything else is an error
+            if (eventsDropped) {
+                return;
+            }
             logger.error("tried to set minimum event time backwards");
             return;
         }
 
-        events.setMinimum(newMinimum);
+        synchronized (events) {
+            events.setMinimum(newMinimum);
+            eventBatch = null;
 
-        minEventTime = newMinimum;
+            minEventTime = newMinimum;
+        }
     }
 
     /**
@@ -1058,28 +1326,32 @@ final class Pool implements Runnable {
     }
 
     public String getToken(String name2) {
-        Integer currentValue = tokens.get(name2);
+        synchronized (tokens) {
+            Integer currentValue = tokens.get(name2);
 
-        if (currentValue == null) {
-            return null;
-        }
+            if (currentValue == null) {
+                return null;
+            }
 
-        int result = currentValue - 1;
-        if (result == 0) {
-            tokens.remove(name2);
-        } else {
-            tokens.put(name2, result);
+            int result = currentValue - 1;
+            if (result == 0) {
+                tokens.remove(name2);
+            } else {
+                tokens.put(name2, result);
+            }
+            return name2;
         }
-        return name2;
     }
 
     public void addTokens(String name2, int count) {
-        Integer currentValue = tokens.get(name2);
+        synchronized (tokens) {
+            Integer currentValue = tokens.get(name2);
 
-        if (currentValue != null) {
-            count += currentValue;
+            if (currentValue != null) {
+                count += currentValue;
+            }
+            tokens.put(name2, count);
         }
-        tokens.put(name2, count);
     }
 
 }
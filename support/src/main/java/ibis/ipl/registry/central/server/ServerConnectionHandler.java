@@ -36,10 +36,6 @@ import ibis.util.ThreadPool;
 
 final class ServerConnectionHandler implements Runnable {
 
-    private static final int CONNECTION_BACKLOG = 50;
-
-    static final int MAX_THREADS = 50;
-
     private static final Logger logger = LoggerFactory
             .getLogger(ServerConnectionHandler.class);
 
@@ -53,19 +49,25 @@ final class ServerConnectionHandler implements Runnable {
 
     private int maxNrOfThreads = 0;
 
+    // maximum number of requests handled at the same time
+    private final int maxThreads;
+
+    private boolean ended = false;
+
     private ControlPolicy policy;
 
     ServerConnectionHandler(CentralRegistryService server,
-            VirtualSocketFactory connectionFactory, ControlPolicy policy)
-                    throws IOException {
+            VirtualSocketFactory connectionFactory, ControlPolicy policy,
+            int maxThreads, int backlog) throws IOException {
         this.server = server;
         this.socketFactory = connectionFactory;
+        this.maxThreads = maxThreads;
 
         serverSocket = socketFactory.createServerSocket(Protocol.VIRTUAL_PORT,
-                CONNECTION_BACKLOG, null);
+                backlog, null);
         this.policy = policy;
 
-        createThread();
+        ThreadPool.createNew(this, "server connection acceptor");
     }
 
     private Pool handleJoin(Connection connection) throws Exception {
@@ -254,6 +256,34 @@ final class ServerConnectionHandler implements Runnable {
 
     }
 
+    private Pool handleGetSequenceBlock(Connection connection)
+            throws Exception {
+        IbisIdentifier identifier = new IbisIdentifier(connection.in());
+        String name = connection.in().readUTF();
+        int count = connection.in().readInt();
+
+        if (count <= 0) {
+            connection.closeWithError("invalid sequence block size: " + count);
+            throw new Exception("invalid sequence block size: " + count);
+        }
+
+        Pool pool = server.getPool(identifier.poolName());
+
+        if (pool == null) {
+            connection.closeWithError("pool not found");
+            throw new Exception("pool " + identifier.poolName() + " not found");
+        }
+
+        long first = pool.getSequenceNumbers(name, count);
+
+        connection.sendOKReply();
+
+        connection.out().writeLong(first);
+        pool.gotHeartbeat(identifier);
+        return pool;
+
+    }
+
     private Pool handleAddTokens(Connection connection) throws Exception {
         IbisIdentifier identifier = new IbisIdentifier(connection.in());
         String name = connection.in().readUTF();
@@ -399,6 +429,47 @@ final class ServerConnectionHandler implements Runnable {
 
     }
 
+    private static String[] readIDs(Connection connection)
+            throws IOException {
+        int length = connection.in().readInt();
+        if (length < 0) {
+            throw new IOException("negative number of ibisses");
+        }
+        String[] result = new String[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = connection.in().readUTF();
+        }
+        return result;
+    }
+
+    /**
+     * Handles the heartbeat of a child of the root of the broadcast tree,
+     * which also carries the heartbeats of the members below it, and the
+     * members it suspects to be dead.
+     */
+    private Pool handleTreeHeartbeat(Connection connection) throws Exception {
+        IbisIdentifier identifier = new IbisIdentifier(connection.in());
+        String[] alive = readIDs(connection);
+        String[] suspects = readIDs(connection);
+
+        Pool pool = server.getPool(identifier.poolName());
+
+        if (pool == null) {
+            connection.closeWithError("pool not found");
+            throw new Exception("pool " + identifier.poolName() + " not found");
+        }
+
+        connection.sendOKReply();
+        pool.gotHeartbeat(identifier);
+        for (String id : alive) {
+            pool.gotHeartbeat(id);
+        }
+        for (String id : suspects) {
+            pool.maybeDead(id);
+        }
+        return pool;
+    }
+
     private Pool handleTerminate(Connection connection) throws Exception {
         IbisIdentifier source = new IbisIdentifier(connection.in());
 
@@ -417,8 +488,12 @@ final class ServerConnectionHandler implements Runnable {
 
     }
 
-    private synchronized void createThread() {
-        while (currentNrOfThreads >= MAX_THREADS) {
+    /**
+     * Waits until fewer than the maximum number of requests are being
+     * handled, and claims a slot for a new one.
+     */
+    private synchronized void claimSlot() {
+        while (currentNrOfThreads >= maxThreads && !ended) {
             try {
                 wait();
             } catch (InterruptedException e) {
@@ -426,8 +501,6 @@ final class ServerConnectionHandler implements Runnable {
             }
         }
 
-        // create new thread for next connection
-        ThreadPool.createNew(this, "server connection handler");
         currentNrOfThreads++;
 
         if (currentNrOfThreads > maxNrOfThreads) {
@@ -444,104 +517,138 @@ final class ServerConnectionHandler implements Runnable {
         notifyAll();
     }
 
+    /**
+     * Accepts connections and hands each of them to a thread of its own, so
+     * accepting never waits for a request to be read or handled. At most
+     * maxThreads requests are handled at the same time, any further
+     * connections wait in the backlog of the server socket.
+     */
     public void run() {
-        Connection connection = null;
-        try {
-            if (logger.isDebugEnabled()) {
-                logger.debug("accepting connection");
-            }
-            connection = new Connection(serverSocket);
-            if (logger.isDebugEnabled()) {
-                logger.debug("connection accepted");
-            }
-        } catch (IOException e) {
-            if (server.isStopped()) {
-                threadEnded();
-                return;
-            }
-            logger.error("Accept failed, waiting a second, will retry", e);
+        while (!server.isStopped()) {
+            claimSlot();
 
-            // wait a bit
+            Connection connection;
             try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e1) {
-                // IGNORE
+                if (logger.isDebugEnabled()) {
+                    logger.debug("accepting connection");
+                }
+                connection = new Connection(serverSocket);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("connection accepted");
+                }
+            } catch (IOException e) {
+                threadEnded();
+                if (server.isStopped()) {
+                    return;
+                }
+                logger.error("Accept failed, waiting a second, will retry", e);
+
+                // wait a bit
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e1) {
+                    // IGNORE
+                }
+                continue;
             }
+
+            ThreadPool.createNew(new Request(connection),
+                    "server connection handler");
         }
+    }
 
-        createThread();
+    /**
+     * Handles a single request on a freshly accepted connection.
+     */
+    private final class Request implements Runnable {
+        private final Connection connection;
 
-        if (connection == null) {
-            threadEnded();
-            return;
+        Request(Connection connection) {
+            this.connection = connection;
         }
-        long start = System.currentTimeMillis();
 
-        byte opcode = 0;
-        Pool pool = null;
-        try {
-            byte magic = connection.in().readByte();
+        public void run() {
+            long start = System.currentTimeMillis();
 
-            if (magic != Protocol.MAGIC_BYTE) {
-                throw new IOException(
-                        "Invalid header byte in accepting connection");
-            }
+            byte opcode = 0;
+            Pool pool = null;
+            try {
+                byte magic = connection.in().readByte();
+
+                if (magic != Protocol.MAGIC_BYTE) {
+                    throw new IOException(
+                            "Invalid header byte in accepting connection");
+                }
 
-            opcode = connection.in().readByte();
+                opcode = connection.in().readByte();
 
-            if (logger.isDebugEnabled() && opcode < Protocol.NR_OF_OPCODES) {
-                logger.debug("got request, opcode = "
-                        + Protocol.OPCODE_NAMES[opcode]);
-            }
+                if (logger.isDebugEnabled()
+                        && opcode < Protocol.NR_OF_OPCODES) {
+                    logger.debug("got request, opcode = "
+                            + Protocol.OPCODE_NAMES[opcode]);
+                }
+
+                if (opcode == Protocol.OPCODE_SESSION) {
+                    // long-lived connection of a client, does not count as a
+                    // connection handler
+                    threadEnded();
+                    handleSession(connection);
+                    return;
+                }
 
-            switch (opcode) {
-            case Protocol.OPCODE_JOIN:
-                pool = handleJoin(connection);
-                break;
-            case Protocol.OPCODE_LEAVE:
-                pool = handleLeave(connection);
-                break;
-            case Protocol.OPCODE_ELECT:
-                pool = handleElect(connection);
-                break;
-            case Protocol.OPCODE_SEQUENCE_NR:
-                pool = handleGetSequenceNumber(connection);
-                break;
-            case Protocol.OPCODE_DEAD:
-                pool = handleDead(connection);
-                break;
-            case Protocol.OPCODE_MAYBE_DEAD:
-                pool = handleMaybeDead(connection);
-                break;
-            case Protocol.OPCODE_SIGNAL:
-                pool = handleSignal(connection);
-                break;
-            case Protocol.OPCODE_GET_STATE:
-                pool = handleGetState(connection);
-                break;
-            case Protocol.OPCODE_HEARTBEAT:
-                pool = handleHeartbeat(connection);
-                break;
-            case Protocol.OPCODE_TERMINATE:
-                pool = handleTerminate(connection);
-                break;
-            case Protocol.OPCODE_ADD_TOKENS:
-                pool = handleAddTokens(connection);
-                break;
-            case Protocol.OPCODE_GET_TOKEN:
-                pool = handleGetToken(connection);
-                break;
-            default:
-                logger.error("unknown opcode: " + opcode);
+                pool = handleRequest(connection, opcode);
+            } catch (Exception e) {
+                // send error to client
+                connection.closeWithError("Server: " + e.getMessage());
+                logger.error("error on handling connection", e);
+            } finally {
+                connection.close();
             }
-        } catch (Exception e) {
-            // send error to client
-            connection.closeWithError("Server: " + e.getMessage());
-            logger.error("error on handling connection", e);
-        } finally {
-            connection.close();
+
+            requestDone(connection, opcode, pool, start);
+            threadEnded();
+        }
+    }
+
+    private Pool handleRequest(Connection connection, byte opcode)
+            throws Exception {
+        switch (opcode) {
+        case Protocol.OPCODE_JOIN:
+            return handleJoin(connection);
+        case Protocol.OPCODE_LEAVE:
+            return handleLeave(connection);
+        case Protocol.OPCODE_ELECT:
+            return handleElect(connection);
+        case Protocol.OPCODE_SEQUENCE_NR:
+            return handleGetSequenceNumber(connection);
+        case Protocol.OPCODE_SEQUENCE_BLOCK:
+            return handleGetSequenceBlock(connection);
+        case Protocol.OPCODE_DEAD:
+            return handleDead(connection);
+        case Protocol.OPCODE_MAYBE_DEAD:
+            return handleMaybeDead(connection);
+        case Protocol.OPCODE_SIGNAL:
+            return handleSignal(connection);
+        case Protocol.OPCODE_GET_STATE:
+            return handleGetState(connection);
+        case Protocol.OPCODE_HEARTBEAT:
+            return handleHeartbeat(connection);
+        case Protocol.OPCODE_TREE_HEARTBEAT:
+            return handleTreeHeartbeat(connection);
+        case Protocol.OPCODE_TERMINATE:
+            return handleTerminate(connection);
+        case Protocol.OPCODE_ADD_TOKENS:
+            return handleAddTokens(connection);
+        case Protocol.OPCODE_GET_TOKEN:
+            return handleGetToken(connection);
+        default:
+            logger.error("unknown opcode: " + opcode);
+            return null;
         }
+    }
 
+    private void requestDone(Connection connection, byte opcode, Pool pool,
+            long start) {
         if (pool != null) {
             if (pool.getStatistics() != null) {
                 pool.getStatistics().add(opcode,
@@ -556,7 +663,110 @@ final class ServerConnectionHandler implements Runnable {
                 pool.saveStatistics();
             }
         }
-        threadEnded();
+    }
+
+    /**
+     * Handles a request received on a multiplexed connection, see
+     * {@link ibis.ipl.support.ConnectionMultiplexer}. The request is
+     * handled as if it arrived on a connection of its own, the reply is sent
+     * back with the id of the request.
+     */
+    private final class SessionRequest implements Runnable {
+        private final Connection session;
+
+        private final int requestID;
+
+        private final byte[] data;
+
+        SessionRequest(Connection session, int requestID, byte[] data) {
+            this.session = session;
+            this.requestID = requestID;
+            this.data = data;
+        }
+
+        public void run() {
+            long start = System.currentTimeMillis();
+
+            Connection connection = new Connection(data);
+            byte opcode = 0;
+            Pool pool = null;
+            try {
+                byte magic = connection.in().readByte();
+
+                if (magic != Protocol.MAGIC_BYTE) {
+                    throw new IOException("Invalid header byte in request");
+                }
+
+                opcode = connection.in().readByte();
+
+                if (logger.isDebugEnabled()
+                        && opcode < Protocol.NR_OF_OPCODES) {
+                    logger.debug("got session request, opcode = "
+                            + Protocol.OPCODE_NAMES[opcode]);
+                }
+
+                if (opcode == Protocol.OPCODE_JOIN
+                        || opcode == Protocol.OPCODE_SESSION) {
+                    throw new IOException("request not allowed in session: "
+                            + Protocol.OPCODE_NAMES[opcode]);
+                }
+
+                pool = handleRequest(connection, opcode);
+            } catch (Exception e) {
+                // send error to client
+                connection.closeWithError("Server: " + e.getMessage());
+                logger.error("error on handling session request", e);
+            }
+
+            byte[] reply = connection.getWrittenBytes();
+            try {
+                synchronized (session) {
+                    session.out().writeInt(requestID);
+                    session.out().writeInt(reply.length);
+                    session.out().write(reply);
+                    session.out().flush();
+                }
+            } catch (IOException e) {
+                // client will notice and reconnect
+                if (logger.isDebugEnabled()) {
+                    logger.debug("could not send reply on session", e);
+                }
+                session.close();
+            }
+
+            requestDone(connection, opcode, pool, start);
+            threadEnded();
+        }
+    }
+
+    /**
+     * Reads requests from a long-lived client connection until it is closed.
+     * Requests are handled concurrently, so a slow request does not hold up
+     * the others. Each request takes a slot like a request on a connection
+     * of its own, so at most maxThreads requests are handled at the same
+     * time. Any further requests wait in the connection.
+     */
+    private void handleSession(Connection session) {
+        try {
+            while (true) {
+                int requestID = session.in().readInt();
+                int length = session.in().readInt();
+                if (length < 0) {
+                    throw new IOException("negative request length");
+                }
+                byte[] data = new byte[length];
+                session.in().readFully(data);
+
+                claimSlot();
+                ThreadPool.createNew(
+                        new SessionRequest(session, requestID, data),
+                        "server session request");
+            }
+        } catch (IOException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("session ended", e);
+            }
+        }
     }
 
     public void end() {
@@ -565,6 +775,11 @@ final class ServerConnectionHandler implements Runnable {
         } catch (Exception e) {
             // IGNORE
         }
+        synchronized (this) {
+            // wake up the acceptor if it waits for a slot
+            ended = true;
+            notifyAll();
+        }
         if (logger.isInfoEnabled()) {
             synchronized (this) {
                 logger.debug(
@@ -28,6 +28,7 @@ import ibis.util.ThreadPool;
 import ibis.util.TypedProperties;
 
 import java.io.IOException;
+import java.util.HashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -183,13 +184,19 @@ class CommunicationHandler implements Runnable {
             connection.out().writeByte(Protocol.OPCODE_GOSSIP);
             registry.getIbisIdentifier().writeTo(connection.out());
 
-            pool.writeGossipData(connection.out(), gossipSize);
-            elections.writeGossipData(connection.out());
+            // first send digests, then exchange only what differs
+            pool.writeGossipDigest(connection.out(), gossipSize);
+            elections.writeGossipDigest(connection.out());
 
             connection.getAndCheckReply();
 
-            pool.readGossipData(connection.in());
-            elections.readGossipData(connection.in());
+            MemberSet.Request poolRequest = pool.readGossipReply(connection
+                    .in());
+            String[] electionRequest = elections.readGossipReply(connection
+                    .in());
+
+            pool.writeGossipEntries(connection.out(), poolRequest);
+            elections.writeGossipEntries(connection.out(), electionRequest);
 
             connection.close();
             if (statistics != null) {
@@ -217,13 +224,18 @@ class CommunicationHandler implements Runnable {
             connection.closeWithError("wrong pool");
         }
 
-        pool.readGossipData(connection.in());
-        elections.readGossipData(connection.in());
+        MemberSet.Digest poolDigest = pool.readGossipDigest(connection.in());
+        HashMap<String, Long> electionDigest = elections
+                .readGossipDigest(connection.in());
 
         connection.sendOKReply();
 
-        pool.writeGossipData(connection.out(), gossipSize);
-        elections.writeGossipData(connection.out());
+        pool.writeGossipReply(connection.out(), gossipSize, poolDigest);
+        elections.writeGossipReply(connection.out(), electionDigest);
+        connection.out().flush();
+
+        pool.readGossipEntries(connection.in());
+        elections.readGossipEntries(connection.in());
 
         connection.close();
     }
@@ -57,6 +57,23 @@ public class Election {
         }
     }
 
+    /**
+     * Returns a hash of the candidates of this election, used to find out if
+     * a peer has the same candidates as we have.
+     */
+    synchronized long digest() {
+        long result = candidates.size();
+        for (IbisIdentifier candidate : candidates) {
+            String id = candidate.getID();
+            long hash = id.length();
+            for (int i = 0; i < id.length(); i++) {
+                hash = hash * 31 + id.charAt(i);
+            }
+            result ^= SetDigest.mix(hash);
+        }
+        return result;
+    }
+
     synchronized void merge(Election other) {
         for(IbisIdentifier candidate: other.candidates) {
             candidates.add(candidate);
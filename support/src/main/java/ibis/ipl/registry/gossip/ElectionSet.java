@@ -21,6 +21,7 @@ import ibis.util.TypedProperties;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -44,19 +45,135 @@ public class ElectionSet implements Iterable<Election> {
         elections = new HashMap<String, Election>();
     }
 
-    public synchronized void writeGossipData(DataOutputStream out)
+    /**
+     * First message of a gossip: the name and a digest of the candidates of
+     * every election. Elections themselves are only sent if the peer does not
+     * have them, or has different candidates.
+     */
+    public synchronized void writeGossipDigest(DataOutputStream out)
             throws IOException {
-	if (logger.isDebugEnabled()) {
-	    logger.debug("writing " + elections.size() + " elections");
-	}
+        if (logger.isDebugEnabled()) {
+            logger.debug("writing digest of " + elections.size()
+                    + " elections");
+        }
         out.writeInt(elections.size());
 
         for (Election election : elections.values()) {
+            out.writeUTF(election.getName());
+            out.writeLong(election.digest());
+        }
+    }
+
+    public HashMap<String, Long> readGossipDigest(DataInputStream in)
+            throws IOException {
+        int nrOfElections = in.readInt();
+
+        if (nrOfElections < 0) {
+            throw new IOException("negative election list value");
+        }
+
+        HashMap<String, Long> result = new HashMap<String, Long>();
+        for (int i = 0; i < nrOfElections; i++) {
+            String name = in.readUTF();
+            result.put(name, in.readLong());
+        }
+        return result;
+    }
+
+    /**
+     * Reply to a gossip: all elections which the peer does not have, or where
+     * it has different candidates, followed by the names of the elections we
+     * would like the peer to send us.
+     */
+    public void writeGossipReply(DataOutputStream out,
+            HashMap<String, Long> digest) throws IOException {
+        ArrayList<Election> send = new ArrayList<Election>();
+        ArrayList<String> request = new ArrayList<String>();
+
+        synchronized (this) {
+            for (Election election : elections.values()) {
+                Long remote = digest.get(election.getName());
+
+                if (remote == null) {
+                    send.add(election);
+                } else if (remote.longValue() != election.digest()) {
+                    send.add(election);
+                    request.add(election.getName());
+                }
+            }
+        }
+        for (String name : digest.keySet()) {
+            if (!containsElection(name)) {
+                request.add(name);
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("sending " + send.size() + " elections, requesting "
+                    + request.size());
+        }
+
+        writeElections(out, send);
+
+        out.writeInt(request.size());
+        for (String name : request) {
+            out.writeUTF(name);
+        }
+    }
+
+    public String[] readGossipReply(DataInputStream in) throws IOException {
+        readElections(in);
+
+        int nrOfNames = in.readInt();
+
+        if (nrOfNames < 0) {
+            throw new IOException("negative election name list value");
+        }
+
+        String[] result = new String[nrOfNames];
+        for (int i = 0; i < nrOfNames; i++) {
+            result[i] = in.readUTF();
+        }
+        return result;
+    }
+
+    /**
+     * Last message of a gossip: the elections the peer asked for.
+     */
+    public void writeGossipEntries(DataOutputStream out, String[] names)
+            throws IOException {
+        ArrayList<Election> send = new ArrayList<Election>();
+
+        synchronized (this) {
+            for (String name : names) {
+                Election election = elections.get(name);
+                if (election != null) {
+                    send.add(election);
+                }
+            }
+        }
+
+        writeElections(out, send);
+    }
+
+    public void readGossipEntries(DataInputStream in) throws IOException {
+        readElections(in);
+    }
+
+    private synchronized boolean containsElection(String name) {
+        return elections.containsKey(name);
+    }
+
+    private static void writeElections(DataOutputStream out,
+            ArrayList<Election> elections) throws IOException {
+        out.writeInt(elections.size());
+
+        for (Election election : elections) {
             election.writeTo(out);
         }
     }
 
-    public void readGossipData(DataInputStream in) throws IOException {
+    private void readElections(DataInputStream in) throws IOException {
         int nrOfElections = in.readInt();
 
         if (nrOfElections < 0) {
@@ -66,21 +183,30 @@ public class ElectionSet implements Iterable<Election> {
             logger.debug("reading " + nrOfElections + " elections");
         }
 
+        ArrayList<Election> received = new ArrayList<Election>();
         for (int i = 0; i < nrOfElections; i++) {
-            Election election = new Election(in);
-            String name = election.getName();
+            received.add(new Election(in));
+        }
 
-            if (elections.containsKey(name)) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("merging " + election + " with existing election" + elections.get(name));
-                }
-                elections.get(name).merge(election);
-            } else {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("received new election in gossip: " + election);
+        synchronized (this) {
+            for (Election election : received) {
+                String name = election.getName();
+
+                if (elections.containsKey(name)) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("merging " + election
+                                + " with existing election"
+                                + elections.get(name));
+                    }
+                    elections.get(name).merge(election);
+                } else {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("received new election in gossip: "
+                                + election);
+                    }
+
+                    elections.put(name, election);
                 }
-
-                elections.put(name, election);
             }
         }
     }
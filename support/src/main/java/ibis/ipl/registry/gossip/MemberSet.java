@@ -23,6 +23,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Random;
@@ -161,77 +162,287 @@ class MemberSet extends Thread {
         return candidates[0];
     }
 
-    public void writeGossipData(DataOutputStream out, int gossipSize) throws IOException {
-        UUID[] deceased;
-        UUID[] left;
-        Member[] randomMembers;
+    /**
+     * Digests of the deceased and left sets of a peer, as received in the
+     * first message of a gossip.
+     */
+    static final class Digest {
+        private final SetDigest deceased;
 
-        synchronized (this) {
-            deceased = this.deceased.toArray(new UUID[0]);
-            left = this.left.toArray(new UUID[0]);
-            randomMembers = getRandomMembers(gossipSize);
-            if (self != null) {
-                // make sure we send out ourselves as "just seen"
-                self.seen();
-            }
+        private final SetDigest left;
+
+        Digest(DataInputStream in) throws IOException {
+            deceased = new SetDigest(in);
+            left = new SetDigest(in);
         }
+    }
 
-        out.writeInt(deceased.length);
-        for (UUID id : deceased) {
-            out.writeLong(id.getMostSignificantBits());
-            out.writeLong(id.getLeastSignificantBits());
+    /**
+     * Buckets of the deceased and left sets a peer asked us for, together
+     * with the entries it already sent us for these buckets.
+     */
+    static final class Request {
+        private final int deceasedBuckets;
+
+        private final boolean[] deceased;
+
+        private final HashSet<UUID> deceasedReceived;
+
+        private final int leftBuckets;
+
+        private final boolean[] left;
+
+        private final HashSet<UUID> leftReceived;
+
+        Request(int deceasedBuckets, boolean[] deceased,
+                HashSet<UUID> deceasedReceived, int leftBuckets,
+                boolean[] left, HashSet<UUID> leftReceived) {
+            this.deceasedBuckets = deceasedBuckets;
+            this.deceased = deceased;
+            this.deceasedReceived = deceasedReceived;
+            this.leftBuckets = leftBuckets;
+            this.left = left;
+            this.leftReceived = leftReceived;
         }
+    }
 
-        out.writeInt(left.length);
-        for (UUID id : left) {
+    private static void writeIDs(DataOutputStream out, Collection<UUID> ids)
+            throws IOException {
+        out.writeInt(ids.size());
+        for (UUID id : ids) {
             out.writeLong(id.getMostSignificantBits());
             out.writeLong(id.getLeastSignificantBits());
         }
+    }
 
-        out.writeInt(randomMembers.length);
-        for (Member member : randomMembers) {
-            member.writeTo(out);
+    private static HashSet<UUID> readIDs(DataInputStream in, String what)
+            throws IOException {
+        int nrOfIDs = in.readInt();
+
+        if (nrOfIDs < 0) {
+            throw new IOException("negative " + what + " list value");
         }
-    }
 
-    public void readGossipData(DataInputStream in) throws IOException {
-        int nrOfDeceased = in.readInt();
+        HashSet<UUID> result = new HashSet<UUID>();
+        for (int i = 0; i < nrOfIDs; i++) {
+            result.add(new UUID(in.readLong(), in.readLong()));
+        }
+        return result;
+    }
 
-        if (nrOfDeceased < 0) {
-            throw new IOException("negative deceased list value");
+    private static void writeBuckets(DataOutputStream out, boolean[] buckets)
+            throws IOException {
+        out.writeInt(buckets.length);
+        int count = 0;
+        for (boolean bucket : buckets) {
+            if (bucket) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i]) {
+                out.writeInt(i);
+            }
         }
+    }
+
+    private static boolean[] readBuckets(DataInputStream in, int nrOfBuckets)
+            throws IOException {
+        boolean[] result = new boolean[nrOfBuckets];
 
-        ArrayList<UUID> newDeceased = new ArrayList<UUID>();
-        for (int i = 0; i < nrOfDeceased; i++) {
-            UUID id = new UUID(in.readLong(), in.readLong());
-            newDeceased.add(id);
+        int count = in.readInt();
+        if (count < 0 || count > nrOfBuckets) {
+            throw new IOException("invalid digest bucket count: " + count);
         }
+        for (int i = 0; i < count; i++) {
+            int bucket = in.readInt();
+            if (bucket < 0 || bucket >= nrOfBuckets) {
+                throw new IOException("invalid digest bucket: " + bucket);
+            }
+            result[bucket] = true;
+        }
+        return result;
+    }
 
-        int nrOfLeft = in.readInt();
+    /**
+     * Returns the ids in the given set which fall in one of the given
+     * buckets, and were not already sent to us.
+     */
+    private static ArrayList<UUID> select(HashSet<UUID> ids,
+            int nrOfBuckets, boolean[] buckets, HashSet<UUID> exclude) {
+        ArrayList<UUID> result = new ArrayList<UUID>();
+
+        for (UUID id : ids) {
+            if (buckets[SetDigest.bucketOf(id, nrOfBuckets)]
+                    && (exclude == null || !exclude.contains(id))) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
 
-        if (nrOfLeft < 0) {
-            throw new IOException("negative left list value");
+    private Member[] getGossipMembers(int gossipSize) {
+        Member[] result = getRandomMembers(gossipSize);
+        if (self != null) {
+            // make sure we send out ourselves as "just seen"
+            self.seen();
         }
+        return result;
+    }
 
-        ArrayList<UUID> newLeft = new ArrayList<UUID>();
-        for (int i = 0; i < nrOfLeft; i++) {
-            UUID id = new UUID(in.readLong(), in.readLong());
-            newLeft.add(id);
+    private static void writeMembers(DataOutputStream out, Member[] members)
+            throws IOException {
+        out.writeInt(members.length);
+        for (Member member : members) {
+            member.writeTo(out);
         }
+    }
 
+    private ArrayList<Member> readMembers(DataInputStream in)
+            throws IOException {
         int nrOfMembers = in.readInt();
 
         if (nrOfMembers < 0) {
             throw new IOException("negative member list value");
         }
 
-        ArrayList<Member> newMembers = new ArrayList<Member>();
+        ArrayList<Member> result = new ArrayList<Member>();
         for (int i = 0; i < nrOfMembers; i++) {
-            Member member = new Member(in, properties);
-            newMembers.add(member);
+            result.add(new Member(in, properties));
+        }
+        return result;
+    }
+
+    /**
+     * First message of a gossip: a random sample of our members, and digests
+     * of the deceased and left sets. The deceased and left sets only grow
+     * over the lifetime of a pool, so these are not sent as a whole.
+     */
+    public void writeGossipDigest(DataOutputStream out, int gossipSize)
+            throws IOException {
+        Member[] randomMembers;
+        SetDigest deceased;
+        SetDigest left;
+
+        synchronized (this) {
+            randomMembers = getGossipMembers(gossipSize);
+            deceased = new SetDigest(this.deceased, SetDigest
+                    .nrOfBucketsFor(this.deceased.size()));
+            left = new SetDigest(this.left, SetDigest.nrOfBucketsFor(this.left
+                    .size()));
+        }
+
+        writeMembers(out, randomMembers);
+        deceased.writeTo(out);
+        left.writeTo(out);
+    }
+
+    public Digest readGossipDigest(DataInputStream in) throws IOException {
+        ArrayList<Member> newMembers = readMembers(in);
+        Digest result = new Digest(in);
+
+        merge(newMembers, null, null);
+
+        return result;
+    }
+
+    /**
+     * Reply to a gossip: a random sample of our members, and for every bucket
+     * of the deceased and left sets which differs from the digest of the
+     * peer, our entries in that bucket.
+     */
+    public void writeGossipReply(DataOutputStream out, int gossipSize,
+            Digest digest) throws IOException {
+        Member[] randomMembers;
+        boolean[] deceasedBuckets;
+        ArrayList<UUID> deceased;
+        boolean[] leftBuckets;
+        ArrayList<UUID> left;
+
+        synchronized (this) {
+            randomMembers = getGossipMembers(gossipSize);
+
+            int nrOfBuckets = digest.deceased.nrOfBuckets();
+            deceasedBuckets = new SetDigest(this.deceased, nrOfBuckets)
+                    .differences(digest.deceased);
+            deceased = select(this.deceased, nrOfBuckets, deceasedBuckets,
+                    null);
+
+            nrOfBuckets = digest.left.nrOfBuckets();
+            leftBuckets = new SetDigest(this.left, nrOfBuckets)
+                    .differences(digest.left);
+            left = select(this.left, nrOfBuckets, leftBuckets, null);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("gossip reply with " + deceased.size()
+                    + " deceased and " + left.size() + " left members");
+        }
+
+        writeMembers(out, randomMembers);
+        writeBuckets(out, deceasedBuckets);
+        writeIDs(out, deceased);
+        writeBuckets(out, leftBuckets);
+        writeIDs(out, left);
+    }
+
+    public Request readGossipReply(DataInputStream in) throws IOException {
+        ArrayList<Member> newMembers = readMembers(in);
+
+        int nrOfDeceasedBuckets = in.readInt();
+        if (nrOfDeceasedBuckets <= 0
+                || nrOfDeceasedBuckets > SetDigest.MAX_BUCKETS) {
+            throw new IOException("invalid number of digest buckets: "
+                    + nrOfDeceasedBuckets);
+        }
+        boolean[] deceasedBuckets = readBuckets(in, nrOfDeceasedBuckets);
+        HashSet<UUID> newDeceased = readIDs(in, "deceased");
+
+        int nrOfLeftBuckets = in.readInt();
+        if (nrOfLeftBuckets <= 0 || nrOfLeftBuckets > SetDigest.MAX_BUCKETS) {
+            throw new IOException("invalid number of digest buckets: "
+                    + nrOfLeftBuckets);
         }
+        boolean[] leftBuckets = readBuckets(in, nrOfLeftBuckets);
+        HashSet<UUID> newLeft = readIDs(in, "left");
+
+        merge(newMembers, newDeceased, newLeft);
+
+        return new Request(nrOfDeceasedBuckets, deceasedBuckets, newDeceased,
+                nrOfLeftBuckets, leftBuckets, newLeft);
+    }
+
+    /**
+     * Last message of a gossip: our entries in the buckets the peer found to
+     * differ, minus the ones it already sent us.
+     */
+    public void writeGossipEntries(DataOutputStream out, Request request)
+            throws IOException {
+        ArrayList<UUID> deceased;
+        ArrayList<UUID> left;
 
         synchronized (this) {
+            deceased = select(this.deceased, request.deceasedBuckets,
+                    request.deceased, request.deceasedReceived);
+            left = select(this.left, request.leftBuckets, request.left,
+                    request.leftReceived);
+        }
+
+        writeIDs(out, deceased);
+        writeIDs(out, left);
+    }
+
+    public void readGossipEntries(DataInputStream in) throws IOException {
+        HashSet<UUID> newDeceased = readIDs(in, "deceased");
+        HashSet<UUID> newLeft = readIDs(in, "left");
+
+        merge(null, newDeceased, newLeft);
+    }
+
+    private synchronized void merge(Collection<Member> newMembers,
+            Collection<UUID> newDeceased, Collection<UUID> newLeft) {
+        if (newMembers != null) {
             for (Member member : newMembers) {
                 UUID id = member.getUUID();
 
@@ -248,7 +459,9 @@ class MemberSet extends Thread {
                     }
                 }
             }
+        }
 
+        if (newDeceased != null) {
             for (UUID id : newDeceased) {
                 if (members.containsKey(id)) {
                     members.get(id).declareDead();
@@ -256,7 +469,9 @@ class MemberSet extends Thread {
                     deceased.add(id);
                 }
             }
+        }
 
+        if (newLeft != null) {
             for (UUID id : newLeft) {
                 if (members.containsKey(id)) {
                     members.get(id).setLeft();
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.registry.gossip;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Compact summary of a set of UUIDs, used to find out which parts of the
+ * deceased and left sets differ between two members without sending the sets
+ * themselves. The UUIDs are hashed into a number of buckets, each bucket
+ * keeps a count and a hash of its content. Only the content of buckets which
+ * differ needs to be exchanged.
+ */
+final class SetDigest {
+
+    static final int MAX_BUCKETS = 1024;
+
+    // number of entries per bucket we aim for
+    private static final int BUCKET_SIZE = 8;
+
+    private final int[] counts;
+
+    private final long[] hashes;
+
+    /**
+     * Mixes the bits of the given value (the finalizer of MurmurHash3).
+     */
+    static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    static long hash(UUID id) {
+        return mix(id.getMostSignificantBits() * 0x9e3779b97f4a7c15L
+                ^ id.getLeastSignificantBits());
+    }
+
+    /**
+     * Returns the number of buckets to use for a set of the given size.
+     */
+    static int nrOfBucketsFor(int size) {
+        int result = Integer.highestOneBit(Math.max(1, size / BUCKET_SIZE));
+        return Math.min(result, MAX_BUCKETS);
+    }
+
+    static int bucketOf(UUID id, int nrOfBuckets) {
+        return (int) (hash(id) >>> 32) & (nrOfBuckets - 1);
+    }
+
+    SetDigest(Collection<UUID> ids, int nrOfBuckets) {
+        counts = new int[nrOfBuckets];
+        hashes = new long[nrOfBuckets];
+
+        for (UUID id : ids) {
+            long hash = hash(id);
+            int bucket = (int) (hash >>> 32) & (nrOfBuckets - 1);
+            counts[bucket]++;
+            hashes[bucket] ^= hash;
+        }
+    }
+
+    SetDigest(DataInputStream in) throws IOException {
+        int nrOfBuckets = in.readInt();
+
+        if (nrOfBuckets <= 0 || nrOfBuckets > MAX_BUCKETS
+                || Integer.bitCount(nrOfBuckets) != 1) {
+            throw new IOException("invalid number of digest buckets: "
+                    + nrOfBuckets);
+        }
+
+        counts = new int[nrOfBuckets];
+        hashes = new long[nrOfBuckets];
+
+        for (int i = 0; i < nrOfBuckets; i++) {
+            counts[i] = in.readInt();
+            hashes[i] = in.readLong();
+        }
+    }
+
+    int nrOfBuckets() {
+        return counts.length;
+    }
+
+    /**
+     * Returns which buckets differ between this digest and the given one.
+     * Both digests must have the same number of buckets.
+     */
+    boolean[] differences(SetDigest other) {
+        boolean[] result = new boolean[counts.length];
+
+        for (int i = 0; i < counts.length; i++) {
+            result[i] = counts[i] != other.counts[i]
+                    || hashes[i] != other.hashes[i];
+        }
+
+        return result;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(counts.length);
+        for (int i = 0; i < counts.length; i++) {
+            out.writeInt(counts[i]);
+            out.writeLong(hashes[i]);
+        }
+    }
+}
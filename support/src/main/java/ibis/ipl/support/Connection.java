@@ -17,9 +17,12 @@ package ibis.ipl.support;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 
 import org.slf4j.Logger;
@@ -35,6 +38,9 @@ import ibis.smartsockets.virtual.VirtualSocketFactory;
 
 /**
  * Connection to the server and between clients using smartsockets.
+ * A connection can also be a single request on a
+ * {@link ConnectionMultiplexer}, or the server side of such a request, in
+ * which case the data is kept in memory.
  *
  * @author ndrost
  *
@@ -51,6 +57,44 @@ public final class Connection {
     private final DataInputStream in;
     private final CountInputStream counter;
 
+    /** Data written, if this connection is kept in memory. */
+    private final ByteArrayOutputStream buffer;
+
+    /** Multiplexer this request is sent over, or <code>null</code>. */
+    private final ConnectionMultiplexer multiplexer;
+
+    private final ReplyInputStream reply;
+
+    private final int timeout;
+
+    /**
+     * Input of a request on a multiplexer, which is empty until the reply
+     * arrives.
+     */
+    private static final class ReplyInputStream extends InputStream {
+
+        private InputStream in = new ByteArrayInputStream(new byte[0]);
+
+        void setReply(byte[] reply) {
+            in = new ByteArrayInputStream(reply);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+    }
+
     static final byte REPLY_ERROR = 2;
 
     static final byte REPLY_OK = 1;
@@ -87,6 +131,11 @@ public final class Connection {
         // lightConnection.put("connect.module.allow",
         // "ConnectModule(HubRouted)");
 
+        buffer = null;
+        multiplexer = null;
+        reply = null;
+        this.timeout = timeout;
+
         socket = factory.createClientSocket(address, timeout, fillTimeout,
                 lightConnection);
         socket.setTcpNoDelay(true);
@@ -115,6 +164,11 @@ public final class Connection {
         if (logger.isDebugEnabled()) {
             logger.debug("waiting for incoming connection...");
         }
+        buffer = null;
+        multiplexer = null;
+        reply = null;
+        timeout = 0;
+
         socket = serverSocket.accept();
         socket.setTcpNoDelay(true);
 
@@ -129,6 +183,54 @@ public final class Connection {
         }
     }
 
+    /**
+     * Creates a request on the given multiplexer. The request is sent by
+     * {@link #getAndCheckReply()}.
+     */
+    Connection(ConnectionMultiplexer multiplexer, int timeout) {
+        this.multiplexer = multiplexer;
+        this.timeout = timeout;
+        socket = null;
+        buffer = new ByteArrayOutputStream();
+        out = new DataOutputStream(buffer);
+        reply = new ReplyInputStream();
+        counter = new CountInputStream(reply);
+        in = new DataInputStream(counter);
+    }
+
+    /**
+     * Creates the server side of a request received on a multiplexed
+     * connection. The reply is collected in memory, and can be retrieved
+     * with {@link #getWrittenBytes()}.
+     *
+     * @param request
+     *            the request data.
+     */
+    public Connection(byte[] request) {
+        multiplexer = null;
+        reply = null;
+        timeout = 0;
+        socket = null;
+        buffer = new ByteArrayOutputStream();
+        out = new DataOutputStream(buffer);
+        counter = new CountInputStream(new ByteArrayInputStream(request));
+        in = new DataInputStream(counter);
+    }
+
+    /**
+     * Returns all data written to a connection kept in memory.
+     *
+     * @return the data written.
+     */
+    public byte[] getWrittenBytes() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // IGNORE, cannot happen for a memory buffer
+        }
+        return buffer.toByteArray();
+    }
+
     public DataOutputStream out() {
         return out;
     }
@@ -170,6 +272,13 @@ public final class Connection {
         // flush output, just in case...
         out.flush();
 
+        if (multiplexer != null && buffer.size() > 0) {
+            // send the request, and wait for the reply
+            byte[] request = buffer.toByteArray();
+            buffer.reset();
+            reply.setReply(multiplexer.exchange(request, timeout));
+        }
+
         // get reply
         byte reply = in.readByte();
         if (reply == Connection.REPLY_ERROR) {
@@ -220,6 +329,10 @@ public final class Connection {
             // IGNORE
         }
 
+        if (socket == null) {
+            return;
+        }
+
         try {
             socket.close();
         } catch (IOException e) {
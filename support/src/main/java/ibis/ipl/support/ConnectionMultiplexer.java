@@ -0,0 +1,382 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.io.IOProperties;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+import ibis.util.ThreadPool;
+
+/**
+ * Single long-lived connection, carrying any number of concurrent requests.
+ * Each request is sent as a frame with a request id, and the replies, which
+ * may arrive in any order, are matched to the requests by this id. Requests
+ * are created with {@link #newRequest(int)}, and used like a normal
+ * {@link Connection}.
+ *
+ * When the connection breaks, the requests in progress fail, and the next
+ * request sets up a new connection.
+ *
+ * Frames are an int request id, followed by an int length and the data.
+ */
+public final class ConnectionMultiplexer {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(ConnectionMultiplexer.class);
+
+    private static final class Exchange {
+        byte[] reply = null;
+
+        IOException exception = null;
+
+        boolean isDone() {
+            return reply != null || exception != null;
+        }
+    }
+
+    /**
+     * A connection to the peer, with a thread reading replies from it.
+     */
+    private final class Link implements Runnable {
+        final VirtualSocket socket;
+
+        final DataOutputStream out;
+
+        final DataInputStream in;
+
+        Link(VirtualSocket socket) throws IOException {
+            this.socket = socket;
+            out = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream(), IOProperties.BUFFER_SIZE));
+            in = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream(), IOProperties.BUFFER_SIZE));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // IGNORE
+            }
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    int requestID = in.readInt();
+                    int length = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("negative reply length");
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+
+                    gotReply(requestID, data);
+                }
+            } catch (IOException e) {
+                broken(this, e);
+            }
+        }
+    }
+
+    private final VirtualSocketAddress address;
+
+    private final int timeout;
+
+    private final VirtualSocketFactory factory;
+
+    private final byte[] header;
+
+    private final Map<Integer, Exchange> pending = new HashMap<Integer, Exchange>();
+
+    private int nextRequestID = 0;
+
+    private Link link = null;
+
+    // set while a thread sets up a new link
+    private boolean connecting = false;
+
+    private int connectAttempts = 0;
+
+    // why the last attempt to set up a link failed, if it did
+    private IOException connectFailure = null;
+
+    private int connects = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Creates a multiplexer. No connection is made until the first request.
+     *
+     * @param address
+     *            address of the peer.
+     * @param timeout
+     *            timeout for setting up a connection, in milliseconds.
+     * @param factory
+     *            factory used to create connections.
+     * @param header
+     *            data sent on each new connection, before any requests, so
+     *            the peer knows this is a multiplexed connection.
+     */
+    public ConnectionMultiplexer(VirtualSocketAddress address, int timeout,
+            VirtualSocketFactory factory, byte[] header) {
+        this.address = address;
+        this.timeout = timeout;
+        this.factory = factory;
+        this.header = header.clone();
+    }
+
+    /**
+     * Creates a new request. The request is sent, and the reply received,
+     * when {@link Connection#getAndCheckReply()} is called.
+     *
+     * @param timeout
+     *            maximum time to wait for the connection and the reply, in
+     *            milliseconds.
+     * @return the request.
+     */
+    public Connection newRequest(int timeout) {
+        return new Connection(this, timeout);
+    }
+
+    /**
+     * Returns the number of connections set up so far.
+     *
+     * @return the number of connections.
+     */
+    public synchronized int getNrOfConnects() {
+        return connects;
+    }
+
+    /**
+     * Returns the current link, setting up a new one if needed. The
+     * connection is set up outside of the lock, so replies and other
+     * requests are not held up meanwhile. Only one thread sets up a
+     * connection at a time, the others wait for it.
+     */
+    private Link getLink() throws IOException {
+        synchronized (this) {
+            int attempt = connectAttempts;
+            while (true) {
+                if (closed) {
+                    throw new IOException("connection to " + address
+                            + " closed");
+                }
+                if (link != null) {
+                    return link;
+                }
+                if (!connecting) {
+                    if (attempt != connectAttempts && connectFailure != null) {
+                        // the attempt we waited for failed
+                        throw new IOException("could not connect to "
+                                + address, connectFailure);
+                    }
+                    connecting = true;
+                    connectAttempts++;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // IGNORE
+                }
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("setting up connection to " + address);
+        }
+
+        Link result = null;
+        IOException failure = null;
+        boolean published = false;
+        try {
+            HashMap<String, Object> lightConnection = new HashMap<String, Object>();
+            VirtualSocket socket = factory.createClientSocket(address,
+                    timeout, true, lightConnection);
+            try {
+                socket.setTcpNoDelay(true);
+                result = new Link(socket);
+                result.out.write(header);
+                result.out.flush();
+            } catch (IOException e) {
+                result = null;
+                try {
+                    socket.close();
+                } catch (IOException e2) {
+                    // IGNORE
+                }
+                throw e;
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            synchronized (this) {
+                connecting = false;
+                connectFailure = failure;
+                if (result != null && !closed) {
+                    link = result;
+                    connects++;
+                    published = true;
+                }
+                notifyAll();
+            }
+        }
+
+        if (!published) {
+            // closed in the mean time
+            result.close();
+            throw new IOException("connection to " + address + " closed");
+        }
+
+        ThreadPool.createNew(result, "connection multiplexer reader");
+        return result;
+    }
+
+    private synchronized void gotReply(int requestID, byte[] data) {
+        Exchange exchange = pending.remove(requestID);
+        if (exchange == null) {
+            // timed out
+            if (logger.isDebugEnabled()) {
+                logger.debug("reply for unknown request " + requestID);
+            }
+            return;
+        }
+        exchange.reply = data;
+        notifyAll();
+    }
+
+    /**
+     * Closes the given link, if it still is the current one. All requests in
+     * progress fail.
+     */
+    private synchronized void broken(Link broken, IOException cause) {
+        broken.close();
+        if (link != broken) {
+            return;
+        }
+        link = null;
+
+        if (!closed && logger.isInfoEnabled()) {
+            logger.info("connection to " + address + " lost, "
+                    + pending.size() + " requests in progress failed", cause);
+        }
+
+        for (Exchange exchange : pending.values()) {
+            exchange.exception = new IOException("connection to " + address
+                    + " lost", cause);
+        }
+        pending.clear();
+        notifyAll();
+    }
+
+    /**
+     * Sends the given request, and waits for the reply.
+     *
+     * @param request
+     *            the request data.
+     * @param timeout
+     *            maximum time to wait, in milliseconds. 0 means wait forever.
+     * @return the reply data.
+     * @throws IOException
+     *             the connection could not be set up, broke while the
+     *             request was in progress, or the timeout expired.
+     */
+    byte[] exchange(byte[] request, int timeout) throws IOException {
+        long deadline = 0;
+        if (timeout > 0) {
+            deadline = System.currentTimeMillis() + timeout;
+        }
+
+        Exchange exchange = new Exchange();
+        Link link;
+        int requestID;
+        while (true) {
+            link = getLink();
+            synchronized (this) {
+                // if the link broke already, this request would not be
+                // failed along with the others
+                if (this.link == link) {
+                    requestID = nextRequestID++;
+                    pending.put(requestID, exchange);
+                    break;
+                }
+            }
+        }
+
+        try {
+            synchronized (link.out) {
+                link.out.writeInt(requestID);
+                link.out.writeInt(request.length);
+                link.out.write(request);
+                link.out.flush();
+            }
+        } catch (IOException e) {
+            broken(link, e);
+        }
+
+        synchronized (this) {
+            while (!exchange.isDone()) {
+                long wait = 0;
+                if (deadline != 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        pending.remove(requestID);
+                        throw new IOException("timeout waiting for reply from "
+                                + address);
+                    }
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    // IGNORE
+                }
+            }
+        }
+
+        if (exchange.exception != null) {
+            throw exchange.exception;
+        }
+        return exchange.reply;
+    }
+
+    /**
+     * Closes the connection. Requests in progress fail.
+     */
+    public void close() {
+        Link link;
+        synchronized (this) {
+            closed = true;
+            link = this.link;
+        }
+        if (link != null) {
+            broken(link, new IOException("connection closed"));
+        }
+    }
+}
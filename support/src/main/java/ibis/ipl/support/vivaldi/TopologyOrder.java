@@ -0,0 +1,137 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.support.vivaldi;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.Location;
+import ibis.ipl.impl.Ibis;
+
+/**
+ * Orders a list of ibisses so that a message forwarded along the list crosses
+ * every wide-area link as few times as possible. Starting at the local ibis,
+ * the next ibis is always the nearest one (by Vivaldi distance) in the same
+ * cluster (by Location) as the current one. Only when a cluster is done do we
+ * move on, to the nearest remaining ibis. Ibisses with unknown coordinates
+ * are ordered by how many levels of their Location match the current one.
+ *
+ * @ibis.experimental
+ */
+public final class TopologyOrder {
+
+    private TopologyOrder() {
+        // not instantiated
+    }
+
+    private static double distance(Coordinates one, Coordinates other) {
+        if (one == null || other == null) {
+            // unknown, put it at the end
+            return Double.MAX_VALUE;
+        }
+        return one.distance(other);
+    }
+
+    /**
+     * Sorts the given ibisses, using the Vivaldi coordinates the given ibis
+     * already knows. Never blocks to get coordinates. Returns false, and
+     * leaves the array untouched, if the local ibis does not have Vivaldi
+     * coordinates, or knows none of the others.
+     *
+     * @param ibis
+     *            the local ibis.
+     * @param ids
+     *            the ibisses to sort. The local ibis should not be in here.
+     * @return if the array was sorted.
+     */
+    public static boolean sort(Ibis ibis, IbisIdentifier[] ids) {
+        Coordinates local = ibis.getVivaldiCoordinates();
+
+        if (local == null) {
+            return false;
+        }
+
+        Coordinates[] coordinates = new Coordinates[ids.length];
+        boolean known = false;
+        for (int i = 0; i < ids.length; i++) {
+            coordinates[i] = ibis.getVivaldiCoordinates(ids[i]);
+            known |= coordinates[i] != null;
+        }
+
+        if (!known) {
+            return false;
+        }
+
+        sort(ibis.identifier(), local, ids, coordinates);
+        return true;
+    }
+
+    /**
+     * Sorts the given ibisses, and their coordinates along with them.
+     * Coordinates may be null if unknown.
+     */
+    public static void sort(IbisIdentifier local, Coordinates localCoordinates,
+            IbisIdentifier[] ids, Coordinates[] coordinates) {
+        Location location = local.location();
+        Location cluster = location.getParent();
+        Coordinates current = localCoordinates;
+
+        for (int next = 0; next < ids.length; next++) {
+            int best = -1;
+            boolean bestLocal = false;
+            double bestDistance = Double.MAX_VALUE;
+            int bestMatching = 0;
+
+            for (int i = next; i < ids.length; i++) {
+                boolean inCluster = ids[i].location().getParent().equals(
+                        cluster);
+                double distance = distance(current, coordinates[i]);
+                int matching = ids[i].location().numberOfMatchingLevels(
+                        location);
+
+                boolean better;
+                if (best == -1) {
+                    better = true;
+                } else if (inCluster != bestLocal) {
+                    better = inCluster;
+                } else if (distance != bestDistance) {
+                    better = distance < bestDistance;
+                } else {
+                    better = matching > bestMatching;
+                }
+
+                if (better) {
+                    best = i;
+                    bestLocal = inCluster;
+                    bestDistance = distance;
+                    bestMatching = matching;
+                }
+            }
+
+            IbisIdentifier id = ids[best];
+            ids[best] = ids[next];
+            ids[next] = id;
+
+            Coordinates c = coordinates[best];
+            coordinates[best] = coordinates[next];
+            coordinates[next] = c;
+
+            location = id.location();
+            cluster = location.getParent();
+            if (c != null) {
+                current = c;
+            }
+        }
+    }
+}
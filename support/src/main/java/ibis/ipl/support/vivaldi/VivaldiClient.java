@@ -29,6 +29,10 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Properties;
 
 import org.slf4j.Logger;
@@ -49,6 +53,26 @@ public class VivaldiClient implements Runnable {
 
     private static final int CONNECTION_BACKLOG = 10;
 
+    // how long do we use coordinates received from a peer
+    public static final int COORDINATE_EXPIRY = 6 * PING_INTERVAL;
+
+    // maximum number of peers we remember coordinates of
+    public static final int MAX_REMOTE_COORDINATES = 1024;
+
+    // maximum number of peers waiting to be pinged for their coordinates
+    private static final int MAX_WANTED = 64;
+
+    private static final class RemoteCoordinates {
+        final Coordinates coordinates;
+
+        final long time;
+
+        RemoteCoordinates(Coordinates coordinates) {
+            this.coordinates = coordinates;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
     private final Registry registry;
 
     private final VirtualSocketFactory virtualSocketFactory;
@@ -59,6 +83,20 @@ public class VivaldiClient implements Runnable {
 
     private Coordinates coordinates;
 
+    // last known coordinates of peers, least recently used first
+    private final LinkedHashMap<IbisIdentifier, RemoteCoordinates> remoteCoordinates =
+            new LinkedHashMap<IbisIdentifier, RemoteCoordinates>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                protected boolean removeEldestEntry(
+                        Map.Entry<IbisIdentifier, RemoteCoordinates> eldest) {
+                    return size() > MAX_REMOTE_COORDINATES;
+                }
+            };
+
+    // peers asked for whose coordinates we do not know, pinged next
+    private final LinkedHashSet<IbisIdentifier> wanted = new LinkedHashSet<IbisIdentifier>();
+
     public VivaldiClient(Properties properties, Registry registry)
             throws IOException {
         this.registry = registry;
@@ -105,6 +143,10 @@ public class VivaldiClient implements Runnable {
             remaining -= read;
         }
         Coordinates remoteCoordinates = new Coordinates(coordinateBytes);
+        synchronized (this) {
+            this.remoteCoordinates.put(identifier, new RemoteCoordinates(
+                    remoteCoordinates));
+        }
 
         for (int i = 0; i < PING_COUNT; i++) {
             long start = System.nanoTime();
@@ -179,6 +221,61 @@ public class VivaldiClient implements Runnable {
         return coordinates;
     }
 
+    /**
+     * Returns the coordinates of the given ibis, if we know them. Never
+     * blocks: if we do not know them, or they are too old, null is returned
+     * and the ibis is pinged in the background, so its coordinates are known
+     * next time.
+     */
+    public synchronized Coordinates getCoordinates(IbisIdentifier identifier) {
+        if (identifier.equals(registry.getIbisIdentifier())) {
+            return coordinates;
+        }
+
+        RemoteCoordinates result = remoteCoordinates.get(identifier);
+        if (result != null
+                && System.currentTimeMillis() - result.time < COORDINATE_EXPIRY) {
+            return result.coordinates;
+        }
+        if (result != null) {
+            remoteCoordinates.remove(identifier);
+        }
+
+        if (wanted.size() < MAX_WANTED && wanted.add(identifier)) {
+            notifyAll();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next peer whose coordinates were asked for, or null.
+     */
+    private synchronized IbisIdentifier nextWanted() {
+        Iterator<IbisIdentifier> iterator = wanted.iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        IbisIdentifier result = iterator.next();
+        iterator.remove();
+        return result;
+    }
+
+    /**
+     * Waits for the next ping. Peers whose coordinates were asked for are
+     * pinged without waiting the full interval.
+     */
+    private synchronized void waitForPing(long deadline) {
+        long now = System.currentTimeMillis();
+        while (!ended && wanted.isEmpty() && now < deadline) {
+            try {
+                wait(deadline - now);
+            } catch (InterruptedException e) {
+                // IGNORE
+            }
+            now = System.currentTimeMillis();
+        }
+    }
+
     private synchronized boolean ended() {
         return ended;
     }
@@ -203,27 +300,28 @@ public class VivaldiClient implements Runnable {
 
     public void run() {
         Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+        long nextRandomPing = 0;
         while (!ended()) {
 
-            IbisIdentifier randomNode = registry.getRandomPoolMember();
-            if (randomNode != null
-                    && !randomNode.equals(registry.getIbisIdentifier())) {
+            IbisIdentifier node = nextWanted();
+            if (node == null && System.currentTimeMillis() >= nextRandomPing) {
+                node = registry.getRandomPoolMember();
+                nextRandomPing = System.currentTimeMillis() + PING_INTERVAL;
+            }
+            if (node != null
+                    && !node.equals(registry.getIbisIdentifier())) {
                 try {
-                    ping(randomNode, true);
+                    ping(node, true);
                 } catch (Exception e) {
                     if (logger.isDebugEnabled()) {
-                	logger.debug("error on pinging random node " + randomNode,
+                	logger.debug("error on pinging node " + node,
                 		e);
                     }
 
                 }
             }
 
-            try {
-                Thread.sleep(PING_INTERVAL);
-            } catch (InterruptedException e) {
-                // IGNORE
-            }
+            waitForPing(nextRandomPing);
         }
 
     }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.util.rpc;
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisIdentifier;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous proxy to a remote object. Calls return a {@link RemoteFuture}
+ * immediately after the request has been sent, so a caller can have many calls
+ * in flight at the same time. Created with
+ * {@link RPC#createAsyncProxy(Class, IbisIdentifier, String, Ibis)}.
+ *
+ * @param <InterfaceType>
+ *            Type of Interface which defines all the remotely accessible
+ *            functions.
+ */
+public final class AsyncProxy<InterfaceType> {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(AsyncProxy.class);
+
+	private final Class<InterfaceType> interfaceClass;
+
+	private final IbisIdentifier ibisIdentifier;
+
+	private final String name;
+
+	private final Ibis ibis;
+
+	AsyncProxy(Class<InterfaceType> interfaceClass,
+			IbisIdentifier ibisIdentifier, String name, Ibis ibis) {
+		this.interfaceClass = interfaceClass;
+		this.ibisIdentifier = ibisIdentifier;
+		this.name = name;
+		this.ibis = ibis;
+	}
+
+	public Class<InterfaceType> getInterfaceClass() {
+		return interfaceClass;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Calls the given method of the remote object. Returns as soon as the
+	 * request has been sent.
+	 *
+	 * @param method
+	 *            the method to call. Must be declared by the interface of this
+	 *            proxy.
+	 * @param args
+	 *            the arguments of the call.
+	 * @return a future for the result of the call.
+	 * @throws RemoteException
+	 *             if the method is not part of the interface, or sending the
+	 *             request failed.
+	 */
+	public RemoteFuture invoke(Method method, Object... args)
+			throws RemoteException {
+		if (!method.getDeclaringClass().equals(interfaceClass)) {
+			throw new RemoteException("method \"" + method.getName()
+					+ "\" not declared in remote object interface \""
+					+ interfaceClass.getName() + "\"");
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("async call to remote object " + name + ", method = "
+					+ method.getName());
+		}
+
+		try {
+			return RPCClient.getClient(ibis).call(ibisIdentifier, name, method,
+					args);
+		} catch (IOException e) {
+			throw new RemoteException("invocation failed", e);
+		}
+	}
+
+	/**
+	 * Calls the method with the given name of the remote object. Returns as
+	 * soon as the request has been sent. The method is selected by name and
+	 * number of arguments, use {@link #invoke(Method, Object...)} for
+	 * overloaded methods with the same number of parameters.
+	 *
+	 * @param methodName
+	 *            name of the method to call.
+	 * @param args
+	 *            the arguments of the call.
+	 * @return a future for the result of the call.
+	 * @throws RemoteException
+	 *             if no unique method can be found, or sending the request
+	 *             failed.
+	 */
+	public RemoteFuture invoke(String methodName, Object... args)
+			throws RemoteException {
+		int nrOfArgs = args == null ? 0 : args.length;
+
+		Method result = null;
+		for (Method method : interfaceClass.getDeclaredMethods()) {
+			if (method.getName().equals(methodName)
+					&& method.getParameterTypes().length == nrOfArgs) {
+				if (result != null) {
+					throw new RemoteException("method \"" + methodName
+							+ "\" with " + nrOfArgs
+							+ " parameters is ambiguous in interface \""
+							+ interfaceClass.getName() + "\"");
+				}
+				result = method;
+			}
+		}
+
+		if (result == null) {
+			throw new RemoteException("method \"" + methodName + "\" with "
+					+ nrOfArgs + " parameters not found in interface \""
+					+ interfaceClass.getName() + "\"");
+		}
+
+		return invoke(result, args);
+	}
+
+	public String toString() {
+		return "async proxy to " + name + "@" + ibisIdentifier;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.util.rpc;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Table of the methods of a remote object interface. Methods are identified
+ * on the wire by their index in this table. As the client and the server may
+ * have different versions of the interface, the client negotiates the server
+ * indices once per remote object, by sending the signatures of its methods.
+ */
+final class MethodTable {
+
+	/**
+	 * Method id of the request which negotiates the method ids.
+	 */
+	static final int NEGOTIATE_METHOD_ID = -1;
+
+	/**
+	 * Method id for methods the server does not know.
+	 */
+	static final int UNKNOWN_METHOD_ID = -2;
+
+	private static final Map<Class<?>, MethodTable> tables = new HashMap<Class<?>, MethodTable>();
+
+	private final Method[] methods;
+
+	private final String[] signatures;
+
+	private final Map<Method, Integer> indices = new HashMap<Method, Integer>();
+
+	private final Map<String, Integer> signatureIndices = new HashMap<String, Integer>();
+
+	/**
+	 * Returns the (cached) method table of the given interface.
+	 */
+	static MethodTable getTable(Class<?> interfaceClass) {
+		synchronized (tables) {
+			MethodTable result = tables.get(interfaceClass);
+			if (result == null) {
+				result = new MethodTable(interfaceClass);
+				tables.put(interfaceClass, result);
+			}
+			return result;
+		}
+	}
+
+	static String signature(Method method) {
+		StringBuilder result = new StringBuilder(method.getName());
+		result.append('(');
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		for (int i = 0; i < parameterTypes.length; i++) {
+			if (i > 0) {
+				result.append(',');
+			}
+			result.append(parameterTypes[i].getName());
+		}
+		result.append(')');
+		return result.toString();
+	}
+
+	private MethodTable(Class<?> interfaceClass) {
+		methods = interfaceClass.getDeclaredMethods();
+
+		// order returned by getDeclaredMethods() is not defined
+		Arrays.sort(methods, new Comparator<Method>() {
+			public int compare(Method m1, Method m2) {
+				return signature(m1).compareTo(signature(m2));
+			}
+		});
+
+		signatures = new String[methods.length];
+		for (int i = 0; i < methods.length; i++) {
+			signatures[i] = signature(methods[i]);
+			indices.put(methods[i], i);
+			signatureIndices.put(signatures[i], i);
+		}
+	}
+
+	int size() {
+		return methods.length;
+	}
+
+	Method getMethod(int index) {
+		return methods[index];
+	}
+
+	/**
+	 * Returns the index of the given method, or -1 if it is not part of this
+	 * table.
+	 */
+	int getIndex(Method method) {
+		Integer result = indices.get(method);
+		if (result == null) {
+			return -1;
+		}
+		return result;
+	}
+
+	String[] getSignatures() {
+		return signatures.clone();
+	}
+
+	/**
+	 * Translates the given signatures of a (remote) method table to the
+	 * indices of this table.
+	 */
+	int[] getIndices(String[] signatures) {
+		int[] result = new int[signatures.length];
+		for (int i = 0; i < signatures.length; i++) {
+			Integer index = signatureIndices.get(signatures[i]);
+			if (index == null) {
+				result[i] = UNKNOWN_METHOD_ID;
+			} else {
+				result[i] = index;
+			}
+		}
+		return result;
+	}
+}
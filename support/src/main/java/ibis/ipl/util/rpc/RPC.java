@@ -34,19 +34,23 @@ public class RPC {
 
 	/**
 	 * Port type used for sending a request to the server. Must be added to port
-	 * type of Ibis used for RPC
+	 * type of Ibis used for RPC. Lost connections are reported, so calls in
+	 * progress fail instead of waiting forever.
 	 */
 	public static final PortType rpcRequestPortType = new PortType(
 			PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_OBJECT,
-			PortType.RECEIVE_AUTO_UPCALLS, PortType.CONNECTION_MANY_TO_ONE);
+			PortType.RECEIVE_AUTO_UPCALLS, PortType.CONNECTION_MANY_TO_ONE,
+			PortType.CONNECTION_UPCALLS);
 
 	/**
 	 * Port type used for sending a reply back. Must be added to port type of
-	 * Ibis used for RPC
+	 * Ibis used for RPC. All replies for an Ibis arrive at a single receive
+	 * port, hence the many-to-one connection pattern.
 	 */
 	public static final PortType rpcReplyPortType = new PortType(
 			PortType.COMMUNICATION_RELIABLE, PortType.SERIALIZATION_OBJECT,
-			PortType.RECEIVE_EXPLICIT, PortType.CONNECTION_ONE_TO_ONE);
+			PortType.RECEIVE_AUTO_UPCALLS, PortType.CONNECTION_MANY_TO_ONE,
+			PortType.CONNECTION_UPCALLS);
 
 	/**
 	 * Port type used in RPC. Must be added to port type of Ibis used for RPC
@@ -54,6 +58,14 @@ public class RPC {
 	public static final PortType[] rpcPortTypes = { rpcRequestPortType,
 			rpcReplyPortType };
 
+	/**
+	 * Property of the Ibis used for RPC: the maximum time, in milliseconds,
+	 * that a call through a (synchronous) proxy waits for its reply. 0, the
+	 * default, means no limit. Calls also fail when the connection to the
+	 * remote object is lost.
+	 */
+	public static final String TIMEOUT_PROPERTY = "ibis.rpc.timeout";
+
 	/**
 	 * Exports an object, making it remotely accessible. Creates an IPL
 	 * ReceivePort to receive messages/calls for the object.
@@ -84,7 +96,48 @@ public class RPC {
 			Class<InterfaceType> interfaceClass, InterfaceType theObject,
 			String name, Ibis ibis) throws IOException, RemoteException {
 		return new RemoteObject<InterfaceType>(interfaceClass, theObject, name,
-				ibis);
+				ibis, 1);
+	}
+
+	/**
+	 * Exports an object, making it remotely accessible. Creates an IPL
+	 * ReceivePort to receive messages/calls for the object. Up to
+	 * maxConcurrentCalls calls are executed at the same time, each in its own
+	 * thread. The given object must therefore be thread safe if
+	 * maxConcurrentCalls is larger than 1.
+	 * 
+	 * 
+	 * @param <InterfaceType>
+	 *            Type of Interface which defines all the remotely accessible
+	 *            functions.
+	 * @param interfaceClass
+	 *            Interface which defines all the remotely accessible functions.
+	 *            All functions in this interface must declare to throw a
+	 *            {@link RemoteException}.
+	 * @param theObject
+	 *            the object to be remotely accessible. Must implement the
+	 *            interface given
+	 * @param name
+	 *            the name of the remote object. Used as the name of the
+	 *            receiveport. null for anonymous.
+	 * @param ibis
+	 *            the ibis used to create the receive port.
+	 * @param maxConcurrentCalls
+	 *            maximum number of calls executed at the same time. If 1,
+	 *            calls are executed one by one in the upcall thread of the
+	 *            receive port.
+	 * @return the RemoteObject
+	 * @throws IOException
+	 *             if creating the receive port failed
+	 * @throws RemoteException
+	 *             if the given interface does not meet the requirements.
+	 */
+	public static <InterfaceType extends Object> RemoteObject<InterfaceType> exportObject(
+			Class<InterfaceType> interfaceClass, InterfaceType theObject,
+			String name, Ibis ibis, int maxConcurrentCalls) throws IOException,
+			RemoteException {
+		return new RemoteObject<InterfaceType>(interfaceClass, theObject, name,
+				ibis, maxConcurrentCalls);
 	}
 
 	/**
@@ -150,4 +203,72 @@ public class RPC {
 
 		return result;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Creates an asynchronous proxy to the remote object specified. Calls made
+	 * through this proxy return a {@link RemoteFuture} as soon as the request
+	 * is sent, allowing many calls to be in flight at the same time.
+	 * 
+	 * 
+	 * @param <InterfaceType>
+	 *            Type of Interface which defines all the remotely accessible
+	 *            functions.
+	 * @param interfaceClass
+	 *            Interface which defines all the remotely accessible functions.
+	 *            All functions in this interface must declare to throw a
+	 *            {@link RemoteException}.
+	 * @param address
+	 *            Address of the remote object
+	 * @param ibis
+	 *            the ibis used to connect to the remote object
+	 * @return an asynchronous proxy to the remote object.
+	 */
+	public static <InterfaceType extends Object> AsyncProxy<InterfaceType> createAsyncProxy(
+			Class<InterfaceType> interfaceClass, ReceivePortIdentifier address,
+			Ibis ibis) {
+		return createAsyncProxy(interfaceClass, address.ibisIdentifier(),
+				address.name(), ibis);
+	}
+
+	/**
+	 * Creates an asynchronous proxy to the remote object specified. Calls made
+	 * through this proxy return a {@link RemoteFuture} as soon as the request
+	 * is sent, allowing many calls to be in flight at the same time.
+	 * 
+	 * 
+	 * @param <InterfaceType>
+	 *            Type of Interface which defines all the remotely accessible
+	 *            functions.
+	 * @param interfaceClass
+	 *            Interface which defines all the remotely accessible functions.
+	 *            All functions in this interface must declare to throw a
+	 *            {@link RemoteException}.
+	 * @param address
+	 *            Address of the Ibis of the remote object
+	 * @param name
+	 *            Name of the (receiveport of the) remote object.
+	 * @param ibis
+	 *            the ibis used to connect to the remote object
+	 * @return an asynchronous proxy to the remote object.
+	 */
+	public static <InterfaceType extends Object> AsyncProxy<InterfaceType> createAsyncProxy(
+			Class<InterfaceType> interfaceClass, IbisIdentifier address,
+			String name, Ibis ibis) {
+		return new AsyncProxy<InterfaceType>(interfaceClass, address, name,
+				ibis);
+	}
+
+	/**
+	 * Closes all connections cached by the proxies of the given Ibis. Calls
+	 * still in progress fail with a {@link RemoteException}. Proxies remain
+	 * usable, new connections are set up on their next call. Must be called
+	 * before the Ibis ends if it was used by any proxy, as the resources of
+	 * its proxies are not released otherwise.
+	 * 
+	 * @param ibis
+	 *            the ibis used by the proxies.
+	 */
+	public static void closeProxyConnections(Ibis ibis) {
+		RPCClient.closeClient(ibis);
+	}
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.util.rpc;
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceivePort;
+import ibis.ipl.ReceivePortConnectUpcall;
+import ibis.ipl.ReceivePortIdentifier;
+import ibis.ipl.SendPort;
+import ibis.ipl.SendPortDisconnectUpcall;
+import ibis.ipl.SendPortIdentifier;
+import ibis.ipl.WriteMessage;
+import ibis.util.ThreadPool;
+import ibis.util.TypedProperties;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client side of the RPC implementation. There is one client per Ibis. It
+ * keeps a cache of connected request send ports, one for each remote object
+ * used, and a single long-lived receive port on which all replies arrive.
+ * Replies are matched to the outstanding calls by a call id, so any number of
+ * threads can have calls in flight over the same connection. Calls in flight
+ * fail when a connection to or from the remote object breaks. A client lives
+ * until {@link RPC#closeProxyConnections(Ibis)} is called for its Ibis, which
+ * must be done before the Ibis ends.
+ */
+final class RPCClient implements MessageUpcall, ReceivePortConnectUpcall,
+		SendPortDisconnectUpcall {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(RPCClient.class);
+
+	// a client holds on to its ibis, so entries are only removed by closeClient
+	private static final Map<Ibis, RPCClient> clients = new HashMap<Ibis, RPCClient>();
+
+	private final Ibis ibis;
+
+	private final ReceivePort replyPort;
+
+	// maximum time a synchronous call waits for its reply, 0 for no limit
+	private final long timeout;
+
+	// key is ibis identifier + name of the remote object
+	private final Map<String, SendPort> sendPorts = new HashMap<String, SendPort>();
+
+	// negotiated method ids, key is key of send port + "#" + interface name
+	private final Map<String, int[]> methodIDs = new HashMap<String, int[]>();
+
+	private final Map<Long, RemoteFuture> pendingCalls = new HashMap<Long, RemoteFuture>();
+
+	private long nextCallID = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Returns the client of the given Ibis, creating it if needed.
+	 */
+	static RPCClient getClient(Ibis ibis) throws IOException {
+		synchronized (clients) {
+			RPCClient result = clients.get(ibis);
+			if (result == null || result.isClosed()) {
+				result = new RPCClient(ibis);
+				clients.put(ibis, result);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Closes the client of the given Ibis, if any.
+	 */
+	static void closeClient(Ibis ibis) {
+		RPCClient client;
+		synchronized (clients) {
+			client = clients.remove(ibis);
+		}
+		if (client != null) {
+			client.close();
+		}
+	}
+
+	private RPCClient(Ibis ibis) throws IOException {
+		this.ibis = ibis;
+
+		timeout = new TypedProperties(ibis.properties()).getLongProperty(
+				RPC.TIMEOUT_PROPERTY, 0);
+
+		// this receive port does not need a name, as we send the
+		// ReceivePortIdentifier to the server with every request
+		replyPort = ibis.createReceivePort(RPC.rpcReplyPortType, null, this,
+				this, null);
+		replyPort.enableConnections();
+		replyPort.enableMessageUpcalls();
+	}
+
+	private synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Returns a connected send port for the given remote object. Connects
+	 * only if no cached connection exists yet.
+	 */
+	private SendPort getSendPort(IbisIdentifier ibisIdentifier, String name)
+			throws IOException {
+		String key = ibisIdentifier + "/" + name;
+
+		synchronized (this) {
+			if (closed) {
+				throw new RemoteException("RPC client already closed");
+			}
+			SendPort result = sendPorts.get(key);
+			if (result != null) {
+				return result;
+			}
+		}
+
+		// connect outside of lock, connection setup may take a while
+		SendPort sendPort = ibis.createSendPort(RPC.rpcRequestPortType, null,
+				this, null);
+		sendPort.connect(ibisIdentifier, name);
+
+		synchronized (this) {
+			SendPort existing = sendPorts.get(key);
+			if (existing == null && !closed) {
+				sendPorts.put(key, sendPort);
+				return sendPort;
+			}
+		}
+
+		// some other thread was faster, or we were closed in the mean time
+		sendPort.close();
+
+		synchronized (this) {
+			SendPort existing = sendPorts.get(key);
+			if (existing == null) {
+				throw new RemoteException("RPC client already closed");
+			}
+			return existing;
+		}
+	}
+
+	private synchronized void removeSendPort(IbisIdentifier ibisIdentifier,
+			String name, SendPort sendPort) {
+		String key = ibisIdentifier + "/" + name;
+
+		if (sendPorts.get(key) == sendPort) {
+			sendPorts.remove(key);
+
+			// a new connection may lead to a different remote object
+			Iterator<String> iterator = methodIDs.keySet().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().startsWith(key + "#")) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	private synchronized long addPendingCall(RemoteFuture call) {
+		long result = nextCallID++;
+		pendingCalls.put(result, call);
+		return result;
+	}
+
+	private synchronized RemoteFuture removePendingCall(long callID) {
+		return pendingCalls.remove(callID);
+	}
+
+	/**
+	 * Waits for the reply to the given call, for at most the timeout of this
+	 * client. A call that times out, or is interrupted, is forgotten. A late
+	 * reply to it is ignored.
+	 */
+	void waitUntilDone(RemoteFuture call) throws RemoteException {
+		boolean done;
+		try {
+			done = call.waitUntilDone(timeout);
+		} catch (InterruptedException e) {
+			forget(call);
+			Thread.currentThread().interrupt();
+			throw new RemoteException("interrupted while waiting for call to \""
+					+ call.getMethodName() + "\" of remote object "
+					+ call.name, e);
+		}
+		if (!done) {
+			forget(call);
+			throw new RemoteException("call to \"" + call.getMethodName()
+					+ "\" of remote object " + call.name
+					+ " not done within " + timeout + " ms");
+		}
+	}
+
+	private synchronized void forget(RemoteFuture call) {
+		pendingCalls.values().remove(call);
+	}
+
+	/**
+	 * Fails the pending calls to the given remote object, or to all remote
+	 * objects of the given ibis if name is null.
+	 */
+	private void failCalls(IbisIdentifier ibisIdentifier, String name,
+			Throwable reason) {
+		ArrayList<RemoteFuture> failed = new ArrayList<RemoteFuture>();
+		synchronized (this) {
+			Iterator<RemoteFuture> iterator = pendingCalls.values().iterator();
+			while (iterator.hasNext()) {
+				RemoteFuture call = iterator.next();
+				if (call.ibisIdentifier.equals(ibisIdentifier)
+						&& (name == null || name.equals(call.name))) {
+					iterator.remove();
+					failed.add(call);
+				}
+			}
+		}
+
+		for (RemoteFuture call : failed) {
+			call.setResult(false, new RemoteException(
+					"lost connection to remote object " + call.name, reason));
+		}
+	}
+
+	/**
+	 * Returns the method id the given remote object uses for the given
+	 * method. The ids of all methods of an interface are negotiated with the
+	 * remote object on first use, and cached.
+	 */
+	private int getMethodID(IbisIdentifier ibisIdentifier, String name,
+			SendPort sendPort, Method method) throws IOException {
+		Class<?> interfaceClass = method.getDeclaringClass();
+		MethodTable table = MethodTable.getTable(interfaceClass);
+		String key = ibisIdentifier + "/" + name + "#"
+				+ interfaceClass.getName();
+
+		int[] ids;
+		synchronized (this) {
+			ids = methodIDs.get(key);
+		}
+
+		if (ids == null) {
+			RemoteFuture negotiation = new RemoteFuture("<negotiate>",
+					ibisIdentifier, name);
+			sendRequest(ibisIdentifier, name, sendPort, negotiation,
+					MethodTable.NEGOTIATE_METHOD_ID, table.getSignatures());
+			waitUntilDone(negotiation);
+			try {
+				ids = (int[]) negotiation.getResultOrThrow();
+			} catch (IOException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new RemoteException(
+						"could not negotiate method ids with remote object "
+								+ name, t);
+			}
+
+			synchronized (this) {
+				methodIDs.put(key, ids);
+			}
+		}
+
+		int index = table.getIndex(method);
+		if (index < 0 || index >= ids.length
+				|| ids[index] == MethodTable.UNKNOWN_METHOD_ID) {
+			throw new RemoteException("method \"" + method.getName()
+					+ "\" not supported by remote object " + name);
+		}
+		return ids[index];
+	}
+
+	/**
+	 * Sends a request to the given remote object. Does not wait for the reply,
+	 * which is delivered to the returned future.
+	 */
+	RemoteFuture call(IbisIdentifier ibisIdentifier, String name,
+			Method method, Object[] args) throws IOException {
+		SendPort sendPort = getSendPort(ibisIdentifier, name);
+
+		int methodID = getMethodID(ibisIdentifier, name, sendPort, method);
+
+		RemoteFuture call = new RemoteFuture(method.getName(), ibisIdentifier,
+				name);
+		sendRequest(ibisIdentifier, name, sendPort, call, methodID, args);
+		return call;
+	}
+
+	private void sendRequest(IbisIdentifier ibisIdentifier, String name,
+			SendPort sendPort, RemoteFuture call, int methodID, Object payload)
+			throws IOException {
+		long callID = addPendingCall(call);
+
+		WriteMessage request = null;
+		try {
+			// Send the request message. This message contains the identifier
+			// of our receive port so the server knows where to send the reply
+			request = sendPort.newMessage();
+			request.writeObject(replyPort.identifier());
+			request.writeLong(callID);
+			request.writeInt(methodID);
+			request.writeObject(payload);
+			request.finish();
+		} catch (IOException e) {
+			if (request != null) {
+				request.finish(e);
+			}
+			removePendingCall(callID);
+
+			// connection is broken, do not use it again
+			removeSendPort(ibisIdentifier, name, sendPort);
+			try {
+				sendPort.close();
+			} catch (IOException e2) {
+				// IGNORE
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Function called by Ibis to give us a newly arrived reply. Not meant to
+	 * be called by users.
+	 */
+	public void upcall(ReadMessage message) throws IOException,
+			ClassNotFoundException {
+		long callID = message.readLong();
+		boolean success;
+		Object result;
+		try {
+			success = message.readBoolean();
+			result = message.readObject();
+			message.finish();
+		} catch (IOException e) {
+			failCall(callID, e);
+			throw e;
+		} catch (ClassNotFoundException e) {
+			failCall(callID, e);
+			throw e;
+		}
+
+		RemoteFuture call = removePendingCall(callID);
+
+		if (call == null) {
+			logger.warn("received reply for unknown call " + callID);
+			return;
+		}
+
+		call.setResult(success, result);
+	}
+
+	/**
+	 * Fails the given call, of which the reply could not be read.
+	 */
+	private void failCall(long callID, Throwable cause) {
+		RemoteFuture call = removePendingCall(callID);
+		if (call != null) {
+			call.setResult(false, new RemoteException(
+					"could not read reply of call to \"" + call.getMethodName()
+							+ "\" of remote object " + call.name, cause));
+		}
+	}
+
+	/**
+	 * Function called by Ibis when a remote object connects to send replies.
+	 * Not meant to be called by users.
+	 */
+	public boolean gotConnection(ReceivePort receiver,
+			SendPortIdentifier applicant) {
+		return true;
+	}
+
+	/**
+	 * Function called by Ibis when a remote object disconnects its replies.
+	 * Not meant to be called by users. Replies are sent by every remote
+	 * object over a connection of its own, so an ibis that is still alive
+	 * only closes one when the remote object is unexported. If the
+	 * connection broke instead, the calls to all remote objects of that
+	 * ibis are failed.
+	 */
+	public void lostConnection(ReceivePort receiver,
+			SendPortIdentifier origin, Throwable cause) {
+		if (cause != null) {
+			failCalls(origin.ibisIdentifier(), null, cause);
+		}
+	}
+
+	/**
+	 * Function called by Ibis when the connection to a remote object breaks.
+	 * Not meant to be called by users.
+	 */
+	public void lostConnection(final SendPort origin,
+			ReceivePortIdentifier receiver, Throwable cause) {
+		removeSendPort(receiver.ibisIdentifier(), receiver.name(), origin);
+		failCalls(receiver.ibisIdentifier(), receiver.name(), cause);
+
+		// not closed from within the upcall, which may be done by a thread
+		// that is writing a message
+		ThreadPool.createNew(new Runnable() {
+			public void run() {
+				try {
+					origin.close();
+				} catch (IOException e) {
+					// IGNORE
+				}
+			}
+		}, "RPC send port closer");
+	}
+
+	/**
+	 * Closes all cached connections and the reply port. Calls still in
+	 * progress are aborted.
+	 */
+	void close() {
+		SendPort[] ports;
+		RemoteFuture[] calls;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			ports = sendPorts.values().toArray(new SendPort[0]);
+			sendPorts.clear();
+			methodIDs.clear();
+			calls = pendingCalls.values().toArray(new RemoteFuture[0]);
+			pendingCalls.clear();
+		}
+
+		for (SendPort port : ports) {
+			try {
+				port.close();
+			} catch (IOException e) {
+				logger.debug("error on closing send port", e);
+			}
+		}
+
+		for (RemoteFuture call : calls) {
+			call.setResult(false, new RemoteException("RPC client closed"));
+		}
+
+		try {
+			replyPort.close();
+		} catch (IOException e) {
+			logger.debug("error on closing reply port", e);
+		}
+	}
+}
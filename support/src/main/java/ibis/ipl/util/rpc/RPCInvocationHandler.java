@@ -17,14 +17,9 @@ package ibis.ipl.util.rpc;
 
 import ibis.ipl.Ibis;
 import ibis.ipl.IbisIdentifier;
-import ibis.ipl.ReadMessage;
-import ibis.ipl.ReceivePort;
-import ibis.ipl.SendPort;
-import ibis.ipl.WriteMessage;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 import org.slf4j.Logger;
@@ -56,51 +51,18 @@ class RPCInvocationHandler implements InvocationHandler {
 						+ method.getName());
 			}
 
-			// Create a send port for sending the request and connect.
-			SendPort sendPort = ibis.createSendPort(RPC.rpcRequestPortType);
-			sendPort.connect(ibisIdentifier, name);
-
-			// Create a receive port for receiving the reply from the server
-			// this receive port does not need a name, as we will send the
-			// ReceivePortIdentifier to the server directly
-			ReceivePort receivePort = ibis.createReceivePort(
-					RPC.rpcReplyPortType, null);
-			receivePort.enableConnections();
-
-			// Send the request message. This message contains the identifier of
-			// our receive port so the server knows where to send the reply
-			WriteMessage request = sendPort.newMessage();
-			request.writeObject(receivePort.identifier());
-			request.writeString(method.getName());
-			request.writeObject(method.getParameterTypes());
-			request.writeObject(args);
-			request.finish();
-			
-			ReadMessage reply = receivePort.receive();
-			boolean success = reply.readBoolean();
-			Object result = reply.readObject();
-			reply.finish();
+			// Send the request over the cached connection of this Ibis, and
+			// wait for the matching reply.
+			RPCClient client = RPCClient.getClient(ibis);
+			RemoteFuture call = client.call(ibisIdentifier, name, method, args);
+			client.waitUntilDone(call);
 
 			if (logger.isDebugEnabled()) {
 				logger.debug("remote object \"" + name + "\", method \"" + method.getName()
-						+ "\" result = " + result);
+						+ "\" done");
 			}
 
-			// Close ports.
-			sendPort.close();
-			receivePort.close();
-
-			if (success) {
-				return result;
-			} else if (result instanceof InvocationTargetException) {
-				InvocationTargetException exception = (InvocationTargetException) result;
-				
-				//throw user exception
-				throw exception.getTargetException();
-			} else {
-				//some error occured while doing remote call
-				throw new RemoteException("exception while performing remote call", (Throwable) result);
-			}
+			return call.getResultOrThrow();
 		} catch (IOException e) {
 			throw new RemoteException("invocation failed", e);
 		}
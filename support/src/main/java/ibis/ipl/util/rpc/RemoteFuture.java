@@ -0,0 +1,174 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.util.rpc;
+
+import ibis.ipl.IbisIdentifier;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of a remote call which may not have completed yet. Returned by the
+ * methods of an {@link AsyncProxy}. Remote calls cannot be cancelled.
+ */
+public final class RemoteFuture implements Future<Object> {
+
+	private final String methodName;
+
+	// ibis and name of the remote object called
+	final IbisIdentifier ibisIdentifier;
+
+	final String name;
+
+	private boolean done = false;
+
+	private boolean success;
+
+	private Object result;
+
+	RemoteFuture(String methodName, IbisIdentifier ibisIdentifier, String name) {
+		this.methodName = methodName;
+		this.ibisIdentifier = ibisIdentifier;
+		this.name = name;
+	}
+
+	synchronized void setResult(boolean success, Object result) {
+		if (done) {
+			return;
+		}
+		this.success = success;
+		this.result = result;
+		done = true;
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the reply.
+	 *
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds, 0 for no limit.
+	 * @return false if the call is not done within the timeout.
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting.
+	 */
+	synchronized boolean waitUntilDone(long timeout)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while (!done) {
+			if (timeout == 0) {
+				wait();
+			} else {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				wait(left);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the result of the call, or throws the exception thrown by the
+	 * remote method. Only valid once the call is done.
+	 */
+	synchronized Object getResultOrThrow() throws Throwable {
+		if (success) {
+			return result;
+		} else if (result instanceof InvocationTargetException) {
+			InvocationTargetException exception = (InvocationTargetException) result;
+
+			// throw user exception
+			throw exception.getTargetException();
+		} else if (result instanceof RemoteException) {
+			throw (RemoteException) result;
+		} else {
+			// some error occured while doing remote call
+			throw new RemoteException("exception while performing remote call",
+					(Throwable) result);
+		}
+	}
+
+	/**
+	 * Returns the name of the method called.
+	 *
+	 * @return the name of the method called.
+	 */
+	public String getMethodName() {
+		return methodName;
+	}
+
+	/**
+	 * Remote calls cannot be cancelled, always returns false.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Waits for the call to finish and returns its result. If the remote
+	 * method threw an exception, or the call failed, the cause of the
+	 * {@link ExecutionException} thrown is the exception thrown by the method,
+	 * or a {@link RemoteException}.
+	 */
+	public synchronized Object get() throws InterruptedException,
+			ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return getOrWrap();
+	}
+
+	public synchronized Object get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+
+		while (!done) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) {
+				throw new TimeoutException("remote call of \"" + methodName
+						+ "\" not done yet");
+			}
+			wait(left);
+		}
+		return getOrWrap();
+	}
+
+	private Object getOrWrap() throws ExecutionException {
+		try {
+			return getResultOrThrow();
+		} catch (Throwable t) {
+			throw new ExecutionException(t);
+		}
+	}
+
+	public String toString() {
+		return "RemoteFuture of call to \"" + methodName + "\", done = "
+				+ isDone();
+	}
+}
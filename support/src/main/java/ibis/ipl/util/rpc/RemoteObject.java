@@ -22,9 +22,16 @@ import ibis.ipl.ReceivePort;
 import ibis.ipl.ReceivePortIdentifier;
 import ibis.ipl.SendPort;
 import ibis.ipl.WriteMessage;
+import ibis.util.ThreadPool;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,11 +67,132 @@ public class RemoteObject<InterfaceType> implements MessageUpcall {
 
 	private final ReceivePort receivePort;
 
+	// cached reply connections, one for each client
+	private final Map<ReceivePortIdentifier, SendPort> replyPorts = new HashMap<ReceivePortIdentifier, SendPort>();
+
+	// set when unexported, guarded by replyPorts
+	private boolean unexported = false;
+
+	private final MethodTable methodTable;
+
+	// pre-resolved methods of theObject, indexed by method id
+	private final MethodHandle[] handles;
+
+	private final int maxConcurrentCalls;
+
+	// number of calls currently executing in a separate thread
+	private int activeCalls = 0;
+
+	/**
+	 * A single call to the remote object, executed in a thread from the
+	 * thread pool if calls are handled concurrently.
+	 */
+	private final class Invocation implements Runnable {
+
+		private final ReceivePortIdentifier requestor;
+
+		private final long callID;
+
+		private final int methodID;
+
+		private final Object[] args;
+
+		Invocation(ReceivePortIdentifier requestor, long callID, int methodID,
+				Object[] args) {
+			this.requestor = requestor;
+			this.callID = callID;
+			this.methodID = methodID;
+			if (args == null) {
+				this.args = new Object[0];
+			} else {
+				this.args = args;
+			}
+		}
+
+		/**
+		 * Checks that the arguments fit the parameters of the method, so
+		 * anything the handle throws comes from the method itself.
+		 *
+		 * @return a description of the problem, or null if there is none.
+		 */
+		private String checkArguments() {
+			Method method = methodTable.getMethod(methodID);
+			Class<?>[] types = method.getParameterTypes();
+
+			if (args.length != types.length) {
+				return "remote method \"" + method.getName() + "\" takes "
+						+ types.length + " arguments, got " + args.length;
+			}
+
+			for (int i = 0; i < types.length; i++) {
+				Class<?> type = MethodType.methodType(types[i]).wrap()
+						.returnType();
+				if (args[i] == null ? types[i].isPrimitive() : !type
+						.isInstance(args[i])) {
+					return "argument " + i + " of remote method \""
+							+ method.getName() + "\" is not a "
+							+ types[i].getName();
+				}
+			}
+			return null;
+		}
+
+		void invoke() throws IOException {
+			boolean success = false;
+			Object result = null;
+
+			String problem = checkArguments();
+			if (problem != null) {
+				result = new RemoteException(problem);
+			} else {
+				try {
+					result = (Object) handles[methodID].invokeExact(args);
+					success = true;
+				} catch (Exception exception) {
+					// method threw an exception, return to caller. Wrapped
+					// the same way reflection does, the caller unwraps it
+					// again.
+					result = new InvocationTargetException(exception);
+				} catch (Throwable error) {
+					logger.error("error in call to \""
+							+ methodTable.getMethod(methodID).getName()
+							+ "\" of remote object " + name, error);
+					result = new RemoteException("remote object " + name
+							+ " failed: " + error);
+				}
+			}
+
+			sendReply(requestor, callID, success, result);
+		}
+
+		public void run() {
+			try {
+				invoke();
+			} catch (IOException e) {
+				logger.error("could not send reply for call to \""
+						+ methodTable.getMethod(methodID).getName()
+						+ "\" of remote object " + name, e);
+			} finally {
+				callDone();
+			}
+		}
+	}
+
 	RemoteObject(Class<InterfaceType> interfaceClass, InterfaceType theObject,
-			String name, Ibis ibis) throws RemoteException {
+			String name, Ibis ibis, int maxConcurrentCalls)
+			throws RemoteException {
 		this.interfaceClass = interfaceClass;
 		this.theObject = theObject;
 		this.ibis = ibis;
+		this.maxConcurrentCalls = maxConcurrentCalls;
+
+		if (maxConcurrentCalls < 1) {
+			throw new RemoteException("maximum number of concurrent calls ("
+					+ maxConcurrentCalls + ") must be at least 1");
+		}
+
+		methodTable = MethodTable.getTable(interfaceClass);
+		handles = new MethodHandle[methodTable.size()];
 
 		// check if all methods of given interface throw a RemoteException
 		for (Method method : interfaceClass.getDeclaredMethods()) {
@@ -82,6 +210,29 @@ public class RemoteObject<InterfaceType> implements MessageUpcall {
 			}
 		}
 
+		// resolve all methods once, calls are dispatched by method id
+		MethodType invokerType = MethodType.methodType(Object.class,
+				Object[].class);
+		for (int i = 0; i < handles.length; i++) {
+			Method method = methodTable.getMethod(i);
+			try {
+				method.setAccessible(true);
+			} catch (RuntimeException e) {
+				// IGNORE, unreflect will fail if we really need access
+			}
+			try {
+				handles[i] = MethodHandles.lookup().unreflect(method)
+						.bindTo(theObject)
+						.asSpreader(Object[].class,
+								method.getParameterTypes().length)
+						.asType(invokerType);
+			} catch (IllegalAccessException e) {
+				throw new RemoteException("cannot access remote method \""
+						+ method.getName() + "\" in remote object interface \""
+						+ interfaceClass.getName() + "\"", e);
+			}
+		}
+
 		try {
 			receivePort = ibis.createReceivePort(RPC.rpcRequestPortType, name,
 					this);
@@ -106,6 +257,20 @@ public class RemoteObject<InterfaceType> implements MessageUpcall {
 
 	public void unexport() throws IOException {
 		receivePort.close();
+
+		SendPort[] ports;
+		synchronized (replyPorts) {
+			unexported = true;
+			ports = replyPorts.values().toArray(new SendPort[0]);
+			replyPorts.clear();
+		}
+		for (SendPort port : ports) {
+			try {
+				port.close();
+			} catch (IOException e) {
+				logger.debug("error on closing reply port", e);
+			}
+		}
 	}
 
 	/**
@@ -118,43 +283,145 @@ public class RemoteObject<InterfaceType> implements MessageUpcall {
 		// read request
 		ReceivePortIdentifier requestor = (ReceivePortIdentifier) message
 				.readObject();
-		String methodName = message.readString();
-		Class<?>[] parameterTypes = (Class<?>[]) message.readObject();
-		Object[] args = (Object[]) message.readObject();
+		long callID = message.readLong();
+		int methodID = message.readInt();
+		Object payload = message.readObject();
 		message.finish();
 
+		if (methodID == MethodTable.NEGOTIATE_METHOD_ID) {
+			// payload is the list of method signatures of the client
+			sendReply(requestor, callID, true,
+					methodTable.getIndices((String[]) payload));
+			return;
+		}
+
+		if (methodID < 0 || methodID >= handles.length) {
+			sendReply(requestor, callID, false, new RemoteException(
+					"unknown method id " + methodID + " for remote object "
+							+ name));
+			return;
+		}
+
 		if (logger.isDebugEnabled()) {
 			logger.debug("received invocation for remote object. name = "
-					+ name + ", method name =  " + methodName);
+					+ name + ", method name =  "
+					+ methodTable.getMethod(methodID).getName());
 		}
 
-		// create reply connection.
+		Invocation invocation = new Invocation(requestor, callID, methodID,
+				(Object[]) payload);
 
-		SendPort replyPort = ibis.createSendPort(RPC.rpcReplyPortType);
-		replyPort.connect(requestor);
+		if (maxConcurrentCalls == 1) {
+			// execute call in the upcall thread
+			invocation.invoke();
+			return;
+		}
 
-		boolean success;
-		Object result = null;
-		try {
-			Method method = interfaceClass.getDeclaredMethod(methodName,
-					parameterTypes);
+		waitForCallSlot();
+		ThreadPool.createNew(invocation, "RPC call to " + name);
+	}
 
-			result = method.invoke(theObject, args);
-			success = true;
-		} catch (Throwable exception) {
-			// method threw an exception, return to caller
-			result = exception;
-			success = false;
+	/**
+	 * Waits until less than the maximum number of calls is active. As this
+	 * blocks the upcall thread, no new requests are read until then.
+	 */
+	private synchronized void waitForCallSlot() {
+		while (activeCalls >= maxConcurrentCalls) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// IGNORE
+			}
 		}
+		activeCalls++;
+	}
+
+	private synchronized void callDone() {
+		activeCalls--;
+		notifyAll();
+	}
 
-		// send reply message
-		WriteMessage reply = replyPort.newMessage();
-		reply.writeBoolean(success);
-		reply.writeObject(result);
-		System.err.println("bytes send in reply = " + reply.finish());
+	/**
+	 * Returns a connected reply port for the given client. Connects only if no
+	 * cached connection exists yet.
+	 */
+	private SendPort getReplyPort(ReceivePortIdentifier requestor)
+			throws IOException {
+		synchronized (replyPorts) {
+			if (unexported) {
+				throw new RemoteException("remote object " + name
+						+ " already unexported");
+			}
+			SendPort result = replyPorts.get(requestor);
+			if (result != null) {
+				return result;
+			}
+		}
 
-		// cleanup
+		// connect outside of lock, so a slow client does not hold up the
+		// replies to the others
+		SendPort replyPort = ibis.createSendPort(RPC.rpcReplyPortType);
+		try {
+			replyPort.connect(requestor);
+		} catch (IOException e) {
+			try {
+				replyPort.close();
+			} catch (IOException e2) {
+				// IGNORE
+			}
+			throw e;
+		}
+
+		synchronized (replyPorts) {
+			SendPort existing = replyPorts.get(requestor);
+			if (existing == null && !unexported) {
+				replyPorts.put(requestor, replyPort);
+				return replyPort;
+			}
+		}
+
+		// some other thread was faster, or we were unexported in the mean
+		// time
 		replyPort.close();
+
+		synchronized (replyPorts) {
+			SendPort existing = replyPorts.get(requestor);
+			if (existing != null) {
+				return existing;
+			}
+		}
+		// the winner broke in the mean time, or we were unexported
+		return getReplyPort(requestor);
+	}
+
+	private void sendReply(ReceivePortIdentifier requestor, long callID,
+			boolean success, Object result) throws IOException {
+		SendPort replyPort = getReplyPort(requestor);
+
+		WriteMessage reply = null;
+		try {
+			reply = replyPort.newMessage();
+			reply.writeLong(callID);
+			reply.writeBoolean(success);
+			reply.writeObject(result);
+			reply.finish();
+		} catch (IOException e) {
+			if (reply != null) {
+				reply.finish(e);
+			}
+			// connection is broken (client gone?), do not use it again
+			synchronized (replyPorts) {
+				if (replyPorts.get(requestor) == replyPort) {
+					replyPorts.remove(requestor);
+				}
+			}
+			try {
+				replyPort.close();
+			} catch (IOException e2) {
+				// IGNORE
+			}
+			throw e;
+		}
 	}
 
 	public String toString() {
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.registry.central;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class EventListTest {
+
+    private static Event event(int time) {
+        return new Event(time, Event.LEAVE, "event", null);
+    }
+
+    private static void addRange(EventList list, int from, int to) {
+        for (int time = from; time < to; time++) {
+            list.add(event(time));
+        }
+    }
+
+    @Test
+    public void getsByTime() {
+        EventList list = new EventList();
+        addRange(list, 0, 1000);
+
+        assertEquals(1000, list.size());
+        for (int time = 0; time < 1000; time++) {
+            assertEquals(time, list.get(time).getTime());
+        }
+        assertNull(list.get(1000));
+        assertEquals(999, list.getNextRequiredEvent());
+    }
+
+    @Test
+    public void listStopsAtHole() {
+        EventList list = new EventList();
+        addRange(list, 0, 10);
+        addRange(list, 11, 20);
+
+        Event[] events = list.getList(5);
+        assertEquals(5, events.length);
+        assertEquals(5, events[0].getTime());
+        assertEquals(9, events[4].getTime());
+        assertEquals(9, list.getNextRequiredEvent());
+
+        // filling the hole joins both ranges
+        list.add(event(10));
+        assertEquals(15, list.getList(5).length);
+        assertEquals(19, list.getNextRequiredEvent());
+    }
+
+    @Test
+    public void outOfOrderAdds() {
+        EventList list = new EventList();
+        for (int time = 199; time >= 0; time--) {
+            list.add(event(time));
+        }
+        assertEquals(200, list.size());
+        assertEquals(200, list.getList(0).length);
+    }
+
+    @Test
+    public void setMinimumPurges() {
+        EventList list = new EventList();
+        addRange(list, 0, 100);
+        long before = list.getMemoryUsage();
+
+        list.setMinimum(60);
+        assertEquals(40, list.size());
+        assertEquals(60, list.getMinimum());
+        assertNull(list.get(59));
+        assertNotNull(list.get(60));
+        assertEquals(60, list.getList(0)[0].getTime());
+        assertEquals(before * 40 / 100, list.getMemoryUsage());
+
+        // purged events are not stored again
+        list.add(event(10));
+        assertNull(list.get(10));
+        assertEquals(40, list.size());
+    }
+
+    @Test
+    public void retentionKeepsWindow() {
+        EventList list = new EventList(100);
+
+        // wraps around the ring many times
+        addRange(list, 0, 10000);
+
+        assertEquals(100, list.size());
+        assertEquals(9900, list.getMinimum());
+        assertNull(list.get(9899));
+        Event[] events = list.getList(0);
+        assertEquals(100, events.length);
+        for (int i = 0; i < events.length; i++) {
+            assertEquals(9900 + i, events[i].getTime());
+        }
+
+        EventList fresh = new EventList();
+        addRange(fresh, 0, 100);
+        assertEquals(fresh.getMemoryUsage(), list.getMemoryUsage());
+    }
+
+    @Test
+    public void retentionWithHoles() {
+        EventList list = new EventList(100);
+        addRange(list, 0, 50);
+
+        // a jump drops everything outside the window
+        list.add(event(500));
+        assertEquals(1, list.size());
+        assertEquals(401, list.getMinimum());
+        assertNull(list.get(49));
+        Event event = list.get(500);
+        assertNotNull(event);
+
+        addRange(list, 401, 500);
+        assertEquals(100, list.size());
+        assertSame(event, list.get(500));
+        assertEquals(500, list.getNextRequiredEvent());
+    }
+
+    @Test
+    public void signalEventsInRange() {
+        EventList list = new EventList();
+        for (int time = 0; time < 100; time++) {
+            if (time % 10 == 0) {
+                list.add(new Event(time, Event.SIGNAL, "signal", null));
+            } else {
+                list.add(event(time));
+            }
+        }
+
+        Event[] signals = list.getSignalEvents(15, 45);
+        assertEquals(3, signals.length);
+        assertEquals(20, signals[0].getTime());
+        assertEquals(40, signals[2].getTime());
+        assertEquals(10, list.getSignalEvents(0, 1000).length);
+    }
+}
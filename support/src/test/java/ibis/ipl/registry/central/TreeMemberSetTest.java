@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 Vrije Universiteit
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ibis.ipl.registry.central;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import ibis.ipl.impl.IbisIdentifier;
+import ibis.ipl.impl.Location;
+
+public class TreeMemberSetTest {
+
+    private static Member member(int id) {
+        IbisIdentifier ibis = new IbisIdentifier(Integer.toString(id),
+                new byte[0], new byte[0], new Location("node" + id), "pool",
+                null);
+        return new Member(ibis, new Event(id, Event.JOIN, null, ibis));
+    }
+
+    /**
+     * Checks that getParent() is the inverse of getChildren(), and that the
+     * children of the root have no parent.
+     */
+    private static void checkTree(TreeMemberSet set) {
+        int children = 0;
+        for (Member m : set.asArray()) {
+            for (Member child : set.getChildren(m.getIbis())) {
+                assertSame(m, set.getParent(child.getIbis()));
+                children++;
+            }
+        }
+        for (Member m : set.getRootChildren()) {
+            assertNull(set.getParent(m.getIbis()));
+            children++;
+        }
+        assertEquals(set.size(), children);
+    }
+
+    @Test
+    public void parentIsInverseOfChildren() {
+        TreeMemberSet set = new TreeMemberSet();
+        List<Member> members = new ArrayList<Member>();
+        for (int i = 0; i < 40; i++) {
+            members.add(member(i));
+            set.add(members.get(i));
+            checkTree(set);
+        }
+
+        for (int i = 0; i < 40; i += 3) {
+            set.remove(members.get(i).getIbis());
+            checkTree(set);
+        }
+
+        for (int i = 40; i < 50; i++) {
+            set.add(member(i));
+            checkTree(set);
+        }
+    }
+
+    @Test
+    public void removalUpdatesCachedParent() {
+        TreeMemberSet set = new TreeMemberSet();
+        for (int i = 0; i < 20; i++) {
+            set.add(member(i));
+        }
+
+        Member child = null;
+        Member parent = null;
+        for (Member m : set.asArray()) {
+            parent = set.getParent(m.getIbis());
+            if (parent != null) {
+                child = m;
+                break;
+            }
+        }
+
+        // asked twice, so the answer comes from the cache
+        assertSame(parent, set.getParent(child.getIbis()));
+        set.remove(parent.getIbis());
+        Member newParent = set.getParent(child.getIbis());
+        assertNotSame(parent, newParent);
+        checkTree(set);
+    }
+
+    @Test
+    public void childrenArrayIsACopy() {
+        TreeMemberSet set = new TreeMemberSet();
+        for (int i = 0; i < 20; i++) {
+            set.add(member(i));
+        }
+
+        for (Member m : set.asArray()) {
+            Member[] children = set.getChildren(m.getIbis());
+            Member[] copy = children.clone();
+            Arrays.fill(children, null);
+            assertEquals(Arrays.asList(copy), Arrays.asList(set.getChildren(m
+                    .getIbis())));
+        }
+    }
+}